@@ -0,0 +1,11 @@
+package com.katelynslater.data;
+
+// Stands in for the generated BundledNetwork while the generator is compiled along with the main sources
+// The real class is written by BundledNetworkGenerator, see the generateBundledNetwork task in build.gradle
+public final class BundledNetwork {
+    private BundledNetwork() {}
+
+    public static Interchanges load() {
+        throw new IllegalStateException("The bundled network has not been generated");
+    }
+}
@@ -0,0 +1,242 @@
+package com.katelynslater.data;
+
+import com.katelynslater.CLI;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Compiles the bundled interchanges.json into BundledNetwork, a class holding the connected network as static arrays
+// The JSON is read by the same loader the CLI uses, so the build fails on anything the CLI would reject
+// Each array is built by its own method, keeping every method under the JVM's 64KB limit
+//
+// Usage: BundledNetworkGenerator [interchanges.json filepath] [generated sources directory]
+public class BundledNetworkGenerator {
+    // Larger networks would overflow the class file's method and constant pool limits, they should be shipped as a snapshot
+    public static final int MAX_LOCATIONS = 2048;
+    // The longest string constant a class file can hold is 65535 bytes of modified UTF-8
+    private static final int MAX_STRING_BYTES = 65535;
+    // Values written per line
+    private static final int PER_LINE = 12;
+
+    public static void main(String[] args) {
+        if(args.length != 2) {
+            System.err.println("Usage: BundledNetworkGenerator [interchanges.json filepath] [generated sources directory]");
+            System.exit(1);
+        }
+        try {
+            generate(Paths.get(args[0]), Paths.get(args[1]));
+        } catch(GeneratorException gerr) {
+            System.err.println(args[0] + ": " + gerr.getMessage());
+            System.exit(1);
+        } catch(IOException ioerr) {
+            System.err.println("Could not generate the bundled network: " + ioerr);
+            System.exit(1);
+        }
+    }
+
+    // Exception used when the network can't be generated, the message says why
+    public static class GeneratorException extends Exception {
+        public GeneratorException(String message) {
+            super(message);
+        }
+    }
+
+    // Load a network file and write BundledNetwork.java for it under a source directory
+    public static void generate(Path input, Path outputDirectory) throws IOException, GeneratorException {
+        CLI cli = new CLI();
+        try(InputStream is = new BufferedInputStream(Files.newInputStream(input))) {
+            cli.loadFromInputStream(is);
+        } catch(CLI.CLIException clierr) {
+            Throwable cause = clierr.getCause();
+            throw new GeneratorException(clierr.getMessage() + (cause == null ? "" : " (" + cause.getMessage() + ")"));
+        }
+
+        Path output = outputDirectory.resolve("com/katelynslater/data/BundledNetwork.java");
+        Files.createDirectories(output.getParent());
+        try(Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            writer.write(generate(cli.interchanges, input.getFileName().toString()));
+        }
+    }
+
+    // The source of BundledNetwork for a loaded network
+    public static String generate(Interchanges interchanges, String sourceName) throws GeneratorException {
+        NetworkStore store = interchanges.getStore();
+        NameIndex nameIndex = interchanges.getNameIndex();
+        RoadGraph graph = interchanges.getGraph();
+        int size = store.size();
+        if(size > MAX_LOCATIONS) throw new GeneratorException("The network has " + size + " locations, more than the " + MAX_LOCATIONS + " that can be generated, ship it as a snapshot and load it with --data instead");
+
+        // The store's arrays, by dense index
+        int[] ids = new int[size];
+        String[] names = new String[size];
+        int[] next = new int[size];
+        long[] nextMetres = new long[size];
+        int[] prev = new int[size];
+        long[] prevMetres = new long[size];
+        int[] segments = new int[size];
+        long[] cumulative = new long[size];
+        long[] cumulativeDown = new long[size];
+        double[] lat = new double[size];
+        double[] lng = new double[size];
+        for(int i = 0; i < size; i++) {
+            ids[i] = store.idAt(i);
+            names[i] = store.nameAt(i);
+            next[i] = store.nextAt(i);
+            nextMetres[i] = store.nextMetresAt(i);
+            prev[i] = store.prevAt(i);
+            prevMetres[i] = store.prevMetresAt(i);
+            segments[i] = store.segmentAt(i);
+            cumulative[i] = store.cumulativeMetresAt(i);
+            cumulativeDown[i] = store.cumulativeDownMetresAt(i);
+            lat[i] = store.latAt(i);
+            lng[i] = store.lngAt(i);
+        }
+
+        // The name index's arrays, read back from its layout: int size, int slotCount, int charCount, then the sections in order
+        ByteBuffer layout = ByteBuffer.allocate(nameIndex.layoutBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        nameIndex.write(layout);
+        layout.flip();
+        int nameCount = layout.getInt();
+        int slotCount = layout.getInt();
+        int charCount = layout.getInt();
+        int[] nameOffsets = readInts(layout, nameCount + 1);
+        int[] nameIds = readInts(layout, nameCount);
+        int[] nameSlots = readInts(layout, slotCount);
+        char[] nameChars = new char[charCount];
+        for(int i = 0; i < charCount; i++) nameChars[i] = layout.getChar();
+        String foldedNames = new String(nameChars);
+        if(foldedNames.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_BYTES) throw new GeneratorException("The location names are too long to generate, ship the network as a snapshot and load it with --data instead");
+
+        StringBuilder source = new StringBuilder();
+        source.append("package com.katelynslater.data;\n\n");
+        source.append("// Generated from ").append(sourceName).append(" by BundledNetworkGenerator when the project is built, do not edit\n");
+        source.append("// The bundled network, already connected and indexed, so starting without a data file needs no JSON parsing\n");
+        source.append("public final class BundledNetwork {\n");
+        source.append("    private BundledNetwork() {}\n\n");
+        source.append("    // The number of locations\n");
+        source.append("    public static final int SIZE = ").append(size).append(";\n\n");
+
+        // Every load gets its own arrays, so nothing is shared between the networks it returns
+        source.append("    // Build a published Interchanges from the generated arrays\n");
+        source.append("    public static Interchanges load() {\n");
+        source.append("        NetworkStore store = ArrayNetworkStore.wrap(ids(), names(), next(), nextMetres(), prev(), prevMetres(), segments(), cumulative(), cumulativeDown(), lat(), lng());\n");
+        source.append("        NameIndex nameIndex = NameIndex.wrap(nameOffsets(), nameIds(), nameSlots(), nameChars());\n");
+        if(graph == null) source.append("        RoadGraph graph = null;\n");
+        else source.append("        RoadGraph graph = RoadGraph.wrap(edgeStart(), edgeTarget(), edgeMetres(), linear());\n");
+        source.append("        return Interchanges.fromCompiled(store, nameIndex, graph);\n");
+        source.append("    }\n");
+
+        appendInts(source, "ids", ids);
+        appendStrings(source, "names", names);
+        appendInts(source, "next", next);
+        appendLongs(source, "nextMetres", nextMetres);
+        appendInts(source, "prev", prev);
+        appendLongs(source, "prevMetres", prevMetres);
+        appendInts(source, "segments", segments);
+        appendLongs(source, "cumulative", cumulative);
+        appendLongs(source, "cumulativeDown", cumulativeDown);
+        appendDoubles(source, "lat", lat);
+        appendDoubles(source, "lng", lng);
+
+        appendInts(source, "nameOffsets", nameOffsets);
+        appendInts(source, "nameIds", nameIds);
+        appendInts(source, "nameSlots", nameSlots);
+        source.append("\n    private static char[] nameChars() {\n        return ");
+        appendString(source, foldedNames);
+        source.append(".toCharArray();\n    }\n");
+
+        if(graph != null) {
+            int segmentCount = 0;
+            for(int i = 0; i < size; i++) segmentCount = Math.max(segmentCount, segments[i] + 1);
+            int edgeCount = graph.edgeCount();
+            int[] edgeStart = new int[size + 1];
+            for(int i = 0; i <= size; i++) edgeStart[i] = graph.firstEdge(i);
+            int[] edgeTarget = new int[edgeCount];
+            long[] edgeMetres = new long[edgeCount];
+            for(int edge = 0; edge < edgeCount; edge++) {
+                edgeTarget[edge] = graph.edgeTarget(edge);
+                edgeMetres[edge] = graph.edgeMetres(edge);
+            }
+            int[] linear = new int[segmentCount];
+            for(int segment = 0; segment < segmentCount; segment++) linear[segment] = graph.isLinear(segment) ? 1 : 0;
+
+            appendInts(source, "edgeStart", edgeStart);
+            appendInts(source, "edgeTarget", edgeTarget);
+            appendLongs(source, "edgeMetres", edgeMetres);
+            appendInts(source, "linear", linear);
+        }
+
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        for(int i = 0; i < count; i++) values[i] = buffer.getInt();
+        return values;
+    }
+
+    private static void appendInts(StringBuilder source, String name, int[] values) {
+        source.append("\n    private static int[] ").append(name).append("() {\n        return new int[] {");
+        for(int i = 0; i < values.length; i++) {
+            separate(source, i);
+            source.append(values[i]);
+        }
+        source.append("};\n    }\n");
+    }
+
+    private static void appendLongs(StringBuilder source, String name, long[] values) {
+        source.append("\n    private static long[] ").append(name).append("() {\n        return new long[] {");
+        for(int i = 0; i < values.length; i++) {
+            separate(source, i);
+            source.append(values[i]);
+            if(values[i] != (int)values[i]) source.append('L');
+        }
+        source.append("};\n    }\n");
+    }
+
+    private static void appendDoubles(StringBuilder source, String name, double[] values) {
+        source.append("\n    private static double[] ").append(name).append("() {\n        return new double[] {");
+        for(int i = 0; i < values.length; i++) {
+            separate(source, i);
+            // Double.toString() round trips exactly
+            if(Double.isNaN(values[i])) source.append("Double.NaN");
+            else source.append(values[i]);
+        }
+        source.append("};\n    }\n");
+    }
+
+    private static void appendStrings(StringBuilder source, String name, String[] values) {
+        source.append("\n    private static String[] ").append(name).append("() {\n        return new String[] {");
+        for(int i = 0; i < values.length; i++) {
+            source.append(i == 0 ? "\n            " : ",\n            ");
+            appendString(source, values[i]);
+        }
+        source.append("};\n    }\n");
+    }
+
+    // Start a new line every PER_LINE values
+    private static void separate(StringBuilder source, int i) {
+        if(i % PER_LINE == 0) source.append(i == 0 ? "\n            " : ",\n            ");
+        else source.append(", ");
+    }
+
+    // Append a Java string literal, escaping anything outside printable ASCII
+    private static void appendString(StringBuilder source, String value) {
+        source.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') source.append('\\').append(c);
+            else if(c >= 0x20 && c < 0x7F) source.append(c);
+            // Unicode escapes are read before anything else, so line breaks written as one would end the literal
+            else if(c < 0x20) source.append(String.format("\\%03o", (int)c));
+            else source.append(String.format("\\u%04x", (int)c));
+        }
+        source.append('"');
+    }
+}
@@ -0,0 +1,46 @@
+package com.katelynslater.benchmark;
+
+import com.katelynslater.CLI;
+import com.katelynslater.NetworkGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+// Data shared by the benchmarks
+class BenchmarkNetworks {
+    // Read the bundled interchanges.json into memory, so loading benchmarks don't measure disk reads
+    static byte[] bundledJson() throws IOException {
+        try(InputStream is = CLI.class.getResourceAsStream("/com/katelynslater/interchanges.json")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = is.read(buffer)) > 0) bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        }
+    }
+
+    // Generate a linear network of the given size in the interchanges.json format
+    // IDs step by 1 to 3 so the ID space has gaps, like real data after interchanges are removed
+    static byte[] generatedJson(int count) throws IOException {
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.count = count;
+        // Every route listed both ways, so the network stays one corridor
+        generator.dropRate = 0;
+        generator.danglingRate = 0;
+        generator.generate();
+        StringWriter json = new StringWriter(count * 160);
+        generator.writeJson(json);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Load JSON bytes into a new CLI
+    static CLI load(byte[] json) {
+        CLI cli = new CLI();
+        cli.loadFromInputStream(new ByteArrayInputStream(json));
+        return cli;
+    }
+}
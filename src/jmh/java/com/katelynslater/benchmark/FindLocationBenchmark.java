@@ -0,0 +1,42 @@
+package com.katelynslater.benchmark;
+
+import com.katelynslater.CLI;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Resolving user input to a location ID, the way every front end does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FindLocationBenchmark {
+    private CLI cli;
+
+    @Setup
+    public void setup() throws IOException {
+        cli = BenchmarkNetworks.load(BenchmarkNetworks.bundledJson());
+    }
+
+    @Benchmark
+    public int numeric() {
+        return cli.findLocationIdForString("23");
+    }
+
+    @Benchmark
+    public int name() {
+        return cli.findLocationIdForString("Highway 400");
+    }
+
+    @Benchmark
+    public int miss() {
+        try {
+            return cli.findLocationIdForString("Nowhere Road");
+        } catch(CLI.UnknownLocationException ulerr) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.katelynslater.benchmark;
+
+import com.katelynslater.CLI;
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.NetworkStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Distance and name lookups on a loaded network
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterchangesBenchmark {
+    // "bundled" for the bundled interchanges.json, otherwise the number of generated interchanges
+    @Param({"bundled", "100000"})
+    public String network;
+
+    private Interchanges interchanges;
+
+    // IDs for each span
+    private int firstId;
+    private int secondId;
+    private int middleId;
+    private int lastId;
+    private String lastName;
+
+    @Setup
+    public void setup() throws IOException {
+        CLI cli = BenchmarkNetworks.load(network.equals("bundled") ? BenchmarkNetworks.bundledJson() : BenchmarkNetworks.generatedJson(Integer.parseInt(network)));
+        interchanges = cli.interchanges;
+
+        NetworkStore store = interchanges.getStore();
+        firstId = store.idAt(0);
+        secondId = store.idAt(1);
+        middleId = store.idAt(store.size() / 2);
+        lastId = store.idAt(store.size() - 1);
+        lastName = store.nameAt(store.size() - 1).toUpperCase();
+    }
+
+    @Benchmark
+    public double distanceShortSpan() {
+        return interchanges.calculateDistance(firstId, secondId);
+    }
+
+    @Benchmark
+    public double distanceLongSpan() {
+        return interchanges.calculateDistance(firstId, middleId);
+    }
+
+    @Benchmark
+    public double distanceFullLength() {
+        return interchanges.calculateDistance(lastId, firstId);
+    }
+
+    @Benchmark
+    public int lookupLocationIdForName() {
+        return interchanges.lookupLocationIdForName(lastName);
+    }
+}
@@ -0,0 +1,35 @@
+package com.katelynslater.benchmark;
+
+import com.katelynslater.CLI;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Loading a network from JSON already in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoadBenchmark {
+    // "bundled" for the bundled interchanges.json, otherwise the number of generated interchanges
+    @Param({"bundled", "10000", "1000000"})
+    public String network;
+
+    private byte[] json;
+
+    @Setup
+    public void setup() throws IOException {
+        json = network.equals("bundled") ? BenchmarkNetworks.bundledJson() : BenchmarkNetworks.generatedJson(Integer.parseInt(network));
+    }
+
+    @Benchmark
+    public CLI loadFromInputStream() {
+        CLI cli = new CLI();
+        cli.loadFromInputStream(new ByteArrayInputStream(json));
+        return cli;
+    }
+}
@@ -0,0 +1,157 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Itinerary;
+import com.katelynslater.data.Metres;
+import com.katelynslater.pricing.Tariff;
+
+import java.io.*;
+import java.util.concurrent.ExecutionException;
+
+// Prices a file of trips across all cores
+// Each input row is "trip id, start, end" separated by commas or tabs, where start and end are location IDs or names
+// Rows may add a vehicle class and a trip time such as 2026-10-17T08:30, otherwise the CLI's class and time are used
+// Results are written as "trip id, distance, cost", and rows that can't be priced are written to the rejects with a reason
+// With itinerary set, each result is followed by a "trip id, from id, to id, distance, charge" row for every segment of the trip
+public class BatchPricer {
+    // The CLI used to resolve locations, and the Interchanges it has loaded
+    private final CLI cli;
+
+    // Whether results are written in input order, rather than as soon as each chunk is done
+    public boolean ordered = true;
+    // The number of worker threads
+    public int threads = Runtime.getRuntime().availableProcessors();
+    // The number of rows handed to a worker at once
+    public int chunkSize = 4096;
+    // Whether to write the segments of each trip after its result
+    public boolean itinerary = false;
+
+    // Totals for the last run
+    public long pricedCount = 0;
+    public long rejectedCount = 0;
+    public long elapsedNanos = 0;
+
+    public BatchPricer(CLI cli) {
+        this.cli = cli;
+    }
+
+    // Price every trip read from the input, writing the results and rejects as they complete
+    public void run(BufferedReader input, Writer results, Writer rejects) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+        ChunkedRunner runner = new ChunkedRunner(ordered, threads, chunkSize);
+        try {
+            runner.run(input, results, rejects, this::price);
+        } finally {
+            pricedCount = runner.resultCount;
+            rejectedCount = runner.rejectedCount;
+            elapsedNanos = System.nanoTime() - startTime;
+        }
+    }
+
+    // Price every row in a chunk, this runs on a worker thread
+    // The whole chunk is priced against one version of the network, even if it is reloaded part way through
+    private void price(ChunkedRunner.Chunk chunk) {
+        Interchanges interchanges = cli.interchanges;
+        Tariff tariff = cli.tariff;
+        QuoteCache cache = cli.quoteCache;
+        RowSplitter splitter = new RowSplitter(5);
+        String[] fields = splitter.fields;
+        // One cursor walks every trip in the chunk
+        Itinerary itinerary = this.itinerary ? new Itinerary() : null;
+
+        for(int i = 0; i < chunk.rowCount; i++) {
+            String row = chunk.rows[i];
+            long lineNumber = chunk.lineNumber(i);
+
+            int fieldCount = splitter.split(row);
+            if(fieldCount == RowSplitter.SKIP) continue;
+            char delimiter = splitter.delimiter;
+            if(fieldCount < 3) {
+                chunk.reject(lineNumber, row, "Expected 3 to 5 fields: trip id, start, end, vehicle class and time");
+                continue;
+            }
+
+            int vehicleClass = cli.vehicleClass;
+            int minuteOfWeek = cli.tripMinuteOfWeek;
+            try {
+                if(fieldCount > 3 && !fields[3].isEmpty()) vehicleClass = cli.findVehicleClass(tariff, fields[3]);
+                if(fieldCount > 4 && !fields[4].isEmpty()) minuteOfWeek = cli.parseTripTime(fields[4]);
+            } catch(CLI.InvalidTripDetailsException itderr) {
+                chunk.reject(lineNumber, row, itderr.getMessage());
+                continue;
+            }
+
+            // Repeated trips are answered from the cache, as long as they don't need their segments
+            QuoteCache.Key key = null;
+            if(cache != null && itinerary == null) {
+                key = cache.key(null, interchanges, tariff, fields[1], fields[2], vehicleClass, minuteOfWeek);
+                QuoteCache.Quote cached = cache.get(key);
+                if(cached != null) {
+                    chunk.results.append(fields[0]).append(delimiter).append(cached.distance).append(delimiter).append(cached.cost).append('\n');
+                    chunk.resultCount++;
+                    continue;
+                }
+            }
+
+            // Misses are common in real batches, so they are found without exceptions
+            int startId = cli.resolveLocationId(interchanges, fields[1]);
+            if(startId == Interchanges.UNKNOWN_ID) {
+                chunk.reject(lineNumber, row, cli.unknownLocationMessage(interchanges, fields[1]));
+                continue;
+            }
+            int endId = cli.resolveLocationId(interchanges, fields[2]);
+            if(endId == Interchanges.UNKNOWN_ID) {
+                chunk.reject(lineNumber, row, cli.unknownLocationMessage(interchanges, fields[2]));
+                continue;
+            }
+
+            long metres = interchanges.distanceMetres(startId, endId);
+            if(metres == Metres.UNREACHABLE) {
+                chunk.reject(lineNumber, row, Interchanges.noPathMessage(startId, endId));
+                continue;
+            }
+
+            // Write the result using the same delimiter as the row
+            StringBuilder results = chunk.results;
+            results.append(fields[0]).append(delimiter);
+            int distanceStart = results.length();
+            appendDecimal(results, metres, Metres.KM_DECIMALS);
+            int distanceEnd = results.length();
+            results.append(delimiter);
+            appendDecimal(results, tariff.priceCentsForMetres(interchanges, startId, endId, metres, vehicleClass, minuteOfWeek), 2);
+            if(key != null) cache.put(key, new QuoteCache.Quote(results.substring(distanceStart, distanceEnd), results.substring(distanceEnd + 1)));
+            results.append('\n');
+            chunk.resultCount++;
+
+            if(itinerary != null) {
+                interchanges.itinerary(startId, endId, itinerary);
+                while(itinerary.next()) {
+                    results.append(fields[0]).append(delimiter).append(itinerary.fromId()).append(delimiter).append(itinerary.toId()).append(delimiter);
+                    appendDecimal(results, itinerary.metres(), Metres.KM_DECIMALS);
+                    results.append(delimiter);
+                    appendDecimal(results, tariff.segmentCents(interchanges, itinerary, vehicleClass, minuteOfWeek), 2);
+                    results.append('\n');
+                }
+            }
+        }
+    }
+
+    // Append a scaled integer as a fixed point decimal, e.g. 28820 with 3 decimals is "28.820"
+    public static void appendDecimal(StringBuilder builder, long scaled, int decimals) {
+        if(scaled < 0) {
+            builder.append('-');
+            scaled = -scaled;
+        }
+        long divisor = 1;
+        for(int i = 0; i < decimals; i++) divisor *= 10;
+
+        builder.append(scaled / divisor);
+        if(decimals == 0) return;
+        builder.append('.');
+        long fraction = scaled % divisor;
+        for(long digit = divisor / 10; digit > 0; digit /= 10) {
+            builder.append((char)('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+}
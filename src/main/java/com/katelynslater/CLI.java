@@ -1,16 +1,44 @@
 package com.katelynslater;
 
+import com.katelynslater.data.ArrayNetworkStore;
+import com.katelynslater.data.BufferNetworkStore;
+import com.katelynslater.data.BundledNetwork;
 import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Itinerary;
 import com.katelynslater.data.Location;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkPatch;
+import com.katelynslater.data.NetworkSnapshot;
+import com.katelynslater.data.NetworkStore;
 import com.katelynslater.data.Route;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.katelynslater.json.JsonReader;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.metrics.TimedInputStream;
+import com.katelynslater.pricing.Tariff;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 
 public class CLI {
     // CLI friendly exceptions, along with the exit status code to use
@@ -30,6 +58,11 @@ public class CLI {
             super(message, ExitStatus.InvalidLocation);
         }
     }
+    public class InvalidTripDetailsException extends CLIException {
+        public InvalidTripDetailsException(String message) {
+            super(message, ExitStatus.InvalidTripDetails);
+        }
+    }
 
     // List of Possible Exit Statuses
     enum ExitStatus {
@@ -40,27 +73,332 @@ public class CLI {
         InterchangesFormatIssue,
 
         InvalidLocation,
-        UnexpectedException
+        UnexpectedException,
+
+        // Appended so the existing exit codes are unchanged
+        FailedToReadInput,
+        FailedToReadTariff,
+        InvalidTripDetails,
+        FailedToReadPatch,
+        VerificationFailed
+    }
+
+    // The input, output and rejects of a batch mode, where a path of - means stdin or stdout and no rejects path means stderr
+    // Closing closes the files and only flushes stdout and stderr. It is opened with try, so an error while closing is
+    // added to the one the run failed with instead of hiding it, and only thrown itself when the run succeeded
+    static class BatchFiles implements Closeable {
+        private final boolean closeInput;
+        private final boolean closeOutput;
+        private final boolean closeRejects;
+        BufferedReader input = null;
+        Writer output = null;
+        Writer rejects = null;
+
+        private BatchFiles(String inputPath, String outputPath, String rejectsPath) {
+            closeInput = !inputPath.equals("-");
+            closeOutput = !outputPath.equals("-");
+            closeRejects = rejectsPath != null;
+        }
+
+        // Open all three, closing any already open if one can't be
+        static BatchFiles open(String inputPath, String outputPath, String rejectsPath) throws IOException {
+            BatchFiles files = new BatchFiles(inputPath, outputPath, rejectsPath);
+            try {
+                files.input = new BufferedReader(new InputStreamReader(files.closeInput ? new FileInputStream(inputPath) : System.in, "UTF-8"), 1 << 16);
+                files.output = new BufferedWriter(new OutputStreamWriter(files.closeOutput ? new FileOutputStream(outputPath) : System.out, "UTF-8"), 1 << 16);
+                files.rejects = new BufferedWriter(new OutputStreamWriter(files.closeRejects ? new FileOutputStream(rejectsPath) : System.err, "UTF-8"));
+            } catch(IOException ioerr) {
+                try {
+                    files.close();
+                } catch(IOException closeerr) {
+                    ioerr.addSuppressed(closeerr);
+                }
+                throw ioerr;
+            }
+            return files;
+        }
+
+        // Close or flush every stream, even when an earlier one fails, then throw the first failure
+        public void close() throws IOException {
+            IOException failure = null;
+            Closeable[] streams = {input, output, rejects};
+            boolean[] close = {closeInput, closeOutput, closeRejects};
+            for(int i = 0; i < streams.length; i++) {
+                if(streams[i] == null) continue;
+                try {
+                    if(close[i]) streams[i].close();
+                    else if(streams[i] instanceof Flushable) ((Flushable)streams[i]).flush();
+                } catch(IOException ioerr) {
+                    if(failure == null) failure = ioerr;
+                    else failure.addSuppressed(ioerr);
+                }
+            }
+            if(failure != null) throw failure;
+        }
     }
 
     // Whether or not to actually print anything when log() is called
     public boolean debug = false;
 
     // The interchanges helper
-    public Interchanges interchanges = new Interchanges();
+    // Loading builds a complete network before publishing it here, so readers see either the old network or the new one
+    // Readers should read this once per query, and pass that Interchanges along
+    public volatile Interchanges interchanges = new Interchanges();
+
+    // The tariff every trip is priced with, $0.25/km unless a tariff file is loaded
+    public volatile Tariff tariff = Tariff.standard();
+    // The vehicle class and trip time used when a trip doesn't give its own
+    public int vehicleClass = tariff.defaultClass();
+    public int tripMinuteOfWeek = Tariff.NO_TIME;
+
+    // Whether to print the metrics when the process exits, set by --stats
+    public boolean printStats = false;
+
+    // Whether to follow each trip with its segments, set by --itinerary
+    public boolean printItinerary = false;
+
+    // A patch applied every time the network is loaded, set by --patch
+    public String patchFilePath = null;
+
+    // The patches applied, such as by POST /patch, since the oldest load still in flight began, replayed onto the network it publishes
+    // so a reload doesn't lose them. Patches are numbered in the order they were applied, and the list holds the last of them
+    // Once no load is in flight nothing needs replaying, and the list is emptied. Guarded by the CLI's lock, which every publish of interchanges takes
+    private final ArrayList<NetworkPatch> appliedPatches = new ArrayList<NetworkPatch>();
+    private long patchCount = 0;
+    // The number of patches applied when each load in flight began
+    private final List<Long> loadsInFlight = new ArrayList<Long>();
+
+    // Further networks answering queries that name them, set up by --network, null when there is only the one above
+    public NetworkRegistry networks = null;
+    // Why the --data network failed to load alongside them, kept like theirs so the server still answers for the rest, null once loaded
+    public volatile String dataFailure = null;
+    // Location names shared with other networks loaded alongside this one, null to keep every name to this network
+    public Map<String, String> sharedNames = null;
+
+    // Formatted quotes kept for the server and batch pricing, set by --cache, null when quotes aren't cached
+    public QuoteCache quoteCache = null;
+
+    // Load a tariff file, trips are priced with it from here on
+    public void loadTariff(String filepath) {
+        log("Reading tariff \"" + filepath + "\"");
+        try(Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(filepath)), "UTF-8")) {
+            Tariff loaded = Tariff.read(reader);
+            vehicleClass = loaded.defaultClass();
+            tariff = loaded;
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The tariff file at \"" + filepath + "\" could not be found", ExitStatus.FailedToReadTariff, fnferr);
+        } catch(Tariff.InvalidTariff iterr) {
+            throw new CLIException("The tariff file is invalid: " + iterr.getMessage(), ExitStatus.FailedToReadTariff, iterr);
+        } catch(JsonReader.MalformedJson | JsonReader.UnexpectedValue jerr) {
+            throw new CLIException("The tariff file could not be parsed: " + jerr.getMessage(), ExitStatus.FailedToReadTariff, jerr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading the tariff file", ExitStatus.FailedToReadTariff, ioerr);
+        }
+    }
+
+    // Find a vehicle class in a tariff by name
+    public int findVehicleClass(Tariff tariff, String name) {
+        int vehicleClass = tariff.classIndex(name);
+        if(vehicleClass == Tariff.UNKNOWN_CLASS) throw new InvalidTripDetailsException("Unknown vehicle class \"" + name + "\"");
+        return vehicleClass;
+    }
+
+    // Parse a trip time such as 2026-10-17T08:30 into the minute of the week
+    public int parseTripTime(String time) {
+        try {
+            return Tariff.minuteOfWeek(LocalDateTime.parse(time));
+        } catch(DateTimeParseException dtperr) {
+            throw new InvalidTripDetailsException("Trip times must be written as YYYY-MM-DDTHH:MM, not \"" + time + "\"");
+        }
+    }
+
+    // Apply the --tariff, --class, --time, --stats, --patch, --itinerary and --cache options, returning the remaining arguments, or null if an option is missing or has an invalid value
+    // These apply to every mode, so they are taken out before anything else looks at the arguments
+    public String[] applyGlobalOptions(String[] args) {
+        List<String> remaining = new ArrayList<String>();
+        String className = null;
+        String time = null;
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--tariff":
+                    if(++i >= args.length) return null;
+                    loadTariff(args[i]);
+                    break;
+                case "--class":
+                    if(++i >= args.length) return null;
+                    className = args[i];
+                    break;
+                case "--time":
+                    if(++i >= args.length) return null;
+                    time = args[i];
+                    break;
+                case "--stats":
+                    printStats = true;
+                    break;
+                case "--patch":
+                    if(++i >= args.length) return null;
+                    patchFilePath = args[i];
+                    break;
+                case "--itinerary":
+                    printItinerary = true;
+                    break;
+                case "--cache":
+                    if(++i >= args.length) return null;
+                    int entries;
+                    try {
+                        entries = Integer.parseInt(args[i]);
+                    } catch(NumberFormatException nferr) {
+                        return null;
+                    }
+                    quoteCache = entries > 0 ? new QuoteCache(entries) : null;
+                    break;
+                default:
+                    remaining.add(args[i]);
+            }
+        }
+
+        // The class is found once the tariff is known, wherever --tariff appeared
+        if(className != null) vehicleClass = findVehicleClass(tariff, className);
+        if(time != null) tripMinuteOfWeek = parseTripTime(time);
+        return remaining.toArray(new String[0]);
+    }
 
     // Load the interchanges.json from the file specified
     public void loadFromFile(String filepath) {
+        load(() -> readFile(filepath));
+    }
+    private Interchanges readFile(String filepath) {
         log("Reading \"" + filepath + "\"");
-        FileInputStream fileIs;
 
+        // Binary snapshots are mapped rather than parsed
+        // If the file can't be checked, fall through so opening it reports the problem
         try {
-            fileIs = new FileInputStream(filepath);
+            if(NetworkSnapshot.isSnapshot(Paths.get(filepath))) return readSnapshot(filepath);
+        } catch(IOException | InvalidPathException err) {}
+
+        // Closed as soon as it has been read, reloads open it again each time
+        try(FileInputStream fileIs = new FileInputStream(filepath)) {
+            return readInputStream(fileIs);
         } catch(FileNotFoundException fnferr) {
             throw new CLIException("The specified file at \"" + filepath + "\" could not be found", ExitStatus.FailedToReadInterchanges, fnferr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading interchanges data", ExitStatus.FailedToReadInterchanges, ioerr);
+        }
+    }
+    // Map a binary snapshot created by --compile, queries are answered straight from the mapped file
+    public void loadFromSnapshot(String filepath) {
+        load(() -> readSnapshot(filepath));
+    }
+    private Interchanges readSnapshot(String filepath) {
+        log("Mapping snapshot \"" + filepath + "\"");
+        long startTime = System.nanoTime();
+        try {
+            Interchanges snapshot = Interchanges.fromSnapshot(new NetworkSnapshot(Paths.get(filepath)));
+            Metrics.LOAD_READ.recordSince(startTime);
+            return snapshot;
+        } catch(NetworkSnapshot.InvalidSnapshot iserr) {
+            throw new CLIException("The snapshot at \"" + filepath + "\" is invalid: " + iserr.getMessage(), ExitStatus.FailedToReadInterchanges, iserr);
+        } catch(IOException ioerr) {
+            throw new CLIException("The snapshot at \"" + filepath + "\" could not be read", ExitStatus.FailedToReadInterchanges, ioerr);
+        }
+    }
+    // Write the loaded interchanges to a binary snapshot
+    public void compileSnapshot(String filepath) {
+        log("Writing snapshot \"" + filepath + "\"");
+        try {
+            Interchanges interchanges = this.interchanges;
+            NetworkSnapshot.write(interchanges.getStore(), interchanges.getNameIndex(), interchanges.getGraph(), Paths.get(filepath));
+        } catch(IOException | InvalidPathException err) {
+            throw new CLIException("The snapshot could not be written to \"" + filepath + "\"", ExitStatus.UnexpectedException, err);
+        }
+    }
+    // Load a data file, or the bundled network when no filepath is given, apply any --patch file, and only then publish it
+    public void loadData(String dataFilePath) {
+        load(() -> {
+            Interchanges loaded = dataFilePath == null ? readBundled() : readFile(dataFilePath);
+            if(patchFilePath == null) return loaded;
+            try {
+                return loaded.applyPatch(readPatchFile(patchFilePath));
+            } catch(NetworkPatch.InvalidPatch iperr) {
+                throw new CLIException("The patch doesn't fit the network: " + iperr.getMessage(), ExitStatus.FailedToReadPatch, iperr);
+            }
+        });
+    }
+
+    // Read a patch file
+    public NetworkPatch readPatchFile(String filepath) {
+        log("Reading patch \"" + filepath + "\"");
+        try(Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(filepath)), "UTF-8")) {
+            return NetworkPatch.read(reader);
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The patch file at \"" + filepath + "\" could not be found", ExitStatus.FailedToReadPatch, fnferr);
+        } catch(NetworkPatch.InvalidPatch iperr) {
+            throw new CLIException("The patch file is invalid: " + iperr.getMessage(), ExitStatus.FailedToReadPatch, iperr);
+        } catch(JsonReader.MalformedJson | JsonReader.UnexpectedValue jerr) {
+            throw new CLIException("The patch file could not be parsed: " + jerr.getMessage(), ExitStatus.FailedToReadPatch, jerr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading the patch file", ExitStatus.FailedToReadPatch, ioerr);
         }
+    }
 
-        loadFromInputStream(fileIs);
+    // Apply a patch to the current network, publishing the patched network if it had to be rebuilt
+    // Patches are applied one at a time, readers keep answering throughout and see each patch whole or not at all
+    // While a load is in flight each patch is kept, so the load publishing after it is applied can't lose it, and replays it onto the new network
+    public synchronized void applyPatch(NetworkPatch patch) throws NetworkPatch.InvalidPatch {
+        long startTime = System.nanoTime();
+        Interchanges current = interchanges;
+        Interchanges patched = current.applyPatch(patch);
+        if(patched != current) interchanges = patched;
+        patchCount++;
+        if(!loadsInFlight.isEmpty()) appliedPatches.add(patch);
+        log("Applied " + patch.size() + (patched == current ? " edits in place in " : " edits and rebuilt the network in ") + (System.nanoTime() - startTime) / 1000 + "us");
+    }
+
+    // Read a network and publish it, replaying the patches applied while it was read
+    // Patches applied before the load began are in the data it replaces, a corrected data file is published as it is
+    private void load(Supplier<Interchanges> read) {
+        long since;
+        synchronized(this) {
+            since = patchCount;
+            loadsInFlight.add(since);
+        }
+        try {
+            publish(read.get(), since);
+        } finally {
+            synchronized(this) {
+                loadsInFlight.remove(Long.valueOf(since));
+                // Forget the patches no load in flight began before
+                long keepFrom = patchCount;
+                for(long started : loadsInFlight) keepFrom = Math.min(keepFrom, started);
+                appliedPatches.subList(0, (int)(keepFrom - (patchCount - appliedPatches.size()))).clear();
+            }
+        }
+    }
+
+    // Publish a newly loaded network in place of the current one, after replaying every patch applied since loading began
+    // Every write to interchanges goes through here or applyPatch(), under the same lock, so none of them is lost to another
+    // A patch that no longer fits the new data is skipped and reported, the rest still apply
+    private synchronized void publish(Interchanges loaded, long since) {
+        for(int i = (int)(since - (patchCount - appliedPatches.size())); i < appliedPatches.size(); i++) {
+            try {
+                loaded = loaded.applyPatch(appliedPatches.get(i));
+            } catch(NetworkPatch.InvalidPatch iperr) {
+                System.err.println("Dropped a patch that doesn't fit the reloaded network: " + iperr.getMessage());
+            }
+        }
+        interchanges = loaded;
+    }
+    // Load the bundled network, which the build compiled from interchanges.json into the BundledNetwork class
+    // It is already connected and indexed, so there is nothing to read or parse
+    public void loadBundled() {
+        load(this::readBundled);
+    }
+    private Interchanges readBundled() {
+        log("Loading the bundled interchanges");
+        long startTime = System.nanoTime();
+        Interchanges bundled = BundledNetwork.load();
+        Metrics.LOAD_BUILD.recordSince(startTime);
+        return bundled;
     }
     // Load the interchanges.json from the JAR package
     public void loadFromResource() {
@@ -77,6 +415,14 @@ public class CLI {
         loadFromInputStream(is);
     }
     public void loadFromInputStream(InputStream is) {
+        load(() -> readInputStream(is));
+    }
+    private Interchanges readInputStream(InputStream is) {
+        // Time the reads, so the time spent parsing is what's left over
+        long startTime = System.nanoTime();
+        TimedInputStream timed = new TimedInputStream(is);
+        is = timed;
+
         // Create an InputStreamReader to read chars rather than bytes
         InputStreamReader isr = null;
         try {
@@ -90,110 +436,185 @@ public class CLI {
             throw new CLIException("UTF-8 Encoding not Supported?", ExitStatus.FailedToReadInterchanges, ueerr);
         }
 
-        // Using a StringBuilder to efficiently store the character data
-        StringBuilder interchangesJson = new StringBuilder();
-        // Using a char[] buffer of 1024
-        char[] buffer = new char[1024];
-        // This variable will store the amount of chars read each loop iteration
-        int read;
+        // Every load builds a new Interchanges, published only once it has loaded, so a failed load leaves nothing half filled behind
+        Interchanges loading = new Interchanges();
 
+        // Stream the JSON one token at a time, adding each Location to the Interchanges as soon as it has been read
+        JsonReader json = new JsonReader(isr);
         try {
-            // Loop until the entirety of interchanges.json is read
-            while ((read = isr.read(buffer)) > 0) {
-                // Store the read char[] data in the StringBuilder
-                interchangesJson.append(buffer, 0, read);
+            log("Parsing interchanges data");
+            boolean foundLocations = false;
+
+            json.beginObject();
+            while(json.hasNext()) {
+                String key = json.nextName();
+
+                // Skip anything other than the locations
+                if(!key.equals("locations")) {
+                    json.skipValue();
+                    continue;
+                }
+                if(foundLocations) throw new CLIException("The interchanges data provided could not be parsed as JSON, the locations key appears more than once", ExitStatus.FailedToParseInterchanges);
+                foundLocations = true;
+
+                readLocations(json, loading);
             }
-        } catch (IOException ioerr) {
+            json.endObject();
+            json.endDocument();
+
+            if(!foundLocations) throw new CLIException("Interchange data was parsed, but the locations key appears to be missing", ExitStatus.InterchangesFormatIssue);
+        } catch(JsonReader.MalformedJson mjerr) {
+            throw new CLIException("The interchanges data provided could not be parsed as JSON", ExitStatus.FailedToParseInterchanges, mjerr);
+        } catch(JsonReader.UnexpectedValue uverr) {
+            throw new CLIException("Interchange data was parsed, but a value has the wrong type", ExitStatus.InterchangesFormatIssue, uverr);
+        } catch(IOException ioerr) {
             throw new CLIException("Error occurred while reading interchanges data", ExitStatus.FailedToReadInterchanges, ioerr);
         }
+        Metrics.LOAD_READ.record(timed.getReadNanos());
+        Metrics.LOAD_PARSE.record(System.nanoTime() - startTime - timed.getReadNanos());
 
-        // Build the String, and create a JSONObject with it
-        JSONObject interchangesJsonData = null;
-        try {
-            log("Parsing interchanges data");
-            interchangesJsonData = new JSONObject(interchangesJson.toString());
-        } catch(JSONException jerr) {
-            throw new CLIException("The interchanges data provided could not be parsed as JSON", ExitStatus.FailedToParseInterchanges, jerr);
-        }
+        // Remove any routes that reference invalid location IDs, they'll only cost CPU cycles during lookups, so it's better to clean them up rather than ignore them...
+        log("Cleaning up routing data...");
+        loading.connectRoutes();
 
-        JSONObject locations = null;
-        try {
-            log("Processing interchange data...");
-            locations = interchangesJsonData.getJSONObject("locations");
+        loading.freeze();
+        return loading;
+    }
 
-            int routeCount = 0;
-            int interchangeCount = 0;
+    // Read the locations object, adding each Location as it is completed
+    private void readLocations(JsonReader json, Interchanges loading) throws IOException {
+        log("Processing interchange data...");
 
-            // Iterate through the keys
-            Iterator kit = locations.keys();
-            while(kit.hasNext()) {
-                // Every key should be a String
-                String key = (String)kit.next();
-                try {
-                    // Parse the location id
-                    int id = Integer.parseInt(key);
+        int routeCount = 0;
+        int interchangeCount = 0;
 
-                    // Get the Location JSONObject
-                    JSONObject locationData = locations.getJSONObject(key);
+        json.beginObject();
+        while(json.hasNext()) {
+            // Every key should be a numeric String
+            String key = json.nextName();
+            int id;
+            try {
+                // Parse the location id
+                id = Integer.parseInt(key);
+            } catch(NumberFormatException nferr) {
+                // If the location key cannot be parsed as an integer, report the error
+                throw new CLIException("All location keys must be numeric strings", ExitStatus.InterchangesFormatIssue, nferr);
+            }
 
-                    // Get the location's name
-                    String name = locationData.getString("name");
+            // Increment the counters
+            routeCount += readLocation(json, id, loading);
+            interchangeCount++;
+        }
+        json.endObject();
 
-                    // Create a Location instance
-                    Location location = new Location(id, name);
+        // Report the parsing results
+        log("Parsed " + interchangeCount + " interchanges with " + routeCount + " routes total");
+    }
 
-                    // Add the Location to the Interchanges class to check for duplicates, so we can error as soon as possible
-                    interchanges.addLocation(location);
+    // Read a single location object and add it to the network
+    // Returns the number of routes it listed, including any that were replaced or will be dropped
+    private int readLocation(JsonReader json, int id, Interchanges loading) throws IOException {
+        int routeTotal = 0;
+        String name = null;
+        double lat = Double.NaN;
+        double lng = Double.NaN;
+        Route nextRoute = null;
+        Route prevRoute = null;
+        ArrayList<Route> branches = null;
+        boolean foundRoutes = false;
 
-                    // Start parsing the Routes
-                    JSONArray routes = locationData.getJSONArray("routes");
-                    int routeTotal = routes.length();
+        // Fields may come in any order, so hold on to them until the object ends
+        json.beginObject();
+        while(json.hasNext()) {
+            switch(json.nextName()) {
+                case "name":
+                    name = json.nextString();
+                    break;
+                case "lat":
+                    lat = json.nextDouble();
+                    break;
+                case "lng":
+                    lng = json.nextDouble();
+                    break;
+                case "routes":
+                    foundRoutes = true;
+                    json.beginArray();
+                    while(json.hasNext()) {
+                        routeTotal++;
+                        Route route = readRoute(json, id);
 
-                    if(routeTotal > 2) throw new CLIException("Each location can have only 2 routes maximum", ExitStatus.InterchangesFormatIssue);
+                        // The first route each way continues the corridor, any others are branches
+                        // If it turns out to lead nowhere, connectRoutes() gives its place to the first valid branch the same way
+                        // Routes back to the same location go nowhere, so they are dropped
+                        if(route.toId > id && nextRoute == null)
+                            nextRoute = route;
+                        else if(route.toId < id && prevRoute == null)
+                            prevRoute = route;
+                        else if(route.toId != id) {
+                            if(branches == null) branches = new ArrayList<Route>();
+                            branches.add(route);
+                        }
+                    }
+                    json.endArray();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
 
-                    // Fetch the routes ArrayList into a temporary variable
-                    for(int i=0; i<routeTotal; i++) {
-                        // Get the route JSONObject
-                        JSONObject routeData = routes.getJSONObject(i);
+        if(name == null) throw new CLIException("Location " + id + " is missing its name", ExitStatus.InterchangesFormatIssue);
+        if(!foundRoutes) throw new CLIException("Location " + id + " is missing its routes", ExitStatus.InterchangesFormatIssue);
 
-                        // Create the Route object
-                        Route route = new Route();
+        // Networks loaded side by side hold one copy of each name between them
+        if(sharedNames != null) {
+            String shared = sharedNames.putIfAbsent(name, name);
+            if(shared != null) name = shared;
+        }
 
-                        // Get the toId
-                        int toId = routeData.getInt("toId");
+        // Create the Location instance
+        Location location = new Location(id, name);
+        location.lat = lat;
+        location.lng = lng;
+        location.nextRoute = nextRoute;
+        location.prevRoute = prevRoute;
+        location.branches = branches;
 
-                        // Assign Route properties
-                        route.toId = toId;
-                        route.distance = routeData.getDouble("distance");
+        // Add the Location to the Interchanges class to check for duplicates
+        if(!loading.tryAddLocation(location)) {
+            if(id < 0) throw new CLIException("Location IDs can't be negative, found " + id, ExitStatus.InterchangesFormatIssue);
+            // If multiple locations are found with the same ID, report the error
+            throw new CLIException("You appear to have multiple locations with the same ID in your JSON", ExitStatus.InterchangesFormatIssue);
+        }
+        return routeTotal;
+    }
 
-                        // Add the Route
-                        if(toId > id)
-                            location.nextRoute = route;
-                        else
-                            location.prevRoute = route;
-                    }
+    // Read a single route object
+    private Route readRoute(JsonReader json, int id) throws IOException {
+        Route route = new Route();
+        boolean foundToId = false;
+        boolean foundDistance = false;
 
-                    // Increment the counters
-                    routeCount += routeTotal;
-                    interchangeCount ++;
-                } catch(NumberFormatException nferr) {
-                    // If the location key cannot be parsed as an integer, report the error
-                    throw new CLIException("All location keys must be numeric strings", ExitStatus.InterchangesFormatIssue, nferr);
-                } catch(Interchanges.LocationAlreadyExists laerr) {
-                    // If multiple locations are found with the same ID, report the error
-                    throw new CLIException("You appear to have multiple locations with the same ID in your JSON", ExitStatus.InterchangesFormatIssue, laerr);
-                }
+        json.beginObject();
+        while(json.hasNext()) {
+            switch(json.nextName()) {
+                case "toId":
+                    route.toId = json.nextInt();
+                    foundToId = true;
+                    break;
+                case "distance":
+                    // Read straight into whole metres
+                    route.metres = json.nextScaled(Metres.KM_DECIMALS);
+                    foundDistance = true;
+                    break;
+                default:
+                    json.skipValue();
             }
-
-            // Report the parsing results
-            log("Parsed " + interchangeCount + " interchanges with " + routeCount + " routes total");
-
-            // Remove any routes that reference invalid location IDs, they'll only cost CPU cycles during lookups, so it's better to clean them up rather than ignore them...
-            log("Cleaning up routing data...");
-            interchanges.connectRoutes();
-        } catch(JSONException jerr) {
-            throw new CLIException("Interchange data was parsed, but the locations key appears to be missing", ExitStatus.InterchangesFormatIssue, jerr);
         }
+        json.endObject();
+
+        if(!foundToId || !foundDistance) throw new CLIException("A route from location " + id + " is missing its toId or distance", ExitStatus.InterchangesFormatIssue);
+        return route;
     }
 
     // Debug Log Function
@@ -208,6 +629,26 @@ public class CLI {
         System.out.println("407ETR Interchanges Example by Katelyn Slater");
         System.out.println("Usage:\tjava -jar 407ETRTest.jar [start id or name] [end id or name] [interchanges.json filepath]");
         System.out.println("\t\tjava -jar 407ETRTest.jar [interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --footprint [interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --compile [interchanges.json filepath] [snapshot filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --batch [trips filepath or -] [output filepath or -] [--rejects filepath] [--unordered] [--threads count] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --serve [--host host] [--port port] [--data interchanges.json filepath] [--watch] [--network id=interchanges.json filepath]...");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --matrix [output filepath or -] [--csv] [--threads count] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --sessionize [reads filepath or -] [output filepath or -] [--timeout seconds] [--window seconds] [--rejects filepath] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --statements [trips filepath or -] [output filepath or -] [--memory MB] [--spill-dir directory] [--rejects filepath] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --snap [points filepath or -] [output filepath or -] [--max-distance km] [--rejects filepath] [--unordered] [--threads count] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --serve-lines [--host host] [--port port] [--threads count] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --linebench [host:port] [--connections count] [--depths 1,8,64,512] [--duration seconds] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --loadtest [server url] [--concurrency count] [--duration seconds] [--batch-size pairs] [--data interchanges.json filepath]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --generate [count] [output filepath or -] [--trips count trips filepath] [generator options]");
+        System.out.println("\t\tjava -jar 407ETRTest.jar --verify [count] [--queries count] [generator options]");
+        System.out.println("Generator options: [--seed seed] [--highways count] [--gaps max ID gap] [--interchanges fraction] [--asymmetry fraction] [--drop fraction] [--dangling fraction]");
+        System.out.println("Any interchanges.json filepath may also be a snapshot created with --compile");
+        System.out.println("Every mode also accepts [--tariff tariff filepath] [--class vehicle class] [--time YYYY-MM-DDTHH:MM] [--stats] [--patch patch filepath] [--itinerary] [--cache entries]");
+        System.out.println("--itinerary follows each lookup, and each --batch result, with the segments of the trip");
+        System.out.println("--patch applies a file of network edits every time the network is loaded, --serve also takes them at POST /patch");
+        System.out.println("--cache keeps up to that many formatted quotes for --serve and --batch, dropping them whenever the network or tariff changes");
+        System.out.println("--stats prints latency histograms and counters to stderr on exit, long running modes also publish them over JMX");
         System.out.println();
         System.out.println("https://github.com/ktaeyln/407ETRTest");
     }
@@ -223,6 +664,23 @@ public class CLI {
 
             CLI cli = new CLI();
 
+            // Apply the pricing and stats options first, they can be combined with any mode
+            args = cli.applyGlobalOptions(args);
+            if(args == null) {
+                printUsages();
+                System.exit(0);
+            }
+
+            // Print the metrics however the process ends, including when a server is stopped
+            if(cli.printStats) Runtime.getRuntime().addShutdownHook(new Thread(() -> Metrics.printReport(System.err)));
+            // Long running modes are worth watching over JMX, the quick ones are done before anyone could connect
+            if(isLongRunning(args)) Metrics.registerMBean();
+
+            // Check if a subcommand was requested
+            if(args.length > 0 && args[0].startsWith("--") && cli.runSubcommand(args)) {
+                System.exit(0);
+            }
+
             switch (args.length) {
                 case 0: // 0 arguments means load interchanges.json from resources and request user input
                     cli.debug = true;
@@ -252,10 +710,7 @@ public class CLI {
             }
 
             // Check if a custom interchanges json file was specified, loading from resources if not
-            if (dataFilePath == null)
-                cli.loadFromResource();
-            else
-                cli.loadFromFile(dataFilePath);
+            cli.loadData(dataFilePath);
 
             // Check if lookup arguments were passed
             if(lookupStart == null) {
@@ -284,6 +739,839 @@ public class CLI {
         }
     }
 
+    // The subcommands that run long enough to publish their metrics over JMX
+    private static final List<String> LONG_RUNNING_SUBCOMMANDS = Arrays.asList("--serve", "--serve-lines", "--batch", "--snap", "--sessionize", "--statements", "--matrix");
+
+    // Whether the arguments are for the interactive loop or a long running subcommand
+    static boolean isLongRunning(String[] args) {
+        if(args.length == 0) return true;
+        if(args[0].startsWith("-")) return LONG_RUNNING_SUBCOMMANDS.contains(args[0]);
+        return args.length == 1;
+    }
+
+    // Run a subcommand, returning false if the arguments are not a known subcommand
+    public boolean runSubcommand(String[] args) {
+        switch(args[0]) {
+            case "--footprint": // Compare the memory used by each storage backend
+                if(args.length > 2) return false;
+                loadData(args.length == 2 ? args[1] : null);
+                printFootprint();
+                return true;
+            case "--compile": // Compile a JSON data file into a binary snapshot
+                if(args.length != 3) return false;
+                debug = true;
+                loadData(args[1]);
+                compileSnapshot(args[2]);
+                return true;
+            case "--batch": // Price a file of trips
+                return runBatch(args);
+            case "--serve": // Serve queries over HTTP
+                return runServer(args);
+            case "--loadtest": // Drive a running server with concurrent requests
+                return runLoadTest(args);
+            case "--serve-lines": // Serve pipelined queries over a plain TCP line protocol
+                return runLineServer(args);
+            case "--linebench": // Drive a running line server at several pipeline depths
+                return runLineBenchmark(args);
+            case "--matrix": // Export the distance and cost between every pair of locations
+                return runMatrix(args);
+            case "--sessionize": // Group gantry reads into trips and price them
+                return runSessionizer(args);
+            case "--statements": // Price trips and roll them up into monthly statements per account
+                return runStatements(args);
+            case "--snap": // Snap GPS points to their nearest interchanges
+                return runSnapper(args);
+            case "--generate": // Write a synthetic network, and optionally trips to price on it
+                return runGenerate(args);
+            case "--verify": // Check every query path against a reference walk on a synthetic network
+                return runVerify(args);
+            default:
+                return false;
+        }
+    }
+
+    // The network a query names, the one loaded above when it names none, or null if there is no such network or it failed to load
+    public Interchanges interchangesFor(String network) {
+        if(network == null || network.isEmpty()) return dataFailure == null ? interchanges : null;
+        NetworkRegistry networks = this.networks;
+        return networks == null ? null : networks.interchanges(network);
+    }
+
+    // Why a query's network can't answer it
+    public String unknownNetworkMessage(String network) {
+        if(network == null || network.isEmpty()) return "The network given by --data failed to load: " + dataFailure;
+        NetworkRegistry.Network found = networks == null ? null : networks.get(network);
+        if(found == null) return "No network with the id \"" + network + "\" is loaded";
+        if(found.getFailure() != null) return "The network \"" + network + "\" failed to load: " + found.getFailure();
+        return "The network \"" + network + "\" is still loading";
+    }
+
+    // Load every network added with --network alongside the one given by --data, on a pool
+    // A network that fails is reported with the status the CLI would have exited with, and the rest carry on, the --data one included
+    public void loadNetworks(String dataFilePath) {
+        if(networks == null) {
+            loadData(dataFilePath);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        sharedNames = networks.sharedNames();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // The registry's networks load while this one does, so startup waits on the slowest file alone
+            Future<Integer> failures = pool.submit(() -> networks.load(this));
+            try {
+                loadData(dataFilePath);
+            } catch(CLIException clierr) {
+                dataFailure = clierr.getMessage();
+                System.err.println("The network given by --data failed to load with exit status " + clierr.status.ordinal() + ": " + dataFailure);
+            }
+            failures.get();
+        } catch(InterruptedException | ExecutionException err) {
+            throw new CLIException("Loading the networks was interrupted or failed", ExitStatus.UnexpectedException, err);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for(NetworkRegistry.Network network : networks.networks()) {
+            if(network.isLoaded()) log("Network \"" + network.id + "\" loaded in " + network.getLoadNanos() / 1000000 + "ms");
+            else System.err.println("Network \"" + network.id + "\" failed to load with exit status " + network.statusCode() + ": " + network.getFailure());
+        }
+        log("Loaded " + (networks.size() + 1) + " networks in " + (System.nanoTime() - startTime) / 1000000 + "ms, sharing " + networks.sharedNameCount() + " location names");
+    }
+
+    // Run the HTTP query server from --serve arguments until the process is stopped, returning false if they are invalid
+    public boolean runServer(String[] args) {
+        String host = "localhost";
+        int port = 8407;
+        String dataFilePath = null;
+        boolean watch = false;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--watch":
+                        watch = true;
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    case "--network":
+                        // id=filepath, queries pick it with their network parameter
+                        String network = args[++i];
+                        int equals = network.indexOf('=');
+                        if(equals <= 0 || equals == network.length() - 1) return false;
+                        if(networks == null) networks = new NetworkRegistry();
+                        if(!networks.add(network.substring(0, equals), network.substring(equals + 1))) return false;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+
+        debug = true;
+
+        loadNetworks(dataFilePath);
+
+        QueryServer server;
+        try {
+            server = new QueryServer(this, host, port);
+        } catch(IOException ioerr) {
+            throw new CLIException("Could not listen on " + host + ":" + port, ExitStatus.UnexpectedException, ioerr);
+        }
+
+        // Reload on POST /reload, and whenever the data file changes when watching
+        final String reloadPath = dataFilePath;
+        server.reloader = new NetworkReloader(this, "interchanges", dataFilePath, () -> {
+            loadData(reloadPath);
+            dataFailure = null;
+        });
+        if(networks != null) {
+            for(NetworkRegistry.Network network : networks.networks()) server.networkReloaders.put(network.id, networks.reloader(network, this));
+        }
+        if(watch) {
+            try {
+                server.reloader.watch();
+                for(NetworkReloader reloader : server.networkReloaders.values()) reloader.watch();
+            } catch(IOException | IllegalStateException err) {
+                throw new CLIException("Could not watch the data file for changes: " + err.getMessage(), ExitStatus.FailedToReadInterchanges, err);
+            }
+        }
+
+        server.start();
+        System.out.println("Serving on http://" + host + ":" + server.getPort() + (server.virtualThreads ? " using virtual threads" : " using a thread pool, virtual threads need Java 21"));
+
+        // Serve until the process is stopped
+        try {
+            Thread.currentThread().join();
+        } catch(InterruptedException ierr) {
+            server.stop();
+        }
+        return true;
+    }
+
+    // Run the load test client from --loadtest arguments, returning false if they are invalid
+    public boolean runLoadTest(String[] args) {
+        String url = "http://localhost:8407";
+        String dataFilePath = null;
+        int concurrency = 64;
+        int duration = 10;
+        int batchSize = 1;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--concurrency":
+                        concurrency = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--duration":
+                        duration = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--batch-size":
+                        batchSize = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(args[i].startsWith("--")) return false;
+                        url = args[i];
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+
+        // The same network the server has loaded is used to pick valid IDs
+        loadData(dataFilePath);
+
+        LoadTestClient client = new LoadTestClient(url, interchanges.getStore());
+        client.concurrency = concurrency;
+        client.durationSeconds = duration;
+        client.batchSize = batchSize;
+        try {
+            client.run();
+        } catch(InterruptedException ierr) {
+            throw new CLIException("The load test was interrupted", ExitStatus.UnexpectedException, ierr);
+        }
+        return true;
+    }
+
+    // Run the line protocol server from --serve-lines arguments until the process is stopped, returning false if they are invalid
+    public boolean runLineServer(String[] args) {
+        String host = "localhost";
+        int port = 8408;
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        String dataFilePath = null;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+
+        debug = true;
+
+        loadData(dataFilePath);
+
+        LineServer server;
+        try {
+            server = new LineServer(this, host, port, threads);
+        } catch(IOException ioerr) {
+            throw new CLIException("Could not listen on " + host + ":" + port, ExitStatus.UnexpectedException, ioerr);
+        }
+        server.start();
+        System.out.println("Serving the line protocol on " + host + ":" + server.getPort() + " with " + threads + " selector threads");
+
+        // Serve until the process is stopped
+        try {
+            Thread.currentThread().join();
+        } catch(InterruptedException ierr) {
+            server.stop();
+        }
+        return true;
+    }
+
+    // Run the line protocol benchmark from --linebench arguments, returning false if they are invalid
+    public boolean runLineBenchmark(String[] args) {
+        String address = "localhost:8408";
+        String dataFilePath = null;
+        int connections = 8;
+        int duration = 5;
+        int[] depths = null;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--connections":
+                        connections = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--duration":
+                        duration = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--depths":
+                        String[] values = args[++i].split(",");
+                        depths = new int[values.length];
+                        // Deeper pipelines than this could fill both socket buffers before any answer is read
+                        for(int d = 0; d < values.length; d++) depths[d] = Math.max(1, Math.min(4096, Integer.parseInt(values[d].trim())));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(args[i].startsWith("--")) return false;
+                        address = args[i];
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        int colon = address.lastIndexOf(':');
+        if(colon < 0) return false;
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch(NumberFormatException nferr) {
+            return false;
+        }
+
+        // The same network the server has loaded is used to pick valid IDs
+        loadData(dataFilePath);
+
+        LineBenchmarkClient client = new LineBenchmarkClient(address.substring(0, colon), port, interchanges.getStore());
+        client.connections = connections;
+        client.durationSeconds = duration;
+        if(depths != null) client.depths = depths;
+        try {
+            client.run();
+        } catch(IOException ioerr) {
+            throw new CLIException("The benchmark lost its connection to " + address + ": " + ioerr.getMessage(), ExitStatus.UnexpectedException, ioerr);
+        } catch(InterruptedException ierr) {
+            throw new CLIException("The benchmark was interrupted", ExitStatus.UnexpectedException, ierr);
+        }
+        return true;
+    }
+
+    // Run the batch pricer from --batch arguments, returning false if they are invalid
+    public boolean runBatch(String[] args) {
+        BatchPricer pricer = new BatchPricer(this);
+        String tripsPath = null;
+        String outputPath = "-";
+        String rejectsPath = null;
+        String dataFilePath = null;
+        int positional = 0;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--unordered":
+                        pricer.ordered = false;
+                        break;
+                    case "--rejects":
+                        rejectsPath = args[++i];
+                        break;
+                    case "--threads":
+                        pricer.threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(positional == 0) tripsPath = args[i];
+                        else if(positional == 1) outputPath = args[i];
+                        else return false;
+                        positional++;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(tripsPath == null) return false;
+
+        pricer.itinerary = printItinerary;
+
+        loadData(dataFilePath);
+
+        // Open the trips, results and rejects, where - means stdin or stdout
+        try(BatchFiles files = BatchFiles.open(tripsPath, outputPath, rejectsPath)) {
+            pricer.run(files.input, files.output, files.rejects);
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The trips file at \"" + tripsPath + "\" could not be found, or an output file could not be created", ExitStatus.FailedToReadInput, fnferr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading trips or writing results", ExitStatus.FailedToReadInput, ioerr);
+        } catch(InterruptedException | ExecutionException err) {
+            throw new CLIException("Batch pricing was interrupted or failed", ExitStatus.UnexpectedException, err);
+        }
+
+        // Report the throughput
+        double seconds = pricer.elapsedNanos / 1e9;
+        long total = pricer.pricedCount + pricer.rejectedCount;
+        System.err.println("Priced " + pricer.pricedCount + " trips and rejected " + pricer.rejectedCount + " in " + (pricer.elapsedNanos / 1000000) + "ms (" + Math.round(seconds > 0 ? total / seconds : 0) + " trips/sec)");
+        return true;
+    }
+
+    // Run the point snapper from --snap arguments, returning false if they are invalid
+    public boolean runSnapper(String[] args) {
+        PointSnapper snapper = new PointSnapper(this);
+        String pointsPath = null;
+        String outputPath = "-";
+        String rejectsPath = null;
+        String dataFilePath = null;
+        int positional = 0;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--max-distance":
+                        snapper.maxDistanceKm = Double.parseDouble(args[++i]);
+                        if(!(snapper.maxDistanceKm >= 0)) return false;
+                        break;
+                    case "--unordered":
+                        snapper.ordered = false;
+                        break;
+                    case "--rejects":
+                        rejectsPath = args[++i];
+                        break;
+                    case "--threads":
+                        snapper.threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(positional == 0) pointsPath = args[i];
+                        else if(positional == 1) outputPath = args[i];
+                        else return false;
+                        positional++;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(pointsPath == null) return false;
+
+        loadData(dataFilePath);
+
+        // Open the points, results and rejects, where - means stdin or stdout
+        try(BatchFiles files = BatchFiles.open(pointsPath, outputPath, rejectsPath)) {
+            snapper.run(files.input, files.output, files.rejects);
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The points file at \"" + pointsPath + "\" could not be found, or an output file could not be created", ExitStatus.FailedToReadInput, fnferr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading points or writing results", ExitStatus.FailedToReadInput, ioerr);
+        } catch(InterruptedException | ExecutionException err) {
+            throw new CLIException("Snapping was interrupted or failed", ExitStatus.UnexpectedException, err);
+        }
+
+        // Report the throughput
+        double seconds = snapper.elapsedNanos / 1e9;
+        long total = snapper.snappedCount + snapper.rejectedCount;
+        System.err.println("Snapped " + snapper.snappedCount + " points and rejected " + snapper.rejectedCount + " in " + (snapper.elapsedNanos / 1000000) + "ms (" + Math.round(seconds > 0 ? total / seconds : 0) + " points/sec)");
+        return true;
+    }
+
+    // Run the trip sessionizer from --sessionize arguments, returning false if they are invalid
+    public boolean runSessionizer(String[] args) {
+        String readsPath = null;
+        String outputPath = "-";
+        String rejectsPath = null;
+        String dataFilePath = null;
+        double timeoutSeconds = 30 * 60;
+        double windowSeconds = 60;
+        int positional = 0;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--timeout":
+                        timeoutSeconds = Double.parseDouble(args[++i]);
+                        break;
+                    case "--window":
+                        windowSeconds = Double.parseDouble(args[++i]);
+                        break;
+                    case "--rejects":
+                        rejectsPath = args[++i];
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(positional == 0) readsPath = args[i];
+                        else if(positional == 1) outputPath = args[i];
+                        else return false;
+                        positional++;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(readsPath == null) return false;
+
+        loadData(dataFilePath);
+
+        long startTime = System.nanoTime();
+        TripSessionizer sessionizer;
+        // Open the reads, trips and rejects, where - means stdin or stdout
+        try(BatchFiles files = BatchFiles.open(readsPath, outputPath, rejectsPath)) {
+            sessionizer = new TripSessionizer(this, files.output, files.rejects, Math.round(timeoutSeconds * 1000), Math.round(windowSeconds * 1000));
+            sessionizer.run(files.input);
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The reads file at \"" + readsPath + "\" could not be found, or an output file could not be created", ExitStatus.FailedToReadInput, fnferr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading gantry reads or writing trips", ExitStatus.FailedToReadInput, ioerr);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        System.err.println("Read " + sessionizer.readCount + " gantry reads into " + sessionizer.tripCount + " trips, with " + sessionizer.lateCount + " late reads and " + sessionizer.rejectedCount + " rejects, in " + (elapsed / 1000000) + "ms");
+        return true;
+    }
+
+    // Run the statement aggregator from --statements arguments, returning false if they are invalid
+    public boolean runStatements(String[] args) {
+        StatementAggregator aggregator;
+        String tripsPath = null;
+        String outputPath = "-";
+        String rejectsPath = null;
+        String dataFilePath = null;
+        long memoryBytes = -1;
+        File spillDirectory = null;
+        int positional = 0;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--memory":
+                        memoryBytes = Long.parseLong(args[++i]) << 20;
+                        if(memoryBytes <= 0) return false;
+                        break;
+                    case "--spill-dir":
+                        spillDirectory = new File(args[++i]);
+                        break;
+                    case "--rejects":
+                        rejectsPath = args[++i];
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(positional == 0) tripsPath = args[i];
+                        else if(positional == 1) outputPath = args[i];
+                        else return false;
+                        positional++;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(tripsPath == null) return false;
+
+        loadData(dataFilePath);
+
+        // Open the trips, statements and rejects, where - means stdin or stdout
+        try(BatchFiles files = BatchFiles.open(tripsPath, outputPath, rejectsPath)) {
+            aggregator = new StatementAggregator(this, files.output, files.rejects);
+            if(memoryBytes > 0) aggregator.memoryBytes = memoryBytes;
+            aggregator.spillDirectory = spillDirectory;
+            aggregator.run(files.input);
+        } catch(FileNotFoundException fnferr) {
+            throw new CLIException("The trips file at \"" + tripsPath + "\" could not be found, or an output file could not be created", ExitStatus.FailedToReadInput, fnferr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Error occurred while reading trips, spilling statements or writing them", ExitStatus.FailedToReadInput, ioerr);
+        }
+
+        System.err.println("Rolled " + aggregator.tripCount + " trips into " + aggregator.statementCount + " statements, spilling " + aggregator.spilledRuns + " runs, with " + aggregator.rejectedCount + " rejects, in " + (aggregator.elapsedNanos / 1000000) + "ms");
+        return true;
+    }
+
+    // Run the matrix exporter from --matrix arguments, returning false if they are invalid
+    public boolean runMatrix(String[] args) {
+        MatrixExporter exporter = new MatrixExporter(this);
+        String outputPath = null;
+        String dataFilePath = null;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--csv":
+                        exporter.csv = true;
+                        break;
+                    case "--threads":
+                        exporter.threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--data":
+                        dataFilePath = args[++i];
+                        break;
+                    default:
+                        if(outputPath != null) return false;
+                        outputPath = args[i];
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(outputPath == null) return false;
+
+        loadData(dataFilePath);
+
+        // Write to the file, or stdout for -
+        try {
+            if(outputPath.equals("-")) {
+                WritableByteChannel output = Channels.newChannel(System.out);
+                exporter.run(output);
+                System.out.flush();
+            } else {
+                try(FileChannel output = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    exporter.run(output);
+                }
+            }
+        } catch(IOException | InvalidPathException err) {
+            throw new CLIException("The matrix could not be written to \"" + outputPath + "\"", ExitStatus.UnexpectedException, err);
+        }
+
+        System.err.println("Wrote " + exporter.pairCount + " pairs, " + exporter.connectedCount + " connected, in " + (exporter.elapsedNanos / 1000000) + "ms");
+        return true;
+    }
+
+    // Apply a generator option at args[i], returning the index of its value, or -1 if it isn't one
+    private static int readGeneratorOption(String[] args, int i, NetworkGenerator generator) {
+        switch(args[i]) {
+            case "--seed":
+                generator.seed = Long.parseLong(args[++i]);
+                return i;
+            case "--highways":
+                generator.highways = Math.max(1, Integer.parseInt(args[++i]));
+                return i;
+            case "--gaps":
+                generator.maxIdGap = Math.max(1, Integer.parseInt(args[++i]));
+                return i;
+            case "--interchanges":
+                generator.interchangeRate = Double.parseDouble(args[++i]);
+                return i;
+            case "--asymmetry":
+                generator.asymmetry = Double.parseDouble(args[++i]);
+                return i;
+            case "--drop":
+                generator.dropRate = Double.parseDouble(args[++i]);
+                return i;
+            case "--dangling":
+                generator.danglingRate = Double.parseDouble(args[++i]);
+                return i;
+            default:
+                return -1;
+        }
+    }
+
+    // Write a synthetic network from --generate arguments, returning false if they are invalid
+    public boolean runGenerate(String[] args) {
+        NetworkGenerator generator = new NetworkGenerator();
+        String outputPath = null;
+        String tripsPath = null;
+        int tripCount = 0;
+        boolean foundCount = false;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                int option = readGeneratorOption(args, i, generator);
+                if(option >= 0) {
+                    i = option;
+                } else if(args[i].equals("--trips")) {
+                    tripCount = Math.max(0, Integer.parseInt(args[++i]));
+                    tripsPath = args[++i];
+                } else if(args[i].startsWith("--")) {
+                    return false;
+                } else if(!foundCount) {
+                    generator.count = Math.max(0, Integer.parseInt(args[i]));
+                    foundCount = true;
+                } else if(outputPath == null) {
+                    outputPath = args[i];
+                } else {
+                    return false;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+        if(outputPath == null) return false;
+
+        long startTime = System.nanoTime();
+        generator.generate();
+        writeGenerated(outputPath, writer -> generator.writeJson(writer));
+        if(tripsPath != null) {
+            final int trips = tripCount;
+            writeGenerated(tripsPath, writer -> generator.writeTrips(writer, trips, 0.001, generator.seed + 1));
+        }
+        System.err.println("Generated " + generator.size() + " interchanges" + (tripsPath == null ? "" : " and " + tripCount + " trips") + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+        return true;
+    }
+
+    // Writes generated data
+    private interface GeneratedWriter {
+        void write(Writer writer) throws IOException;
+    }
+
+    // Write generated data to a file, or stdout for -
+    private void writeGenerated(String outputPath, GeneratedWriter generated) {
+        try {
+            if(outputPath.equals("-")) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16);
+                generated.write(writer);
+                writer.flush();
+            } else {
+                try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath), "UTF-8"), 1 << 16)) {
+                    generated.write(writer);
+                }
+            }
+        } catch(IOException ioerr) {
+            throw new CLIException("The generated data could not be written to \"" + outputPath + "\"", ExitStatus.UnexpectedException, ioerr);
+        }
+    }
+
+    // Generate a network and check every query path against the reference from --verify arguments, returning false if they are invalid
+    public boolean runVerify(String[] args) {
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.count = 100000;
+        int queries = 10000;
+        boolean foundCount = false;
+
+        // Parse the options
+        try {
+            for(int i = 1; i < args.length; i++) {
+                int option = readGeneratorOption(args, i, generator);
+                if(option >= 0) {
+                    i = option;
+                } else if(args[i].equals("--queries")) {
+                    queries = Math.max(1, Integer.parseInt(args[++i]));
+                } else if(args[i].startsWith("--") || foundCount) {
+                    return false;
+                } else {
+                    generator.count = Math.max(0, Integer.parseInt(args[i]));
+                    foundCount = true;
+                }
+            }
+        } catch(IndexOutOfBoundsException | NumberFormatException err) {
+            return false;
+        }
+
+        generator.generate();
+        long mismatches = verifyGenerated(generator, queries, System.out);
+        if(mismatches > 0) throw new CLIException(mismatches + " answers didn't match the reference", ExitStatus.VerificationFailed);
+        return true;
+    }
+
+    // Load a generated network every way it can be loaded, and check each against the reference, returning the number of mismatches
+    // The JSON load, a mapped snapshot, the JSON load compacted off heap, then patched, are each checked in turn
+    // The network is left loaded into this CLI
+    public long verifyGenerated(NetworkGenerator generator, int queries, PrintStream out) {
+        Path json = null;
+        Path snapshot = null;
+        try {
+            json = Files.createTempFile("generated", ".json");
+            snapshot = Files.createTempFile("generated", ".snapshot");
+            writeGenerated(json.toString(), writer -> generator.writeJson(writer));
+
+            DifferentialTester tester = new DifferentialTester(generator);
+            tester.report = out;
+            long startTime = System.nanoTime();
+            loadFromFile(json.toString());
+            verifyLoaded(tester, interchanges, "JSON", queries, out);
+
+            compileSnapshot(snapshot.toString());
+            CLI snapshotCli = new CLI();
+            snapshotCli.loadFromFile(snapshot.toString());
+            verifyLoaded(tester, snapshotCli.interchanges, "Snapshot", queries, out);
+
+            interchanges.compact(true);
+            verifyLoaded(tester, interchanges, "Compacted off heap", queries, out);
+
+            // Change the distance of some routes, in the network and the reference alike
+            Random random = new Random(generator.seed);
+            NetworkPatch patch = new NetworkPatch();
+            for(int edit = 0; edit < Math.min(1000, generator.size()); edit++) {
+                int position = random.nextInt(generator.size());
+                for(int route = generator.firstRoute(position); route < generator.firstRoute(position + 1); route++) {
+                    int toId = generator.routeToId(route);
+                    if(generator.positionOf(toId) < 0) continue;
+                    long metres = random.nextInt(5000);
+                    patch.metres(generator.idAt(position), toId, metres);
+                    generator.setMetres(generator.idAt(position), toId, metres);
+                    break;
+                }
+            }
+            applyPatch(patch);
+            DifferentialTester patched = new DifferentialTester(generator);
+            patched.report = out;
+            verifyLoaded(patched, interchanges, "Patched", queries, out);
+
+            long mismatches = tester.mismatchCount + patched.mismatchCount;
+            out.println("Checked " + (tester.checkedCount + patched.checkedCount) + " answers in " + (System.nanoTime() - startTime) / 1000000 + "ms, " + mismatches + " mismatches");
+            return mismatches;
+        } catch(NetworkPatch.InvalidPatch iperr) {
+            throw new CLIException("The generated patch didn't fit the network: " + iperr.getMessage(), ExitStatus.VerificationFailed, iperr);
+        } catch(IOException ioerr) {
+            throw new CLIException("Could not write the generated network", ExitStatus.UnexpectedException, ioerr);
+        } finally {
+            try {
+                if(json != null) Files.deleteIfExists(json);
+                if(snapshot != null) Files.deleteIfExists(snapshot);
+            } catch(IOException ioerr) {}
+        }
+    }
+    private static void verifyLoaded(DifferentialTester tester, Interchanges loaded, String label, int queries, PrintStream out) {
+        long mismatches = tester.run(loaded, queries, queries);
+        out.println(label + ": " + (mismatches == 0 ? "ok" : mismatches + " mismatches"));
+    }
+
+    // Print the approximate memory used by the object graph and by each compact storage backend
+    public void printFootprint() {
+        NetworkStore store = interchanges.getStore();
+        int size = store.size();
+
+        System.out.println("Interchanges: " + size);
+        printFootprintLine("Location/Route object graph", interchanges.estimateObjectGraphBytes(), size);
+        printFootprintLine("Primitive arrays (heap)", ArrayNetworkStore.copyOf(store).footprintBytes(), size);
+        printFootprintLine("ByteBuffer (off-heap)", BufferNetworkStore.copyOf(store, true).footprintBytes(), size);
+        System.out.println("Names are included in every figure, the name lookup map is shared by all of them and is excluded");
+    }
+    private void printFootprintLine(String label, long bytes, int size) {
+        System.out.println(label + ": " + bytes + " bytes (" + (size == 0 ? 0 : bytes / size) + " bytes per interchange)");
+    }
+
     // An interactive CLI loop
     public void interactiveLoop() {
         // Create the Input Scanner
@@ -339,29 +1627,82 @@ public class CLI {
 
     // Lookup the ID for a location, and validate that it exists
     public int findLocationIdForString(String input) {
-        int foundId = 0;
+        return findLocationIdForString(interchanges, input);
+    }
+    // Lookup the ID for a location in a specific version of the network
+    public int findLocationIdForString(Interchanges interchanges, String input) {
+        int foundId = resolveLocationId(interchanges, input);
+        if(foundId == Interchanges.UNKNOWN_ID) throw new UnknownLocationException(unknownLocationMessage(interchanges, input));
+        return foundId;
+    }
 
-        try {
-            // Attempt to parse the input as an integer, and fetch a location by Id
-            foundId = Integer.parseInt(input);
-            // Just check if the Location exists or not, 0 exists but is always null
-            if (interchanges.getLocationById(foundId) == null) {
-                throw new UnknownLocationException("No location with ID " + input + " could be found!");
-            }
-        } catch(IndexOutOfBoundsException ioberr) {
-            throw new UnknownLocationException("No location with ID " + input + " could be found!");
-        } catch(NumberFormatException nferr) {
-            // If this isn't an integer, it must be a name
-            try {
-                foundId = interchanges.lookupLocationIdForName(input);
-            } catch(NullPointerException nperr) {
-                throw new UnknownLocationException("No location with name \"" + input + "\" could be found!");
-            }
+    // Lookup the ID for a location, returning Interchanges.UNKNOWN_ID instead of throwing when there is none
+    // Batches and servers reject plenty of rows, so misses are answered without building an exception
+    // unknownLocationMessage() says why, for the rows that need to report it
+    public int resolveLocationId(Interchanges interchanges, String input) {
+        long startTime = System.nanoTime();
+        int foundId;
+
+        // Inputs that are integers are IDs, anything else must be a name
+        long parsed = parseInteger(input);
+        if(parsed != NOT_AN_INTEGER) {
+            foundId = interchanges.getStore().indexOf((int)parsed) == NetworkStore.MISSING ? Interchanges.UNKNOWN_ID : (int)parsed;
+        } else {
+            foundId = interchanges.lookupLocationIdForName(input);
         }
 
+        if(foundId == Interchanges.UNKNOWN_ID) Metrics.RESOLVE_MISSES.increment();
+        else Metrics.RESOLVE.recordSince(startTime);
         return foundId;
     }
 
+    // Explain why resolveLocationId() couldn't find a location, suggesting names the user may have meant
+    public String unknownLocationMessage(Interchanges interchanges, String input) {
+        if(parseInteger(input) != NOT_AN_INTEGER) return "No location with ID " + input + " could be found!";
+        List<String> suggestions = suggestLocationNames(interchanges, input, 5);
+        return "No location with name \"" + input + "\" could be found!" + (suggestions.isEmpty() ? "" : " Did you mean: " + String.join(", ", suggestions) + "?");
+    }
+
+    // Returned by parseInteger() for anything Integer.parseInt() would reject
+    private static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+
+    // Parse a decimal integer the same way Integer.parseInt() does, without throwing
+    static long parseInteger(CharSequence input) {
+        int length = input.length();
+        if(length == 0) return NOT_AN_INTEGER;
+        int i = 0;
+        boolean negative = false;
+        char first = input.charAt(0);
+        if(first == '-' || first == '+') {
+            negative = first == '-';
+            if(++i == length) return NOT_AN_INTEGER;
+        }
+        long value = 0;
+        for(; i < length; i++) {
+            int digit = Character.digit(input.charAt(i), 10);
+            if(digit < 0) return NOT_AN_INTEGER;
+            value = value * 10 + digit;
+            // Past the range of an int, which Integer.parseInt() rejects
+            if(value > (long)Integer.MAX_VALUE + 1) return NOT_AN_INTEGER;
+        }
+        if(negative) value = -value;
+        return value > Integer.MAX_VALUE ? NOT_AN_INTEGER : value;
+    }
+
+    // Suggest up to limit location names for some input, using the longest prefix of it that matches any names
+    public List<String> suggestLocationNames(Interchanges interchanges, String input, int limit) {
+        List<String> suggestions = new ArrayList<String>();
+        int[] ids = new int[limit];
+        // Drop characters from the end until something matches, but don't suggest from a single character
+        for(int length = input.length(); length >= 2; length--) {
+            int count = interchanges.completeLocationName(input.subSequence(0, length), ids);
+            if(count == 0) continue;
+            for(int i = 0; i < count; i++) suggestions.add(interchanges.getLocationById(ids[i]).name);
+            break;
+        }
+        return suggestions;
+    }
+
     // Print the distance and cost using the requested style, from 2 string inputs
     public void printRouteDistance(String lookupStart, String lookupEnd) {
         int startId = findLocationIdForString(lookupStart);
@@ -372,23 +1713,48 @@ public class CLI {
     // Print the total distance and cost, using either the interactive or requested style
     public void printRouteDistance(int startId, int endId, boolean useFriendlyStyle) {
         long startTime = System.currentTimeMillis();
+        Interchanges interchanges = this.interchanges;
+        Tariff tariff = this.tariff;
 
         if(useFriendlyStyle) {
             System.out.println("Calculating distance between \"" + interchanges.getLocationById(startId).name + "\" and \"" + interchanges.getLocationById(endId).name + "\"...");
         }
 
-        double distance = 0;
+        long metres = 0;
         try {
-            distance = interchanges.calculateDistance(startId, endId);
+            metres = interchanges.calculateDistanceMetres(startId, endId);
+        } catch (Interchanges.NoPathExists nperr) {
+            // The locations exist, but no chain of routes connects them
+            throw new CLIException(nperr.getMessage(), ExitStatus.InvalidLocation, nperr);
         } catch (Throwable terr) {
             throw new CLIException("An unexpected exception was thrown during distance calculation", ExitStatus.UnexpectedException, terr);
         }
 
+        long costCents = tariff.priceCentsForMetres(interchanges, startId, endId, metres, vehicleClass, tripMinuteOfWeek);
         if(useFriendlyStyle) {
-            System.out.println("Calculated a distance of " + (Math.round(distance*1000)/1000.0) + "km costing $" + (Math.ceil(distance*25) / 100.0) + " in " + (System.currentTimeMillis()-startTime) + "ms");
+            System.out.println("Calculated a distance of " + Metres.toKm(metres) + "km costing $" + dollars(costCents) + " in " + (System.currentTimeMillis()-startTime) + "ms");
         } else {
-            System.out.println("Distance: " + (Math.round(distance*1000)/1000.0) + "km");
-            System.out.println("Cost: $" + (Math.ceil(distance*25) / 100.0));
+            System.out.println("Distance: " + Metres.toKm(metres) + "km");
+            System.out.println("Cost: $" + dollars(costCents));
         }
+        if(printItinerary) printItinerary(interchanges, tariff, startId, endId);
+    }
+
+    // Print each segment of a trip in the direction of travel, with the distance driven and its distance charge
+    public void printItinerary(Interchanges interchanges, Tariff tariff, int startId, int endId) {
+        Itinerary itinerary = interchanges.itinerary(startId, endId, new Itinerary());
+        while(itinerary.next()) {
+            long cents = tariff.segmentCents(interchanges, itinerary, vehicleClass, tripMinuteOfWeek);
+            System.out.println("  " + itinerary.fromName() + " (" + itinerary.fromId() + ") to " + itinerary.toName() + " (" + itinerary.toId() + "): "
+                    + itinerary.distance() + "km, $" + dollars(cents));
+        }
+        System.out.println("  " + itinerary.segmentCount() + " segments, " + itinerary.getTotalDistance() + "km driven");
+    }
+
+    // Format whole cents as dollars with two decimals, the same as --batch and the servers do
+    private static String dollars(long cents) {
+        StringBuilder builder = new StringBuilder(12);
+        BatchPricer.appendDecimal(builder, cents, 2);
+        return builder.toString();
     }
 }
@@ -0,0 +1,118 @@
+package com.katelynslater;
+
+import com.katelynslater.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Runs a file of rows through a function across a pool of workers, a chunk of rows at a time, for BatchPricer and PointSnapper
+// Chunks in flight are bounded, so memory doesn't grow with the size of the input, and each chunk's results and rejects are
+// written by the reading thread, in input order, or as soon as each chunk is done when unordered
+class ChunkedRunner {
+    // A block of input rows and the output the function made from them
+    static class Chunk {
+        final String[] rows;
+        final int rowCount;
+        final long firstLineNumber;
+        final StringBuilder results = new StringBuilder();
+        final StringBuilder rejects = new StringBuilder();
+        int resultCount = 0;
+        int rejectCount = 0;
+
+        Chunk(String[] rows, int rowCount, long firstLineNumber) {
+            this.rows = rows;
+            this.rowCount = rowCount;
+            this.firstLineNumber = firstLineNumber;
+        }
+
+        // The line number of a row in the chunk
+        long lineNumber(int row) {
+            return firstLineNumber + row;
+        }
+
+        void reject(long lineNumber, String row, String reason) {
+            rejects.append(lineNumber).append('\t').append(reason).append('\t').append(row).append('\n');
+            rejectCount++;
+            Metrics.REJECTED.increment();
+        }
+    }
+
+    private final boolean ordered;
+    private final int threads;
+    private final int chunkSize;
+
+    // Totals for the last run
+    long resultCount = 0;
+    long rejectedCount = 0;
+
+    ChunkedRunner(boolean ordered, int threads, int chunkSize) {
+        this.ordered = ordered;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    // Run every row read from the input through the function, which fills in each chunk's output on a worker thread
+    void run(BufferedReader input, Writer results, Writer rejects, Consumer<Chunk> function) throws IOException, InterruptedException, ExecutionException {
+        resultCount = 0;
+        rejectedCount = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Bound the number of chunks in flight, so memory doesn't grow with the size of the input
+            int maxInFlight = threads * 4;
+            int inFlight = 0;
+
+            // Ordered runs wait on each chunk in turn, unordered runs take whichever finishes first
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+            CompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(pool);
+
+            long lineNumber = 1;
+            while(true) {
+                // Read the next chunk of rows
+                String[] rows = new String[chunkSize];
+                int rowCount = 0;
+                String line;
+                while(rowCount < chunkSize && (line = input.readLine()) != null) rows[rowCount++] = line;
+                if(rowCount == 0) break;
+
+                final Chunk chunk = new Chunk(rows, rowCount, lineNumber);
+                lineNumber += rowCount;
+
+                Callable<Chunk> task = () -> {
+                    function.accept(chunk);
+                    // The rows are no longer needed once done
+                    Arrays.fill(chunk.rows, null);
+                    return chunk;
+                };
+                if(ordered) pending.add(pool.submit(task));
+                else completion.submit(task);
+
+                // Write out a finished chunk before reading more once enough are in flight
+                if(++inFlight >= maxInFlight) {
+                    write(ordered ? pending.poll().get() : completion.take().get(), results, rejects);
+                    inFlight--;
+                }
+            }
+
+            // Write out everything left
+            while(inFlight-- > 0) write(ordered ? pending.poll().get() : completion.take().get(), results, rejects);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        results.flush();
+        rejects.flush();
+    }
+
+    private void write(Chunk chunk, Writer results, Writer rejects) throws IOException {
+        results.append(chunk.results);
+        rejects.append(chunk.rejects);
+        resultCount += chunk.resultCount;
+        rejectedCount += chunk.rejectCount;
+    }
+}
@@ -0,0 +1,311 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Itinerary;
+import com.katelynslater.data.Metres;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Checks a loaded network's answers against a reference worked out straight from a generated network's routes
+// The reference has no indexes, caches or snapshots: it applies the file rules to the routes as listed,
+// walks the chain of next routes for linear networks, and runs a plain Dijkstra over every route for branched ones and any whose routes leave the chains
+// Any store, index or engine can be checked by loading the generated network into it and running random queries
+// Distances are compared in whole metres, exactly: they are integer sums, so every store and search must agree to the metre
+public class DifferentialTester {
+    private final NetworkGenerator network;
+    private final int size;
+
+    // The routes kept by the file rules, by position, -1 when there is none
+    private final int[] next;
+    private final long[] nextMetres;
+    private final int[] prev;
+    private final long[] prevMetres;
+    // The chain continues from each position to chainNext, the first route to reach a location continues its chain
+    private final int[] chainNext;
+    private final int[] chainPrev;
+    // Whether any branches, or routes off the chains, were kept, so shortest paths over every route are needed
+    private final boolean branched;
+    // Every kept route from the location listing it, and back when the other end doesn't list it, for Dijkstra: edgeStart[k] to edgeStart[k + 1]
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final long[] edgeMetres;
+
+    // Where mismatches are reported, and how many of them to print
+    public PrintStream report = System.err;
+    public int maxReported = 10;
+    public long checkedCount = 0;
+    public long mismatchCount = 0;
+
+    public DifferentialTester(NetworkGenerator network) {
+        this.network = network;
+        size = network.size();
+        next = new int[size];
+        nextMetres = new long[size];
+        prev = new int[size];
+        prevMetres = new long[size];
+
+        // The first route each way continues the corridor, any others are branches, and routes back to the same location are dropped
+        // Routes to IDs that don't exist are dropped too, so the first valid route each way takes the corridor's place
+        int[] outgoing = new int[size];
+        int[] kind = new int[network.firstRoute(size)];
+        boolean branched = false;
+        for(int k = 0; k < size; k++) {
+            int id = network.idAt(k);
+            next[k] = -1;
+            prev[k] = -1;
+            boolean hasNext = false;
+            boolean hasPrev = false;
+            for(int route = network.firstRoute(k); route < network.firstRoute(k + 1); route++) {
+                int toId = network.routeToId(route);
+                int to = network.positionOf(toId);
+                if(toId == id || to < 0) {
+                    kind[route] = DROPPED;
+                } else if(toId > id && !hasNext) {
+                    hasNext = true;
+                    kind[route] = NEXT;
+                    next[k] = to;
+                    nextMetres[k] = network.routeMetres(route);
+                } else if(toId < id && !hasPrev) {
+                    hasPrev = true;
+                    kind[route] = PREV;
+                    prev[k] = to;
+                    prevMetres[k] = network.routeMetres(route);
+                } else {
+                    kind[route] = BRANCH;
+                    branched = true;
+                }
+            }
+        }
+
+        // Count the edges once every route is known to be kept or dropped
+        for(int k = 0; k < size; k++) {
+            for(int route = network.firstRoute(k); route < network.firstRoute(k + 1); route++) {
+                if(kind[route] == DROPPED) continue;
+                int to = network.positionOf(network.routeToId(route));
+                outgoing[k]++;
+                if(!keptRoute(kind, to, k)) outgoing[to]++;
+            }
+        }
+
+        // Link the chains
+        chainNext = new int[size];
+        chainPrev = new int[size];
+        Arrays.fill(chainNext, -1);
+        Arrays.fill(chainPrev, -1);
+        for(int k = 0; k < size; k++) {
+            if(next[k] >= 0 && chainPrev[next[k]] < 0) {
+                chainNext[k] = next[k];
+                chainPrev[next[k]] = k;
+            }
+        }
+
+        // Routes the chains leave out, a second next route into a location or a previous route to one whose next route leads elsewhere,
+        // need the shortest paths too
+        for(int k = 0; k < size; k++) {
+            if(next[k] >= 0 && chainNext[k] != next[k]) branched = true;
+            if(prev[k] >= 0 && next[prev[k]] >= 0 && chainNext[prev[k]] != k) branched = true;
+        }
+        this.branched = branched;
+
+        // Every kept route is an edge from its location, and an edge back of the same distance when only one end lists it
+        edgeStart = new int[size + 1];
+        for(int k = 0; k < size; k++) edgeStart[k + 1] = edgeStart[k] + outgoing[k];
+        edgeTarget = new int[edgeStart[size]];
+        edgeMetres = new long[edgeStart[size]];
+        int[] fill = Arrays.copyOf(edgeStart, size);
+        for(int k = 0; k < size; k++) {
+            for(int route = network.firstRoute(k); route < network.firstRoute(k + 1); route++) {
+                if(kind[route] == DROPPED) continue;
+                int to = network.positionOf(network.routeToId(route));
+                long metres = network.routeMetres(route);
+                edgeTarget[fill[k]] = to;
+                edgeMetres[fill[k]++] = metres;
+                if(keptRoute(kind, to, k)) continue;
+                edgeTarget[fill[to]] = k;
+                edgeMetres[fill[to]++] = metres;
+            }
+        }
+    }
+
+    // Whether a position keeps a route of its own to another
+    private boolean keptRoute(int[] kind, int from, int to) {
+        int toId = network.idAt(to);
+        for(int route = network.firstRoute(from); route < network.firstRoute(from + 1); route++) {
+            if(kind[route] != DROPPED && network.routeToId(route) == toId) return true;
+        }
+        return false;
+    }
+
+    private static final int DROPPED = 0;
+    private static final int NEXT = 1;
+    private static final int PREV = 2;
+    private static final int BRANCH = 3;
+
+    // The reference distance in metres between two positions, Metres.UNREACHABLE when there is no path
+    public long distance(int start, int end) {
+        if(start == end) return 0;
+        if(!branched) {
+            // Walk the chain up from the lower position, driving each link the way the trip goes
+            int low = Math.min(start, end);
+            int high = Math.max(start, end);
+            long metres = 0;
+            for(int k = low; k != high; k = chainNext[k]) {
+                if(chainNext[k] < 0 || chainNext[k] > high) return Metres.UNREACHABLE;
+                metres += start < end ? nextMetres[k] : downMetres(k, chainNext[k]);
+            }
+            return metres;
+        }
+        long[] distances = new long[size];
+        dijkstra(start, end, distances);
+        return distances[end];
+    }
+
+    // The reference distance in metres from a position to every other
+    public void distancesFrom(int start, long[] distances) {
+        if(branched) {
+            dijkstra(start, -1, distances);
+            return;
+        }
+        Arrays.fill(distances, Metres.UNREACHABLE);
+        distances[start] = 0;
+        for(int k = start; chainNext[k] >= 0; k = chainNext[k]) distances[chainNext[k]] = distances[k] + nextMetres[k];
+        for(int k = start; chainPrev[k] >= 0; k = chainPrev[k]) distances[chainPrev[k]] = distances[k] + downMetres(chainPrev[k], k);
+    }
+
+    // The distance driven down a chain link, along the previous route listed back or the next route when there is none
+    private long downMetres(int low, int high) {
+        return prev[high] == low ? prevMetres[high] : nextMetres[low];
+    }
+
+    // Plain Dijkstra over every kept route, stopping early once end is settled
+    private void dijkstra(int start, int end, long[] distances) {
+        Arrays.fill(distances, Metres.UNREACHABLE);
+        boolean[] settled = new boolean[size];
+        PriorityQueue<long[]> queue = new PriorityQueue<long[]>((a, b) -> Long.compare(a[0], b[0]));
+        distances[start] = 0;
+        queue.add(new long[] {0, start});
+        while(!queue.isEmpty()) {
+            int k = (int)queue.poll()[1];
+            if(settled[k]) continue;
+            settled[k] = true;
+            if(k == end) return;
+            for(int edge = edgeStart[k]; edge < edgeStart[k + 1]; edge++) {
+                int to = edgeTarget[edge];
+                long metres = distances[k] + edgeMetres[edge];
+                if(metres < distances[to]) {
+                    distances[to] = metres;
+                    queue.add(new long[] {metres, to});
+                }
+            }
+        }
+    }
+
+    // Whether two positions are joined by a kept route
+    private boolean linked(int from, int to) {
+        for(int edge = edgeStart[from]; edge < edgeStart[from + 1]; edge++) {
+            if(edgeTarget[edge] == to) return true;
+        }
+        return false;
+    }
+
+    // Run random queries against a loaded network, returning the number of mismatches found
+    // Half of them stay close together on one chain, some ask about IDs that don't exist, and every name is looked up
+    public long run(Interchanges interchanges, int queries, long seed) {
+        Random random = new Random(seed);
+        long mismatchesBefore = mismatchCount;
+        Itinerary itinerary = new Itinerary();
+        long[] expectedFrom = new long[size];
+        long[] actualFrom = new long[interchanges.getStore().size()];
+        if(size == 0) return 0;
+
+        for(int query = 0; query < queries; query++) {
+            int start = random.nextInt(size);
+            int end = random.nextBoolean() ? Math.max(0, Math.min(size - 1, start + random.nextInt(101) - 50)) : random.nextInt(size);
+            int startId = network.idAt(start);
+            int endId = network.idAt(end);
+
+            // Unknown IDs never have a path
+            if(query % 64 == 63) {
+                checkDistance(interchanges, startId, -1 - query, Metres.UNREACHABLE);
+                continue;
+            }
+
+            long expected = distance(start, end);
+            checkDistance(interchanges, startId, endId, expected);
+            if(expected != Metres.UNREACHABLE) checkPath(interchanges, itinerary, start, end, expected);
+
+            // Names resolve to their IDs, whatever their case
+            checkedCount++;
+            int nameId = interchanges.lookupLocationIdForName(network.nameAt(start).toUpperCase());
+            if(nameId != startId) mismatch("\"" + network.nameAt(start) + "\" resolved to " + nameId + ", expected " + startId);
+
+            // Distances from one location to every other, now and then, they are a full pass over the network
+            if(query % 256 == 0) {
+                distancesFrom(start, expectedFrom);
+                interchanges.calculateMetresFrom(startId, actualFrom);
+                checkedCount++;
+                for(int k = 0; k < size; k++) {
+                    int index = interchanges.getStore().indexOf(network.idAt(k));
+                    if(expectedFrom[k] != actualFrom[index]) {
+                        mismatch("Distances from " + startId + " to " + network.idAt(k) + " gave " + actualFrom[index] + ", expected " + expectedFrom[k]);
+                        break;
+                    }
+                }
+            }
+        }
+        return mismatchCount - mismatchesBefore;
+    }
+
+    private void checkDistance(Interchanges interchanges, int startId, int endId, long expected) {
+        checkedCount++;
+        long actual;
+        try {
+            actual = interchanges.calculateDistanceMetres(startId, endId);
+        } catch(Interchanges.NoPathExists nperr) {
+            actual = Metres.UNREACHABLE;
+        }
+        if(actual != expected) mismatch("Distance " + startId + " to " + endId + " gave " + actual + "m, expected " + expected + "m");
+
+        // The non-throwing queries must agree, and say why there was no answer, and km are only a view of the metres
+        long metres = interchanges.distanceMetres(startId, endId);
+        if(metres != expected) mismatch("Distance in metres " + startId + " to " + endId + " gave " + metres + "m, expected " + expected + "m");
+        double orNaN = interchanges.distanceOrNaN(startId, endId);
+        double expectedKm = expected == Metres.UNREACHABLE ? Double.NaN : Metres.toKm(expected);
+        if(Double.compare(orNaN, expectedKm) != 0) mismatch("Distance or NaN " + startId + " to " + endId + " gave " + orNaN + ", expected " + expectedKm);
+        if(metres == Metres.UNREACHABLE) {
+            int reason = network.positionOf(startId) < 0 ? Interchanges.UNKNOWN_START : network.positionOf(endId) < 0 ? Interchanges.UNKNOWN_END : Interchanges.NO_PATH;
+            if(interchanges.noDistanceReason(startId, endId) != reason) mismatch("No distance " + startId + " to " + endId + " gave reason " + interchanges.noDistanceReason(startId, endId) + ", expected " + reason);
+        }
+    }
+
+    // The path must run between the two locations along kept routes, and the itinerary must follow it and add up to the distance
+    private void checkPath(Interchanges interchanges, Itinerary itinerary, int start, int end, long expected) {
+        checkedCount++;
+        int startId = network.idAt(start);
+        int endId = network.idAt(end);
+        int[] path = interchanges.calculatePath(startId, endId);
+        int[] positions = new int[path.length];
+        for(int i = 0; i < path.length; i++) positions[i] = network.positionOf(interchanges.getStore().idAt(path[i]));
+        if(positions[0] != start || positions[path.length - 1] != end) {
+            mismatch("Path " + startId + " to " + endId + " runs between the wrong locations");
+            return;
+        }
+        for(int i = 1; i < positions.length; i++) {
+            if(!linked(positions[i - 1], positions[i])) {
+                mismatch("Path " + startId + " to " + endId + " jumps from " + network.idAt(positions[i - 1]) + " to " + network.idAt(positions[i]));
+                return;
+            }
+        }
+
+        interchanges.itinerary(startId, endId, itinerary);
+        if(itinerary.segmentCount() != path.length - 1) mismatch("Itinerary " + startId + " to " + endId + " has " + itinerary.segmentCount() + " segments, its path has " + (path.length - 1));
+        if(itinerary.getTotalMetres() != expected) mismatch("Itinerary " + startId + " to " + endId + " adds up to " + itinerary.getTotalMetres() + "m, expected " + expected + "m");
+    }
+
+    private void mismatch(String message) {
+        if(mismatchCount++ < maxReported) report.println(message);
+    }
+}
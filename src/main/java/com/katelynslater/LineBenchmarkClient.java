@@ -0,0 +1,133 @@
+package com.katelynslater;
+
+import com.katelynslater.data.NetworkStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Drives a LineServer with pipelined queries and reports the throughput at each pipeline depth
+// Each connection keeps up to depth queries in flight, sending more as the answers come back
+public class LineBenchmarkClient {
+    // The address of the server
+    private final String host;
+    private final int port;
+    // The network used to pick random start and end IDs
+    private final NetworkStore store;
+
+    // The number of concurrent connections
+    public int connections = 8;
+    // How long to run each depth for
+    public int durationSeconds = 5;
+    // The pipeline depths to measure, in order
+    public int[] depths = {1, 8, 64, 512};
+
+    // The number of distinct queries each connection cycles through
+    private static final int QUERY_COUNT = 4096;
+
+    public LineBenchmarkClient(String host, int port, NetworkStore store) {
+        this.host = host;
+        this.port = port;
+        this.store = store;
+    }
+
+    // One connection's queries and totals
+    private class Worker extends Thread {
+        final int depth;
+        final long deadline;
+        final byte[] queries;
+        final int[] queryStarts = new int[QUERY_COUNT + 1];
+        long answered = 0;
+        long errors = 0;
+        IOException failure = null;
+
+        Worker(int depth, long deadline, long seed) {
+            this.depth = depth;
+            this.deadline = deadline;
+
+            // Build every query up front, so the client spends its time on the network rather than formatting
+            Random random = new Random(seed);
+            StringBuilder text = new StringBuilder(QUERY_COUNT * 12);
+            for(int i = 0; i < QUERY_COUNT; i++) {
+                queryStarts[i] = text.length();
+                text.append(store.idAt(random.nextInt(store.size()))).append(' ').append(store.idAt(random.nextInt(store.size()))).append('\n');
+            }
+            queries = text.toString().getBytes(StandardCharsets.US_ASCII);
+            queryStarts[QUERY_COUNT] = queries.length;
+        }
+
+        @Override
+        public void run() {
+            try(SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer answers = ByteBuffer.allocateDirect(64 << 10);
+                int next = 0;
+                long inFlight = 0;
+                // Set when an answer is the first byte of its line, so errors can be counted
+                boolean lineStart = true;
+
+                while(true) {
+                    // Top the pipeline up, unless time is up
+                    if(System.nanoTime() < deadline) {
+                        while(inFlight < depth) {
+                            int count = (int)Math.min(depth - inFlight, QUERY_COUNT - next);
+                            ByteBuffer send = ByteBuffer.wrap(queries, queryStarts[next], queryStarts[next + count] - queryStarts[next]);
+                            while(send.hasRemaining()) channel.write(send);
+                            inFlight += count;
+                            next = (next + count) % QUERY_COUNT;
+                        }
+                    } else if(inFlight == 0) {
+                        return;
+                    }
+
+                    // Count the answers that have come back
+                    answers.clear();
+                    if(channel.read(answers) < 0) throw new IOException("The server closed the connection");
+                    answers.flip();
+                    while(answers.hasRemaining()) {
+                        byte b = answers.get();
+                        if(lineStart && b == 'e') errors++;
+                        lineStart = b == '\n';
+                        if(lineStart) {
+                            answered++;
+                            inFlight--;
+                        }
+                    }
+                }
+            } catch(IOException ioerr) {
+                failure = ioerr;
+            }
+        }
+    }
+
+    // Run each depth in turn and print the results
+    public void run() throws IOException, InterruptedException {
+        System.out.println("Connections: " + connections + ", " + durationSeconds + "s per depth");
+        for(int depth : depths) {
+            long startTime = System.nanoTime();
+            long deadline = startTime + durationSeconds * 1000000000L;
+            Worker[] workers = new Worker[connections];
+            for(int w = 0; w < connections; w++) workers[w] = new Worker(depth, deadline, w);
+            for(Worker worker : workers) worker.start();
+            for(Worker worker : workers) worker.join();
+            long elapsed = System.nanoTime() - startTime;
+
+            long answered = 0;
+            long errors = 0;
+            for(Worker worker : workers) {
+                if(worker.failure != null) throw worker.failure;
+                answered += worker.answered;
+                errors += worker.errors;
+            }
+
+            // With depth queries always in flight, the mean latency follows from the throughput
+            double seconds = elapsed / 1e9;
+            double perSecond = answered / seconds;
+            double meanMicros = perSecond > 0 ? (double)connections * depth / perSecond * 1e6 : 0;
+            System.out.println("Depth " + depth + ": " + Math.round(perSecond) + " queries/sec (" + answered + " answered, " + errors + " errors), mean latency " + Math.round(meanMicros) + "us");
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkStore;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A minimal TCP protocol for gateways, one query per line and one answer per line, in order
+// Requests are "start end", where start and end are location IDs separated by spaces, tabs or commas,
+// or names separated by a tab or comma. Answers are "distance cost" with the distance in km and the cost in dollars,
+// or "error" and the reason. Clients may pipeline as many requests as they like without waiting for answers
+//
+// One thread accepts connections and hands them to a few selector threads, which each serve thousands of connections
+// Each selector thread reads into and answers from its own direct buffers, so a connection only holds the partial line
+// it's waiting on and any answers the client hasn't taken yet. ID requests are parsed straight from the bytes,
+// and every answer to one read is written at once
+public class LineServer {
+    // Lines longer than this can't be a query, and the connection is closed
+    public static final int MAX_LINE = 4096;
+    // Room kept free in the output buffer for one answer, longer error messages are cut short
+    private static final int MAX_ANSWER = 512;
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    // The CLI whose network and tariff answer the queries
+    private final CLI cli;
+    private final ServerSocketChannel serverChannel;
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public LineServer(CLI cli, String host, int port, int threads) throws IOException {
+        this.cli = cli;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port), 1024);
+
+        workers = new Worker[Math.max(1, threads)];
+        for(int i = 0; i < workers.length; i++) workers[i] = new Worker(i);
+        acceptor = new Thread(this::accept, "line-acceptor");
+    }
+
+    public void start() {
+        for(Worker worker : workers) worker.start();
+        acceptor.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch(IOException ioerr) {}
+        for(Worker worker : workers) worker.selector.wakeup();
+    }
+
+    // The port the server is listening on, useful when started on port 0
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Accept connections, handing them to the selector threads in turn
+    private void accept() {
+        int next = 0;
+        while(running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Worker worker = workers[next];
+                next = (next + 1) % workers.length;
+                worker.incoming.add(channel);
+                worker.selector.wakeup();
+            } catch(ClosedChannelException ccerr) {
+                return;
+            } catch(IOException ioerr) {
+                if(!running) return;
+            }
+        }
+    }
+
+    // The state held for each connection between readiness events
+    private static class Connection {
+        final SocketChannel channel;
+        // Bytes read but not yet answered, a partial line, or more lines while answers are waiting to be written
+        byte[] carry = new byte[256];
+        int carryLength = 0;
+        // Answers the client hasn't taken yet, or null
+        ByteBuffer pending = null;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // A selector thread and the buffers it reads and answers with
+    private class Worker extends Thread {
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES + MAX_LINE);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        // Reused for the fields of lines that aren't plain IDs
+        final byte[] lineBytes = new byte[MAX_LINE];
+
+        Worker(int number) throws IOException {
+            super("line-worker-" + number);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(running) {
+                    selector.select();
+
+                    // Take on any new connections
+                    SocketChannel channel;
+                    while((channel = incoming.poll()) != null) {
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                        } catch(ClosedChannelException ccerr) {}
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection)key.attachment();
+                        try {
+                            if(key.isValid() && key.isWritable()) writable(key, connection);
+                            if(key.isValid() && key.isReadable()) readable(key, connection);
+                        } catch(IOException ioerr) {
+                            close(key, connection);
+                        }
+                    }
+                }
+            } catch(IOException ioerr) {
+                System.err.println("A line server thread stopped: " + ioerr.getMessage());
+            } finally {
+                for(SelectionKey key : selector.keys()) close(key, (Connection)key.attachment());
+                try {
+                    selector.close();
+                } catch(IOException ioerr) {}
+            }
+        }
+
+        private void readable(SelectionKey key, Connection connection) throws IOException {
+            // Start with anything left over from the last read
+            in.clear();
+            in.put(connection.carry, 0, connection.carryLength);
+            connection.carryLength = 0;
+            int read = connection.channel.read(in);
+            if(read < 0) {
+                close(key, connection);
+                return;
+            }
+            in.flip();
+            answer(key, connection);
+        }
+
+        private void writable(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer pending = connection.pending;
+            connection.channel.write(pending);
+            if(pending.hasRemaining()) return;
+
+            // Everything is written, so answer any lines that came in meanwhile, then go back to reading
+            connection.pending = null;
+            key.interestOps(SelectionKey.OP_READ);
+            if(connection.carryLength > 0) {
+                in.clear();
+                in.put(connection.carry, 0, connection.carryLength);
+                connection.carryLength = 0;
+                in.flip();
+                answer(key, connection);
+            }
+        }
+
+        // Answer every complete line in the input buffer, keeping any partial line for the next read
+        private void answer(SelectionKey key, Connection connection) throws IOException {
+            // Every line in one read is answered against the same network
+            Interchanges interchanges = cli.interchanges;
+            Tariff tariff = cli.tariff;
+            out.clear();
+
+            int lineStart = in.position();
+            int limit = in.limit();
+            for(int i = lineStart; i < limit; i++) {
+                if(in.get(i) != '\n') continue;
+                answerLine(interchanges, tariff, lineStart, i);
+                lineStart = i + 1;
+
+                // Write when the output fills, and stop answering if the client isn't keeping up
+                if(out.remaining() < MAX_ANSWER && !flush(key, connection)) {
+                    keep(connection, lineStart, limit);
+                    return;
+                }
+            }
+
+            if(limit - lineStart > MAX_LINE) {
+                close(key, connection);
+                return;
+            }
+            keep(connection, lineStart, limit);
+            flush(key, connection);
+        }
+
+        // Keep the unanswered bytes for later
+        private void keep(Connection connection, int start, int end) {
+            int length = end - start;
+            if(length > connection.carry.length) connection.carry = new byte[Math.max(length, connection.carry.length * 2)];
+            copy(start, connection.carry, length);
+            connection.carryLength = length;
+        }
+
+        // Write the answers, returning false and waiting for the client when it can't take them all
+        private boolean flush(SelectionKey key, Connection connection) throws IOException {
+            out.flip();
+            connection.channel.write(out);
+            if(out.hasRemaining()) {
+                ByteBuffer pending = ByteBuffer.allocate(out.remaining());
+                pending.put(out).flip();
+                connection.pending = pending;
+                key.interestOps(SelectionKey.OP_WRITE);
+                out.clear();
+                return false;
+            }
+            out.clear();
+            return true;
+        }
+
+        // Answer the line between two positions of the input buffer, which excludes the newline
+        private void answerLine(Interchanges interchanges, Tariff tariff, int start, int end) {
+            if(end > start && in.get(end - 1) == '\r') end--;
+
+            // The usual request is two IDs, which are parsed without decoding the line
+            int firstStart = skipSeparators(start, end);
+            int secondStart = skipSeparators(skipDigits(firstStart, end), end);
+            long first = parseId(firstStart, end);
+            long second = first == NOT_AN_ID ? NOT_AN_ID : parseId(secondStart, end);
+            if(second == NOT_AN_ID || skipSeparators(skipDigits(secondStart, end), end) != end) {
+                answerNames(interchanges, tariff, start, end);
+                return;
+            }
+
+            int startId = (int)first;
+            int endId = (int)second;
+            NetworkStore store = interchanges.getStore();
+            if(store.indexOf(startId) == NetworkStore.MISSING || store.indexOf(endId) == NetworkStore.MISSING) {
+                error("No location with ID " + (store.indexOf(startId) == NetworkStore.MISSING ? startId : endId) + " could be found!");
+                return;
+            }
+            answerTrip(interchanges, tariff, startId, endId);
+        }
+
+        // Answer a line holding names, which are split on a tab or comma
+        private void answerNames(Interchanges interchanges, Tariff tariff, int start, int end) {
+            if(start == end) {
+                error("Expected a start and end");
+                return;
+            }
+            copy(start, lineBytes, end - start);
+            String line = new String(lineBytes, 0, end - start, StandardCharsets.UTF_8);
+            String[] fields = line.split(line.indexOf('\t') >= 0 ? "\t" : line.indexOf(',') >= 0 ? "," : " +", -1);
+            if(fields.length != 2) {
+                error("Expected a start and end, names must be separated by a tab or comma");
+                return;
+            }
+
+            String startName = fields[0].trim();
+            String endName = fields[1].trim();
+            int startId = cli.resolveLocationId(interchanges, startName);
+            if(startId == Interchanges.UNKNOWN_ID) {
+                error(cli.unknownLocationMessage(interchanges, startName));
+                return;
+            }
+            int endId = cli.resolveLocationId(interchanges, endName);
+            if(endId == Interchanges.UNKNOWN_ID) {
+                error(cli.unknownLocationMessage(interchanges, endName));
+                return;
+            }
+            answerTrip(interchanges, tariff, startId, endId);
+        }
+
+        private void answerTrip(Interchanges interchanges, Tariff tariff, int startId, int endId) {
+            long metres = interchanges.distanceMetres(startId, endId);
+            if(metres == Metres.UNREACHABLE) {
+                error(Interchanges.noPathMessage(startId, endId));
+                return;
+            }
+            putDecimal(out, metres, Metres.KM_DECIMALS);
+            out.put((byte)' ');
+            putDecimal(out, tariff.priceCentsForMetres(interchanges, startId, endId, metres, cli.vehicleClass, cli.tripMinuteOfWeek), 2);
+            out.put((byte)'\n');
+        }
+
+        private void error(String message) {
+            Metrics.REJECTED.increment();
+            byte[] bytes = ("error " + message.replace('\n', ' ')).getBytes(StandardCharsets.UTF_8);
+            out.put(bytes, 0, Math.min(bytes.length, MAX_ANSWER - 1));
+            out.put((byte)'\n');
+        }
+
+        // Copy bytes out of the input buffer without moving its position
+        private void copy(int start, byte[] target, int length) {
+            ByteBuffer view = in.duplicate();
+            view.position(start);
+            view.get(target, 0, length);
+        }
+
+        private int skipSeparators(int position, int end) {
+            while(position < end) {
+                byte b = in.get(position);
+                if(b != ' ' && b != '\t' && b != ',') break;
+                position++;
+            }
+            return position;
+        }
+
+        private int skipDigits(int position, int end) {
+            if(position < end && in.get(position) == '-') position++;
+            while(position < end && in.get(position) >= '0' && in.get(position) <= '9') position++;
+            return position;
+        }
+
+        // Parse an integer ID starting at a position, or return NOT_AN_ID when the field isn't one
+        private long parseId(int position, int end) {
+            boolean negative = position < end && in.get(position) == '-';
+            if(negative) position++;
+            long value = 0;
+            int digits = 0;
+            while(position < end) {
+                byte b = in.get(position);
+                if(b == ' ' || b == '\t' || b == ',') break;
+                if(b < '0' || b > '9' || ++digits > 10) return NOT_AN_ID;
+                value = value * 10 + (b - '0');
+                position++;
+            }
+            if(digits == 0) return NOT_AN_ID;
+            value = negative ? -value : value;
+            return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? NOT_AN_ID : value;
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch(IOException ioerr) {}
+        }
+    }
+
+    private static final long NOT_AN_ID = Long.MIN_VALUE;
+
+    // Put a scaled integer as a fixed point decimal, the same as BatchPricer.appendDecimal()
+    static void putDecimal(ByteBuffer buffer, long scaled, int decimals) {
+        if(scaled < 0) {
+            buffer.put((byte)'-');
+            scaled = -scaled;
+        }
+        long divisor = 1;
+        for(int i = 0; i < decimals; i++) divisor *= 10;
+
+        // Write the whole part's digits backwards into place
+        long whole = scaled / divisor;
+        int digits = 1;
+        for(long rest = whole / 10; rest > 0; rest /= 10) digits++;
+        int position = buffer.position();
+        for(int i = digits - 1; i >= 0; i--) {
+            buffer.put(position + i, (byte)('0' + whole % 10));
+            whole /= 10;
+        }
+        buffer.position(position + digits);
+
+        if(decimals == 0) return;
+        buffer.put((byte)'.');
+        long fraction = scaled % divisor;
+        for(long digit = divisor / 10; digit > 0; digit /= 10) {
+            buffer.put((byte)('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+}
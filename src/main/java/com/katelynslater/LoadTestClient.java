@@ -0,0 +1,120 @@
+package com.katelynslater;
+
+import com.katelynslater.data.NetworkStore;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Random;
+
+// Drives a QueryServer with concurrent requests and reports latency percentiles and throughput
+public class LoadTestClient {
+    // The base URL of the server, e.g. http://localhost:8407
+    private final String baseUrl;
+    // The network used to pick random start and end IDs
+    private final NetworkStore store;
+
+    // The number of concurrent connections
+    public int concurrency = 64;
+    // How long to run for
+    public int durationSeconds = 10;
+    // Pairs per request, 1 uses GET /quote and anything higher uses POST /quotes
+    public int batchSize = 1;
+
+    public LoadTestClient(String baseUrl, NetworkStore store) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.store = store;
+    }
+
+    // The latencies recorded by a single worker
+    private static class Worker extends Thread {
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        long errors = 0;
+    }
+
+    // Run the load test and print the results
+    public void run() throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        long deadline = System.nanoTime() + durationSeconds * 1000000000L;
+
+        Worker[] workers = new Worker[concurrency];
+        for(int w = 0; w < concurrency; w++) {
+            final Random random = new Random(w);
+            final Worker worker = new Worker() {
+                public void run() {
+                    while(System.nanoTime() < deadline) {
+                        HttpRequest request = nextRequest(random);
+                        long sent = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            if(response.statusCode() != 200) errors++;
+                        } catch(IOException ioerr) {
+                            errors++;
+                        } catch(InterruptedException ierr) {
+                            return;
+                        }
+
+                        // Record the latency, growing the array when it fills up
+                        if(count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                        latencies[count++] = System.nanoTime() - sent;
+                    }
+                }
+            };
+            workers[w] = worker;
+        }
+
+        long startTime = System.nanoTime();
+        for(Worker worker : workers) worker.start();
+        for(Worker worker : workers) worker.join();
+        long elapsed = System.nanoTime() - startTime;
+
+        // Merge every worker's latencies
+        int total = 0;
+        long errors = 0;
+        for(Worker worker : workers) {
+            total += worker.count;
+            errors += worker.errors;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for(Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsed / 1e9;
+        System.out.println("Requests: " + total + " (" + errors + " errors) over " + Math.round(seconds * 10) / 10.0 + "s with " + concurrency + " connections");
+        System.out.println("Throughput: " + Math.round(total / seconds) + " requests/sec, " + Math.round(total * (long)batchSize / seconds) + " quotes/sec");
+        System.out.println("Latency p50: " + micros(percentile(latencies, 0.50)) + "us, p99: " + micros(percentile(latencies, 0.99)) + "us, max: " + micros(total == 0 ? 0 : latencies[total - 1]) + "us");
+    }
+
+    // Build a request for random pairs of existing IDs
+    private HttpRequest nextRequest(Random random) {
+        int size = store.size();
+        if(batchSize <= 1) {
+            int start = store.idAt(random.nextInt(size));
+            int end = store.idAt(random.nextInt(size));
+            return HttpRequest.newBuilder(URI.create(baseUrl + "/quote?start=" + start + "&end=" + end)).GET().build();
+        }
+
+        StringBuilder body = new StringBuilder(batchSize * 12);
+        for(int i = 0; i < batchSize; i++) {
+            body.append(store.idAt(random.nextInt(size))).append(',').append(store.idAt(random.nextInt(size))).append('\n');
+        }
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/quotes")).POST(HttpRequest.BodyPublishers.ofString(body.toString())).build();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if(sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))];
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
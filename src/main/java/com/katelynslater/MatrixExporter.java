@@ -0,0 +1,218 @@
+package com.katelynslater;
+
+import com.katelynslater.data.DistanceMatrix;
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkStore;
+import com.katelynslater.pricing.Tariff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Computes the distance and cost between every pair of locations across all cores, streaming the matrix out as it goes
+// Rows are computed a block at a time with fork/join, and the next block is computed while the last one is written,
+// so only two blocks are ever held in memory however large the network is
+//
+// Binary output uses the DistanceMatrix layout, which can be mapped back for constant time lookups
+// CSV output is "start,end,distance,cost" for every connected pair, with the distance in km and cost in dollars
+public class MatrixExporter {
+    // The CLI whose network, tariff, vehicle class and trip time are used
+    private final CLI cli;
+
+    // Whether to write CSV rather than the binary layout
+    public boolean csv = false;
+    // The number of worker threads
+    public int threads = Runtime.getRuntime().availableProcessors();
+    // The approximate size of each block of rows
+    public int blockBytes = 8 << 20;
+
+    // Totals for the last run
+    public long pairCount = 0;
+    public long connectedCount = 0;
+    public long elapsedNanos = 0;
+
+    public MatrixExporter(CLI cli) {
+        this.cli = cli;
+    }
+
+    // Compute the whole matrix, writing it to a channel
+    public void run(WritableByteChannel output) throws IOException {
+        long startTime = System.nanoTime();
+
+        // Everything is computed against one version of the network, even if it is reloaded part way through
+        Interchanges interchanges = cli.interchanges;
+        Tariff tariff = cli.tariff;
+        NetworkStore store = interchanges.getStore();
+        int count = store.size();
+
+        // Work out how many rows fit in a block, CSV rows are estimated at 32 bytes a pair
+        long rowBytes = Math.max(1, csv ? 32L * count : DistanceMatrix.rowBytes(count));
+        int blockRows = (int)Math.max(1, Math.min(count, blockBytes / rowBytes));
+
+        // The header, or the CSV column names
+        if(csv) {
+            writeFully(output, ByteBuffer.wrap("start,end,distance,cost\n".getBytes(StandardCharsets.UTF_8)));
+        } else {
+            ByteBuffer header = ByteBuffer.allocate((int)DistanceMatrix.rowsOffset(count)).order(ByteOrder.LITTLE_ENDIAN);
+            DistanceMatrix.writeHeader(store, header);
+            header.flip();
+            writeFully(output, header);
+        }
+
+        long connected = 0;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // Compute the first block, then keep the next one computing while each is written
+            Block current = count == 0 ? null : new Block(interchanges, tariff, store, 0, Math.min(blockRows, count));
+            ForkJoinTask<Void> pending = current == null ? null : pool.submit(current);
+            while(current != null) {
+                pending.join();
+                Block next = current.end >= count ? null : new Block(interchanges, tariff, store, current.end, Math.min(current.end + blockRows, count));
+                ForkJoinTask<Void> nextPending = next == null ? null : pool.submit(next);
+
+                connected += current.write(output);
+
+                current = next;
+                pending = nextPending;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        pairCount = (long)count * count;
+        connectedCount = connected;
+        elapsedNanos = System.nanoTime() - startTime;
+    }
+
+    // A block of rows, split into smaller ranges of rows for fork/join
+    private class Block extends RecursiveAction {
+        final Interchanges interchanges;
+        final Tariff tariff;
+        final NetworkStore store;
+        final int start;
+        final int end;
+        // Binary rows are filled in place, CSV rows are formatted separately then joined in order
+        final ByteBuffer binary;
+        final byte[][] text;
+        final int[] connected;
+
+        Block(Interchanges interchanges, Tariff tariff, NetworkStore store, int start, int end) {
+            this.interchanges = interchanges;
+            this.tariff = tariff;
+            this.store = store;
+            this.start = start;
+            this.end = end;
+            int rows = end - start;
+            binary = csv ? null : ByteBuffer.allocate((int)(DistanceMatrix.rowBytes(store.size()) * rows)).order(ByteOrder.LITTLE_ENDIAN);
+            text = csv ? new byte[rows][] : null;
+            connected = new int[rows];
+        }
+
+        @Override
+        protected void compute() {
+            new Rows(this, start, end).invoke();
+        }
+
+        // Write the block out, returning how many connected pairs it held
+        long write(WritableByteChannel output) throws IOException {
+            long total = 0;
+            for(int rowConnected : connected) total += rowConnected;
+            if(binary != null) {
+                writeFully(output, binary);
+            } else {
+                for(byte[] row : text) writeFully(output, ByteBuffer.wrap(row));
+            }
+            return total;
+        }
+    }
+
+    // A range of rows in a block, split in half until it is small enough to compute directly
+    private class Rows extends RecursiveAction {
+        final Block block;
+        final int start;
+        final int end;
+
+        Rows(Block block, int start, int end) {
+            this.block = block;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            // Split until a task covers about 16k pairs, or a single row
+            if(end - start > 1 && (long)(end - start) * block.store.size() > 16384) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Rows(block, start, middle), new Rows(block, middle, end));
+                return;
+            }
+            for(int row = start; row < end; row++) computeRow(block, row);
+        }
+    }
+
+    // Scratch space for each worker's row of distances
+    private final ThreadLocal<long[]> rowDistances = new ThreadLocal<long[]>();
+
+    // Compute one row of the matrix, from one start location to every other
+    private void computeRow(Block block, int row) {
+        NetworkStore store = block.store;
+        int count = store.size();
+        int vehicleClass = cli.vehicleClass;
+        int minuteOfWeek = cli.tripMinuteOfWeek;
+        int connected = 0;
+
+        ByteBuffer binary = block.binary;
+        int offset = (int)((row - block.start) * DistanceMatrix.rowBytes(count));
+        StringBuilder text = block.text == null ? null : new StringBuilder(32 * count);
+        int startId = store.idAt(row);
+
+        // Linear corridors are subtractions of the cumulative index, networks with branches run one search for the whole row
+        long[] distances = rowDistances.get();
+        if(distances == null || distances.length != count) {
+            distances = new long[count];
+            rowDistances.set(distances);
+        }
+        block.interchanges.calculateMetresFrom(startId, distances);
+
+        // The store only holds real locations, so the gaps between IDs are never visited
+        for(int column = 0; column < count; column++) {
+            long metres = distances[column];
+            if(metres == Metres.UNREACHABLE) {
+                if(binary != null) {
+                    binary.putInt(offset, DistanceMatrix.NO_PATH);
+                    binary.putInt(offset + 4, DistanceMatrix.NO_PATH);
+                    offset += DistanceMatrix.ENTRY_BYTES;
+                }
+                continue;
+            }
+
+            long cents = block.tariff.priceCentsAt(block.interchanges, row, column, metres, vehicleClass, minuteOfWeek);
+            connected++;
+
+            if(binary != null) {
+                binary.putInt(offset, Math.toIntExact(metres));
+                binary.putInt(offset + 4, Math.toIntExact(cents));
+                offset += DistanceMatrix.ENTRY_BYTES;
+            } else {
+                text.append(startId).append(',').append(store.idAt(column)).append(',');
+                BatchPricer.appendDecimal(text, metres, Metres.KM_DECIMALS);
+                text.append(',');
+                BatchPricer.appendDecimal(text, cents, 2);
+                text.append('\n');
+            }
+        }
+
+        block.connected[row - block.start] = connected;
+        if(text != null) block.text[row - block.start] = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(WritableByteChannel output, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) output.write(buffer);
+    }
+}
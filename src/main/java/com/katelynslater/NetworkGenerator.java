@@ -0,0 +1,284 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Metres;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+// Generates synthetic networks of any size in the interchanges.json format, and files of trips to price on them
+// Each highway is a corridor of ascending IDs, with gaps in the IDs between interchanges and wider gaps between highways
+// Like the real data, some routes list a different distance back (often 0), some are only listed one way,
+// some point at IDs that don't exist, and with interchangeRate set some locations branch off to another highway
+// The same settings and seed always generate the same network, so failures can be reproduced
+//
+// Locations are held by position, in ascending ID order, with the routes each one lists in the order they are written
+public class NetworkGenerator {
+    // The number of locations
+    public int count = 1000;
+    // The number of highways the locations are split between
+    public int highways = 1;
+    // IDs step by 1 up to this between neighbouring interchanges
+    public int maxIdGap = 3;
+    // The fraction of routes that list a different distance back
+    public double asymmetry = 0.1;
+    // The fraction of routes only listed one way
+    public double dropRate = 0.01;
+    // The fraction of locations with a route to an ID that doesn't exist
+    public double danglingRate = 0.005;
+    // The fraction of locations with a branch to another location, 0 for a linear network
+    public double interchangeRate = 0;
+    public long seed = 407;
+
+    // Used by dangling routes heading down, IDs start at 1
+    private static final int MISSING_LOW_ID = 0;
+
+    private int[] ids;
+    private double[] lat;
+    private double[] lng;
+    // The first position of each highway, plus count
+    private int[] highwayStart;
+    // The routes position k lists are routeStart[k] to routeStart[k + 1]
+    private int[] routeStart;
+    private int[] routeTo;
+    private long[] routeMetres;
+
+    // Generate the network from the settings above, replacing any generated before
+    public void generate() {
+        Random random = new Random(seed);
+        // Every highway gets at least one location
+        int highways = Math.max(1, Math.min(this.highways, count));
+        int gap = Math.max(1, maxIdGap);
+
+        // Lay out the IDs and coordinates, highway by highway
+        ids = new int[count];
+        lat = new double[count];
+        lng = new double[count];
+        highwayStart = new int[highways + 1];
+        int id = 0;
+        for(int h = 0; h < highways; h++) {
+            int start = (int)((long)count * h / highways);
+            int end = (int)((long)count * (h + 1) / highways);
+            highwayStart[h] = start;
+            id += 1 + random.nextInt(100);
+            double baseLat = 43.3 + random.nextDouble() * 0.6;
+            double baseLng = -80.0 + random.nextDouble() * 1.2;
+            double heading = random.nextDouble() * Math.PI;
+            for(int k = start; k < end; k++) {
+                if(k > start) id += 1 + random.nextInt(gap);
+                ids[k] = id;
+                lat[k] = baseLat + (k - start) * 0.0005 * Math.sin(heading);
+                lng[k] = baseLng + (k - start) * 0.0005 * Math.cos(heading);
+            }
+        }
+        highwayStart[highways] = count;
+        int maxId = id;
+
+        // Each highway links its neighbours, then any branches link across
+        Links links = new Links(count + (int)(count * interchangeRate * 2) + 16);
+        for(int h = 0; h < highways; h++) {
+            for(int k = highwayStart[h]; k + 1 < highwayStart[h + 1]; k++) addLink(random, links, k, k + 1);
+        }
+        for(int k = 0; k < count && interchangeRate > 0; k++) {
+            if(random.nextDouble() >= interchangeRate) continue;
+            int target = random.nextInt(count);
+            if(Math.abs(target - k) > 1) addLink(random, links, k, target);
+        }
+
+        // Dangling routes, listed either before or after the real ones
+        int[] dangling = new int[count];
+        boolean[] danglingFirst = new boolean[count];
+        Arrays.fill(dangling, Integer.MIN_VALUE);
+        for(int k = 0; k < count && danglingRate > 0; k++) {
+            if(random.nextDouble() >= danglingRate) continue;
+            dangling[k] = random.nextBoolean() ? MISSING_LOW_ID : maxId + 1 + random.nextInt(1000);
+            danglingFirst[k] = random.nextBoolean();
+        }
+
+        // Count the routes each position lists, then fill them in listing order
+        routeStart = new int[count + 1];
+        for(int k = 0; k < count; k++) if(dangling[k] != Integer.MIN_VALUE) routeStart[k + 1]++;
+        for(int link = 0; link < links.count; link++) {
+            if(links.listedThere[link]) routeStart[links.from[link] + 1]++;
+            if(links.listedBack[link]) routeStart[links.to[link] + 1]++;
+        }
+        for(int k = 0; k < count; k++) routeStart[k + 1] += routeStart[k];
+        routeTo = new int[routeStart[count]];
+        routeMetres = new long[routeStart[count]];
+        int[] fill = Arrays.copyOf(routeStart, count);
+        for(int k = 0; k < count; k++) {
+            if(dangling[k] != Integer.MIN_VALUE && danglingFirst[k]) fill[k] = addRoute(fill[k], dangling[k], randomDistance(random));
+        }
+        for(int link = 0; link < links.count; link++) {
+            int from = links.from[link];
+            int to = links.to[link];
+            if(links.listedThere[link]) fill[from] = addRoute(fill[from], ids[to], links.there[link]);
+            if(links.listedBack[link]) fill[to] = addRoute(fill[to], ids[from], links.back[link]);
+        }
+        for(int k = 0; k < count; k++) {
+            if(dangling[k] != Integer.MIN_VALUE && !danglingFirst[k]) fill[k] = addRoute(fill[k], dangling[k], randomDistance(random));
+        }
+    }
+
+    // Links between two positions, with the distance listed each way and whether each end lists it
+    private static class Links {
+        int[] from;
+        int[] to;
+        long[] there;
+        long[] back;
+        boolean[] listedThere;
+        boolean[] listedBack;
+        int count = 0;
+
+        Links(int capacity) {
+            from = new int[capacity];
+            to = new int[capacity];
+            there = new long[capacity];
+            back = new long[capacity];
+            listedThere = new boolean[capacity];
+            listedBack = new boolean[capacity];
+        }
+
+        void grow() {
+            int capacity = from.length * 2;
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            there = Arrays.copyOf(there, capacity);
+            back = Arrays.copyOf(back, capacity);
+            listedThere = Arrays.copyOf(listedThere, capacity);
+            listedBack = Arrays.copyOf(listedBack, capacity);
+        }
+    }
+
+    // Link two positions, picking the distances and which ends list it
+    private void addLink(Random random, Links links, int from, int to) {
+        if(links.count == links.from.length) links.grow();
+        int link = links.count++;
+        links.from[link] = from;
+        links.to[link] = to;
+        links.there[link] = randomDistance(random);
+        links.back[link] = random.nextDouble() < asymmetry ? (random.nextBoolean() ? 0 : randomDistance(random)) : links.there[link];
+        links.listedThere[link] = true;
+        links.listedBack[link] = true;
+        if(random.nextDouble() < dropRate) {
+            if(random.nextBoolean()) links.listedThere[link] = false;
+            else links.listedBack[link] = false;
+        }
+    }
+
+    private int addRoute(int at, int toId, long metres) {
+        routeTo[at] = toId;
+        routeMetres[at] = metres;
+        return at + 1;
+    }
+
+    // Between 0.5 and 5km, to the metre like the real data
+    private static long randomDistance(Random random) {
+        return 500 + random.nextInt(4501);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int idAt(int position) {
+        return ids[position];
+    }
+
+    public String nameAt(int position) {
+        return "Interchange " + ids[position];
+    }
+
+    // The position of an ID, or -1 when no location has it
+    public int positionOf(int id) {
+        int position = Arrays.binarySearch(ids, id);
+        return position < 0 ? -1 : position;
+    }
+
+    // The highway a position is on
+    public int highwayOf(int position) {
+        // Every highway has at least one location, so their starts are distinct
+        int h = Arrays.binarySearch(highwayStart, 0, highwayStart.length - 1, position);
+        return h < 0 ? -h - 2 : h;
+    }
+
+    // The routes a position lists are firstRoute(k) to firstRoute(k + 1)
+    public int firstRoute(int position) {
+        return routeStart[position];
+    }
+
+    public int routeToId(int route) {
+        return routeTo[route];
+    }
+
+    // The distance of a route in metres
+    public long routeMetres(int route) {
+        return routeMetres[route];
+    }
+
+    // Set the distance in metres of every route listed between two IDs, both ways, the same as a distance edit in a patch
+    public void setMetres(int fromId, int toId, long metres) {
+        setListedMetres(positionOf(fromId), toId, metres);
+        setListedMetres(positionOf(toId), fromId, metres);
+    }
+    private void setListedMetres(int position, int toId, long metres) {
+        if(position < 0) return;
+        for(int route = routeStart[position]; route < routeStart[position + 1]; route++) {
+            if(routeTo[route] == toId) routeMetres[route] = metres;
+        }
+    }
+
+    // Write the network in the interchanges.json format
+    public void writeJson(Writer writer) throws IOException {
+        StringBuilder line = new StringBuilder(256);
+        writer.write("{\"locations\": {\n");
+        for(int k = 0; k < ids.length; k++) {
+            line.setLength(0);
+            line.append("  \"").append(ids[k]).append("\": {\"name\": \"").append(nameAt(k)).append("\", ");
+            line.append("\"lat\": ").append(lat[k]).append(", \"lng\": ").append(lng[k]).append(", \"routes\": [");
+            for(int route = routeStart[k]; route < routeStart[k + 1]; route++) {
+                if(route > routeStart[k]) line.append(", ");
+                line.append("{\"toId\": ").append(routeTo[route]).append(", \"distance\": ");
+                BatchPricer.appendDecimal(line, routeMetres[route], Metres.KM_DECIMALS);
+                line.append('}');
+            }
+            line.append("]}");
+            if(k < ids.length - 1) line.append(',');
+            line.append('\n');
+            writer.append(line);
+        }
+        writer.write("}}\n");
+    }
+
+    // Write trips in the --batch format: trip id, start and end, by ID or by name
+    // Half of the trips stay on one highway, so linear networks can price them, and unknownRate of them name a location that doesn't exist
+    public void writeTrips(Writer writer, int tripCount, double unknownRate, long seed) throws IOException {
+        Random random = new Random(seed);
+        int size = ids.length;
+        StringBuilder line = new StringBuilder(64);
+        for(int trip = 0; trip < tripCount && size > 0; trip++) {
+            int start = random.nextInt(size);
+            int end;
+            if(random.nextBoolean()) {
+                int h = highwayOf(start);
+                end = highwayStart[h] + random.nextInt(highwayStart[h + 1] - highwayStart[h]);
+            } else {
+                end = random.nextInt(size);
+            }
+
+            line.setLength(0);
+            line.append('t').append(trip).append(',');
+            if(random.nextDouble() < unknownRate) line.append("Nowhere ").append(trip);
+            else appendLocation(line, random, start);
+            line.append(',');
+            appendLocation(line, random, end);
+            line.append('\n');
+            writer.append(line);
+        }
+    }
+    private void appendLocation(StringBuilder line, Random random, int position) {
+        if(random.nextBoolean()) line.append(ids[position]);
+        else line.append(nameAt(position));
+    }
+}
@@ -0,0 +1,199 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.NetworkPatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Several networks resident in one process, each loaded from its own data file and looked up by network id
+// Networks load concurrently on a pool, each with its own loader, so startup takes as long as the slowest file rather than all of them
+// Location names are shared between networks, corridors that meet list the same interchanges, so each name is held once
+// A network that fails to load keeps the ExitStatus and message it failed with, and the others load and answer as normal
+public class NetworkRegistry {
+    // One network, its data file and how loading it went
+    public static class Network {
+        public final String id;
+        public final String dataFilePath;
+        // The loaded network, or null until it loads and if it fails
+        volatile Interchanges interchanges = null;
+        // Okay once loaded, otherwise the status the CLI would exit with
+        volatile CLI.ExitStatus status = null;
+        volatile String failure = null;
+        volatile long loadNanos = 0;
+        // Loads the network and every reload of it, and applies the patches posted to it, so a reload in flight replays them
+        private volatile CLI loader = null;
+
+        Network(String id, String dataFilePath) {
+            this.id = id;
+            this.dataFilePath = dataFilePath;
+        }
+
+        public Interchanges getInterchanges() {
+            return interchanges;
+        }
+
+        public boolean isLoaded() {
+            return interchanges != null;
+        }
+
+        // The exit status code loading finished with, 0 once loaded, -1 while loading
+        public int statusCode() {
+            CLI.ExitStatus status = this.status;
+            return status == null ? -1 : status.ordinal();
+        }
+
+        // Why the network failed to load, or null
+        public String getFailure() {
+            return failure;
+        }
+
+        public long getLoadNanos() {
+            return loadNanos;
+        }
+    }
+
+    // Networks by id, in the order they were added
+    private final Map<String, Network> networks = new LinkedHashMap<String, Network>();
+    // Location names shared by every network loaded through the registry
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+    // The most networks loaded at once
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    // Add a network to be loaded from a data file or snapshot, returning false if the id is already taken
+    public synchronized boolean add(String id, String dataFilePath) {
+        if(networks.containsKey(id)) return false;
+        networks.put(id, new Network(id, dataFilePath));
+        return true;
+    }
+
+    // Load every network that hasn't been loaded yet with the loader options of a CLI, such as its --patch file, returning the number that failed
+    // Failures are kept on each Network rather than thrown, so one bad file never stops the rest
+    public int load(CLI options) throws InterruptedException {
+        List<Network> pending = new ArrayList<Network>();
+        synchronized(this) {
+            for(Network network : networks.values()) if(network.status == null) pending.add(network);
+        }
+        if(pending.isEmpty()) return 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pending.size())), runnable -> {
+            Thread thread = new Thread(runnable, "network-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int failures = 0;
+        try {
+            List<Future<?>> loads = new ArrayList<Future<?>>();
+            for(Network network : pending) loads.add(pool.submit(() -> load(network, options)));
+            for(int i = 0; i < loads.size(); i++) {
+                try {
+                    loads.get(i).get();
+                } catch(ExecutionException eerr) {
+                    // Anything the loader didn't turn into a CLIException
+                    Network network = pending.get(i);
+                    network.failure = String.valueOf(eerr.getCause());
+                    network.status = CLI.ExitStatus.UnexpectedException;
+                }
+                if(!pending.get(i).isLoaded()) failures++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    // Load one network on a pool thread, through a loader of its own as the CLI's loading isn't shared between threads
+    private void load(Network network, CLI options) {
+        long startTime = System.nanoTime();
+        try {
+            reload(network, options);
+        } catch(CLI.CLIException clierr) {
+            // Already kept on the network
+        }
+        network.loadNanos = System.nanoTime() - startTime;
+    }
+
+    // Load a network again from its data file, throwing a CLIException if it can't be loaded
+    // A network that loaded before keeps answering from what it loaded, one that never has keeps the latest failure
+    void reload(Network network, CLI options) {
+        synchronized(network) {
+            if(network.loader == null) {
+                network.loader = new CLI();
+                network.loader.sharedNames = names;
+                network.loader.patchFilePath = options.patchFilePath;
+            }
+            try {
+                network.loader.loadData(network.dataFilePath);
+            } catch(CLI.CLIException clierr) {
+                if(!network.isLoaded()) {
+                    network.failure = clierr.getMessage();
+                    network.status = clierr.status;
+                }
+                throw clierr;
+            }
+            publish(network, network.loader);
+            network.failure = null;
+            network.status = CLI.ExitStatus.Okay;
+        }
+    }
+
+    // Apply a patch to a loaded network through its loader, the same as CLI.applyPatch(), returning false if the network isn't loaded
+    // It doesn't wait for a reload in flight, which replays the patch onto the network it publishes
+    public boolean applyPatch(Network network, NetworkPatch patch) throws NetworkPatch.InvalidPatch {
+        CLI loader = network.loader;
+        if(loader == null || !network.isLoaded()) return false;
+        loader.applyPatch(patch);
+        publish(network, loader);
+        return true;
+    }
+
+    // Answer from the loader's current network, under its lock so a patch and a reload can't publish an older network over a newer one
+    private static void publish(Network network, CLI loader) {
+        synchronized(loader) {
+            network.interchanges = loader.interchanges;
+        }
+    }
+
+    // A reloader for a network, for POST /reload and watching its data file
+    public NetworkReloader reloader(Network network, CLI options) {
+        return new NetworkReloader(options, "network \"" + network.id + "\"", network.dataFilePath, () -> reload(network, options));
+    }
+
+    // A network by id, or null if there is no such network
+    public synchronized Network get(String id) {
+        return networks.get(id);
+    }
+
+    // The loaded network with an id, or null if there is no such network or it failed to load
+    public Interchanges interchanges(String id) {
+        Network network = get(id);
+        return network == null ? null : network.interchanges;
+    }
+
+    public synchronized Collection<Network> networks() {
+        return new ArrayList<Network>(networks.values());
+    }
+
+    public synchronized int size() {
+        return networks.size();
+    }
+
+    // The names every network loaded through the registry shares, for loading another network alongside them
+    public Map<String, String> sharedNames() {
+        return names;
+    }
+
+    // The number of distinct location names held across every network
+    public int sharedNameCount() {
+        return names.size();
+    }
+}
@@ -0,0 +1,105 @@
+package com.katelynslater;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reloads a CLI's network in the background while it keeps serving queries
+// The new network is built off to the side and published in one write, so in-flight queries finish on the old one
+public class NetworkReloader {
+    private final CLI cli;
+    // What is reloaded, for the log
+    private final String name;
+    // The data file to reload, or null for the bundled interchanges.json
+    private final String dataFilePath;
+    // Loads and publishes the network, throwing a CLIException if it can't
+    private final Runnable load;
+
+    // Reloads run one at a time on their own thread
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "network-reloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Thread watcher = null;
+
+    // Counts of finished and failed reloads
+    public final AtomicLong reloadCount = new AtomicLong();
+    public final AtomicLong failureCount = new AtomicLong();
+
+    public NetworkReloader(CLI cli, String dataFilePath) {
+        this(cli, "interchanges", dataFilePath, () -> cli.loadData(dataFilePath));
+    }
+
+    // A reloader that loads through its own function, such as a registry network's, logging through the CLI
+    NetworkReloader(CLI cli, String name, String dataFilePath, Runnable load) {
+        this.cli = cli;
+        this.name = name;
+        this.dataFilePath = dataFilePath;
+        this.load = load;
+    }
+
+    // Start a reload in the background
+    // If the new data can't be loaded, or loading throws anything else, the current network stays in place and the failure is logged
+    public Future<?> reloadAsync() {
+        return executor.submit(() -> {
+            long startTime = System.nanoTime();
+            try {
+                load.run();
+                reloadCount.incrementAndGet();
+                cli.log("Reloaded " + name + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+            } catch(CLI.CLIException clierr) {
+                failureCount.incrementAndGet();
+                System.err.println("Reload failed, keeping the current " + name + ": " + clierr.getMessage());
+            } catch(RuntimeException rerr) {
+                // Anything the loader didn't turn into a CLIException, such as from replaying a patch, would be lost in the ignored Future
+                failureCount.incrementAndGet();
+                System.err.println("Reload failed unexpectedly, keeping the current " + name + ": " + rerr);
+            }
+        });
+    }
+
+    // Watch the data file, reloading whenever it changes
+    public void watch() throws IOException {
+        if(dataFilePath == null) throw new IllegalStateException("The bundled interchanges.json can't change, there is nothing to watch");
+
+        final Path file = Paths.get(dataFilePath).toAbsolutePath();
+        final WatchService watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watcher = new Thread(() -> {
+            try {
+                while(true) {
+                    WatchKey key = watchService.take();
+
+                    // Editors and copies often write a file in several steps, so wait for them to settle
+                    Thread.sleep(200);
+                    boolean changed = false;
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(file.getFileName().equals(event.context())) changed = true;
+                    }
+                    key.reset();
+
+                    if(changed) reloadAsync();
+                }
+            } catch(InterruptedException | ClosedWatchServiceException err) {
+                // Stopped
+            } finally {
+                try {
+                    watchService.close();
+                } catch(IOException ioerr) {}
+            }
+        }, "network-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Stop watching and reloading
+    public void stop() {
+        if(watcher != null) watcher.interrupt();
+        executor.shutdownNow();
+    }
+}
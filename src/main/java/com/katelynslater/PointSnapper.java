@@ -0,0 +1,98 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+
+import java.io.*;
+import java.util.concurrent.ExecutionException;
+
+// Snaps a file of GPS points to their nearest interchanges across all cores
+// Each input row is "point id, latitude, longitude" separated by commas or tabs
+// Results are written as "point id, location id, distance in km", and points with no interchange close enough are written to the rejects
+public class PointSnapper {
+    // The CLI whose network is searched
+    private final CLI cli;
+
+    // Whether results are written in input order, rather than as soon as each chunk is done
+    public boolean ordered = true;
+    // The number of worker threads
+    public int threads = Runtime.getRuntime().availableProcessors();
+    // The number of rows handed to a worker at once
+    public int chunkSize = 8192;
+    // Points further than this from every interchange are rejected
+    public double maxDistanceKm = Double.POSITIVE_INFINITY;
+
+    // Totals for the last run
+    public long snappedCount = 0;
+    public long rejectedCount = 0;
+    public long elapsedNanos = 0;
+
+    public PointSnapper(CLI cli) {
+        this.cli = cli;
+    }
+
+    // Snap every point read from the input, writing the results and rejects as they complete
+    public void run(BufferedReader input, Writer results, Writer rejects) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+
+        // Build the tree before the workers start, rather than have each of them race to build it
+        cli.interchanges.getSpatialIndex();
+
+        ChunkedRunner runner = new ChunkedRunner(ordered, threads, chunkSize);
+        try {
+            runner.run(input, results, rejects, this::snap);
+        } finally {
+            snappedCount = runner.resultCount;
+            rejectedCount = runner.rejectedCount;
+            elapsedNanos = System.nanoTime() - startTime;
+        }
+    }
+
+    // Snap every row in a chunk, this runs on a worker thread
+    // The whole chunk is snapped against one version of the network, even if it is reloaded part way through
+    private void snap(ChunkedRunner.Chunk chunk) {
+        Interchanges interchanges = cli.interchanges;
+        RowSplitter splitter = new RowSplitter(3);
+        String[] fields = splitter.fields;
+        int[] ids = new int[1];
+        double[] distances = new double[1];
+
+        for(int i = 0; i < chunk.rowCount; i++) {
+            String row = chunk.rows[i];
+            long lineNumber = chunk.lineNumber(i);
+
+            int fieldCount = splitter.split(row);
+            if(fieldCount == RowSplitter.SKIP) continue;
+            char delimiter = splitter.delimiter;
+            if(fieldCount != 3) {
+                chunk.reject(lineNumber, row, "Expected 3 fields: point id, latitude and longitude");
+                continue;
+            }
+
+            double lat;
+            double lng;
+            try {
+                lat = Double.parseDouble(fields[1]);
+                lng = Double.parseDouble(fields[2]);
+            } catch(NumberFormatException nferr) {
+                chunk.reject(lineNumber, row, "The latitude and longitude must be numbers");
+                continue;
+            }
+            if(!(lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180)) {
+                chunk.reject(lineNumber, row, "The latitude must be within 90 degrees and the longitude within 180");
+                continue;
+            }
+
+            if(interchanges.findNearestLocationIds(lat, lng, maxDistanceKm, ids, distances) == 0) {
+                chunk.reject(lineNumber, row, "No interchange is close enough");
+                continue;
+            }
+
+            // Write the result using the same delimiter as the row
+            StringBuilder results = chunk.results;
+            results.append(fields[0]).append(delimiter).append(ids[0]).append(delimiter);
+            BatchPricer.appendDecimal(results, Math.round(distances[0] * 1000), 3);
+            results.append('\n');
+            chunk.resultCount++;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkPatch;
+import com.katelynslater.json.JsonReader;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A long running HTTP query service, so the network is loaded once rather than once per lookup
+//
+// GET  /quote?start=<id or name>&end=<id or name>  responds with "distance,cost"
+// POST /quotes with one "start,end" pair per line  responds with one "distance,cost" or "error,<reason>" line per pair
+// GET  /complete?prefix=<prefix>                    responds with up to 10 matching location names, one per line
+// POST /reload                                     reloads the network in the background, when a reloader is set
+// POST /reload?network=<id>                        reloads a network added by --network instead
+// POST /patch with a patch file as the body          applies its edits to the network, see NetworkPatch
+// POST /patch?network=<id>                         applies them to a network added by --network instead
+// Quotes may also give a vehicle class and trip time, as the class and time parameters or the third and fourth fields
+// With networks added by --network, quotes, completions and nearest lookups pick one with the network parameter, otherwise the --data network answers
+public class QueryServer {
+    // The CLI used to resolve locations, and the Interchanges it has loaded
+    private final CLI cli;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Whether each request runs on its own virtual thread
+    public final boolean virtualThreads;
+
+    // Handles POST /reload, or null to disable it
+    public NetworkReloader reloader = null;
+    // Handles POST /reload for each network added by --network, by network id
+    public final Map<String, NetworkReloader> networkReloaders = new ConcurrentHashMap<String, NetworkReloader>();
+
+    public QueryServer(CLI cli, String host, int port) throws IOException {
+        this.cli = cli;
+
+        // Virtual threads are only available from Java 21, fall back to a cached pool before that
+        ExecutorService virtualExecutor = null;
+        try {
+            virtualExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException roerr) {}
+        virtualThreads = virtualExecutor != null;
+        executor = virtualThreads ? virtualExecutor : Executors.newCachedThreadPool();
+
+        // Small responses are written as headers then body, so disable Nagle's algorithm to avoid delayed ACK stalls
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/quote", this::handleQuote);
+        server.createContext("/quotes", this::handleQuotes);
+        server.createContext("/reload", this::handleReload);
+        server.createContext("/complete", this::handleComplete);
+        server.createContext("/nearest", this::handleNearest);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/patch", this::handlePatch);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // The port the server is listening on, useful when started on port 0
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // GET /quote?start=...&end=...
+    private void handleQuote(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            if(!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "Use GET\n");
+                return;
+            }
+
+            // Pull the start, end, and optional vehicle class and time out of the query string
+            String start = null;
+            String end = null;
+            String vehicleClass = null;
+            String time = null;
+            String network = null;
+            String query = exchange.getRequestURI().getRawQuery();
+            if(query != null) {
+                for(String parameter : query.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if(equals < 0) continue;
+                    String key = parameter.substring(0, equals);
+                    String value = URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8).trim();
+                    if(key.equals("start")) start = value;
+                    else if(key.equals("end")) end = value;
+                    else if(key.equals("class")) vehicleClass = value;
+                    else if(key.equals("time")) time = value;
+                    else if(key.equals("network")) network = value;
+                }
+            }
+            if(start == null || end == null) {
+                Metrics.REJECTED.increment();
+                respond(exchange, 400, "Both start and end are required\n");
+                return;
+            }
+
+            StringBuilder response = new StringBuilder(32);
+            int status = quote(network, start, end, vehicleClass, time, response);
+            respond(exchange, status, response.append('\n').toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // POST /quotes
+    private void handleQuotes(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            if(!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Use POST\n");
+                return;
+            }
+
+            // Every pair is quoted on the same network
+            String network = parameter(exchange, "network");
+
+            // Answer each line in order
+            StringBuilder response = new StringBuilder();
+            StringBuilder result = new StringBuilder(32);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.trim().isEmpty()) continue;
+
+                char delimiter = line.indexOf('\t') >= 0 ? '\t' : ',';
+                String[] fields = line.split(delimiter == '\t' ? "\t" : ",", -1);
+                if(fields.length < 2 || fields.length > 4) {
+                    Metrics.REJECTED.increment();
+                    response.append("error,Expected 2 to 4 fields: start, end, vehicle class and time\n");
+                    continue;
+                }
+
+                result.setLength(0);
+                String vehicleClass = fields.length > 2 && !fields[2].trim().isEmpty() ? fields[2].trim() : null;
+                String time = fields.length > 3 && !fields[3].trim().isEmpty() ? fields[3].trim() : null;
+                int status = quote(network, fields[0].trim(), fields[1].trim(), vehicleClass, time, result);
+                if(status != 200) response.append("error,");
+                response.append(result).append('\n');
+            }
+            respond(exchange, 200, response.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // GET /complete?prefix=...
+    private void handleComplete(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            if(!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "Use GET\n");
+                return;
+            }
+
+            String prefix = "";
+            String query = exchange.getRequestURI().getRawQuery();
+            if(query != null) {
+                for(String parameter : query.split("&")) {
+                    if(parameter.startsWith("prefix=")) prefix = URLDecoder.decode(parameter.substring(7), StandardCharsets.UTF_8).trim();
+                }
+            }
+
+            String network = parameter(exchange, "network");
+            Interchanges interchanges = cli.interchangesFor(network);
+            if(interchanges == null) {
+                Metrics.REJECTED.increment();
+                respond(exchange, 404, cli.unknownNetworkMessage(network) + "\n");
+                return;
+            }
+            int[] ids = new int[10];
+            int count = interchanges.completeLocationName(prefix, ids);
+            StringBuilder response = new StringBuilder();
+            for(int i = 0; i < count; i++) response.append(interchanges.getLocationById(ids[i]).name).append('\n');
+            respond(exchange, 200, response.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // GET /nearest?lat=...&lng=...&radius=...&limit=...
+    // Answers "id,name,distance" lines, nearest first, the radius in km defaults to unlimited and the limit to 1
+    private void handleNearest(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            if(!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "Use GET\n");
+                return;
+            }
+
+            double lat = Double.NaN;
+            double lng = Double.NaN;
+            double radius = Double.POSITIVE_INFINITY;
+            int limit = 1;
+            String query = exchange.getRequestURI().getRawQuery();
+            try {
+                if(query != null) {
+                    for(String parameter : query.split("&")) {
+                        int equals = parameter.indexOf('=');
+                        if(equals < 0) continue;
+                        String key = parameter.substring(0, equals);
+                        String value = URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8).trim();
+                        if(key.equals("lat")) lat = Double.parseDouble(value);
+                        else if(key.equals("lng")) lng = Double.parseDouble(value);
+                        else if(key.equals("radius")) radius = Double.parseDouble(value);
+                        else if(key.equals("limit")) limit = Integer.parseInt(value);
+                    }
+                }
+            } catch(NumberFormatException nferr) {
+                lat = Double.NaN;
+            }
+            if(!(lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180) || !(radius >= 0) || limit < 1 || limit > 1000) {
+                Metrics.REJECTED.increment();
+                respond(exchange, 400, "lat and lng are required, with an optional radius in km and a limit of 1 to 1000\n");
+                return;
+            }
+
+            String network = parameter(exchange, "network");
+            Interchanges interchanges = cli.interchangesFor(network);
+            if(interchanges == null) {
+                Metrics.REJECTED.increment();
+                respond(exchange, 404, cli.unknownNetworkMessage(network) + "\n");
+                return;
+            }
+            int[] ids = new int[limit];
+            double[] distances = new double[limit];
+            int count = interchanges.findNearestLocationIds(lat, lng, radius, ids, distances);
+            StringBuilder response = new StringBuilder();
+            for(int i = 0; i < count; i++) {
+                response.append(ids[i]).append(',').append(interchanges.getLocationById(ids[i]).name).append(',');
+                BatchPricer.appendDecimal(response, Math.round(distances[i] * 1000), 3);
+                response.append('\n');
+            }
+            respond(exchange, 200, response.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // GET /stats, the same table --stats prints
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "Use GET\n");
+                return;
+            }
+            respond(exchange, 200, Metrics.report());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // POST /reload
+    private void handleReload(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            String network = parameter(exchange, "network");
+            NetworkReloader reloader = network == null || network.isEmpty() ? this.reloader : networkReloaders.get(network);
+            if(reloader == null) {
+                respond(exchange, 404, network == null || network.isEmpty() ? "Reloading is not enabled\n" : "No network with the id \"" + network + "\" is loaded\n");
+            } else if(!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Use POST\n");
+            } else {
+                // Queries keep being answered from the current network while the new one loads
+                reloader.reloadAsync();
+                respond(exchange, 202, "Reloading\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // POST /patch
+    private void handlePatch(HttpExchange exchange) throws IOException {
+        try {
+            if(rejectMalformedQuery(exchange)) return;
+            if(!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Use POST\n");
+                return;
+            }
+
+            NetworkPatch patch;
+            try {
+                patch = NetworkPatch.read(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            } catch(NetworkPatch.InvalidPatch | JsonReader.MalformedJson | JsonReader.UnexpectedValue err) {
+                respond(exchange, 400, err.getMessage() + "\n");
+                return;
+            }
+
+            // Queries keep being answered while the patch is applied
+            String network = parameter(exchange, "network");
+            try {
+                if(network == null || network.isEmpty()) {
+                    cli.applyPatch(patch);
+                } else {
+                    NetworkRegistry networks = cli.networks;
+                    NetworkRegistry.Network found = networks == null ? null : networks.get(network);
+                    if(found == null || !networks.applyPatch(found, patch)) {
+                        respond(exchange, 404, cli.unknownNetworkMessage(network) + "\n");
+                        return;
+                    }
+                }
+            } catch(NetworkPatch.InvalidPatch iperr) {
+                respond(exchange, 422, iperr.getMessage() + "\n");
+                return;
+            }
+            respond(exchange, 200, "Applied " + patch.size() + " edits\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Append a quote for a start and end, or the reason there is none, returning the HTTP status
+    // The network, vehicle class and time may be null, in which case the CLI's are used
+    // Each quote reads the current network once, so a reload never mixes two versions in one answer
+    private int quote(String network, String start, String end, String vehicleClassName, String time, StringBuilder response) {
+        int status = quoteOrReject(network, start, end, vehicleClassName, time, response);
+        if(status != 200) Metrics.REJECTED.increment();
+        return status;
+    }
+    private int quoteOrReject(String network, String start, String end, String vehicleClassName, String time, StringBuilder response) {
+        Interchanges interchanges = cli.interchangesFor(network);
+        Tariff tariff = cli.tariff;
+        if(interchanges == null) {
+            response.append(cli.unknownNetworkMessage(network));
+            return 404;
+        }
+
+        int vehicleClass = cli.vehicleClass;
+        int minuteOfWeek = cli.tripMinuteOfWeek;
+        try {
+            if(vehicleClassName != null) vehicleClass = cli.findVehicleClass(tariff, vehicleClassName);
+            if(time != null) minuteOfWeek = cli.parseTripTime(time);
+        } catch(CLI.InvalidTripDetailsException itderr) {
+            response.append(itderr.getMessage());
+            return 400;
+        }
+
+        // Repeated quotes are answered before resolving anything
+        QuoteCache cache = cli.quoteCache;
+        QuoteCache.Key key = null;
+        if(cache != null) {
+            key = cache.key(network, interchanges, tariff, start, end, vehicleClass, minuteOfWeek);
+            QuoteCache.Quote cached = cache.get(key);
+            if(cached != null) {
+                response.append(cached.distance).append(',').append(cached.cost);
+                return 200;
+            }
+        }
+
+        int startId = cli.resolveLocationId(interchanges, start);
+        if(startId == Interchanges.UNKNOWN_ID) {
+            response.append(cli.unknownLocationMessage(interchanges, start));
+            return 404;
+        }
+        int endId = cli.resolveLocationId(interchanges, end);
+        if(endId == Interchanges.UNKNOWN_ID) {
+            response.append(cli.unknownLocationMessage(interchanges, end));
+            return 404;
+        }
+
+        long metres = interchanges.distanceMetres(startId, endId);
+        if(metres == Metres.UNREACHABLE) {
+            response.append(Interchanges.noPathMessage(startId, endId));
+            return 422;
+        }
+
+        int distanceStart = response.length();
+        BatchPricer.appendDecimal(response, metres, Metres.KM_DECIMALS);
+        int distanceEnd = response.length();
+        response.append(',');
+        BatchPricer.appendDecimal(response, tariff.priceCentsForMetres(interchanges, startId, endId, metres, vehicleClass, minuteOfWeek), 2);
+        if(key != null) cache.put(key, new QuoteCache.Quote(response.substring(distanceStart, distanceEnd), response.substring(distanceEnd + 1)));
+        return 200;
+    }
+
+    // Respond 400 to a query string with a malformed escape, such as %zz, returning true if it did
+    // Handlers check first, so the parameters they decode afterwards never throw
+    private static boolean rejectMalformedQuery(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query == null) return false;
+        try {
+            URLDecoder.decode(query, StandardCharsets.UTF_8);
+            return false;
+        } catch(IllegalArgumentException iaerr) {
+            Metrics.REJECTED.increment();
+            respond(exchange, 400, "The query string is malformed: " + iaerr.getMessage() + "\n");
+            return true;
+        }
+    }
+
+    // A query string parameter, or null when it isn't given
+    private static String parameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query == null) return null;
+        for(String parameter : query.split("&")) {
+            if(parameter.startsWith(name) && parameter.length() > name.length() && parameter.charAt(name.length()) == '=')
+                return URLDecoder.decode(parameter.substring(name.length() + 1), StandardCharsets.UTF_8).trim();
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
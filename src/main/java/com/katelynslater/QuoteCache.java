@@ -0,0 +1,191 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A bounded cache of formatted quotes, for the commuter trips that make up most of the traffic
+// Quotes are keyed by the network, the start and end exactly as they were asked for, the vehicle class and the minute of the week,
+// so a hit skips resolving the names, checking the IDs, the distance and the pricing, and only successful quotes are kept
+//
+// Hits only read a ConcurrentHashMap and set a flag, inserts and evictions take a lock, and eviction follows the CLOCK policy:
+// the hand sweeps a ring of entries, clearing the flag of each one hit since it last passed and evicting the first that wasn't
+//
+// Each network's quotes belong to a generation: the Interchanges they were worked out on, its patch version, and the tariff
+// The first lookup that sees any of them change drops every quote on that network, so reloads, patches and tariffs never answer stale
+// Hits, misses, evictions and dropped generations are counted in Metrics, so they show in --stats, GET /stats and JMX
+public class QuoteCache {
+    // A cached quote, its distance and cost already formatted
+    public static final class Quote {
+        public final String distance;
+        public final String cost;
+
+        public Quote(String distance, String cost) {
+            this.distance = distance;
+            this.cost = cost;
+        }
+    }
+
+    // What a quote is looked up by, along with the generation it was looked up in
+    public static final class Key {
+        private final String network;
+        private final String start;
+        private final String end;
+        private final int vehicleClass;
+        private final int minuteOfWeek;
+        private final int hash;
+        // Not part of equality, a quote is only kept if its generation is still current when it is added
+        private final Generation generation;
+
+        private Key(String network, String start, String end, int vehicleClass, int minuteOfWeek, Generation generation) {
+            this.network = network;
+            this.start = start;
+            this.end = end;
+            this.vehicleClass = vehicleClass;
+            this.minuteOfWeek = minuteOfWeek;
+            this.generation = generation;
+            this.hash = ((network.hashCode() * 31 + start.hashCode()) * 31 + end.hashCode()) * 31 + vehicleClass * 10079 + minuteOfWeek;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key)) return false;
+            Key key = (Key)other;
+            return hash == key.hash && vehicleClass == key.vehicleClass && minuteOfWeek == key.minuteOfWeek
+                    && start.equals(key.start) && end.equals(key.end) && network.equals(key.network);
+        }
+    }
+
+    // What every quote on a network was worked out from
+    private static final class Generation {
+        final Interchanges interchanges;
+        final long version;
+        final Tariff tariff;
+
+        Generation(Interchanges interchanges, Tariff tariff) {
+            this.interchanges = interchanges;
+            this.version = interchanges.version();
+            this.tariff = tariff;
+        }
+
+        boolean matches(Interchanges interchanges, Tariff tariff) {
+            return this.interchanges == interchanges && this.tariff == tariff && version == interchanges.version();
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final Quote quote;
+        // Set by every hit, and cleared as the hand passes
+        volatile boolean referenced = false;
+
+        Entry(Key key, Quote quote) {
+            this.key = key;
+            this.quote = quote;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<Key, Entry> entries;
+    // The current generation of each network, by network id
+    private final ConcurrentHashMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+    // The CLOCK ring, null where nothing is held, guarded by the lock along with the hand
+    private final Entry[] ring;
+    private int hand = 0;
+    private final Object lock = new Object();
+
+    public QuoteCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        entries = new ConcurrentHashMap<Key, Entry>(this.capacity * 2);
+        ring = new Entry[this.capacity];
+    }
+
+    // The key for a quote, null networks are the CLI's own
+    // If the network or tariff has changed since its quotes were cached, they are all dropped first
+    public Key key(String network, Interchanges interchanges, Tariff tariff, String start, String end, int vehicleClass, int minuteOfWeek) {
+        if(network == null) network = "";
+        Generation generation = generations.get(network);
+        if(generation == null || !generation.matches(interchanges, tariff)) generation = renew(network, interchanges, tariff);
+        return new Key(network, start, end, vehicleClass, minuteOfWeek, generation);
+    }
+
+    // The cached quote for a key, or null
+    public Quote get(Key key) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            Metrics.QUOTE_CACHE_MISSES.increment();
+            return null;
+        }
+        // Only write when it changes, so hot entries don't keep dirtying their cache line
+        if(!entry.referenced) entry.referenced = true;
+        Metrics.QUOTE_CACHE_HITS.increment();
+        return entry.quote;
+    }
+
+    // Add a quote worked out after a miss, unless the network changed while it was being worked out
+    public void put(Key key, Quote quote) {
+        synchronized(lock) {
+            if(generations.get(key.network) != key.generation || entries.containsKey(key)) return;
+
+            // Sweep to the first free slot, or the first entry not hit since the hand last passed it
+            while(ring[hand] != null && ring[hand].referenced) {
+                ring[hand].referenced = false;
+                hand = (hand + 1) % capacity;
+            }
+            if(ring[hand] != null) {
+                entries.remove(ring[hand].key);
+                Metrics.QUOTE_CACHE_EVICTIONS.increment();
+            }
+            Entry entry = new Entry(key, quote);
+            ring[hand] = entry;
+            entries.put(key, entry);
+            hand = (hand + 1) % capacity;
+        }
+    }
+
+    // Start a new generation for a network, dropping every quote cached in the last one
+    private Generation renew(String network, Interchanges interchanges, Tariff tariff) {
+        synchronized(lock) {
+            Generation current = generations.get(network);
+            if(current != null && current.matches(interchanges, tariff)) return current;
+            if(current != null) {
+                for(int slot = 0; slot < capacity; slot++) {
+                    if(ring[slot] != null && ring[slot].key.network.equals(network)) {
+                        entries.remove(ring[slot].key);
+                        ring[slot] = null;
+                    }
+                }
+                Metrics.QUOTE_CACHE_STALE.increment();
+            }
+            Generation generation = new Generation(interchanges, tariff);
+            generations.put(network, generation);
+            return generation;
+        }
+    }
+
+    // Drop every cached quote
+    public void clear() {
+        synchronized(lock) {
+            entries.clear();
+            Arrays.fill(ring, null);
+            generations.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,36 @@
+package com.katelynslater;
+
+// Splits the rows of the batch input files into trimmed fields, for BatchPricer, PointSnapper, TripSessionizer and StatementAggregator
+// Rows are split on tabs if they have any, otherwise commas, and blank rows and comments starting with # are skipped
+// A splitter is reused for every row read on one thread, so its fields are overwritten by the next row
+final class RowSplitter {
+    // Returned by split() for a row to skip
+    static final int SKIP = -1;
+
+    // The fields of the last row split
+    final String[] fields;
+    // The delimiter of the last row split, so results can be written back with the same one
+    char delimiter = ',';
+
+    RowSplitter(int maxFields) {
+        fields = new String[maxFields];
+    }
+
+    // Split a row, returning how many fields it has, 0 if it has more than the splitter holds, or SKIP if it is blank or a comment
+    int split(String row) {
+        if(row.isEmpty() || row.charAt(0) == '#' || row.trim().isEmpty()) return SKIP;
+
+        delimiter = row.indexOf('\t') >= 0 ? '\t' : ',';
+        int start = 0;
+        for(int field = 0; field < fields.length; field++) {
+            int end = row.indexOf(delimiter, start);
+            if(end < 0) {
+                fields[field] = row.substring(start).trim();
+                return field + 1;
+            }
+            fields[field] = row.substring(start, end).trim();
+            start = end + 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,443 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Metres;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Prices a file of trips and rolls them up into monthly statements per account and vehicle class
+// Each input row is "account, start, end, time" separated by commas or tabs, where the account is numeric,
+// start and end are location IDs or names, and the time is written like 2026-10-17T08:30
+// Rows may add a vehicle class as a fifth field, otherwise the CLI's class is used
+//
+// Statements are summed in a primitive hash table sized from memoryBytes up front, so memory use is fixed whatever the input
+// When the table fills it is sorted and spilled to a run file, and once the input ends the runs are merged k ways at a time,
+// k being as many as get a read buffer of at least MIN_MERGE_BUFFER from memoryBytes, and no more than MAX_FAN_IN open files,
+// in as many passes as that takes
+// Inputs with fewer statements than the table holds never touch the disk
+//
+// Statements are written in account, month and class order as "account, month, class, trips, distance, cost"
+// Rows that can't be priced are written to the rejects with a reason
+public class StatementAggregator {
+    // The CLI used to resolve locations, and whose network prices the trips
+    private final CLI cli;
+    private final Writer statements;
+    private final Writer rejects;
+    // Every trip is priced with the same tariff, and its classes are part of the statement key
+    private final Tariff tariff;
+    private final int classCount;
+
+    // The memory the statement table may use, spilling to disk once it is full
+    public long memoryBytes = 64L << 20;
+    // Where run files are spilled, the system temporary directory when null
+    public File spillDirectory = null;
+
+    // Totals for the last run
+    public long tripCount = 0;
+    public long rejectedCount = 0;
+    public long statementCount = 0;
+    public long spilledRuns = 0;
+    // Passes that merged runs into a longer run, rather than into the statements
+    public long mergePasses = 0;
+    public long elapsedNanos = 0;
+
+    // The statement table: entries in insertion order, found through an open addressing table of entry + 1, 0 when empty
+    // Each entry is keyed by account and group, where the group is month * classCount + class, so sorting by both gives statement order
+    private long[] entryAccount;
+    private int[] entryGroup;
+    private long[] entryTrips;
+    private long[] entryMetres;
+    private long[] entryCents;
+    private int[] table;
+    private int entryCount = 0;
+    private int maxEntries;
+
+    // The bytes each entry takes: its key and sums, and the two table slots that keep the table at most half full
+    private static final int BYTES_PER_ENTRY = 8 + 4 + 8 + 8 + 8 + 2 * 4;
+    // Run files are records of account, group, trips, metres and cents
+    private static final int BYTES_PER_RECORD = 8 + 4 + 8 + 8 + 8;
+    // Each run gets at least this much read buffer while merging, which caps how many are merged at once
+    private static final int MIN_MERGE_BUFFER = 8 << 10;
+    // However large the budget, a merge holds at most this many runs open, well inside the usual limit of 1024 open files
+    private static final int MAX_FAN_IN = 128;
+
+    private final List<File> runs = new ArrayList<File>();
+
+    public StatementAggregator(CLI cli, Writer statements, Writer rejects) {
+        this.cli = cli;
+        this.statements = statements;
+        this.rejects = rejects;
+        this.tariff = cli.tariff;
+        this.classCount = Math.max(1, tariff.classCount());
+    }
+
+    // Price every trip read from the input, then write out every statement
+    public void run(BufferedReader input) throws IOException {
+        long startTime = System.nanoTime();
+        RowSplitter splitter = new RowSplitter(5);
+        String[] fields = splitter.fields;
+        long lineNumber = 0;
+        String row;
+        while((row = input.readLine()) != null) {
+            lineNumber++;
+
+            int fieldCount = splitter.split(row);
+            if(fieldCount == RowSplitter.SKIP) continue;
+            if(fieldCount < 4) {
+                reject(lineNumber, "Expected 4 or 5 fields: account, start, end, time and vehicle class", row);
+                continue;
+            }
+
+            long account;
+            LocalDateTime time;
+            int vehicleClass = cli.vehicleClass;
+            try {
+                account = Long.parseLong(fields[0]);
+            } catch(NumberFormatException nferr) {
+                reject(lineNumber, "Accounts must be numeric", row);
+                continue;
+            }
+            try {
+                time = LocalDateTime.parse(fields[3]);
+            } catch(DateTimeParseException dtperr) {
+                reject(lineNumber, "Trip times must be written as YYYY-MM-DDTHH:MM, not \"" + fields[3] + "\"", row);
+                continue;
+            }
+            if(fieldCount > 4 && !fields[4].isEmpty()) {
+                vehicleClass = tariff.classIndex(fields[4]);
+                if(vehicleClass == Tariff.UNKNOWN_CLASS) {
+                    reject(lineNumber, "Unknown vehicle class \"" + fields[4] + "\"", row);
+                    continue;
+                }
+            }
+
+            // Misses are common in real trip files, so they are found without exceptions
+            Interchanges interchanges = cli.interchanges;
+            int startId = cli.resolveLocationId(interchanges, fields[1]);
+            if(startId == Interchanges.UNKNOWN_ID) {
+                reject(lineNumber, cli.unknownLocationMessage(interchanges, fields[1]), row);
+                continue;
+            }
+            int endId = cli.resolveLocationId(interchanges, fields[2]);
+            if(endId == Interchanges.UNKNOWN_ID) {
+                reject(lineNumber, cli.unknownLocationMessage(interchanges, fields[2]), row);
+                continue;
+            }
+            long metres = interchanges.distanceMetres(startId, endId);
+            if(metres == Metres.UNREACHABLE) {
+                reject(lineNumber, Interchanges.noPathMessage(startId, endId), row);
+                continue;
+            }
+
+            long cents = tariff.priceCentsForMetres(interchanges, startId, endId, metres, vehicleClass, Tariff.minuteOfWeek(time));
+            add(account, time.getYear() * 12 + time.getMonthValue() - 1, vehicleClass, metres, cents);
+        }
+        finish();
+        elapsedNanos = System.nanoTime() - startTime;
+    }
+
+    // Add one priced trip to its account's statement for a month, counted as year * 12 + month - 1
+    public void add(long account, int month, int vehicleClass, long metres, long cents) throws IOException {
+        if(table == null) allocate();
+        tripCount++;
+
+        int group = month * classCount + vehicleClass;
+        int mask = table.length - 1;
+        int position = hash(account, group) & mask;
+        int entry;
+        while((entry = table[position]) != 0) {
+            entry--;
+            if(entryAccount[entry] == account && entryGroup[entry] == group) {
+                entryTrips[entry]++;
+                entryMetres[entry] += metres;
+                entryCents[entry] += cents;
+                return;
+            }
+            position = (position + 1) & mask;
+        }
+
+        // A new statement, spilling everything so far first if the table is full
+        if(entryCount == maxEntries) {
+            spill();
+            position = hash(account, group) & mask;
+        }
+        entry = entryCount++;
+        entryAccount[entry] = account;
+        entryGroup[entry] = group;
+        entryTrips[entry] = 1;
+        entryMetres[entry] = metres;
+        entryCents[entry] = cents;
+        table[position] = entry + 1;
+    }
+
+    // Write out every statement, merging any spilled runs, and release the table
+    public void finish() throws IOException {
+        try {
+            if(runs.isEmpty()) {
+                // Everything fit, so it is written straight from the table
+                if(entryCount > 0) {
+                    sortEntries();
+                    for(int entry = 0; entry < entryCount; entry++) {
+                        writeStatement(entryAccount[entry], entryGroup[entry], entryTrips[entry], entryMetres[entry], entryCents[entry]);
+                    }
+                }
+                release();
+            } else {
+                if(entryCount > 0) spill();
+                // The table's memory goes to the merge's read buffers
+                release();
+                merge();
+            }
+        } finally {
+            for(File run : runs) run.delete();
+            runs.clear();
+        }
+        statements.flush();
+        rejects.flush();
+    }
+
+    // Size the table from the memory budget, all at once so memory use doesn't creep up with the input
+    private void allocate() {
+        // The table is a power of two, with room for twice as many slots as entries
+        maxEntries = Integer.highestOneBit((int)Math.max(16, Math.min(1 << 28, memoryBytes / BYTES_PER_ENTRY)));
+        entryAccount = new long[maxEntries];
+        entryGroup = new int[maxEntries];
+        entryTrips = new long[maxEntries];
+        entryMetres = new long[maxEntries];
+        entryCents = new long[maxEntries];
+        table = new int[maxEntries * 2];
+    }
+
+    private void release() {
+        entryAccount = null;
+        entryGroup = null;
+        entryTrips = null;
+        entryMetres = null;
+        entryCents = null;
+        table = null;
+        entryCount = 0;
+    }
+
+    private static int hash(long account, int group) {
+        long h = (account * 0x9E3779B97F4A7C15L + group) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    // Spilling
+
+    // Sort the table into a new run file and empty it
+    private void spill() throws IOException {
+        sortEntries();
+        try(DataOutputStream out = newRun()) {
+            for(int entry = 0; entry < entryCount; entry++) {
+                writeRecord(out, entryAccount[entry], entryGroup[entry], entryTrips[entry], entryMetres[entry], entryCents[entry]);
+            }
+        }
+        spilledRuns++;
+        Arrays.fill(table, 0);
+        entryCount = 0;
+    }
+
+    // Create a run file, kept in runs so it is deleted whatever happens, and open it for writing
+    private DataOutputStream newRun() throws IOException {
+        File run = File.createTempFile("statements", ".run", spillDirectory);
+        run.deleteOnExit();
+        runs.add(run);
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+    }
+
+    private static void writeRecord(DataOutputStream out, long account, int group, long trips, long metres, long cents) throws IOException {
+        out.writeLong(account);
+        out.writeInt(group);
+        out.writeLong(trips);
+        out.writeLong(metres);
+        out.writeLong(cents);
+    }
+
+    // Heapsort the entries by account then group in place, so sorting needs no memory beyond the table
+    private void sortEntries() {
+        for(int i = entryCount / 2 - 1; i >= 0; i--) siftDown(i, entryCount);
+        for(int end = entryCount - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int position, int size) {
+        while(true) {
+            int child = position * 2 + 1;
+            if(child >= size) return;
+            if(child + 1 < size && after(child + 1, child)) child++;
+            if(!after(child, position)) return;
+            swap(child, position);
+            position = child;
+        }
+    }
+
+    // Whether entry a sorts after entry b
+    private boolean after(int a, int b) {
+        if(entryAccount[a] != entryAccount[b]) return entryAccount[a] > entryAccount[b];
+        return entryGroup[a] > entryGroup[b];
+    }
+
+    private void swap(int a, int b) {
+        long account = entryAccount[a];
+        int group = entryGroup[a];
+        long trips = entryTrips[a];
+        long metres = entryMetres[a];
+        long cents = entryCents[a];
+        entryAccount[a] = entryAccount[b];
+        entryGroup[a] = entryGroup[b];
+        entryTrips[a] = entryTrips[b];
+        entryMetres[a] = entryMetres[b];
+        entryCents[a] = entryCents[b];
+        entryAccount[b] = account;
+        entryGroup[b] = group;
+        entryTrips[b] = trips;
+        entryMetres[b] = metres;
+        entryCents[b] = cents;
+    }
+
+    // Merging
+
+    // Merge the runs into the statements, first merging the oldest runs into longer ones until few enough are left for one pass
+    // Opening every run at once would need a file handle and a read buffer each, however many the input spilled
+    private void merge() throws IOException {
+        int fanIn = (int)Math.max(2, Math.min(MAX_FAN_IN, memoryBytes / MIN_MERGE_BUFFER));
+        while(runs.size() > fanIn) {
+            List<File> merging = new ArrayList<File>(runs.subList(0, fanIn));
+            try(DataOutputStream out = newRun()) {
+                mergeRuns(merging, out);
+            }
+            runs.subList(0, fanIn).clear();
+            for(File run : merging) run.delete();
+            mergePasses++;
+        }
+        mergeRuns(runs, null);
+    }
+
+    // Merge runs in one pass, through a min-heap of the record at the head of each run, into a longer run or into the statements when out is null
+    // The same statement can be in several runs, when the table filled between its trips, so equal keys are summed as they come out
+    private void mergeRuns(List<File> runs, DataOutputStream out) throws IOException {
+        int runCount = runs.size();
+        int bufferSize = (int)Math.max(MIN_MERGE_BUFFER, Math.min(1 << 20, memoryBytes / runCount));
+        DataInputStream[] inputs = new DataInputStream[runCount];
+        long[] remaining = new long[runCount];
+        long[] headAccount = new long[runCount];
+        int[] headGroup = new int[runCount];
+        long[] headTrips = new long[runCount];
+        long[] headMetres = new long[runCount];
+        long[] headCents = new long[runCount];
+        int[] heap = new int[runCount];
+        int heapSize = 0;
+
+        try {
+            for(int run = 0; run < runCount; run++) {
+                File file = runs.get(run);
+                remaining[run] = file.length() / BYTES_PER_RECORD;
+                inputs[run] = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+                if(remaining[run] == 0) continue;
+                readHead(inputs[run], run, remaining, headAccount, headGroup, headTrips, headMetres, headCents);
+                heap[heapSize] = run;
+                siftUp(heap, heapSize++, headAccount, headGroup);
+            }
+
+            while(heapSize > 0) {
+                // Take the smallest key, and sum in every run that has the same one
+                int run = heap[0];
+                long account = headAccount[run];
+                int group = headGroup[run];
+                long trips = 0;
+                long metres = 0;
+                long cents = 0;
+                while(heapSize > 0 && headAccount[heap[0]] == account && headGroup[heap[0]] == group) {
+                    run = heap[0];
+                    trips += headTrips[run];
+                    metres += headMetres[run];
+                    cents += headCents[run];
+                    if(remaining[run] > 0) {
+                        readHead(inputs[run], run, remaining, headAccount, headGroup, headTrips, headMetres, headCents);
+                    } else {
+                        heap[0] = heap[--heapSize];
+                    }
+                    siftDownHeap(heap, heapSize, headAccount, headGroup);
+                }
+                if(out == null) writeStatement(account, group, trips, metres, cents);
+                else writeRecord(out, account, group, trips, metres, cents);
+            }
+        } finally {
+            for(DataInputStream input : inputs) if(input != null) input.close();
+        }
+    }
+
+    private static void readHead(DataInputStream input, int run, long[] remaining, long[] headAccount, int[] headGroup, long[] headTrips, long[] headMetres, long[] headCents) throws IOException {
+        headAccount[run] = input.readLong();
+        headGroup[run] = input.readInt();
+        headTrips[run] = input.readLong();
+        headMetres[run] = input.readLong();
+        headCents[run] = input.readLong();
+        remaining[run]--;
+    }
+
+    private static boolean before(int a, int b, long[] headAccount, int[] headGroup) {
+        if(headAccount[a] != headAccount[b]) return headAccount[a] < headAccount[b];
+        return headGroup[a] < headGroup[b];
+    }
+
+    private static void siftUp(int[] heap, int position, long[] headAccount, int[] headGroup) {
+        int run = heap[position];
+        while(position > 0) {
+            int up = (position - 1) >>> 1;
+            if(!before(run, heap[up], headAccount, headGroup)) break;
+            heap[position] = heap[up];
+            position = up;
+        }
+        heap[position] = run;
+    }
+
+    private static void siftDownHeap(int[] heap, int size, long[] headAccount, int[] headGroup) {
+        if(size == 0) return;
+        int run = heap[0];
+        int position = 0;
+        while(true) {
+            int child = position * 2 + 1;
+            if(child >= size) break;
+            if(child + 1 < size && before(heap[child + 1], heap[child], headAccount, headGroup)) child++;
+            if(!before(heap[child], run, headAccount, headGroup)) break;
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = run;
+    }
+
+    // Output
+
+    private void writeStatement(long account, int group, long trips, long metres, long cents) throws IOException {
+        int month = group / classCount;
+        int year = month / 12;
+        int monthOfYear = month % 12 + 1;
+        StringBuilder line = new StringBuilder(64);
+        line.append(account).append(',').append(year).append('-');
+        if(monthOfYear < 10) line.append('0');
+        line.append(monthOfYear).append(',').append(tariff.className(group % classCount)).append(',').append(trips).append(',');
+        BatchPricer.appendDecimal(line, metres, Metres.KM_DECIMALS);
+        line.append(',');
+        BatchPricer.appendDecimal(line, cents, 2);
+        line.append('\n');
+        statements.write(line.toString());
+        statementCount++;
+    }
+
+    private void reject(long lineNumber, String reason, String row) throws IOException {
+        rejects.write(lineNumber + "\t" + reason + "\t" + row + "\n");
+        rejectedCount++;
+        Metrics.REJECTED.increment();
+    }
+}
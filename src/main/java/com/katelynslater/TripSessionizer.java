@@ -0,0 +1,471 @@
+package com.katelynslater;
+
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Metres;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+// Groups a stream of gantry reads into trips, pricing each trip as soon as it closes
+// Each input row is "vehicle id, interchange, timestamp" separated by commas or tabs, where the vehicle id is numeric,
+// the interchange is a location ID or name, and the timestamp is epoch milliseconds or an ISO date and time
+//
+// Reads may arrive out of order by up to the reorder window, they are held back and released in timestamp order
+// Reads later than that are rejected, so the buffer never holds more than the window's worth of reads
+// A vehicle's trip closes when it has no reads for longer than the inactivity timeout, or when the input ends
+// Open trips live in primitive arrays keyed by vehicle id, and expire through a timer wheel, so closing them costs nothing per read
+// When the number of open trips reaches its cap, the trip closest to expiring is closed early, so memory stays bounded
+//
+// Trips are written as "vehicle id, start id, end id, start time, end time, reads, distance, cost"
+// Reads and trips that can't be used are written to the rejects with a reason
+public class TripSessionizer {
+    // The CLI used to resolve locations, and whose network, tariff and vehicle class price the trips
+    private final CLI cli;
+    private final Writer trips;
+    private final Writer rejects;
+
+    // How long a vehicle can go without a read before its trip closes
+    private final long timeoutMillis;
+    // How far out of order reads may arrive
+    private final long windowMillis;
+    // The most trips kept open at once
+    public int maxOpenTrips = 4 << 20;
+    // The time zone tariff time bands are matched in
+    public ZoneId zone = ZoneId.systemDefault();
+
+    // Totals so far
+    public long readCount = 0;
+    public long lateCount = 0;
+    public long tripCount = 0;
+    public long rejectedCount = 0;
+
+    // Reads held back for reordering, a binary min-heap by timestamp then arrival order
+    private long[] heapTime = new long[1024];
+    private long[] heapSequence = new long[1024];
+    private long[] heapVehicle = new long[1024];
+    private int[] heapLocation = new int[1024];
+    private int heapSize = 0;
+    private long sequence = 0;
+    // The latest timestamp seen, and the latest released, reads before it are late
+    private long latestSeen = Long.MIN_VALUE;
+    private long released = Long.MIN_VALUE;
+
+    // Open trips, in slots reused through a free list
+    private long[] slotVehicle = new long[1024];
+    private int[] slotFirstLocation = new int[1024];
+    private int[] slotLastLocation = new int[1024];
+    private long[] slotFirstTime = new long[1024];
+    private long[] slotLastTime = new long[1024];
+    private int[] slotReads = new int[1024];
+    // Links within a timer wheel bucket, or within the free list
+    private int[] slotNext = new int[1024];
+    private int[] slotPrev = new int[1024];
+    private int[] slotBucket = new int[1024];
+    private int freeSlot = -1;
+    private int slotCount = 0;
+    private int openTrips = 0;
+
+    // Open addressing from vehicle id to slot + 1, 0 when empty
+    private long[] tableVehicle = new long[2048];
+    private int[] tableSlot = new int[2048];
+
+    // Timer wheel, each bucket is a list of the trips expiring within one tick
+    // The wheel spans more than the timeout, so a trip never shares a bucket with one a whole turn later
+    private final long tickMillis;
+    private final int[] wheel;
+    private final int wheelMask;
+    // The last tick whose bucket was expired
+    private long currentTick = Long.MIN_VALUE;
+
+    public TripSessionizer(CLI cli, Writer trips, Writer rejects, long timeoutMillis, long windowMillis) {
+        this.cli = cli;
+        this.trips = trips;
+        this.rejects = rejects;
+        this.timeoutMillis = Math.max(0, timeoutMillis);
+        this.windowMillis = Math.max(0, windowMillis);
+
+        // 64 ticks per timeout, with room for the tick being expired and the one a read lands in
+        tickMillis = Math.max(1, this.timeoutMillis / 64);
+        int buckets = Integer.highestOneBit((int)Math.min(1 << 20, this.timeoutMillis / tickMillis + 3) - 1) << 1;
+        wheel = new int[buckets];
+        Arrays.fill(wheel, -1);
+        wheelMask = buckets - 1;
+    }
+
+    // The number of trips currently open
+    public int openTrips() {
+        return openTrips;
+    }
+
+    // The number of reads held back for reordering
+    public int bufferedReads() {
+        return heapSize;
+    }
+
+    // Read every row from the input, then close every open trip
+    public void run(BufferedReader input) throws IOException {
+        RowSplitter splitter = new RowSplitter(3);
+        String[] fields = splitter.fields;
+        long lineNumber = 0;
+        String row;
+        while((row = input.readLine()) != null) {
+            lineNumber++;
+
+            int fieldCount = splitter.split(row);
+            if(fieldCount == RowSplitter.SKIP) continue;
+            if(fieldCount != 3) {
+                reject(lineNumber, "Expected 3 fields: vehicle id, interchange and timestamp", row);
+                continue;
+            }
+
+            long vehicle;
+            long timestamp;
+            try {
+                vehicle = Long.parseLong(fields[0]);
+            } catch(NumberFormatException nferr) {
+                reject(lineNumber, "Vehicle ids must be numeric", row);
+                continue;
+            }
+            try {
+                timestamp = parseTimestamp(fields[2]);
+            } catch(DateTimeParseException | NumberFormatException err) {
+                reject(lineNumber, "Timestamps must be epoch milliseconds or an ISO date and time", row);
+                continue;
+            }
+
+            Interchanges interchanges = cli.interchanges;
+            int location = cli.resolveLocationId(interchanges, fields[1]);
+            if(location == Interchanges.UNKNOWN_ID) {
+                reject(lineNumber, cli.unknownLocationMessage(interchanges, fields[1]), row);
+                continue;
+            }
+
+            if(!accept(vehicle, location, timestamp)) reject(lineNumber, "Read arrived more than the reorder window late", row);
+        }
+        finish();
+    }
+
+    // Add one read, returning false if it arrived too late to be used
+    public boolean accept(long vehicle, int location, long timestamp) throws IOException {
+        readCount++;
+        if(timestamp < released) {
+            lateCount++;
+            return false;
+        }
+
+        push(timestamp, vehicle, location);
+        if(timestamp > latestSeen) latestSeen = timestamp;
+
+        // Release everything the window has passed
+        while(heapSize > 0 && heapTime[0] <= latestSeen - windowMillis) releaseFirst();
+        return true;
+    }
+
+    // Release every held read and close every open trip, as at the end of the input
+    public void finish() throws IOException {
+        while(heapSize > 0) releaseFirst();
+        for(int bucket = 0; bucket < wheel.length; bucket++) {
+            while(wheel[bucket] != -1) close(wheel[bucket]);
+        }
+        trips.flush();
+        rejects.flush();
+    }
+
+    // Parse epoch milliseconds, an ISO instant, or an ISO local date and time in the zone
+    private long parseTimestamp(String timestamp) {
+        if(timestamp.indexOf('T') < 0) return Long.parseLong(timestamp);
+        char last = timestamp.charAt(timestamp.length() - 1);
+        if(last == 'Z' || timestamp.lastIndexOf('+') > timestamp.indexOf('T') || timestamp.lastIndexOf('-') > timestamp.indexOf('T'))
+            return Instant.parse(timestamp).toEpochMilli();
+        return LocalDateTime.parse(timestamp).atZone(zone).toInstant().toEpochMilli();
+    }
+
+    // Apply the earliest held read to its vehicle's trip
+    private void releaseFirst() throws IOException {
+        long timestamp = heapTime[0];
+        long vehicle = heapVehicle[0];
+        int location = heapLocation[0];
+        pop();
+        released = timestamp;
+
+        // Close every trip that has timed out by now
+        advance(timestamp);
+
+        int slot = find(vehicle);
+        if(slot != -1 && timestamp - slotLastTime[slot] > timeoutMillis) {
+            // Its timer may not have fired yet, within the same tick
+            close(slot);
+            slot = -1;
+        }
+
+        if(slot == -1) {
+            // Make room by closing the trip closest to expiring
+            if(openTrips >= maxOpenTrips) closeEarliest();
+            slot = open(vehicle);
+            slotFirstLocation[slot] = location;
+            slotFirstTime[slot] = timestamp;
+            slotReads[slot] = 0;
+        } else {
+            unlink(slot);
+        }
+        slotLastLocation[slot] = location;
+        slotLastTime[slot] = timestamp;
+        slotReads[slot]++;
+        link(slot, (timestamp + timeoutMillis) / tickMillis);
+    }
+
+    // Expire every bucket before the tick the time falls in
+    private void advance(long time) throws IOException {
+        long target = time / tickMillis - 1;
+        if(currentTick == Long.MIN_VALUE) currentTick = target;
+        if(target <= currentTick) return;
+
+        // Once a whole turn has passed every bucket is due, so there's no need to go round more than once
+        long first = Math.max(currentTick + 1, target - wheelMask);
+        for(long tick = first; tick <= target; tick++) {
+            int bucket = (int)(tick & wheelMask);
+            while(wheel[bucket] != -1) close(wheel[bucket]);
+        }
+        currentTick = target;
+    }
+
+    // Close the open trip that expires first
+    private void closeEarliest() throws IOException {
+        for(int i = 0; i <= wheelMask; i++) {
+            int bucket = (int)((currentTick + 1 + i) & wheelMask);
+            if(wheel[bucket] != -1) {
+                close(wheel[bucket]);
+                return;
+            }
+        }
+    }
+
+    // Close a trip, writing it out, and free its slot
+    private void close(int slot) throws IOException {
+        unlink(slot);
+        remove(slotVehicle[slot]);
+        openTrips--;
+
+        long vehicle = slotVehicle[slot];
+        int start = slotFirstLocation[slot];
+        int end = slotLastLocation[slot];
+        long startTime = slotFirstTime[slot];
+        long endTime = slotLastTime[slot];
+        int reads = slotReads[slot];
+
+        slotNext[slot] = freeSlot;
+        freeSlot = slot;
+
+        // Price the trip against the current network
+        Interchanges interchanges = cli.interchanges;
+        Tariff tariff = cli.tariff;
+        if(start == end) {
+            rejectTrip(vehicle, startTime, "Trip started and ended at the same interchange");
+            return;
+        }
+        long metres = interchanges.distanceMetres(start, end);
+        if(metres == Metres.UNREACHABLE) {
+            rejectTrip(vehicle, startTime, Interchanges.noPathMessage(start, end));
+            return;
+        }
+        int minuteOfWeek = Tariff.minuteOfWeek(LocalDateTime.ofInstant(Instant.ofEpochMilli(startTime), zone));
+        long cents = tariff.priceCentsForMetres(interchanges, start, end, metres, cli.vehicleClass, minuteOfWeek);
+
+        StringBuilder line = new StringBuilder(80);
+        line.append(vehicle).append(',').append(start).append(',').append(end).append(',');
+        line.append(startTime).append(',').append(endTime).append(',').append(reads).append(',');
+        BatchPricer.appendDecimal(line, metres, Metres.KM_DECIMALS);
+        line.append(',');
+        BatchPricer.appendDecimal(line, cents, 2);
+        line.append('\n');
+        trips.write(line.toString());
+        tripCount++;
+    }
+
+    private void reject(long lineNumber, String reason, String row) throws IOException {
+        rejects.write(lineNumber + "\t" + reason + "\t" + row + "\n");
+        rejectedCount++;
+        Metrics.REJECTED.increment();
+    }
+
+    private void rejectTrip(long vehicle, long startTime, String reason) throws IOException {
+        rejects.write("trip\t" + reason + "\t" + vehicle + "," + startTime + "\n");
+        rejectedCount++;
+        Metrics.REJECTED.increment();
+    }
+
+    // Reorder heap
+
+    private void push(long time, long vehicle, int location) {
+        if(heapSize == heapTime.length) {
+            int capacity = heapSize * 2;
+            heapTime = Arrays.copyOf(heapTime, capacity);
+            heapSequence = Arrays.copyOf(heapSequence, capacity);
+            heapVehicle = Arrays.copyOf(heapVehicle, capacity);
+            heapLocation = Arrays.copyOf(heapLocation, capacity);
+        }
+        long order = sequence++;
+        int position = heapSize++;
+        while(position > 0) {
+            int up = (position - 1) >>> 1;
+            if(heapTime[up] < time || (heapTime[up] == time && heapSequence[up] < order)) break;
+            move(up, position);
+            position = up;
+        }
+        heapTime[position] = time;
+        heapSequence[position] = order;
+        heapVehicle[position] = vehicle;
+        heapLocation[position] = location;
+    }
+
+    private void pop() {
+        int last = --heapSize;
+        long time = heapTime[last];
+        long order = heapSequence[last];
+        long vehicle = heapVehicle[last];
+        int location = heapLocation[last];
+        int position = 0;
+        while(true) {
+            int child = position * 2 + 1;
+            if(child >= heapSize) break;
+            if(child + 1 < heapSize && (heapTime[child + 1] < heapTime[child] || (heapTime[child + 1] == heapTime[child] && heapSequence[child + 1] < heapSequence[child]))) child++;
+            if(heapTime[child] > time || (heapTime[child] == time && heapSequence[child] > order)) break;
+            move(child, position);
+            position = child;
+        }
+        heapTime[position] = time;
+        heapSequence[position] = order;
+        heapVehicle[position] = vehicle;
+        heapLocation[position] = location;
+    }
+
+    private void move(int from, int to) {
+        heapTime[to] = heapTime[from];
+        heapSequence[to] = heapSequence[from];
+        heapVehicle[to] = heapVehicle[from];
+        heapLocation[to] = heapLocation[from];
+    }
+
+    // Open trip slots and the vehicle table
+
+    // Take a free slot for a vehicle and add it to the table
+    private int open(long vehicle) {
+        int slot;
+        if(freeSlot != -1) {
+            slot = freeSlot;
+            freeSlot = slotNext[slot];
+        } else {
+            if(slotCount == slotVehicle.length) growSlots();
+            slot = slotCount++;
+        }
+        slotVehicle[slot] = vehicle;
+        openTrips++;
+
+        // Keep the table at most half full
+        if(openTrips * 2 > tableVehicle.length) growTable();
+        insert(vehicle, slot);
+        return slot;
+    }
+
+    private void growSlots() {
+        int capacity = slotVehicle.length * 2;
+        slotVehicle = Arrays.copyOf(slotVehicle, capacity);
+        slotFirstLocation = Arrays.copyOf(slotFirstLocation, capacity);
+        slotLastLocation = Arrays.copyOf(slotLastLocation, capacity);
+        slotFirstTime = Arrays.copyOf(slotFirstTime, capacity);
+        slotLastTime = Arrays.copyOf(slotLastTime, capacity);
+        slotReads = Arrays.copyOf(slotReads, capacity);
+        slotNext = Arrays.copyOf(slotNext, capacity);
+        slotPrev = Arrays.copyOf(slotPrev, capacity);
+        slotBucket = Arrays.copyOf(slotBucket, capacity);
+    }
+
+    private void growTable() {
+        long[] oldVehicle = tableVehicle;
+        int[] oldSlot = tableSlot;
+        tableVehicle = new long[oldVehicle.length * 2];
+        tableSlot = new int[oldSlot.length * 2];
+        for(int i = 0; i < oldSlot.length; i++) {
+            if(oldSlot[i] != 0) insert(oldVehicle[i], oldSlot[i] - 1);
+        }
+    }
+
+    private void insert(long vehicle, int slot) {
+        int mask = tableSlot.length - 1;
+        int position = hash(vehicle) & mask;
+        while(tableSlot[position] != 0) position = (position + 1) & mask;
+        tableVehicle[position] = vehicle;
+        tableSlot[position] = slot + 1;
+    }
+
+    // The open slot for a vehicle, or -1
+    private int find(long vehicle) {
+        int mask = tableSlot.length - 1;
+        int position = hash(vehicle) & mask;
+        int slot;
+        while((slot = tableSlot[position]) != 0) {
+            if(tableVehicle[position] == vehicle) return slot - 1;
+            position = (position + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Remove a vehicle from the table, shifting back any entries that probed past it
+    private void remove(long vehicle) {
+        int mask = tableSlot.length - 1;
+        int position = hash(vehicle) & mask;
+        while(tableVehicle[position] != vehicle || tableSlot[position] == 0) {
+            if(tableSlot[position] == 0) return;
+            position = (position + 1) & mask;
+        }
+        tableSlot[position] = 0;
+        int next = (position + 1) & mask;
+        while(tableSlot[next] != 0) {
+            int home = hash(tableVehicle[next]) & mask;
+            // Move the entry back if the gap lies between its home and where it is now
+            if(((next - home) & mask) >= ((next - position) & mask)) {
+                tableVehicle[position] = tableVehicle[next];
+                tableSlot[position] = tableSlot[next];
+                tableSlot[next] = 0;
+                position = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private static int hash(long vehicle) {
+        long h = vehicle * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    // Timer wheel
+
+    private void link(int slot, long tick) {
+        int bucket = (int)(tick & wheelMask);
+        int head = wheel[bucket];
+        slotBucket[slot] = bucket;
+        slotPrev[slot] = -1;
+        slotNext[slot] = head;
+        if(head != -1) slotPrev[head] = slot;
+        wheel[bucket] = slot;
+    }
+
+    private void unlink(int slot) {
+        int bucket = slotBucket[slot];
+        if(bucket == -1) return;
+        int prev = slotPrev[slot];
+        int next = slotNext[slot];
+        if(prev != -1) slotNext[prev] = next;
+        else wheel[bucket] = next;
+        if(next != -1) slotPrev[next] = prev;
+        slotBucket[slot] = -1;
+    }
+}
@@ -0,0 +1,212 @@
+package com.katelynslater.data;
+
+import java.util.*;
+
+// A NetworkStore held in parallel primitive arrays on the heap
+public class ArrayNetworkStore implements NetworkStore {
+    private final int size;
+    private final IdIndex idIndex;
+
+    private final int[] ids;
+    private final String[] names;
+    private final int[] next;
+    private final long[] nextMetres;
+    private final int[] prev;
+    private final long[] prevMetres;
+    private final int[] segments;
+    private final long[] cumulative;
+    private final long[] cumulativeDown;
+    private final double[] lat;
+    private final double[] lng;
+
+    private ArrayNetworkStore(int size, int[] ids, String[] names, int[] next, long[] nextMetres, int[] prev, long[] prevMetres, int[] segments, long[] cumulative, long[] cumulativeDown, double[] lat, double[] lng) {
+        this.size = size;
+        this.ids = ids;
+        this.names = names;
+        this.next = next;
+        this.nextMetres = nextMetres;
+        this.prev = prev;
+        this.prevMetres = prevMetres;
+        this.segments = segments;
+        this.cumulative = cumulative;
+        this.cumulativeDown = cumulativeDown;
+        this.lat = lat;
+        this.lng = lng;
+        this.idIndex = new IdIndex(ids, size);
+    }
+
+    // Build the store from a list of Locations indexed by ID, as kept by Interchanges
+    // Routes must already be connected, so that every remaining route points at an existing Location
+    public static ArrayNetworkStore build(List<Location> locations) {
+        // Count the Locations, skipping the padding
+        int size = 0;
+        for(Location location : locations) {
+            if(location != null) size++;
+        }
+
+        int[] ids = new int[size];
+        String[] names = new String[size];
+        int[] next = new int[size];
+        long[] nextMetres = new long[size];
+        int[] prev = new int[size];
+        long[] prevMetres = new long[size];
+        int[] segments = new int[size];
+        long[] cumulative = new long[size];
+        long[] cumulativeDown = new long[size];
+        double[] lat = new double[size];
+        double[] lng = new double[size];
+
+        // Assign dense indexes in ascending ID order
+        int index = 0;
+        for(Location location : locations) {
+            if(location == null) continue;
+            ids[index] = location.id;
+            names[index] = location.name;
+            lat[index] = location.lat;
+            lng[index] = location.lng;
+            index++;
+        }
+        ArrayNetworkStore store = new ArrayNetworkStore(size, ids, names, next, nextMetres, prev, prevMetres, segments, cumulative, cumulativeDown, lat, lng);
+
+        // Resolve the routes to dense indexes
+        index = 0;
+        for(Location location : locations) {
+            if(location == null) continue;
+
+            Route nextRoute = location.nextRoute;
+            next[index] = nextRoute == null ? MISSING : store.indexOf(nextRoute.toId);
+            nextMetres[index] = nextRoute == null ? 0 : nextRoute.metres;
+
+            Route prevRoute = location.prevRoute;
+            prev[index] = prevRoute == null ? MISSING : store.indexOf(prevRoute.toId);
+            prevMetres[index] = prevRoute == null ? 0 : prevRoute.metres;
+
+            index++;
+        }
+
+        // Build the cumulative distance index by walking each chain of next routes once, in whole metres so the sums are exact
+        // Routes may list a different distance back, so the way down is summed alongside
+        Arrays.fill(segments, MISSING);
+        int segmentCount = 0;
+        for(int i = 0; i < size; i++) {
+            // A location no earlier route reached starts a new segment
+            if(segments[i] == MISSING) {
+                segments[i] = segmentCount++;
+                cumulative[i] = 0;
+                cumulativeDown[i] = 0;
+            }
+
+            // Carry the segment and distance forward to the next location
+            // Next routes from the file always point at a higher ID, so it will be visited later in this loop
+            int to = next[i];
+            // If another route already reached the destination, or this one heads down the IDs, treat it as a break in the chain
+            // RoadGraph.build() finds the routes left out and routes over them instead
+            if(to <= i || segments[to] != MISSING) continue;
+            segments[to] = segments[i];
+            cumulative[to] = cumulative[i] + nextMetres[i];
+            cumulativeDown[to] = cumulativeDown[i] + NetworkStore.downMetres(store, i, to);
+        }
+
+        return store;
+    }
+
+    // Wrap arrays that already hold a compiled network, such as the generated BundledNetwork, without copying them
+    static ArrayNetworkStore wrap(int[] ids, String[] names, int[] next, long[] nextMetres, int[] prev, long[] prevMetres, int[] segments, long[] cumulative, long[] cumulativeDown, double[] lat, double[] lng) {
+        return new ArrayNetworkStore(ids.length, ids, names, next, nextMetres, prev, prevMetres, segments, cumulative, cumulativeDown, lat, lng);
+    }
+
+    // Copy any other store onto the heap
+    public static ArrayNetworkStore copyOf(NetworkStore source) {
+        int size = source.size();
+        int[] ids = new int[size];
+        String[] names = new String[size];
+        int[] next = new int[size];
+        long[] nextMetres = new long[size];
+        int[] prev = new int[size];
+        long[] prevMetres = new long[size];
+        int[] segments = new int[size];
+        long[] cumulative = new long[size];
+        long[] cumulativeDown = new long[size];
+        double[] lat = new double[size];
+        double[] lng = new double[size];
+        for(int i = 0; i < size; i++) {
+            ids[i] = source.idAt(i);
+            names[i] = source.nameAt(i);
+            next[i] = source.nextAt(i);
+            nextMetres[i] = source.nextMetresAt(i);
+            prev[i] = source.prevAt(i);
+            prevMetres[i] = source.prevMetresAt(i);
+            segments[i] = source.segmentAt(i);
+            cumulative[i] = source.cumulativeMetresAt(i);
+            cumulativeDown[i] = source.cumulativeDownMetresAt(i);
+            lat[i] = source.latAt(i);
+            lng[i] = source.lngAt(i);
+        }
+        return new ArrayNetworkStore(size, ids, names, next, nextMetres, prev, prevMetres, segments, cumulative, cumulativeDown, lat, lng);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(int id) {
+        return idIndex.indexOf(id);
+    }
+
+    public int idAt(int index) {
+        return ids[index];
+    }
+
+    public String nameAt(int index) {
+        return names[index];
+    }
+
+    public int nextAt(int index) {
+        return next[index];
+    }
+
+    public long nextMetresAt(int index) {
+        return nextMetres[index];
+    }
+
+    public int prevAt(int index) {
+        return prev[index];
+    }
+
+    public long prevMetresAt(int index) {
+        return prevMetres[index];
+    }
+
+    public int segmentAt(int index) {
+        return segments[index];
+    }
+
+    public long cumulativeMetresAt(int index) {
+        return cumulative[index];
+    }
+
+    public long cumulativeDownMetresAt(int index) {
+        return cumulativeDown[index];
+    }
+
+    public double latAt(int index) {
+        return lat[index];
+    }
+
+    public double lngAt(int index) {
+        return lng[index];
+    }
+
+    public long footprintBytes() {
+        // 4 int arrays, 4 long and 2 double arrays and the name reference array, each with a 16 byte array header
+        long bytes = 11 * 16L + size * (4 * 4L + 6 * 8L + 4L);
+        // The name Strings themselves
+        for(int i = 0; i < size; i++) bytes += stringBytes(names[i]);
+        return bytes + idIndex.footprintBytes();
+    }
+
+    // Approximate size of a compact (Latin-1) String and its backing byte[]
+    static long stringBytes(String s) {
+        return 24 + ((16 + s.length() + 7) & ~7L);
+    }
+}
@@ -0,0 +1,184 @@
+package com.katelynslater.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+// A NetworkStore held in a single ByteBuffer, which may be off-heap (direct) or memory-mapped
+// Every accessor reads straight from the buffer, nothing is deserialized up front
+//
+// Layout (little endian, longs and doubles 8-byte aligned):
+//   int count, int nameBytesLength
+//   long[count] cumulative metres, long[count] cumulative metres down, long[count] next metres, long[count] previous metres, double[count] lat, double[count] lng
+//   int[count] ids (ascending), int[count] next, int[count] prev, int[count] segments
+//   int[count + 1] nameOffsets, byte[nameBytesLength] UTF-8 names
+public class BufferNetworkStore implements NetworkStore {
+    private static final int HEADER_BYTES = 8;
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    // Section offsets within the buffer
+    private final int cumulativeOffset;
+    private final int cumulativeDownOffset;
+    private final int nextDistanceOffset;
+    private final int prevDistanceOffset;
+    private final int latOffset;
+    private final int lngOffset;
+    private final int idsOffset;
+    private final int nextOffset;
+    private final int prevOffset;
+    private final int segmentsOffset;
+    private final int nameOffsetsOffset;
+    private final int nameBytesOffset;
+
+    // Wrap a buffer holding a network in the layout above, starting at its position
+    public BufferNetworkStore(ByteBuffer source) {
+        buffer = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        size = buffer.getInt(0);
+
+        cumulativeOffset = HEADER_BYTES;
+        cumulativeDownOffset = cumulativeOffset + 8 * size;
+        nextDistanceOffset = cumulativeDownOffset + 8 * size;
+        prevDistanceOffset = nextDistanceOffset + 8 * size;
+        latOffset = prevDistanceOffset + 8 * size;
+        lngOffset = latOffset + 8 * size;
+        idsOffset = lngOffset + 8 * size;
+        nextOffset = idsOffset + 4 * size;
+        prevOffset = nextOffset + 4 * size;
+        segmentsOffset = prevOffset + 4 * size;
+        nameOffsetsOffset = segmentsOffset + 4 * size;
+        nameBytesOffset = nameOffsetsOffset + 4 * (size + 1);
+    }
+
+    // The number of bytes needed to hold a copy of a store in the layout above
+    public static int layoutBytes(NetworkStore source) {
+        int size = source.size();
+        int nameBytesLength = 0;
+        for(int i = 0; i < size; i++) nameBytesLength += source.nameAt(i).getBytes(StandardCharsets.UTF_8).length;
+        return HEADER_BYTES + size * (6 * 8 + 4 * 4) + 4 * (size + 1) + nameBytesLength;
+    }
+
+    // Copy any other store into a new buffer, off-heap when direct is true
+    public static BufferNetworkStore copyOf(NetworkStore source, boolean direct) {
+        int bytes = layoutBytes(source);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        write(source, buffer);
+        buffer.flip();
+        return new BufferNetworkStore(buffer);
+    }
+
+    // Write a store to a buffer in the layout above, starting at its position
+    public static void write(NetworkStore source, ByteBuffer target) {
+        ByteOrder order = target.order();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Encode the names up front so their total length can go in the header
+        int size = source.size();
+        byte[][] names = new byte[size][];
+        int nameBytesLength = 0;
+        for(int i = 0; i < size; i++) {
+            names[i] = source.nameAt(i).getBytes(StandardCharsets.UTF_8);
+            nameBytesLength += names[i].length;
+        }
+
+        target.putInt(size);
+        target.putInt(nameBytesLength);
+        for(int i = 0; i < size; i++) target.putLong(source.cumulativeMetresAt(i));
+        for(int i = 0; i < size; i++) target.putLong(source.cumulativeDownMetresAt(i));
+        for(int i = 0; i < size; i++) target.putLong(source.nextMetresAt(i));
+        for(int i = 0; i < size; i++) target.putLong(source.prevMetresAt(i));
+        for(int i = 0; i < size; i++) target.putDouble(source.latAt(i));
+        for(int i = 0; i < size; i++) target.putDouble(source.lngAt(i));
+        for(int i = 0; i < size; i++) target.putInt(source.idAt(i));
+        for(int i = 0; i < size; i++) target.putInt(source.nextAt(i));
+        for(int i = 0; i < size; i++) target.putInt(source.prevAt(i));
+        for(int i = 0; i < size; i++) target.putInt(source.segmentAt(i));
+
+        // Names are stored back to back, with the offset of each one
+        int offset = 0;
+        for(int i = 0; i < size; i++) {
+            target.putInt(offset);
+            offset += names[i].length;
+        }
+        target.putInt(offset);
+        for(int i = 0; i < size; i++) target.put(names[i]);
+
+        target.order(order);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(int id) {
+        // IDs are stored in ascending order, so binary search them in place
+        int low = 0;
+        int high = size - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = buffer.getInt(idsOffset + 4 * mid);
+            if(midId < id) low = mid + 1;
+            else if(midId > id) high = mid - 1;
+            else return mid;
+        }
+        return MISSING;
+    }
+
+    public int idAt(int index) {
+        return buffer.getInt(idsOffset + 4 * index);
+    }
+
+    public String nameAt(int index) {
+        int start = buffer.getInt(nameOffsetsOffset + 4 * index);
+        int end = buffer.getInt(nameOffsetsOffset + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        buffer.get(nameBytesOffset + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int nextAt(int index) {
+        return buffer.getInt(nextOffset + 4 * index);
+    }
+
+    public long nextMetresAt(int index) {
+        return buffer.getLong(nextDistanceOffset + 8 * index);
+    }
+
+    public int prevAt(int index) {
+        return buffer.getInt(prevOffset + 4 * index);
+    }
+
+    public long prevMetresAt(int index) {
+        return buffer.getLong(prevDistanceOffset + 8 * index);
+    }
+
+    public int segmentAt(int index) {
+        return buffer.getInt(segmentsOffset + 4 * index);
+    }
+
+    public long cumulativeMetresAt(int index) {
+        return buffer.getLong(cumulativeOffset + 8 * index);
+    }
+
+    public long cumulativeDownMetresAt(int index) {
+        return buffer.getLong(cumulativeDownOffset + 8 * index);
+    }
+
+    public double latAt(int index) {
+        return buffer.getDouble(latOffset + 8 * index);
+    }
+
+    public double lngAt(int index) {
+        return buffer.getDouble(lngOffset + 8 * index);
+    }
+
+    public long footprintBytes() {
+        return buffer.capacity();
+    }
+
+    // Whether the bytes live outside the Java heap
+    public boolean isOffHeap() {
+        return buffer.isDirect();
+    }
+}
@@ -0,0 +1,121 @@
+package com.katelynslater.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A precomputed origin-destination matrix of distances and costs, answered straight from a memory-mapped file
+// Every lookup is two index lookups and one read, whatever the size of the network
+//
+// Layout (little endian):
+//   int magic, int version, int count, int reserved
+//   int[count] IDs in ascending order, padded to 8 bytes
+//   count rows of count entries, one row per start ID in the same order:
+//     int distance in metres, int cost in cents, both NO_PATH when the IDs are not connected
+public class DistanceMatrix {
+    // Exception used when a matrix file is truncated or of an unsupported version
+    public class InvalidMatrix extends IOException {
+        public InvalidMatrix(String message) {
+            super(message);
+        }
+    }
+
+    // "ETRM" in ASCII
+    public static final int MAGIC = 0x4554524D;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int ENTRY_BYTES = 8;
+    // Stored in place of a distance and cost when there is no path, and returned for unknown IDs
+    public static final int NO_PATH = -1;
+
+    // Mappings are limited to 2GB, so large matrices are mapped as several windows of whole rows
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private final int count;
+    private final int[] ids;
+    private final IdIndex idIndex;
+    private final ByteBuffer[] windows;
+    private final int rowsPerWindow;
+
+    // Map a matrix file, checking its header and length
+    public DistanceMatrix(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_BYTES) throw new InvalidMatrix("The matrix is too short to hold a header");
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt(0) != MAGIC) throw new InvalidMatrix("The file is not a distance matrix");
+            int version = header.getInt(4);
+            if(version != VERSION) throw new InvalidMatrix("Unsupported matrix version " + version + ", expected " + VERSION);
+            count = header.getInt(8);
+            if(count < 0 || channel.size() != rowsOffset(count) + rowBytes(count) * count) throw new InvalidMatrix("The matrix is truncated or has trailing data");
+
+            // The IDs are copied onto the heap to index them, the rows stay in the file
+            ids = new int[count];
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 4L * count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(ids);
+            idIndex = new IdIndex(ids, count);
+
+            // The mappings stay valid after the channel is closed
+            rowsPerWindow = count == 0 ? 1 : (int)Math.max(1, WINDOW_BYTES / rowBytes(count));
+            windows = new ByteBuffer[count == 0 ? 0 : (count + rowsPerWindow - 1) / rowsPerWindow];
+            for(int w = 0; w < windows.length; w++) {
+                int rows = Math.min(rowsPerWindow, count - w * rowsPerWindow);
+                long offset = rowsOffset(count) + rowBytes(count) * w * rowsPerWindow;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, offset, rowBytes(count) * rows).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    // Write the header and IDs for a matrix of the locations in a store
+    public static void writeHeader(NetworkStore store, ByteBuffer buffer) {
+        int count = store.size();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(count);
+        buffer.putInt(0);
+        for(int i = 0; i < count; i++) buffer.putInt(store.idAt(i));
+        while(buffer.position() % 8 != 0) buffer.put((byte)0);
+    }
+
+    // The number of bytes before the first row
+    public static long rowsOffset(int count) {
+        return (HEADER_BYTES + 4L * count + 7) & ~7L;
+    }
+
+    // The number of bytes in each row
+    public static long rowBytes(int count) {
+        return (long)ENTRY_BYTES * count;
+    }
+
+    // The number of locations in the matrix
+    public int size() {
+        return count;
+    }
+
+    public int idAt(int index) {
+        return ids[index];
+    }
+
+    // The distance between two IDs in metres, or NO_PATH
+    public int distanceMetres(int startId, int endId) {
+        long offset = entryOffset(startId, endId);
+        return offset < 0 ? NO_PATH : windows[(int)(offset >>> 32)].getInt((int)offset);
+    }
+
+    // The cost of a trip between two IDs in cents, or NO_PATH
+    public int costCents(int startId, int endId) {
+        long offset = entryOffset(startId, endId);
+        return offset < 0 ? NO_PATH : windows[(int)(offset >>> 32)].getInt((int)offset + 4);
+    }
+
+    // The window in the high 32 bits and the offset within it in the low 32 bits, or -1 when either ID is unknown
+    private long entryOffset(int startId, int endId) {
+        int start = idIndex.indexOf(startId);
+        int end = idIndex.indexOf(endId);
+        if(start == NetworkStore.MISSING || end == NetworkStore.MISSING) return -1;
+        int window = start / rowsPerWindow;
+        long offset = (start - (long)window * rowsPerWindow) * rowBytes(count) + (long)end * ENTRY_BYTES;
+        return ((long)window << 32) | offset;
+    }
+}
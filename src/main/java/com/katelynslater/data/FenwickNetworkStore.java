@@ -0,0 +1,275 @@
+package com.katelynslater.data;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+// A NetworkStore whose route distances can be edited in place while it is being read
+// Everything but the distances comes from the store it was copied from, which is never changed
+// The cumulative index is a Fenwick tree over the locations laid out one segment after another, in chain order,
+// so editing a distance and finding the distance between two locations of a segment are both O(log n)
+// A second tree holds the distances driven back down the chain, which routes may list differently
+//
+// Edits take a write lock, readers take none: they read optimistically and only retry, under the read lock,
+// if an edit landed while they were reading. A distance never mixes values from before and after an edit
+class FenwickNetworkStore implements NetworkStore {
+    private final NetworkStore base;
+    private final int size;
+
+    private final long[] nextMetres;
+    private final long[] prevMetres;
+    // The chain continues from each index to chainNext, which is MISSING at the end of a segment
+    private final int[] chainNext;
+    // The position of each index in chain order, and of the first index of each segment
+    private final int[] position;
+    private final int[] segmentStart;
+    // Fenwick tree of the distance in metres from each position to the next, 1 based
+    // The sums are exact, so a distance is the same however the tree happens to split it up
+    private final long[] tree;
+    // And of the distance back from the next position to each one
+    private final long[] downTree;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile long version = 0;
+
+    // The chain links edited in place, by their lower index, and the version each edit was made in, for editedSince()
+    // It holds every edit since journalStart, and starts again from the next version once full
+    private final int[] journal;
+    private final long[] journalVersion;
+    private int journalSize = 0;
+    private long journalStart = 0;
+
+    private FenwickNetworkStore(NetworkStore base) {
+        this.base = base;
+        this.size = base.size();
+        nextMetres = new long[size];
+        prevMetres = new long[size];
+        chainNext = new int[size];
+        position = new int[size];
+        tree = new long[size + 1];
+        downTree = new long[size + 1];
+        journal = new int[Math.max(1024, size)];
+        journalVersion = new long[journal.length];
+
+        // Find the chain links the same way ArrayNetworkStore.build() does, the first route to reach a location continues its chain
+        boolean[] reached = new boolean[size];
+        int segmentCount = 0;
+        for(int i = 0; i < size; i++) {
+            nextMetres[i] = base.nextMetresAt(i);
+            prevMetres[i] = base.prevMetresAt(i);
+            segmentCount = Math.max(segmentCount, base.segmentAt(i) + 1);
+            chainNext[i] = MISSING;
+            int to = base.nextAt(i);
+            if(to == MISSING || to <= i || reached[to]) continue;
+            reached[to] = true;
+            chainNext[i] = to;
+        }
+
+        // Lay the segments out one after another, starting each from the location no chain reached
+        segmentStart = new int[segmentCount];
+        int next = 0;
+        for(int i = 0; i < size; i++) {
+            if(reached[i]) continue;
+            segmentStart[base.segmentAt(i)] = next;
+            for(int index = i; index != MISSING; index = chainNext[index]) {
+                position[index] = next;
+                // Positions are 1 based in the tree, each holds the distance on to the following position
+                tree[next + 1] = chainNext[index] == MISSING ? 0 : nextMetres[index];
+                downTree[next + 1] = chainNext[index] == MISSING ? 0 : NetworkStore.downMetres(base, index, chainNext[index]);
+                next++;
+            }
+        }
+
+        FenwickTree.build(tree);
+        FenwickTree.build(downTree);
+    }
+
+    // Copy a store, unless it is already editable
+    static FenwickNetworkStore copyOf(NetworkStore source) {
+        if(source instanceof FenwickNetworkStore) return (FenwickNetworkStore)source;
+        return new FenwickNetworkStore(source);
+    }
+
+    // Set the distance in metres of the routes between two locations, in both directions, returning false if they aren't linked
+    // Several edits may be made at once with lock() and unlock(), so readers see all of them or none
+    boolean setRouteMetres(int from, int to, long metres) {
+        boolean linked = false;
+        if(base.nextAt(from) == to) {
+            nextMetres[from] = metres;
+            linked = true;
+        }
+        if(base.prevAt(from) == to) {
+            prevMetres[from] = metres;
+            linked = true;
+        }
+        if(base.nextAt(to) == from) {
+            nextMetres[to] = metres;
+            linked = true;
+        }
+        if(base.prevAt(to) == from) {
+            prevMetres[to] = metres;
+            linked = true;
+        }
+
+        // Only the chain links are in the cumulative index
+        int low = Math.min(from, to);
+        int high = Math.max(from, to);
+        if(chainNext[low] == high) {
+            FenwickTree.set(tree, position[low], nextMetres[low]);
+            FenwickTree.set(downTree, position[low], base.prevAt(high) == low ? prevMetres[high] : nextMetres[low]);
+            record(low);
+        }
+        return linked;
+    }
+
+    // Note an edit to the chain link from an index, made under the write lock
+    private void record(int low) {
+        if(version < journalStart) return;
+        if(journalSize == journal.length) {
+            // Too many to be worth catching up on, anything compiled before the next version starts again
+            journalSize = 0;
+            journalStart = version + 1;
+            return;
+        }
+        journal[journalSize] = low;
+        journalVersion[journalSize] = version;
+        journalSize++;
+    }
+
+    public int[] editedSince(long since) {
+        long stamp = lock.readLock();
+        try {
+            if(since < journalStart) return null;
+            int first = journalSize;
+            while(first > 0 && journalVersion[first - 1] >= since) first--;
+            return Arrays.copyOfRange(journal, first, journalSize);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Whether two locations are linked by a next or previous route
+    boolean isLinked(int from, int to) {
+        return base.nextAt(from) == to || base.prevAt(from) == to || base.nextAt(to) == from || base.prevAt(to) == from;
+    }
+
+    long lock() {
+        return lock.writeLock();
+    }
+
+    void unlock(long stamp) {
+        version++;
+        lock.unlockWrite(stamp);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(int id) {
+        return base.indexOf(id);
+    }
+
+    public int idAt(int index) {
+        return base.idAt(index);
+    }
+
+    public String nameAt(int index) {
+        return base.nameAt(index);
+    }
+
+    public int nextAt(int index) {
+        return base.nextAt(index);
+    }
+
+    public long nextMetresAt(int index) {
+        long stamp = lock.tryOptimisticRead();
+        long metres = nextMetres[index];
+        if(lock.validate(stamp)) return metres;
+        stamp = lock.readLock();
+        try {
+            return nextMetres[index];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int prevAt(int index) {
+        return base.prevAt(index);
+    }
+
+    public long prevMetresAt(int index) {
+        long stamp = lock.tryOptimisticRead();
+        long metres = prevMetres[index];
+        if(lock.validate(stamp)) return metres;
+        stamp = lock.readLock();
+        try {
+            return prevMetres[index];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int segmentAt(int index) {
+        return base.segmentAt(index);
+    }
+
+    public long cumulativeMetresAt(int index) {
+        int start = segmentStart[base.segmentAt(index)];
+        long stamp = lock.tryOptimisticRead();
+        long cumulative = FenwickTree.prefix(tree, position[index]) - FenwickTree.prefix(tree, start);
+        if(lock.validate(stamp)) return cumulative;
+        stamp = lock.readLock();
+        try {
+            return FenwickTree.prefix(tree, position[index]) - FenwickTree.prefix(tree, start);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long cumulativeDownMetresAt(int index) {
+        int start = segmentStart[base.segmentAt(index)];
+        long stamp = lock.tryOptimisticRead();
+        long cumulative = FenwickTree.prefix(downTree, position[index]) - FenwickTree.prefix(downTree, start);
+        if(lock.validate(stamp)) return cumulative;
+        stamp = lock.readLock();
+        try {
+            return FenwickTree.prefix(downTree, position[index]) - FenwickTree.prefix(downTree, start);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Both prefixes are read under one stamp, so the distance is never half way through an edit
+    public long metresAlong(int startIndex, int endIndex) {
+        long stamp = lock.tryOptimisticRead();
+        long metres = along(startIndex, endIndex);
+        if(lock.validate(stamp)) return metres;
+        stamp = lock.readLock();
+        try {
+            return along(startIndex, endIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    private long along(int startIndex, int endIndex) {
+        if(startIndex <= endIndex) return FenwickTree.prefix(tree, position[endIndex]) - FenwickTree.prefix(tree, position[startIndex]);
+        return FenwickTree.prefix(downTree, position[startIndex]) - FenwickTree.prefix(downTree, position[endIndex]);
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public double latAt(int index) {
+        return base.latAt(index);
+    }
+
+    public double lngAt(int index) {
+        return base.lngAt(index);
+    }
+
+    public long footprintBytes() {
+        // The base store, plus the two distance arrays, the chain, the positions, the trees and the journal
+        return base.footprintBytes() + 16 * 9 + 8L * size * 4 + 4L * size * 2 + 4L * segmentStart.length + 12L * journal.length;
+    }
+}
@@ -0,0 +1,29 @@
+package com.katelynslater.data;
+
+// Fenwick trees of exact long sums held in plain arrays, for cumulative indexes that are edited in place
+// A tree over n values is an array of n + 1, value i is held at i + 1, and prefix sums and edits are both O(log n)
+// The editable store keeps its distances in them, and compiled tariffs keep their costs in them once a network is patched
+public final class FenwickTree {
+    private FenwickTree() {}
+
+    // Turn an array holding each value at i + 1 into a tree, in place and in O(n)
+    public static void build(long[] tree) {
+        for(int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+            if(parent < tree.length) tree[parent] += tree[i];
+        }
+    }
+
+    // The sum of the values before an index
+    public static long prefix(long[] tree, int end) {
+        long sum = 0;
+        for(int i = end; i > 0; i -= i & -i) sum += tree[i];
+        return sum;
+    }
+
+    // Set the value at an index
+    public static void set(long[] tree, int at, long value) {
+        long delta = value - (prefix(tree, at + 1) - prefix(tree, at));
+        for(int i = at + 1; i < tree.length; i += i & -i) tree[i] += delta;
+    }
+}
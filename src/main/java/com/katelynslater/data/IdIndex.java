@@ -0,0 +1,79 @@
+package com.katelynslater.data;
+
+import java.util.Arrays;
+
+// Maps sparse Location IDs to dense indexes without boxing
+// Dense ID spaces use a direct lookup table, sparse ones fall back to an open addressing hash table
+class IdIndex {
+    // Direct lookup table, or null when hashing
+    private final int[] direct;
+
+    // Open addressing hash table, or null when using the direct table
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+
+    // Build an index for the given IDs, where ids[i] maps to index i
+    IdIndex(int[] ids, int count) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for(int i = 0; i < count; i++) {
+            min = Math.min(min, ids[i]);
+            max = Math.max(max, ids[i]);
+        }
+
+        // A direct table is used when it wastes no more than about half of its slots
+        if(count == 0 || (min >= 0 && max < count * 2L + 64)) {
+            direct = new int[count == 0 ? 0 : max + 1];
+            Arrays.fill(direct, NetworkStore.MISSING);
+            for(int i = 0; i < count; i++) direct[ids[i]] = i;
+
+            keys = null;
+            values = null;
+            mask = 0;
+        } else {
+            // Keep the load factor at or below 0.5
+            int capacity = Integer.highestOneBit(count * 2 - 1) << 1;
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, NetworkStore.MISSING);
+            mask = capacity - 1;
+            for(int i = 0; i < count; i++) {
+                int slot = hash(ids[i]) & mask;
+                while(values[slot] != NetworkStore.MISSING) slot = (slot + 1) & mask;
+                keys[slot] = ids[i];
+                values[slot] = i;
+            }
+
+            direct = null;
+        }
+    }
+
+    // Return the dense index for an ID, or MISSING
+    int indexOf(int id) {
+        if(direct != null) {
+            if(id < 0 || id >= direct.length) return NetworkStore.MISSING;
+            return direct[id];
+        }
+
+        int slot = hash(id) & mask;
+        int index;
+        while((index = values[slot]) != NetworkStore.MISSING) {
+            if(keys[slot] == id) return index;
+            slot = (slot + 1) & mask;
+        }
+        return NetworkStore.MISSING;
+    }
+
+    // Approximate number of bytes used by the index
+    long footprintBytes() {
+        if(direct != null) return 16 + 4L * direct.length;
+        return 32 + 8L * keys.length;
+    }
+
+    // Spread the bits of sequential IDs across the table
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,9 +1,14 @@
 package com.katelynslater.data;
 
+import com.katelynslater.metrics.Metrics;
+
 import java.util.*;
 import java.util.concurrent.*;
 
 // The Interchanges main class
+// A loaded network is built once, then frozen and published, after which it is safe to query from any number of threads
+// Every query reads the volatile fields below once and answers from the NetworkStore, so readers never take locks
+// The only change made to a published network is a patch of route distances, see applyPatch()
 public class Interchanges {
     // Exception used when a Location ID already exists
     public class LocationAlreadyExists extends Exception {
@@ -11,68 +16,308 @@ public class Interchanges {
             super("A location already exists for ID " + id);
         }
     }
+    // Exception used when two Location IDs are not connected by a chain of routes
+    public class NoPathExists extends RuntimeException {
+        public NoPathExists(int start, int end) {
+            super(noPathMessage(start, end));
+        }
+    }
+    public static String noPathMessage(int start, int end) {
+        return "No path exists between location IDs " + start + " and " + end;
+    }
 
     // The list of locations by ID
-    private ArrayList<Location> locations = new ArrayList<Location>();
-    // Map of IDs for each Location ID
-    private HashMap<String, Integer> locationIdByName = new HashMap<String, Integer>();
+    private volatile ArrayList<Location> locations = new ArrayList<Location>();
+    // Returned by lookupLocationIdForName() when there is no location with that name
+    public static final int UNKNOWN_ID = Integer.MIN_VALUE;
+    // Why distanceMetres() and distanceOrNaN() had no answer, as returned by noDistanceReason()
+    public static final int UNKNOWN_START = 1;
+    public static final int UNKNOWN_END = 2;
+    public static final int NO_PATH = 3;
+
+    // The compiled network every query is answered from, rebuilt by connectRoutes()
+    // It also holds the cumulative distance index, so the distance between two IDs in the same segment is a single subtraction
+    private volatile NetworkStore store = ArrayNetworkStore.build(locations);
+    // The case-insensitive name index, rebuilt by connectRoutes()
+    private volatile NameIndex nameIndex = NameIndex.build(store);
+    // Adjacency lists for networks with branches or routes off the chains, or null when every segment is a linear corridor, rebuilt by connectRoutes()
+    private volatile RoadGraph graph = null;
+    // Shortest path searches over the graph, built on the first query that needs one
+    private volatile Router router = null;
+    // The k-d tree over the coordinates, built on first use
+    private volatile SpatialIndex spatialIndex = null;
+    // Whether the network has been published, after which it can no longer be modified
+    private volatile boolean frozen = false;
+    // Counts the patches made in place, rebuilt and reloaded networks are new Interchanges instead
+    private volatile long version = 0;
+
+    // Create Interchanges answered straight from a mapped snapshot, without building any Location objects
+    public static Interchanges fromSnapshot(NetworkSnapshot snapshot) {
+        return fromCompiled(snapshot.getStore(), snapshot.getNameIndex(), snapshot.getGraph());
+    }
+
+    // Create published Interchanges from a network that was already compiled, without building any Location objects
+    // The graph is null when the network is made of linear corridors
+    public static Interchanges fromCompiled(NetworkStore store, NameIndex nameIndex, RoadGraph graph) {
+        Interchanges interchanges = new Interchanges();
+        interchanges.locations = null;
+        interchanges.store = store;
+        interchanges.nameIndex = nameIndex;
+        interchanges.graph = graph;
+        interchanges.frozen = true;
+        return interchanges;
+    }
+
+    // Mark the network as published, from here on only applyPatch() can change its distances
+    public void freeze() {
+        frozen = true;
+    }
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    // Changes whenever distances are patched in place, so anything worked out from this network can tell it is out of date
+    public long version() {
+        return version;
+    }
+
     public void addLocation(Location location) throws LocationAlreadyExists{
+        if(!tryAddLocation(location)) throw new LocationAlreadyExists(location.id);
+    }
+
+    // Add a location, returning false instead of throwing when its ID is taken or negative
+    public boolean tryAddLocation(Location location) {
+        // Published networks may be being read by other threads, changes go into a new Interchanges instead
+        if(frozen) throw new IllegalStateException("Interchanges have been published and can no longer be modified");
+
+        // Once compacted, the Location objects are gone and only the read-only store remains
+        if(locations == null) throw new IllegalStateException("Interchanges have been compacted and can no longer be modified");
+
         int id = location.id;
-        try {
-            Location locationForId = locations.get(id);
-            if(locationForId != null) throw new LocationAlreadyExists(id);
+        if(id < 0) return false;
+        if(id < locations.size()) {
+            if(locations.get(id) != null) return false;
             locations.set(id, location);
-        } catch(IndexOutOfBoundsException err) {
-            // If the index is out of bounds, add this location instead
-            // Keys may be out of order, so this ensures we can continue to use an ArrayList
-            // while also providing support for out of order entries
-            // It is much more efficient to use an ArrayList over a HashMap
+            return true;
+        }
 
-            // Determine how many nulls to add
-            int left = (id - locations.size());
-            while(left-- > 0) locations.add(null);
+        // Keys may be out of order, so pad the list with nulls up to the ID
+        // This ensures we can continue to use an ArrayList, which is much more efficient than a HashMap
+        locations.ensureCapacity(id + 1);
+        while(locations.size() < id) locations.add(null);
+        locations.add(location);
+        return true;
+    }
 
-            // Finally, add the location
-            locations.add(location);
-        }
+    // Add many locations at once, returning how many were added
+    // Any whose ID is taken or negative are skipped, and added to rejected unless it is null
+    public int addLocations(Collection<Location> batch, List<Location> rejected) {
+        // Grow the list once for the highest ID, rather than once per location
+        int highest = -1;
+        for(Location location : batch) highest = Math.max(highest, location.id);
+        if(locations != null) locations.ensureCapacity(highest + 1);
 
-        // Add a reference to the ID by the location's name
-        locationIdByName.put(location.name.toLowerCase(), id);
+        int added = 0;
+        for(Location location : batch) {
+            if(tryAddLocation(location)) added++;
+            else if(rejected != null) rejected.add(location);
+        }
+        return added;
     }
 
-    // Calculate the Distance between a Start and End ID
+    // Calculate the Distance between a Start and End ID, in km
     public double calculateDistance(int start, int end) {
-        // Always scan from lowest to highest, if end is lower than start, reverse them
-        if(start > end) {
-            int temp = end;
-            end = start;
-            start = temp;
+        return Metres.toKm(calculateDistanceMetres(start, end));
+    }
+
+    // Calculate the Distance between a Start and End ID, in metres
+    public long calculateDistanceMetres(int start, int end) {
+        long metres = distanceMetres(start, end);
+        if(metres == Metres.UNREACHABLE) throw new NoPathExists(start, end);
+        return metres;
+    }
+
+    // Calculate the Distance between a Start and End ID in km, or NaN when there is none, without throwing
+    public double distanceOrNaN(int start, int end) {
+        long metres = distanceMetres(start, end);
+        return metres == Metres.UNREACHABLE ? Double.NaN : Metres.toKm(metres);
+    }
+
+    // Calculate the Distance between a Start and End ID in metres, or Metres.UNREACHABLE when there is none, without throwing
+    // noDistanceReason() says why there was no distance, for the trips that need to report it
+    // This is what every query is answered from, the km queries above only convert its answer
+    public long distanceMetres(int start, int end) {
+        long startTime = System.nanoTime();
+        long metres = metresBetween(start, end);
+        if(metres == Metres.UNREACHABLE) Metrics.NO_PATH.increment();
+        else Metrics.DISTANCE.recordSince(startTime);
+        return metres;
+    }
+    private long metresBetween(int start, int end) {
+        // Both IDs must exist
+        NetworkStore store = this.store;
+        int startIndex = store.indexOf(start);
+        int endIndex = store.indexOf(end);
+        if(startIndex == NetworkStore.MISSING || endIndex == NetworkStore.MISSING) return Metres.UNREACHABLE;
+
+        // Trips along a linear corridor are a single subtraction
+        if(isLinearTrip(store, startIndex, endIndex)) return store.metresAlong(startIndex, endIndex);
+
+        // Anything else needs a shortest path search, if the network has a graph
+        if(graph == null) return Metres.UNREACHABLE;
+        return router().distance(startIndex, endIndex);
+    }
+
+    // Why distanceMetres() had no answer for a trip: UNKNOWN_START, UNKNOWN_END or NO_PATH
+    public int noDistanceReason(int start, int end) {
+        NetworkStore store = this.store;
+        if(store.indexOf(start) == NetworkStore.MISSING) return UNKNOWN_START;
+        if(store.indexOf(end) == NetworkStore.MISSING) return UNKNOWN_END;
+        return NO_PATH;
+    }
+
+    // Whether a trip between two dense indexes stays within one linear corridor, and can be answered from the cumulative index
+    public boolean isLinearTrip(NetworkStore store, int startIndex, int endIndex) {
+        int segment = store.segmentAt(startIndex);
+        if(store.segmentAt(endIndex) != segment) return false;
+        RoadGraph graph = this.graph;
+        return graph == null || graph.isLinear(segment);
+    }
+
+    // Return the dense indexes along the shortest path between two IDs, including both ends
+    public int[] calculatePath(int start, int end) {
+        NetworkStore store = this.store;
+        int startIndex = store.indexOf(start);
+        int endIndex = store.indexOf(end);
+        if(startIndex == NetworkStore.MISSING || endIndex == NetworkStore.MISSING) throw new NoPathExists(start, end);
+
+        // Linear corridors follow the chain of next routes from the lower index
+        if(isLinearTrip(store, startIndex, endIndex)) {
+            int low = Math.min(startIndex, endIndex);
+            int high = Math.max(startIndex, endIndex);
+            int length = 1;
+            for(int index = low; index != high; index = store.nextAt(index)) length++;
+            int[] path = new int[length];
+            int position = 0;
+            for(int index = low; ; index = store.nextAt(index)) {
+                path[startIndex <= endIndex ? position : length - 1 - position] = index;
+                position++;
+                if(index == high) break;
+            }
+            return path;
         }
 
-        // Store the currently calculated distance
-        double distance = 0;
+        if(graph == null) throw new NoPathExists(start, end);
+        int[] path = router().path(startIndex, endIndex);
+        if(path == null) throw new NoPathExists(start, end);
+        return path;
+    }
+
+    // Fill an itinerary with the segments of the trip between two IDs, in the direction of travel, and return it
+    // Linear corridors follow the chain of routes, anything else follows the shortest path, the same as calculatePath()
+    public Itinerary itinerary(int start, int end, Itinerary itinerary) {
+        NetworkStore store = this.store;
+        int startIndex = store.indexOf(start);
+        int endIndex = store.indexOf(end);
+        if(startIndex == NetworkStore.MISSING || endIndex == NetworkStore.MISSING) throw new NoPathExists(start, end);
+        RoadGraph graph = this.graph;
 
-        // Get the starting location
-        Location current = locations.get(start);
-        do {
-            // Get the next ID (higher than current)
-            Route next = current.nextRoute;
-            // Add to the distance
-            distance += next.distance;
-            // Get the ID
-            int id = next.toId;
-            // Compare the ID against the End ID, break if it matches
-            if(id == end) break;
-            // Change the current Location to the Route's Destination
-            current = next.destination;
-        } while(true);
+        if(isLinearTrip(store, startIndex, endIndex)) {
+            int low = Math.min(startIndex, endIndex);
+            int high = Math.max(startIndex, endIndex);
+            int length = 1;
+            for(int index = low; index != high; index = store.nextAt(index)) length++;
+            itinerary.reset(store, length);
+            int position = 0;
+            for(int index = low; ; index = store.nextAt(index)) {
+                itinerary.path[startIndex <= endIndex ? position : length - 1 - position] = index;
+                position++;
+                if(index == high) break;
+            }
+        } else {
+            if(graph == null) throw new NoPathExists(start, end);
+            itinerary.reset(store, 0);
+            if(!router().path(startIndex, endIndex, itinerary)) throw new NoPathExists(start, end);
+        }
+        itinerary.finish(graph);
+        return itinerary;
+    }
 
-        // Return the Calculated Distance
-        return distance;
+    // Fill in the distance in km from an ID to every location by dense index, with infinity where there is no path
+    public void calculateDistancesFrom(int start, double[] distances) {
+        long[] metres = new long[distances.length];
+        calculateMetresFrom(start, metres);
+        for(int i = 0; i < metres.length; i++) distances[i] = metres[i] == Metres.UNREACHABLE ? Double.POSITIVE_INFINITY : Metres.toKm(metres[i]);
+    }
+
+    // Fill in the distance in metres from an ID to every location by dense index, with Metres.UNREACHABLE where there is no path
+    public void calculateMetresFrom(int start, long[] metres) {
+        NetworkStore store = this.store;
+        int startIndex = store.indexOf(start);
+        if(startIndex == NetworkStore.MISSING) throw new NoPathExists(start, start);
+
+        if(graph != null) {
+            router().distancesFrom(startIndex, metres);
+            // Linear corridors give the same answers as calculateDistance() does
+            for(int i = 0; i < store.size(); i++) {
+                if(isLinearTrip(store, startIndex, i)) metres[i] = store.metresAlong(startIndex, i);
+            }
+            return;
+        }
+
+        int segment = store.segmentAt(startIndex);
+        for(int i = 0; i < store.size(); i++) {
+            if(store.segmentAt(i) != segment) metres[i] = Metres.UNREACHABLE;
+            else metres[i] = store.metresAlong(startIndex, i);
+        }
+    }
+
+    // Return the shortest path router, building it on first use
+    private Router router() {
+        Router router = this.router;
+        if(router == null) {
+            // Building twice at once is harmless, both results are the same
+            router = new Router(graph);
+            this.router = router;
+        }
+        return router;
+    }
+
+    // Return the spatial index over the store, building it on first use
+    public SpatialIndex getSpatialIndex() {
+        SpatialIndex spatialIndex = this.spatialIndex;
+        NetworkStore store = this.store;
+        if(spatialIndex == null || spatialIndex.store != store) {
+            // Building twice at once is harmless, both results are the same
+            spatialIndex = SpatialIndex.build(store);
+            this.spatialIndex = spatialIndex;
+        }
+        return spatialIndex;
+    }
+
+    // Return the ID of the location nearest a point, or UNKNOWN_ID when no location has coordinates
+    public int findNearestLocationId(double lat, double lng) {
+        int[] ids = new int[1];
+        return findNearestLocationIds(lat, lng, Double.POSITIVE_INFINITY, ids, null) == 0 ? UNKNOWN_ID : ids[0];
+    }
+
+    // Write the IDs of up to ids.length locations within radiusKm of a point, nearest first, returning how many were written
+    // Their distances in km are written to distancesKm too, unless it is null
+    public int findNearestLocationIds(double lat, double lng, double radiusKm, int[] ids, double[] distancesKm) {
+        SpatialIndex spatialIndex = getSpatialIndex();
+        int count = spatialIndex.nearest(lat, lng, radiusKm, ids, distancesKm);
+        // The tree answers with dense indexes in the store it was built from
+        for(int i = 0; i < count; i++) ids[i] = spatialIndex.store.idAt(ids[i]);
+        return count;
     }
 
     // Connect the Destination reference to each Route
     public void connectRoutes() {
+        // Once published or compacted, the store is already connected
+        ArrayList<Location> locations = this.locations;
+        if(frozen || locations == null) return;
+        long startTime = System.nanoTime();
+
         // Iterate through Locations
         Iterator<Location> it = locations.iterator();
         while(it.hasNext()) {
@@ -88,9 +333,10 @@ public class Interchanges {
                     // Set the Destination to it's instance
                     next.destination = locations.get(next.toId);
                 } catch(IndexOutOfBoundsException t) {
-                    // If the ID is invalid, then clear the route
-                    location.nextRoute = null;
+                    next.destination = null;
                 }
+                // If the ID is invalid or points at a gap, then clear the route
+                if(next.destination == null) location.nextRoute = null;
             }
 
             // Get the previous ID (lower than current)
@@ -100,25 +346,354 @@ public class Interchanges {
                     // Set the Destination to it's instance
                     prev.destination = locations.get(prev.toId);
                 } catch(IndexOutOfBoundsException t) {
-                    // If the ID is invalid, then clear the route
-                    location.prevRoute = null;
+                    prev.destination = null;
+                }
+                // If the ID is invalid or points at a gap, then clear the route
+                if(prev.destination == null) location.prevRoute = null;
+            }
+
+            // Connect any branches the same way, dropping the invalid ones
+            if(location.branches != null) {
+                Iterator<Route> branchIt = location.branches.iterator();
+                while(branchIt.hasNext()) {
+                    Route branch = branchIt.next();
+                    branch.destination = branch.toId >= 0 && branch.toId < locations.size() ? locations.get(branch.toId) : null;
+                    if(branch.destination == null) branchIt.remove();
                 }
+
+                // A corridor route dropped as invalid leaves its place to the first valid branch the same way, so the corridor stays linear
+                if(location.nextRoute == null) location.nextRoute = promoteBranch(location, true);
+                if(location.prevRoute == null) location.prevRoute = promoteBranch(location, false);
+                if(location.branches.isEmpty()) location.branches = null;
             }
         }
+
+        Metrics.LOAD_CONNECT_ROUTES.recordSince(startTime);
+
+        // Now that the routes are clean, compile the network and its distance index, then index the names and any branches
+        startTime = System.nanoTime();
+        NetworkStore built = ArrayNetworkStore.build(locations);
+        nameIndex = NameIndex.build(built);
+        graph = RoadGraph.build(locations, built);
+        router = null;
+        store = built;
+        Metrics.LOAD_BUILD.recordSince(startTime);
+    }
+
+    // Remove and return a location's first branch towards higher IDs, or lower ones, or null if it has none
+    private static Route promoteBranch(Location location, boolean up) {
+        Iterator<Route> branchIt = location.branches.iterator();
+        while(branchIt.hasNext()) {
+            Route branch = branchIt.next();
+            if(up ? branch.toId > location.id : branch.toId < location.id) {
+                branchIt.remove();
+                return branch;
+            }
+        }
+        return null;
+    }
+
+    // Apply a patch, returning the Interchanges to publish in place of this one
+    // Distance edits on a linear network are made in place, O(log n) each, and this is returned: readers see the whole patch or none of it
+    // Anything else is applied to a copy of the locations and a new, connected Interchanges is returned, this one is left unchanged
+    // Every edit is checked before any is made, so an invalid patch changes nothing
+    public synchronized Interchanges applyPatch(NetworkPatch patch) throws NetworkPatch.InvalidPatch {
+        if(patch.isDistancesOnly() && graph == null) {
+            applyDistances(patch);
+            return this;
+        }
+        return rebuild(patch);
+    }
+
+    // Edit the route distances in the store, switching it for an editable copy the first time
+    private void applyDistances(NetworkPatch patch) throws NetworkPatch.InvalidPatch {
+        NetworkStore store = this.store;
+        FenwickNetworkStore editable = FenwickNetworkStore.copyOf(store);
+        List<NetworkPatch.Edit> edits = patch.getEdits();
+        int[] from = new int[edits.size()];
+        int[] to = new int[edits.size()];
+        long[] metres = new long[edits.size()];
+        for(int i = 0; i < edits.size(); i++) {
+            NetworkPatch.Edit edit = edits.get(i);
+            from[i] = store.indexOf(edit.id);
+            to[i] = store.indexOf(edit.toId);
+            if(from[i] == NetworkStore.MISSING || to[i] == NetworkStore.MISSING || !editable.isLinked(from[i], to[i])) throw patch.new InvalidPatch("Locations " + edit.id + " and " + edit.toId + " are not linked by a route");
+            if(edit.metres < 0) throw patch.new InvalidPatch("The distance between " + edit.id + " and " + edit.toId + " must be 0 or more");
+            metres[i] = edit.metres;
+        }
+
+        long stamp = editable.lock();
+        try {
+            for(int i = 0; i < edits.size(); i++) editable.setRouteMetres(from[i], to[i], metres[i]);
+        } finally {
+            editable.unlock(stamp);
+        }
+
+        // Keep any Location objects in step, for getLocationById() and later patches
+        ArrayList<Location> locations = this.locations;
+        if(locations != null) {
+            for(int i = 0; i < edits.size(); i++) {
+                NetworkPatch.Edit edit = edits.get(i);
+                setRouteMetres(locations.get(edit.id), edit.toId, metres[i]);
+                setRouteMetres(locations.get(edit.toId), edit.id, metres[i]);
+            }
+        }
+
+        // A new editable store is only published once it holds the edits
+        this.store = editable;
+        version++;
+    }
+
+    // Set the distance of every route from a location to an ID, returning whether there were any
+    private static boolean setRouteMetres(Location location, int toId, long metres) {
+        boolean found = false;
+        if(location.nextRoute != null && location.nextRoute.toId == toId) {
+            location.nextRoute.metres = metres;
+            found = true;
+        }
+        if(location.prevRoute != null && location.prevRoute.toId == toId) {
+            location.prevRoute.metres = metres;
+            found = true;
+        }
+        if(location.branches != null) {
+            for(Route branch : location.branches) {
+                if(branch.toId != toId) continue;
+                branch.metres = metres;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    // Apply a patch to a copy of the locations, and connect them into a new Interchanges
+    private Interchanges rebuild(NetworkPatch patch) throws NetworkPatch.InvalidPatch {
+        HashMap<Integer, Location> copy = copyLocations();
+        for(NetworkPatch.Edit edit : patch.getEdits()) {
+            Location location = copy.get(edit.id);
+            switch(edit.kind) {
+                case Distance: {
+                    Location other = copy.get(edit.toId);
+                    if(edit.metres < 0) throw patch.new InvalidPatch("The distance between " + edit.id + " and " + edit.toId + " must be 0 or more");
+                    boolean linked = location != null && other != null && setRouteMetres(location, edit.toId, edit.metres);
+                    linked |= location != null && other != null && setRouteMetres(other, edit.id, edit.metres);
+                    if(!linked) throw patch.new InvalidPatch("Locations " + edit.id + " and " + edit.toId + " are not linked by a route");
+                    break;
+                }
+                case Rename: {
+                    if(location == null) throw patch.new InvalidPatch("There is no location " + edit.id + " to rename");
+                    copy.put(edit.id, copyLocation(location, edit.name));
+                    break;
+                }
+                case Add: {
+                    if(location != null) throw patch.new InvalidPatch("A location already exists for ID " + edit.id);
+                    if(edit.id < 0) throw patch.new InvalidPatch("Location IDs can't be negative");
+                    Location added = new Location(edit.id, edit.name);
+                    added.lat = edit.lat;
+                    added.lng = edit.lng;
+                    for(Route route : edit.routes) {
+                        Location target = copy.get(route.toId);
+                        if(target == null || route.toId == edit.id) throw patch.new InvalidPatch("Location " + edit.id + " has a route to " + route.toId + ", which doesn't exist");
+                        if(route.metres < 0) throw patch.new InvalidPatch("The route from " + edit.id + " to " + route.toId + " needs a distance of 0 or more");
+                        // Routes can be driven both ways, so link them both ways
+                        Route there = new Route();
+                        there.toId = route.toId;
+                        there.metres = route.metres;
+                        added.addRoute(there);
+                        Route back = new Route();
+                        back.toId = edit.id;
+                        back.metres = route.metres;
+                        target.addRoute(back);
+                    }
+                    copy.put(edit.id, added);
+                    break;
+                }
+                case Remove: {
+                    // The routes to it are dropped by connectRoutes()
+                    if(copy.remove(edit.id) == null) throw patch.new InvalidPatch("There is no location " + edit.id + " to remove");
+                    break;
+                }
+            }
+        }
+
+        Interchanges patched = new Interchanges();
+        for(Location location : copy.values()) {
+            try {
+                patched.addLocation(location);
+            } catch(LocationAlreadyExists laerr) {
+                // The copy is keyed by ID, so every ID is only added once
+                throw new IllegalStateException(laerr);
+            }
+        }
+        patched.connectRoutes();
+        if(frozen) patched.freeze();
+        return patched;
     }
 
-    // Return a Location instance for a given ID
+    // Copy every location and its routes, without destinations, by ID
+    // Compacted networks are copied from the store, with their branches recovered from the graph
+    private HashMap<Integer, Location> copyLocations() {
+        HashMap<Integer, Location> copy = new HashMap<Integer, Location>();
+        ArrayList<Location> locations = this.locations;
+        if(locations != null) {
+            for(Location location : locations) {
+                if(location != null) copy.put(location.id, copyLocation(location, location.name));
+            }
+            return copy;
+        }
+
+        NetworkStore store = this.store;
+        RoadGraph graph = this.graph;
+        for(int i = 0; i < store.size(); i++) {
+            Location location = locationView(store, i);
+            if(graph != null) {
+                for(int edge = graph.firstEdge(i); edge < graph.firstEdge(i + 1); edge++) {
+                    // Next and previous routes are already in the view
+                    int target = graph.edgeTarget(edge);
+                    if(store.nextAt(i) == target || store.prevAt(i) == target) continue;
+                    // Any other edge is a branch listed here, or the way back along a route only the other end lists,
+                    // and listing that here as a branch gives the same edge
+                    Route branch = new Route();
+                    branch.toId = store.idAt(target);
+                    branch.metres = graph.edgeMetres(edge);
+                    if(location.branches == null) location.branches = new ArrayList<Route>();
+                    location.branches.add(branch);
+                }
+            }
+            copy.put(location.id, location);
+        }
+        return copy;
+    }
+
+    private static Location copyLocation(Location location, String name) {
+        Location copy = new Location(location.id, name);
+        copy.lat = location.lat;
+        copy.lng = location.lng;
+        copy.nextRoute = copyRoute(location.nextRoute);
+        copy.prevRoute = copyRoute(location.prevRoute);
+        if(location.branches != null) {
+            copy.branches = new ArrayList<Route>();
+            for(Route branch : location.branches) copy.branches.add(copyRoute(branch));
+        }
+        return copy;
+    }
+
+    private static Route copyRoute(Route route) {
+        if(route == null) return null;
+        Route copy = new Route();
+        copy.toId = route.toId;
+        copy.metres = route.metres;
+        return copy;
+    }
+
+    // Release the Location objects and answer everything from the compiled store alone
+    // When offHeap is true, the store is also moved into a direct ByteBuffer outside of the Java heap
+    // The answers don't change, so this is safe on a published network, the new store is visible before the Locations go
+    public void compact(boolean offHeap) {
+        if(locations == null) return;
+        if(offHeap) store = BufferNetworkStore.copyOf(store, true);
+        locations = null;
+    }
+
+    // Return the compiled network store
+    public NetworkStore getStore() {
+        return store;
+    }
+
+    // Return the name index
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    // Return the graph of branches, or null when the network is made of linear corridors
+    public RoadGraph getGraph() {
+        return graph;
+    }
+
+    // Estimate the heap used by the Location and Route object graph, including the distance index it needs
+    // Estimates assume a 64-bit JVM with compressed references
+    public long estimateObjectGraphBytes() {
+        NetworkStore store = this.store;
+        int size = store.size();
+        // The ArrayList, including the null padding up to the highest ID
+        long bytes = 40 + 16 + 4L * (size == 0 ? 0 : store.idAt(size - 1) + 1);
+        for(int i = 0; i < size; i++) {
+            // The Location, and its name
+            bytes += 32 + ArrayNetworkStore.stringBytes(store.nameAt(i));
+            // Each Route
+            if(store.nextAt(i) != NetworkStore.MISSING) bytes += 32;
+            if(store.prevAt(i) != NetworkStore.MISSING) bytes += 32;
+        }
+        // The cumulative distance and segment arrays indexed by ID
+        bytes += 2 * 16 + 12L * (size == 0 ? 0 : store.idAt(size - 1) + 1);
+        return bytes;
+    }
+
+    // Return a Location instance for a given ID, or null when there is none, whether or not the network is compacted
     public Location getLocationById(int id) {
-        return locations.get(id);
+        ArrayList<Location> locations = this.locations;
+        if(locations != null) return id >= 0 && id < locations.size() ? locations.get(id) : null;
+
+        // When compacted, build a detached view from the store
+        NetworkStore store = this.store;
+        int index = store.indexOf(id);
+        if(index == NetworkStore.MISSING) return null;
+        return locationView(store, index);
     }
 
     // Returns an Iterator for Locations
     public Iterator<Location> locationIterator() {
-        return locations.iterator();
+        ArrayList<Location> locations = this.locations;
+        if(locations != null) return locations.iterator();
+
+        // When compacted, iterate detached views from the store in ID order
+        final NetworkStore store = this.store;
+        return new Iterator<Location>() {
+            int index = 0;
+            public boolean hasNext() {
+                return index < store.size();
+            }
+            public Location next() {
+                if(index >= store.size()) throw new NoSuchElementException();
+                return locationView(store, index++);
+            }
+        };
+    }
+
+    // Build a detached Location for a dense index in the store
+    // Its Routes carry the toId and distance, but no destination, follow them with getLocationById() instead
+    // Branches are left in the graph, use calculatePath() to follow them
+    private static Location locationView(NetworkStore store, int index) {
+        Location location = new Location(store.idAt(index), store.nameAt(index));
+        location.lat = store.latAt(index);
+        location.lng = store.lngAt(index);
+        int next = store.nextAt(index);
+        if(next != NetworkStore.MISSING) {
+            location.nextRoute = new Route();
+            location.nextRoute.toId = store.idAt(next);
+            location.nextRoute.metres = store.nextMetresAt(index);
+        }
+        int prev = store.prevAt(index);
+        if(prev != NetworkStore.MISSING) {
+            location.prevRoute = new Route();
+            location.prevRoute.toId = store.idAt(prev);
+            location.prevRoute.metres = store.prevMetresAt(index);
+        }
+        return location;
+    }
+
+    // Return a Location ID for a given Name, ignoring case, or UNKNOWN_ID
+    // A name shared by several locations finds the lowest of their IDs, rather than whichever was loaded last as it used to,
+    // since the order the old JSON library gave the keys in wasn't the order of the file either
+    // Names are answered once connectRoutes() has run, and the lookup doesn't allocate
+    public int lookupLocationIdForName(CharSequence name) {
+        NameIndex nameIndex = this.nameIndex;
+        int position = nameIndex.positionOf(name);
+        return position == NameIndex.MISSING ? UNKNOWN_ID : nameIndex.idAt(position);
     }
 
-    // Return a Location ID for a given Name
-    public int lookupLocationIdForName(String name) {
-        return locationIdByName.get(name.toLowerCase());
+    // Write the IDs of up to ids.length locations whose names start with a prefix, ignoring case, returning how many were written
+    // Matches are in alphabetical order
+    public int completeLocationName(CharSequence prefix, int[] ids) {
+        return nameIndex.complete(prefix, ids);
     }
 }
@@ -0,0 +1,119 @@
+package com.katelynslater.data;
+
+// The interchanges a trip passes through, one segment at a time in the direction of travel, filled in by Interchanges.itinerary()
+// An Itinerary is a reusable cursor: its buffers only grow, so walking trip after trip with one instance doesn't allocate
+//
+//     Itinerary itinerary = new Itinerary();
+//     interchanges.itinerary(startId, endId, itinerary);
+//     while(itinerary.next()) use(itinerary.fromId(), itinerary.toId(), itinerary.metres());
+//
+// Each segment's distance is the route driven that way: the next route heading up the IDs, and the previous route heading
+// down them. Networks may list a different distance each way, and calculateDistance() measures the same way, so the
+// segments of a trip always add up to its distance
+public class Itinerary {
+    // The store the path's dense indexes belong to
+    NetworkStore store;
+    // The dense indexes along the trip, including both ends, and the distance in metres driven to reach each one after the first
+    int[] path = new int[16];
+    long[] metres = new long[16];
+    int length = 0;
+    // The index in path of the end of the current segment, 0 before the first
+    private int position = 0;
+    private long total = 0;
+
+    // Make room for a path, and start over
+    void reset(NetworkStore store, int length) {
+        if(path.length < length) {
+            int capacity = Math.max(length, path.length * 2);
+            path = new int[capacity];
+            metres = new long[capacity];
+        }
+        this.store = store;
+        this.length = length;
+        position = 0;
+        total = 0;
+    }
+
+    // Work out the distance of each segment once the path is filled in
+    void finish(RoadGraph graph) {
+        for(int i = 1; i < length; i++) {
+            metres[i] = metresDriven(store, graph, path[i - 1], path[i]);
+            total += metres[i];
+        }
+    }
+
+    // The distance in metres of the route driven from one index to the next, as listed by the location it leaves
+    static long metresDriven(NetworkStore store, RoadGraph graph, int from, int to) {
+        if(store.nextAt(from) == to) return store.nextMetresAt(from);
+        if(store.prevAt(from) == to) return store.prevMetresAt(from);
+        if(graph != null) {
+            // A branch, the graph holds the distance listed this way, or the one listed back when only the other end lists it
+            long metres = Metres.UNREACHABLE;
+            for(int edge = graph.firstEdge(from); edge < graph.firstEdge(from + 1); edge++) {
+                if(graph.edgeTarget(edge) == to) metres = Math.min(metres, graph.edgeMetres(edge));
+            }
+            if(metres != Metres.UNREACHABLE) return metres;
+        }
+        // Only listed the other way
+        return store.nextAt(to) == from ? store.nextMetresAt(to) : store.prevMetresAt(to);
+    }
+
+    // Move to the next segment, returning false when there are no more
+    public boolean next() {
+        if(position + 1 >= length) return false;
+        position++;
+        return true;
+    }
+
+    // Go back to before the first segment, to walk the trip again
+    public void rewind() {
+        position = 0;
+    }
+
+    // The number of segments, 0 for a trip that starts and ends at the same place
+    public int segmentCount() {
+        return Math.max(0, length - 1);
+    }
+
+    // The dense indexes of the current segment, in the store getStore() returns
+    public int fromIndex() {
+        return path[position - 1];
+    }
+    public int toIndex() {
+        return path[position];
+    }
+
+    public int fromId() {
+        return store.idAt(fromIndex());
+    }
+    public int toId() {
+        return store.idAt(toIndex());
+    }
+
+    public String fromName() {
+        return store.nameAt(fromIndex());
+    }
+    public String toName() {
+        return store.nameAt(toIndex());
+    }
+
+    // The distance driven along the current segment, in km and in metres
+    public double distance() {
+        return Metres.toKm(metres[position]);
+    }
+    public long metres() {
+        return metres[position];
+    }
+
+    // The distance driven along every segment, in km and in metres
+    public double getTotalDistance() {
+        return Metres.toKm(total);
+    }
+    public long getTotalMetres() {
+        return total;
+    }
+
+    public NetworkStore getStore() {
+        return store;
+    }
+}
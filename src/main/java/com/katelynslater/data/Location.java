@@ -5,10 +5,28 @@ import java.util.ArrayList;
 public class Location {
     public final int id;
     public final String name;
+    // Coordinates, NaN when not provided
+    public double lat = Double.NaN;
+    public double lng = Double.NaN;
     public Route nextRoute;
     public Route prevRoute;
+    // Any further routes, to branches and other highways, or null when there are none
+    public ArrayList<Route> branches;
     public Location(int id, String name) {
         this.id = id;
         this.name = name;
     }
+
+    // Add a route the same way a network file lists them
+    // The first route each way continues the corridor, any others are branches, and routes back here go nowhere so they are dropped
+    public void addRoute(Route route) {
+        if(route.toId > id && nextRoute == null) {
+            nextRoute = route;
+        } else if(route.toId < id && prevRoute == null) {
+            prevRoute = route;
+        } else if(route.toId != id) {
+            if(branches == null) branches = new ArrayList<Route>();
+            branches.add(route);
+        }
+    }
 }
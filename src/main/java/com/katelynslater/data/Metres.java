@@ -0,0 +1,24 @@
+package com.katelynslater.data;
+
+// Route distances are held as whole metres in a long from the loader on, through the stores, indexes and searches to pricing
+// Integer sums are exact, so a distance comes out the same whichever order it is added up in, on any thread or store
+// Kilometres as a double are only a view at the edges: the calculateDistance() family of queries, and what is printed
+public final class Metres {
+    private Metres() {}
+
+    public static final long PER_KM = 1000;
+    // Distances in km are read and written with this many decimal places, which is whole metres
+    public static final int KM_DECIMALS = 3;
+    // Returned in place of a distance when there is no path, and held by searches for indexes they haven't reached
+    // It sorts after every real distance, so shortest path searches need no special case for it
+    public static final long UNREACHABLE = Long.MAX_VALUE;
+
+    // Round a distance in km to the nearest metre, km values made by toKm() always round trip
+    public static long fromKm(double km) {
+        return Math.round(km * PER_KM);
+    }
+
+    public static double toKm(long metres) {
+        return metres / (double)PER_KM;
+    }
+}
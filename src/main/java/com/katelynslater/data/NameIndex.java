@@ -0,0 +1,227 @@
+package com.katelynslater.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Case-insensitive index of location names, with exact and prefix lookups that don't allocate
+// Names are case folded once when the index is built, and queries are folded a character at a time as they are compared
+// Exact lookups go through a hash table, prefix lookups binary search the folded names in sorted order
+// The index is held in NIO buffers, so the same code answers from heap arrays and from a mapped snapshot
+//
+// Layout (little endian):
+//   int size, int slotCount, int charCount
+//   int[size + 1] offsets, int[size] ids, int[slotCount] slots, char[charCount] folded names
+public class NameIndex {
+    // Returned by positionOf() when there is no such name
+    public static final int MISSING = -1;
+
+    private static final int HEADER_BYTES = 12;
+
+    private final int size;
+    private final int mask;
+
+    // Folded names back to back in sorted order, and the offset of each one
+    private final CharBuffer chars;
+    private final IntBuffer offsets;
+    // The location ID for each sorted position
+    private final IntBuffer ids;
+    // Hash table of sorted positions, MISSING when empty
+    private final IntBuffer slots;
+
+    private NameIndex(int size, CharBuffer chars, IntBuffer offsets, IntBuffer ids, IntBuffer slots) {
+        this.size = size;
+        this.chars = chars;
+        this.offsets = offsets;
+        this.ids = ids;
+        this.slots = slots;
+        this.mask = slots.capacity() - 1;
+    }
+
+    // Build an index of every name in a store
+    // When several locations share a name, exact lookups find the lowest ID
+    public static NameIndex build(NetworkStore store) {
+        int size = store.size();
+
+        // Fold every name
+        String[] folded = new String[size];
+        Integer[] order = new Integer[size];
+        for(int i = 0; i < size; i++) {
+            folded[i] = fold(store.nameAt(i));
+            order[i] = i;
+        }
+
+        // Sort by folded name, then by ID so the lowest ID comes first
+        Arrays.sort(order, (a, b) -> {
+            int compared = folded[a].compareTo(folded[b]);
+            return compared != 0 ? compared : Integer.compare(store.idAt(a), store.idAt(b));
+        });
+
+        int charCount = 0;
+        for(String name : folded) charCount += name.length();
+        char[] chars = new char[charCount];
+        int[] offsets = new int[size + 1];
+        int[] ids = new int[size];
+        int offset = 0;
+        for(int position = 0; position < size; position++) {
+            int index = order[position];
+            offsets[position] = offset;
+            folded[index].getChars(0, folded[index].length(), chars, offset);
+            offset += folded[index].length();
+            ids[position] = store.idAt(index);
+        }
+        offsets[size] = offset;
+
+        // Keep the hash table at or below a load factor of 0.5
+        int[] slots = new int[Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1];
+        Arrays.fill(slots, MISSING);
+        int mask = slots.length - 1;
+        for(int position = 0; position < size; position++) {
+            // Only the first of any duplicate names goes in the table
+            if(position > 0 && folded[order[position]].equals(folded[order[position - 1]])) continue;
+            int slot = hash(folded[order[position]]) & mask;
+            while(slots[slot] != MISSING) slot = (slot + 1) & mask;
+            slots[slot] = position;
+        }
+
+        return new NameIndex(size, CharBuffer.wrap(chars), IntBuffer.wrap(offsets), IntBuffer.wrap(ids), IntBuffer.wrap(slots));
+    }
+
+    // Wrap arrays that already hold an index, in the same order as the layout, such as the generated BundledNetwork
+    static NameIndex wrap(int[] offsets, int[] ids, int[] slots, char[] chars) {
+        return new NameIndex(ids.length, CharBuffer.wrap(chars), IntBuffer.wrap(offsets), IntBuffer.wrap(ids), IntBuffer.wrap(slots));
+    }
+
+    // Wrap an index written by write(), starting at the buffer's position, without copying it
+    public static NameIndex wrap(ByteBuffer source) {
+        ByteBuffer buffer = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.getInt(0);
+        int slotCount = buffer.getInt(4);
+        int charCount = buffer.getInt(8);
+
+        int offsetsOffset = HEADER_BYTES;
+        int idsOffset = offsetsOffset + 4 * (size + 1);
+        int slotsOffset = idsOffset + 4 * size;
+        int charsOffset = slotsOffset + 4 * slotCount;
+        return new NameIndex(size,
+                section(buffer, charsOffset, 2 * charCount).asCharBuffer(),
+                section(buffer, offsetsOffset, 4 * (size + 1)).asIntBuffer(),
+                section(buffer, idsOffset, 4 * size).asIntBuffer(),
+                section(buffer, slotsOffset, 4 * slotCount).asIntBuffer());
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int offset, int length) {
+        return buffer.duplicate().position(offset).limit(offset + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // The number of bytes write() needs
+    public int layoutBytes() {
+        return HEADER_BYTES + 4 * (size + 1) + 4 * size + 4 * slots.capacity() + 2 * chars.capacity();
+    }
+
+    // Write the index to a buffer, starting at its position
+    public void write(ByteBuffer target) {
+        ByteOrder order = target.order();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        target.putInt(size);
+        target.putInt(slots.capacity());
+        target.putInt(chars.capacity());
+        for(int i = 0; i <= size; i++) target.putInt(offsets.get(i));
+        for(int i = 0; i < size; i++) target.putInt(ids.get(i));
+        for(int i = 0; i < slots.capacity(); i++) target.putInt(slots.get(i));
+        for(int i = 0; i < chars.capacity(); i++) target.putChar(chars.get(i));
+        target.order(order);
+    }
+
+    // The number of names indexed
+    public int size() {
+        return size;
+    }
+
+    // The location ID at a sorted position
+    public int idAt(int position) {
+        return ids.get(position);
+    }
+
+    // Return the sorted position of a name, ignoring case, or MISSING
+    public int positionOf(CharSequence name) {
+        int slot = hash(name) & mask;
+        int position;
+        while((position = slots.get(slot)) != MISSING) {
+            if(compare(position, name, name.length()) == 0 && nameLength(position) == name.length()) return position;
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    // Return the first sorted position whose name starts with the prefix, ignoring case, or MISSING
+    // Matches are at consecutive positions from there, check them with startsWith()
+    public int firstPositionWithPrefix(CharSequence prefix) {
+        // Find the first name that is not less than the prefix
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(compare(mid, prefix, prefix.length()) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low < size && startsWith(low, prefix) ? low : MISSING;
+    }
+
+    // Whether the name at a sorted position starts with the prefix, ignoring case
+    public boolean startsWith(int position, CharSequence prefix) {
+        return position < size && nameLength(position) >= prefix.length() && compare(position, prefix, prefix.length()) == 0;
+    }
+
+    // Write the IDs of up to ids.length names starting with the prefix, returning how many were written
+    public int complete(CharSequence prefix, int[] results) {
+        int count = 0;
+        int position = firstPositionWithPrefix(prefix);
+        if(position == MISSING) return 0;
+        while(count < results.length && startsWith(position, prefix)) results[count++] = ids.get(position++);
+        return count;
+    }
+
+    // Approximate number of bytes used by the index
+    public long footprintBytes() {
+        return layoutBytes();
+    }
+
+    private int nameLength(int position) {
+        return offsets.get(position + 1) - offsets.get(position);
+    }
+
+    // Compare the first length characters of the name at a position with a query, folding the query as it goes
+    // A name shorter than length compares as less when it is a prefix of the query
+    private int compare(int position, CharSequence query, int length) {
+        int start = offsets.get(position);
+        int nameLength = offsets.get(position + 1) - start;
+        int shared = Math.min(nameLength, length);
+        for(int i = 0; i < shared; i++) {
+            int compared = Character.compare(chars.get(start + i), fold(query.charAt(i)));
+            if(compared != 0) return compared;
+        }
+        return nameLength < length ? -1 : 0;
+    }
+
+    // Fold a character for case-insensitive comparison, independent of the default locale
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static String fold(String name) {
+        char[] folded = new char[name.length()];
+        for(int i = 0; i < folded.length; i++) folded[i] = fold(name.charAt(i));
+        return new String(folded);
+    }
+
+    // Hash a name as if it were folded
+    private static int hash(CharSequence name) {
+        int h = 0;
+        for(int i = 0; i < name.length(); i++) h = 31 * h + fold(name.charAt(i));
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
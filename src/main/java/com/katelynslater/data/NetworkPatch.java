@@ -0,0 +1,235 @@
+package com.katelynslater.data;
+
+import com.katelynslater.json.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A list of edits to a loaded network, applied in order by Interchanges.applyPatch()
+//
+// Patch files are JSON:
+// {"edits": [
+//   {"op": "distance", "fromId": 3, "toId": 4, "distance": 2.5},
+//   {"op": "rename", "id": 3, "name": "Dundas Street"},
+//   {"op": "add", "id": 60, "name": "Trafalgar Road", "lat": 43.5, "lng": -79.7, "routes": [{"toId": 4, "distance": 1.5}]},
+//   {"op": "remove", "id": 7}
+// ]}
+// Distances set both directions of the routes between two linked locations
+// Added locations are linked both ways to each of their routes, the same way a network file lists them
+// Removing a location drops every route to it, which splits its segment in two
+public class NetworkPatch {
+    // Exception used when a patch file is not valid, or doesn't fit the network it is applied to
+    public class InvalidPatch extends IOException {
+        public InvalidPatch(String message) {
+            super(message);
+        }
+    }
+
+    public enum Kind { Distance, Rename, Add, Remove }
+
+    // A single edit, only the fields its kind uses are set
+    public static class Edit {
+        public final Kind kind;
+        // The location edited, or the start of the routes for distances
+        public int id;
+        // The other end of the routes for distances
+        public int toId;
+        // In whole metres, -1 until it is set
+        public long metres = -1;
+        public String name;
+        public double lat = Double.NaN;
+        public double lng = Double.NaN;
+        // The routes of an added location
+        public List<Route> routes;
+
+        public Edit(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final List<Edit> edits = new ArrayList<Edit>();
+
+    // Set the distance in km of the routes between two locations, to the nearest metre
+    public NetworkPatch distance(int fromId, int toId, double km) {
+        // Anything that isn't a distance is left unset, so applying the patch rejects it
+        return metres(fromId, toId, km >= 0 && !Double.isInfinite(km) ? Metres.fromKm(km) : -1);
+    }
+
+    // Set the distance in whole metres of the routes between two locations
+    public NetworkPatch metres(int fromId, int toId, long metres) {
+        Edit edit = new Edit(Kind.Distance);
+        edit.id = fromId;
+        edit.toId = toId;
+        edit.metres = metres;
+        edits.add(edit);
+        return this;
+    }
+
+    public NetworkPatch rename(int id, String name) {
+        Edit edit = new Edit(Kind.Rename);
+        edit.id = id;
+        edit.name = name;
+        edits.add(edit);
+        return this;
+    }
+
+    // Add a location with its routes, the destinations are ignored
+    public NetworkPatch add(Location location, List<Route> routes) {
+        Edit edit = new Edit(Kind.Add);
+        edit.id = location.id;
+        edit.name = location.name;
+        edit.lat = location.lat;
+        edit.lng = location.lng;
+        edit.routes = routes;
+        edits.add(edit);
+        return this;
+    }
+
+    public NetworkPatch remove(int id) {
+        Edit edit = new Edit(Kind.Remove);
+        edit.id = id;
+        edits.add(edit);
+        return this;
+    }
+
+    public List<Edit> getEdits() {
+        return Collections.unmodifiableList(edits);
+    }
+
+    public int size() {
+        return edits.size();
+    }
+
+    // Whether every edit only changes distances, so the patch can be applied in place
+    public boolean isDistancesOnly() {
+        for(Edit edit : edits) {
+            if(edit.kind != Kind.Distance) return false;
+        }
+        return true;
+    }
+
+    // Read a patch file
+    public static NetworkPatch read(Reader reader) throws IOException {
+        NetworkPatch patch = new NetworkPatch();
+        JsonReader json = new JsonReader(reader);
+
+        json.beginObject();
+        while(json.hasNext()) {
+            if(!json.nextName().equals("edits")) {
+                json.skipValue();
+                continue;
+            }
+            json.beginArray();
+            while(json.hasNext()) patch.edits.add(readEdit(patch, json));
+            json.endArray();
+        }
+        json.endObject();
+        json.endDocument();
+        return patch;
+    }
+
+    // Read a single edit object, fields may come in any order
+    private static Edit readEdit(NetworkPatch errors, JsonReader json) throws IOException {
+        String op = null;
+        Integer id = null;
+        Integer toId = null;
+        long metres = -1;
+        String name = null;
+        double lat = Double.NaN;
+        double lng = Double.NaN;
+        List<Route> routes = null;
+
+        json.beginObject();
+        while(json.hasNext()) {
+            switch(json.nextName()) {
+                case "op":
+                    op = json.nextString();
+                    break;
+                case "id":
+                case "fromId":
+                    id = json.nextInt();
+                    break;
+                case "toId":
+                    toId = json.nextInt();
+                    break;
+                case "distance":
+                    metres = json.nextScaled(Metres.KM_DECIMALS);
+                    break;
+                case "name":
+                    name = json.nextString();
+                    break;
+                case "lat":
+                    lat = json.nextDouble();
+                    break;
+                case "lng":
+                    lng = json.nextDouble();
+                    break;
+                case "routes":
+                    routes = new ArrayList<Route>();
+                    json.beginArray();
+                    while(json.hasNext()) {
+                        Route route = new Route();
+                        route.toId = Integer.MIN_VALUE;
+                        route.metres = -1;
+                        json.beginObject();
+                        while(json.hasNext()) {
+                            switch(json.nextName()) {
+                                case "toId":
+                                    route.toId = json.nextInt();
+                                    break;
+                                case "distance":
+                                    route.metres = json.nextScaled(Metres.KM_DECIMALS);
+                                    break;
+                                default:
+                                    json.skipValue();
+                            }
+                        }
+                        json.endObject();
+                        if(route.toId == Integer.MIN_VALUE || route.metres < 0) throw errors.new InvalidPatch("Every route of an added location needs a toId and a distance of 0 or more");
+                        routes.add(route);
+                    }
+                    json.endArray();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if(op == null) throw errors.new InvalidPatch("Every edit needs an op");
+        if(id == null) throw errors.new InvalidPatch("The " + op + " edit needs an id");
+        Edit edit;
+        switch(op) {
+            case "distance":
+                if(toId == null) throw errors.new InvalidPatch("The distance edit for " + id + " needs a toId");
+                if(metres < 0) throw errors.new InvalidPatch("The distance edit for " + id + " needs a distance of 0 or more");
+                edit = new Edit(Kind.Distance);
+                edit.toId = toId;
+                edit.metres = metres;
+                break;
+            case "rename":
+                if(name == null) throw errors.new InvalidPatch("The rename edit for " + id + " needs a name");
+                edit = new Edit(Kind.Rename);
+                edit.name = name;
+                break;
+            case "add":
+                if(name == null) throw errors.new InvalidPatch("The add edit for " + id + " needs a name");
+                edit = new Edit(Kind.Add);
+                edit.name = name;
+                edit.lat = lat;
+                edit.lng = lng;
+                edit.routes = routes == null ? new ArrayList<Route>() : routes;
+                break;
+            case "remove":
+                edit = new Edit(Kind.Remove);
+                break;
+            default:
+                throw errors.new InvalidPatch("Unknown edit op \"" + op + "\"");
+        }
+        edit.id = id;
+        return edit;
+    }
+}
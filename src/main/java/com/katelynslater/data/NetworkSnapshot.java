@@ -0,0 +1,141 @@
+package com.katelynslater.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// A versioned binary snapshot of a connected network, answered straight from a memory-mapped file
+//
+// Layout (little endian):
+//   int magic, int version, long payloadLength, long checksum (CRC32C of the payload)
+//   payload:
+//     int storeLength, int nameIndexLength, int graphLength, int reserved
+//     byte[storeLength] store, in the BufferNetworkStore layout, padded to 8 bytes
+//     byte[nameIndexLength] name index, in the NameIndex layout, padded to 8 bytes
+//     byte[graphLength] graph, in the RoadGraph layout, empty when the network has no branches
+// Snapshots are rebuilt from the network file with --compile, so only the current version is read
+public class NetworkSnapshot {
+    // Exception used when a snapshot is truncated, corrupt or of an unsupported version
+    public class InvalidSnapshot extends IOException {
+        public InvalidSnapshot(String message) {
+            super(message);
+        }
+    }
+
+    // "ETRS" in ASCII
+    public static final int MAGIC = 0x45545253;
+    public static final int VERSION = 5;
+    private static final int HEADER_BYTES = 24;
+    private static final int PAYLOAD_HEADER_BYTES = 16;
+
+    private final NetworkStore store;
+    private final NameIndex nameIndex;
+    private final RoadGraph graph;
+
+    // Map a snapshot file, verifying its header and checksum before anything is read from it
+    public NetworkSnapshot(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_BYTES) throw new InvalidSnapshot("The snapshot is too short to hold a header");
+            if(channel.size() > Integer.MAX_VALUE) throw new InvalidSnapshot("Snapshots larger than 2GB are not supported");
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(buffer.getInt(0) != MAGIC) throw new InvalidSnapshot("The file is not an interchanges snapshot");
+        int version = buffer.getInt(4);
+        if(version != VERSION) throw new InvalidSnapshot("Unsupported snapshot version " + version + ", expected " + VERSION);
+        long payloadLength = buffer.getLong(8);
+        if(payloadLength != buffer.capacity() - HEADER_BYTES) throw new InvalidSnapshot("The snapshot is truncated or has trailing data");
+
+        // Verify the checksum of the whole payload
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(HEADER_BYTES));
+        if(crc.getValue() != buffer.getLong(16)) throw new InvalidSnapshot("The snapshot checksum does not match, the file is corrupt");
+
+        int storeLength = buffer.getInt(HEADER_BYTES);
+        int nameIndexLength = buffer.getInt(HEADER_BYTES + 4);
+        int graphLength = buffer.getInt(HEADER_BYTES + 8);
+        int storeOffset = HEADER_BYTES + PAYLOAD_HEADER_BYTES;
+        int nameIndexOffset = storeOffset + pad(storeLength);
+        int graphOffset = nameIndexOffset + pad(nameIndexLength);
+        if(storeLength < 0 || nameIndexLength < 0 || graphLength < 0 || graphOffset + (long)graphLength != buffer.capacity())
+            throw new InvalidSnapshot("The snapshot sections do not match its length");
+
+        store = new BufferNetworkStore(buffer.duplicate().position(storeOffset).limit(storeOffset + storeLength));
+        nameIndex = NameIndex.wrap(buffer.duplicate().position(nameIndexOffset).limit(nameIndexOffset + nameIndexLength));
+        graph = graphLength == 0 ? null : RoadGraph.wrap(buffer.duplicate().position(graphOffset).limit(graphOffset + graphLength));
+    }
+
+    // Write a snapshot of a store, its name index and its graph, which may be null, to a file, replacing it if it exists
+    public static void write(NetworkStore store, NameIndex nameIndex, RoadGraph graph, Path path) throws IOException {
+        int storeLength = BufferNetworkStore.layoutBytes(store);
+        int nameIndexLength = nameIndex.layoutBytes();
+        int graphLength = graph == null ? 0 : graph.layoutBytes();
+        long totalBytes = HEADER_BYTES + PAYLOAD_HEADER_BYTES + pad(storeLength) + (long)pad(nameIndexLength) + graphLength;
+        if(totalBytes > Integer.MAX_VALUE) throw new IOException("Snapshots larger than 2GB are not supported");
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Write straight into the mapped file rather than building it on the heap
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, totalBytes);
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.position(HEADER_BYTES);
+            buffer.putInt(storeLength);
+            buffer.putInt(nameIndexLength);
+            buffer.putInt(graphLength);
+            buffer.putInt(0);
+            BufferNetworkStore.write(store, buffer);
+            buffer.position(HEADER_BYTES + PAYLOAD_HEADER_BYTES + pad(storeLength));
+            nameIndex.write(buffer);
+            if(graph != null) {
+                buffer.position(HEADER_BYTES + PAYLOAD_HEADER_BYTES + pad(storeLength) + pad(nameIndexLength));
+                graph.write(buffer);
+            }
+
+            // Finally the header, with the checksum of everything after it
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().position(HEADER_BYTES).limit((int)totalBytes));
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, totalBytes - HEADER_BYTES);
+            buffer.putLong(16, crc.getValue());
+            mapped.force();
+        }
+    }
+
+    // Check whether a file starts with the snapshot magic number
+    public static boolean isSnapshot(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while(magic.hasRemaining() && channel.read(magic) > 0);
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // The network held in the snapshot
+    public NetworkStore getStore() {
+        return store;
+    }
+
+    // The name index held in the snapshot
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    // The graph held in the snapshot, or null when the network has no branches
+    public RoadGraph getGraph() {
+        return graph;
+    }
+
+    // Round a section length up to a multiple of 8 bytes
+    private static int pad(int length) {
+        return (length + 7) & ~7;
+    }
+}
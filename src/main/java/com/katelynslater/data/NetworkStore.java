@@ -0,0 +1,80 @@
+package com.katelynslater.data;
+
+// Compact storage for a connected interchange network, read-only apart from the distances of an editable store
+// Interchanges are addressed by a dense index (0 to size()-1, in ascending ID order) rather than by ID,
+// so every property is a flat array lookup instead of a pointer chase through Location and Route objects
+public interface NetworkStore {
+    // Returned by indexOf() and the route accessors when there is no such interchange
+    int MISSING = -1;
+
+    // The number of interchanges stored
+    int size();
+
+    // The dense index for an ID, or MISSING
+    int indexOf(int id);
+
+    // The ID and name of the interchange at a dense index
+    int idAt(int index);
+    String nameAt(int index);
+
+    // The dense index and distance in metres of the next route (towards higher IDs), or MISSING
+    int nextAt(int index);
+    long nextMetresAt(int index);
+
+    // The dense index and distance in metres of the previous route (towards lower IDs), or MISSING
+    int prevAt(int index);
+    long prevMetresAt(int index);
+
+    // The connected segment the interchange belongs to, and its distance in metres from the start of that segment
+    int segmentAt(int index);
+    long cumulativeMetresAt(int index);
+
+    // The distance in metres from the interchange back down to the start of its segment
+    // Each step down the chain is driven along the previous route listed back, or the next route up when none is
+    long cumulativeDownMetresAt(int index);
+
+    // The distance in metres driven along a segment from one of its interchanges to another
+    // Chains run up the IDs, so within a segment the dense indexes are in chain order and a lower end means heading down
+    default long metresAlong(int startIndex, int endIndex) {
+        if(startIndex <= endIndex) return cumulativeMetresAt(endIndex) - cumulativeMetresAt(startIndex);
+        return cumulativeDownMetresAt(startIndex) - cumulativeDownMetresAt(endIndex);
+    }
+
+    // The distance in metres driven down a chain link from its upper end to its lower one
+    static long downMetres(NetworkStore store, int low, int high) {
+        return store.prevAt(high) == low ? store.prevMetresAt(high) : store.nextMetresAt(low);
+    }
+
+    // The same distances in km
+    default double nextDistanceAt(int index) {
+        return Metres.toKm(nextMetresAt(index));
+    }
+    default double prevDistanceAt(int index) {
+        return Metres.toKm(prevMetresAt(index));
+    }
+    default double cumulativeAt(int index) {
+        return Metres.toKm(cumulativeMetresAt(index));
+    }
+    default double distanceAlong(int startIndex, int endIndex) {
+        return Metres.toKm(metresAlong(startIndex, endIndex));
+    }
+
+    // Counts the edits made to the distances in place, anything compiled from the distances is stale once it changes
+    // Stores that can't be edited stay at 0
+    default long version() {
+        return 0;
+    }
+
+    // The lower index of each chain link edited since a version, so anything compiled from the distances can catch up on just those
+    // Null when the store no longer knows, and whatever was compiled has to start again
+    default int[] editedSince(long version) {
+        return version == version() ? new int[0] : null;
+    }
+
+    // Coordinates of the interchange, NaN when unknown
+    double latAt(int index);
+    double lngAt(int index);
+
+    // Approximate number of bytes used to hold this network
+    long footprintBytes();
+}
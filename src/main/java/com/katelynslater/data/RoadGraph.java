@@ -0,0 +1,236 @@
+package com.katelynslater.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Adjacency lists for networks with branches, and interchanges between highways, by dense index
+// Only built when some location has more routes than its next and previous ones, or its routes don't follow the chains of the cumulative index,
+// linear networks don't need it
+// Edges are directed: each route a location lists is an edge from it, with the distance it lists, so a route can be longer one way
+// A route only listed from one end can still be driven both ways, so it gets a reverse edge of the same distance
+// Segments whose routes all stay inside them, and agree with the cumulative index, are marked linear and keep their fast path
+// The graph is held in NIO buffers, so the same code answers from heap arrays and from a mapped snapshot
+//
+// Layout (little endian):
+//   int size, int edgeCount, int segmentCount, int reserved
+//   long[edgeCount] edge distances in metres, int[size + 1] first edge of each index, int[edgeCount] edge targets, int[segmentCount] linear flags
+public class RoadGraph {
+    private static final int HEADER_BYTES = 16;
+
+    private final int size;
+    private final int edgeCount;
+    // The edges leaving index i are edgeStart[i] to edgeStart[i + 1]
+    private final IntBuffer edgeStart;
+    private final IntBuffer edgeTarget;
+    private final LongBuffer edgeMetres;
+    // 1 for segments that can be answered from the cumulative index
+    private final IntBuffer linear;
+
+    private RoadGraph(int size, int edgeCount, IntBuffer edgeStart, IntBuffer edgeTarget, LongBuffer edgeMetres, IntBuffer linear) {
+        this.size = size;
+        this.edgeCount = edgeCount;
+        this.edgeStart = edgeStart;
+        this.edgeTarget = edgeTarget;
+        this.edgeMetres = edgeMetres;
+        this.linear = linear;
+    }
+
+    // Build the graph for connected Locations and the store compiled from them, or return null when the network is linear
+    public static RoadGraph build(List<Location> locations, NetworkStore store) {
+        boolean branched = false;
+        for(Location location : locations) {
+            if(location == null) continue;
+            if(location.branches != null && !location.branches.isEmpty() || !followsChain(store, location)) {
+                branched = true;
+                break;
+            }
+        }
+        if(!branched) return null;
+
+        // Count the edges leaving each index, each route from its location, and back again when the other end doesn't list it
+        int size = store.size();
+        int[] outgoing = new int[size];
+        for(Location location : locations) {
+            if(location == null) continue;
+            int from = store.indexOf(location.id);
+            countRoute(locations, store, location, from, location.nextRoute, outgoing);
+            countRoute(locations, store, location, from, location.prevRoute, outgoing);
+            if(location.branches != null) for(Route route : location.branches) countRoute(locations, store, location, from, route, outgoing);
+        }
+        int[] edgeStart = new int[size + 1];
+        for(int i = 0; i < size; i++) edgeStart[i + 1] = edgeStart[i] + outgoing[i];
+        int edgeCount = edgeStart[size];
+
+        // Then fill them in
+        int[] edgeTarget = new int[edgeCount];
+        long[] edgeMetres = new long[edgeCount];
+        int[] fill = new int[size];
+        for(int i = 0; i < size; i++) fill[i] = edgeStart[i];
+        for(Location location : locations) {
+            if(location == null) continue;
+            int from = store.indexOf(location.id);
+            addRoute(locations, store, location, from, location.nextRoute, fill, edgeTarget, edgeMetres);
+            addRoute(locations, store, location, from, location.prevRoute, fill, edgeTarget, edgeMetres);
+            if(location.branches != null) for(Route route : location.branches) addRoute(locations, store, location, from, route, fill, edgeTarget, edgeMetres);
+        }
+
+        // A segment is linear when no edge leaves it or shortcuts its cumulative distances
+        int segmentCount = 0;
+        for(int i = 0; i < size; i++) segmentCount = Math.max(segmentCount, store.segmentAt(i) + 1);
+        int[] linear = new int[segmentCount];
+        Arrays.fill(linear, 1);
+        for(int from = 0; from < size; from++) {
+            int segment = store.segmentAt(from);
+            for(int edge = edgeStart[from]; edge < edgeStart[from + 1]; edge++) {
+                int to = edgeTarget[edge];
+                if(store.segmentAt(to) != segment) {
+                    linear[segment] = 0;
+                    linear[store.segmentAt(to)] = 0;
+                    continue;
+                }
+                // Both are whole metres, so there is no rounding to allow for
+                if(edgeMetres[edge] < store.metresAlong(from, to)) linear[segment] = 0;
+            }
+        }
+        // Nor may the way back down the chain be any longer than the index, as when a branch rather than the previous route lists it
+        for(int from = 0; from < size; from++) {
+            int to = store.nextAt(from);
+            if(to == NetworkStore.MISSING || store.segmentAt(to) != store.segmentAt(from)) continue;
+            long back = Metres.UNREACHABLE;
+            for(int edge = edgeStart[to]; edge < edgeStart[to + 1]; edge++) {
+                if(edgeTarget[edge] == from) back = Math.min(back, edgeMetres[edge]);
+            }
+            if(back != store.metresAlong(to, from)) linear[store.segmentAt(from)] = 0;
+        }
+
+        return new RoadGraph(size, edgeCount, IntBuffer.wrap(edgeStart), IntBuffer.wrap(edgeTarget), LongBuffer.wrap(edgeMetres), IntBuffer.wrap(linear));
+    }
+
+    // Whether a location's routes are the links of its chain in the cumulative index, so the index alone can answer them
+    // Two next routes into one location, or a next route heading down the IDs, break the chain, and the route left out needs the graph
+    // So does a previous route to a location whose next route leads anywhere else, one whose next route wasn't listed only ends a chain
+    private static boolean followsChain(NetworkStore store, Location location) {
+        int from = store.indexOf(location.id);
+        if(location.nextRoute != null) {
+            int to = store.indexOf(location.nextRoute.toId);
+            if(to <= from || store.segmentAt(to) != store.segmentAt(from)) return false;
+        }
+        if(location.prevRoute != null) {
+            int to = store.indexOf(location.prevRoute.toId);
+            int toNext = store.nextAt(to);
+            if(toNext != NetworkStore.MISSING && (toNext != from || store.segmentAt(to) != store.segmentAt(from))) return false;
+        }
+        return true;
+    }
+
+    private static void countRoute(List<Location> locations, NetworkStore store, Location location, int from, Route route, int[] outgoing) {
+        if(route == null) return;
+        outgoing[from]++;
+        if(!listsRoute(locations.get(route.toId), location.id)) outgoing[store.indexOf(route.toId)]++;
+    }
+
+    private static void addRoute(List<Location> locations, NetworkStore store, Location location, int from, Route route, int[] fill, int[] edgeTarget, long[] edgeMetres) {
+        if(route == null) return;
+        int to = store.indexOf(route.toId);
+        edgeTarget[fill[from]] = to;
+        edgeMetres[fill[from]++] = route.metres;
+        if(listsRoute(locations.get(route.toId), location.id)) return;
+        edgeTarget[fill[to]] = from;
+        edgeMetres[fill[to]++] = route.metres;
+    }
+
+    // Whether a location lists a route to an ID, so the way back is its own edge
+    private static boolean listsRoute(Location location, int toId) {
+        if(location.nextRoute != null && location.nextRoute.toId == toId) return true;
+        if(location.prevRoute != null && location.prevRoute.toId == toId) return true;
+        if(location.branches != null) {
+            for(Route route : location.branches) if(route.toId == toId) return true;
+        }
+        return false;
+    }
+
+    // Wrap arrays that already hold a graph, such as the generated BundledNetwork
+    static RoadGraph wrap(int[] edgeStart, int[] edgeTarget, long[] edgeMetres, int[] linear) {
+        return new RoadGraph(edgeStart.length - 1, edgeTarget.length, IntBuffer.wrap(edgeStart), IntBuffer.wrap(edgeTarget), LongBuffer.wrap(edgeMetres), IntBuffer.wrap(linear));
+    }
+
+    // Wrap a graph written by write(), starting at the buffer's position, without copying it
+    public static RoadGraph wrap(ByteBuffer source) {
+        ByteBuffer buffer = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.getInt(0);
+        int edgeCount = buffer.getInt(4);
+        int segmentCount = buffer.getInt(8);
+
+        int distancesOffset = HEADER_BYTES;
+        int startsOffset = distancesOffset + 8 * edgeCount;
+        int targetsOffset = startsOffset + 4 * (size + 1);
+        int linearOffset = targetsOffset + 4 * edgeCount;
+        return new RoadGraph(size, edgeCount,
+                section(buffer, startsOffset, 4 * (size + 1)).asIntBuffer(),
+                section(buffer, targetsOffset, 4 * edgeCount).asIntBuffer(),
+                section(buffer, distancesOffset, 8 * edgeCount).asLongBuffer(),
+                section(buffer, linearOffset, 4 * segmentCount).asIntBuffer());
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int offset, int length) {
+        return buffer.duplicate().position(offset).limit(offset + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // The number of bytes write() needs
+    public int layoutBytes() {
+        return HEADER_BYTES + 8 * edgeCount + 4 * (size + 1) + 4 * edgeCount + 4 * linear.capacity();
+    }
+
+    // Write the graph to a buffer, starting at its position
+    public void write(ByteBuffer target) {
+        ByteOrder order = target.order();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        target.putInt(size);
+        target.putInt(edgeCount);
+        target.putInt(linear.capacity());
+        target.putInt(0);
+        for(int i = 0; i < edgeCount; i++) target.putLong(edgeMetres.get(i));
+        for(int i = 0; i <= size; i++) target.putInt(edgeStart.get(i));
+        for(int i = 0; i < edgeCount; i++) target.putInt(edgeTarget.get(i));
+        for(int i = 0; i < linear.capacity(); i++) target.putInt(linear.get(i));
+        target.order(order);
+    }
+
+    // The number of locations in the graph
+    public int size() {
+        return size;
+    }
+
+    // The number of edges, each route is one from the location that lists it, plus one back when the other end doesn't
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    // The first edge leaving an index, its edges run up to firstEdge(index + 1)
+    public int firstEdge(int index) {
+        return edgeStart.get(index);
+    }
+
+    public int edgeTarget(int edge) {
+        return edgeTarget.get(edge);
+    }
+
+    // The distance of an edge in metres
+    public long edgeMetres(int edge) {
+        return edgeMetres.get(edge);
+    }
+
+    // Whether a segment can be answered from the cumulative index
+    public boolean isLinear(int segment) {
+        return linear.get(segment) != 0;
+    }
+
+    // Approximate number of bytes used by the graph
+    public long footprintBytes() {
+        return layoutBytes();
+    }
+}
@@ -2,6 +2,7 @@ package com.katelynslater.data;
 
 public class Route {
     public int toId;
-    public double distance;
+    // In whole metres, exactly as the network file or patch gave it in km
+    public long metres;
     public Location destination;
 }
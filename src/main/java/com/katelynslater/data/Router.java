@@ -0,0 +1,434 @@
+package com.katelynslater.data;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Shortest paths over a RoadGraph, by dense index
+// Point queries run A* guided by landmarks (ALT), distances from and to a few far apart landmarks are found once,
+// and the triangle inequality turns them into lower bounds that steer the search towards the destination
+// Edges are directed, a route may be longer one way than the other, so each landmark needs both ways
+// Sources that are queried again get their whole shortest path tree computed and cached, so later queries from them are a lookup
+// Every search borrows scratch arrays from a small pool and returns them after, so queries run in parallel without sharing them
+// The pool holds one per processor rather than one per thread, as virtual threads would each allocate their own and keep it
+// Distances are whole metres, so every search adds them up exactly and the same path always gets the same distance
+class Router {
+    // The most landmarks to choose, each costs one long per location
+    static final int MAX_LANDMARKS = 8;
+    // The heap cached trees may use, between them
+    static final long CACHE_BYTES = 64L << 20;
+
+    private final RoadGraph graph;
+    private final int size;
+    // Connected component of each index, so disconnected pairs are answered without searching
+    private final int[] component;
+    // The edges arriving at each index, inStart[i] to inStart[i + 1], for searching backwards to a landmark
+    private final int[] inStart;
+    private final int[] inSource;
+    private final long[] inMetres;
+    // Distance in metres from each landmark to every index, and from every index to each landmark
+    private final long[][] landmarks;
+    private final long[][] toLandmarks;
+
+    // Shortest path trees by source, least recently used first
+    private final int cacheCapacity;
+    private final LinkedHashMap<Integer, Tree> trees;
+    // Sources queried once, which will be cached if they are queried again
+    private final LinkedHashMap<Integer, Boolean> seen;
+
+    // Idle scratch space, a search that finds it empty allocates more, and space returned to a full pool is dropped
+    private final ArrayBlockingQueue<Search> searches;
+
+    // A complete shortest path tree from one source
+    private static class Tree {
+        final long[] distance;
+        final int[] parent;
+
+        Tree(long[] distance, int[] parent) {
+            this.distance = distance;
+            this.parent = parent;
+        }
+    }
+
+    Router(RoadGraph graph) {
+        this.graph = graph;
+        this.size = graph.size();
+        this.searches = new ArrayBlockingQueue<Search>(Runtime.getRuntime().availableProcessors());
+        this.component = findComponents();
+
+        // Reverse the edges, counting the edges arriving at each index then filling them in
+        inStart = new int[size + 1];
+        for(int edge = 0; edge < graph.edgeCount(); edge++) inStart[graph.edgeTarget(edge) + 1]++;
+        for(int i = 0; i < size; i++) inStart[i + 1] += inStart[i];
+        inSource = new int[graph.edgeCount()];
+        inMetres = new long[graph.edgeCount()];
+        int[] fill = Arrays.copyOf(inStart, size);
+        for(int from = 0; from < size; from++) {
+            for(int edge = graph.firstEdge(from); edge < graph.firstEdge(from + 1); edge++) {
+                int to = graph.edgeTarget(edge);
+                inSource[fill[to]] = from;
+                inMetres[fill[to]++] = graph.edgeMetres(edge);
+            }
+        }
+
+        long[][] fromLandmarks = new long[Math.min(MAX_LANDMARKS, size)][];
+        int[] chosen = chooseLandmarks(fromLandmarks);
+        landmarks = Arrays.copyOf(fromLandmarks, chosen.length);
+        toLandmarks = new long[chosen.length][];
+        for(int i = 0; i < chosen.length; i++) {
+            toLandmarks[i] = new long[size];
+            Search search = borrow();
+            search.toward(chosen[i], toLandmarks[i]);
+            release(search);
+        }
+
+        cacheCapacity = (int)Math.max(1, Math.min(1024, CACHE_BYTES / (12L * Math.max(1, size))));
+        trees = new LinkedHashMap<Integer, Tree>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tree> eldest) {
+                return size() > cacheCapacity;
+            }
+        };
+        seen = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > cacheCapacity * 4;
+            }
+        };
+    }
+
+    // The shortest distance in metres between two indexes, or Metres.UNREACHABLE when they are not connected
+    long distance(int start, int end) {
+        if(component[start] != component[end]) return Metres.UNREACHABLE;
+        if(start == end) return 0;
+        Tree tree = treeFor(start);
+        if(tree != null) return tree.distance[end];
+        Search search = borrow();
+        try {
+            return search.route(start, end);
+        } finally {
+            release(search);
+        }
+    }
+
+    // The indexes along the shortest path between two indexes, including both ends, or null when they are not connected
+    int[] path(int start, int end) {
+        if(component[start] != component[end]) return null;
+        if(start == end) return new int[] {start};
+
+        // Walk back from the end, then reverse, holding on to the search until its parents are read
+        Search search = borrow();
+        try {
+            int[] parent = parentsFor(start, end, search);
+            int length = 1;
+            for(int index = end; index != start; index = parent[index]) length++;
+            int[] path = new int[length];
+            int position = length;
+            for(int index = end; ; index = parent[index]) {
+                path[--position] = index;
+                if(index == start) break;
+            }
+            return path;
+        } finally {
+            release(search);
+        }
+    }
+
+    // Fill an itinerary with the indexes along the shortest path between two indexes, returning false when they are not connected
+    // Nothing is allocated once the itinerary's buffers are large enough
+    boolean path(int start, int end, Itinerary itinerary) {
+        if(component[start] != component[end]) return false;
+        if(start == end) {
+            itinerary.reset(itinerary.store, 1);
+            itinerary.path[0] = start;
+            return true;
+        }
+
+        Search search = borrow();
+        try {
+            int[] parent = parentsFor(start, end, search);
+            int length = 1;
+            for(int index = end; index != start; index = parent[index]) length++;
+            itinerary.reset(itinerary.store, length);
+            int position = length;
+            for(int index = end; ; index = parent[index]) {
+                itinerary.path[--position] = index;
+                if(index == start) break;
+            }
+            return true;
+        } finally {
+            release(search);
+        }
+    }
+
+    // The parent of each index on the way back to a source, from its cached tree or a search that reached the end
+    // A search's parents are scratch space, only good until the search is released
+    private int[] parentsFor(int start, int end, Search search) {
+        Tree tree = treeFor(start);
+        if(tree != null) return tree.parent;
+        search.route(start, end);
+        return search.parent;
+    }
+
+    // Fill in the shortest distance in metres from an index to every other, Metres.UNREACHABLE where they are not connected
+    // This doesn't touch the cache, so sweeping every source doesn't evict the sources that are queried often
+    void distancesFrom(int start, long[] distances) {
+        Search search = borrow();
+        try {
+            search.full(start, distances, null);
+        } finally {
+            release(search);
+        }
+    }
+
+    // Scratch space for one search, from the pool when it has some
+    private Search borrow() {
+        Search search = searches.poll();
+        return search != null ? search : new Search(size);
+    }
+
+    private void release(Search search) {
+        searches.offer(search);
+    }
+
+    // Return the cached tree for a source, computing it if this is the second time the source was asked for, or null
+    private Tree treeFor(int start) {
+        Integer key = start;
+        synchronized(trees) {
+            Tree tree = trees.get(key);
+            if(tree != null) return tree;
+            if(seen.remove(key) == null) {
+                seen.put(key, Boolean.TRUE);
+                return null;
+            }
+        }
+
+        // Compute outside the lock, a source computed twice at once is just replaced
+        long[] distance = new long[size];
+        int[] parent = new int[size];
+        Search search = borrow();
+        try {
+            search.full(start, distance, parent);
+        } finally {
+            release(search);
+        }
+        Tree tree = new Tree(distance, parent);
+        synchronized(trees) {
+            trees.put(key, tree);
+        }
+        return tree;
+    }
+
+    // Label each index with its connected component
+    private int[] findComponents() {
+        int[] component = new int[size];
+        Arrays.fill(component, -1);
+        int[] stack = new int[Math.max(1, size)];
+        int count = 0;
+        for(int root = 0; root < size; root++) {
+            if(component[root] != -1) continue;
+            int top = 0;
+            stack[top++] = root;
+            component[root] = count;
+            while(top > 0) {
+                int index = stack[--top];
+                for(int edge = graph.firstEdge(index); edge < graph.firstEdge(index + 1); edge++) {
+                    int to = graph.edgeTarget(edge);
+                    if(component[to] != -1) continue;
+                    component[to] = count;
+                    stack[top++] = to;
+                }
+            }
+            count++;
+        }
+        return component;
+    }
+
+    // Choose landmarks far apart from each other, each one the index furthest from those already chosen
+    // Indexes no landmark reaches count as furthest, so every component gets landmarks while there are some to spare
+    // Returns the landmarks chosen, with the distances from each one filled in to distances
+    private int[] chooseLandmarks(long[][] distances) {
+        int count = distances.length;
+        if(count == 0) return new int[0];
+
+        Search search = borrow();
+        long[] nearest = new long[size];
+        Arrays.fill(nearest, Metres.UNREACHABLE);
+
+        // Start from the index furthest from index 0, rather than index 0 itself
+        long[] fromFirst = new long[size];
+        search.full(0, fromFirst, null);
+        int next = furthest(fromFirst);
+
+        int[] chosen = new int[count];
+        int chosenCount = 0;
+        while(chosenCount < count && next != -1) {
+            long[] from = new long[size];
+            search.full(next, from, null);
+            distances[chosenCount] = from;
+            chosen[chosenCount++] = next;
+            for(int i = 0; i < size; i++) nearest[i] = Math.min(nearest[i], from[i]);
+            next = furthest(nearest);
+        }
+        release(search);
+        return Arrays.copyOf(chosen, chosenCount);
+    }
+
+    // The index with the greatest distance, or -1 when every distance is 0
+    private static int furthest(long[] distances) {
+        int best = -1;
+        long bestDistance = 0;
+        for(int i = 0; i < distances.length; i++) {
+            if(distances[i] > bestDistance) {
+                best = i;
+                bestDistance = distances[i];
+            }
+        }
+        return best;
+    }
+
+    // A lower bound on the distance from one index to another in the same component
+    // Getting from a landmark to the end takes no longer than getting to the index then on to the end,
+    // and getting from the index to a landmark takes no longer than going by way of the end
+    private long lowerBound(int index, int end) {
+        long bound = 0;
+        for(int i = 0; i < landmarks.length; i++) {
+            long fromLandmark = landmarks[i][end];
+            if(fromLandmark == Metres.UNREACHABLE) continue;
+            bound = Math.max(bound, fromLandmark - landmarks[i][index]);
+            bound = Math.max(bound, toLandmarks[i][index] - toLandmarks[i][end]);
+        }
+        return bound;
+    }
+
+    // Scratch space for one search at a time
+    // Entries are only valid when their stamp matches the current search, so nothing is cleared between searches
+    private class Search {
+        final long[] distance;
+        final int[] parent;
+        final int[] reached;
+        final int[] settled;
+        int stamp = 0;
+
+        // Binary min-heap of indexes by priority, an index may appear more than once and the stale entries are skipped
+        long[] heapPriority = new long[64];
+        int[] heapIndex = new int[64];
+        int heapSize = 0;
+
+        Search(int size) {
+            distance = new long[size];
+            parent = new int[size];
+            reached = new int[size];
+            settled = new int[size];
+        }
+
+        // A* from start to end, returning the distance, or Metres.UNREACHABLE when end isn't reached
+        // The path can be read back through parent afterwards
+        long route(int start, int end) {
+            begin();
+            reach(start, 0, -1, lowerBound(start, end));
+            while(heapSize > 0) {
+                int index = pop();
+                if(settled[index] == stamp) continue;
+                settled[index] = stamp;
+                if(index == end) return distance[end];
+
+                long base = distance[index];
+                for(int edge = graph.firstEdge(index); edge < graph.firstEdge(index + 1); edge++) {
+                    int to = graph.edgeTarget(edge);
+                    if(settled[to] == stamp) continue;
+                    long candidate = base + graph.edgeMetres(edge);
+                    if(reached[to] != stamp || candidate < distance[to]) reach(to, candidate, index, candidate + lowerBound(to, end));
+                }
+            }
+            return Metres.UNREACHABLE;
+        }
+
+        // Dijkstra from start to every index, writing the distances and optionally the parents
+        void full(int start, long[] distances, int[] parents) {
+            sweep(start, distances, parents, false);
+        }
+
+        // Dijkstra backwards along the edges, writing the distance from every index to start
+        void toward(int start, long[] distances) {
+            sweep(start, distances, null, true);
+        }
+
+        private void sweep(int start, long[] distances, int[] parents, boolean backward) {
+            begin();
+            Arrays.fill(distances, Metres.UNREACHABLE);
+            reach(start, 0, -1, 0);
+            while(heapSize > 0) {
+                int index = pop();
+                if(settled[index] == stamp) continue;
+                settled[index] = stamp;
+                distances[index] = distance[index];
+                if(parents != null) parents[index] = parent[index];
+
+                long base = distance[index];
+                if(backward) {
+                    for(int edge = inStart[index]; edge < inStart[index + 1]; edge++) relax(index, inSource[edge], base + inMetres[edge]);
+                } else {
+                    for(int edge = graph.firstEdge(index); edge < graph.firstEdge(index + 1); edge++) relax(index, graph.edgeTarget(edge), base + graph.edgeMetres(edge));
+                }
+            }
+        }
+
+        private void relax(int from, int to, long candidate) {
+            if(settled[to] == stamp) return;
+            if(reached[to] != stamp || candidate < distance[to]) reach(to, candidate, from, candidate);
+        }
+
+        private void begin() {
+            heapSize = 0;
+            // Start the stamps over rather than let them wrap into old values
+            if(++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(reached, 0);
+                Arrays.fill(settled, 0);
+                stamp = 1;
+            }
+        }
+
+        private void reach(int index, long newDistance, int from, long priority) {
+            reached[index] = stamp;
+            distance[index] = newDistance;
+            parent[index] = from;
+            push(index, priority);
+        }
+
+        private void push(int index, long priority) {
+            if(heapSize == heapIndex.length) {
+                heapIndex = Arrays.copyOf(heapIndex, heapSize * 2);
+                heapPriority = Arrays.copyOf(heapPriority, heapSize * 2);
+            }
+            int position = heapSize++;
+            while(position > 0) {
+                int up = (position - 1) >>> 1;
+                if(heapPriority[up] <= priority) break;
+                heapIndex[position] = heapIndex[up];
+                heapPriority[position] = heapPriority[up];
+                position = up;
+            }
+            heapIndex[position] = index;
+            heapPriority[position] = priority;
+        }
+
+        private int pop() {
+            int top = heapIndex[0];
+            int lastIndex = heapIndex[--heapSize];
+            long lastPriority = heapPriority[heapSize];
+            int position = 0;
+            while(true) {
+                int child = position * 2 + 1;
+                if(child >= heapSize) break;
+                if(child + 1 < heapSize && heapPriority[child + 1] < heapPriority[child]) child++;
+                if(heapPriority[child] >= lastPriority) break;
+                heapIndex[position] = heapIndex[child];
+                heapPriority[position] = heapPriority[child];
+                position = child;
+            }
+            heapIndex[position] = lastIndex;
+            heapPriority[position] = lastPriority;
+            return top;
+        }
+    }
+}
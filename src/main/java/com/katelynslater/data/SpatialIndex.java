@@ -0,0 +1,250 @@
+package com.katelynslater.data;
+
+// A k-d tree over the coordinates in a NetworkStore, for finding the interchanges nearest a point
+// Points are placed on a unit sphere as x, y, z, where the straight line (chord) between two points orders them exactly as
+// the great circle distance does, so there's no distortion near the poles or across the antimeridian
+// The tree is implicit: each range of the arrays is split at its middle, on the axis its points spread furthest along
+// Locations without coordinates are left out
+public class SpatialIndex {
+    // Mean radius of the Earth
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    // The store the tree was built from, its dense indexes are what the tree holds
+    final NetworkStore store;
+    private final int count;
+    // Dense indexes in tree order, and the x, y, z of each one
+    private final int[] indexes;
+    private final double[] points;
+    // The axis each range was split on, stored at its middle
+    private final byte[] axes;
+
+    private SpatialIndex(NetworkStore store, int count, int[] indexes, double[] points, byte[] axes) {
+        this.store = store;
+        this.count = count;
+        this.indexes = indexes;
+        this.points = points;
+        this.axes = axes;
+    }
+
+    // Build the tree for every location in a store that has coordinates
+    public static SpatialIndex build(NetworkStore store) {
+        int size = store.size();
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            if(!Double.isNaN(store.latAt(i)) && !Double.isNaN(store.lngAt(i))) count++;
+        }
+
+        int[] indexes = new int[count];
+        double[] points = new double[3 * count];
+        int position = 0;
+        for(int i = 0; i < size; i++) {
+            double lat = store.latAt(i);
+            double lng = store.lngAt(i);
+            if(Double.isNaN(lat) || Double.isNaN(lng)) continue;
+            indexes[position] = i;
+            toPoint(lat, lng, points, 3 * position);
+            position++;
+        }
+
+        byte[] axes = new byte[count];
+        split(indexes, points, axes, 0, count);
+        return new SpatialIndex(store, count, indexes, points, axes);
+    }
+
+    // Arrange a range so its middle is the median on its widest axis, then do the same to each half
+    private static void split(int[] indexes, double[] points, byte[] axes, int low, int high) {
+        while(high - low > 1) {
+            // Find the axis the points spread furthest along
+            int axis = 0;
+            double widest = -1;
+            for(int a = 0; a < 3; a++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for(int i = low; i < high; i++) {
+                    double value = points[3 * i + a];
+                    if(value < min) min = value;
+                    if(value > max) max = value;
+                }
+                if(max - min > widest) {
+                    widest = max - min;
+                    axis = a;
+                }
+            }
+
+            int middle = (low + high) >>> 1;
+            select(indexes, points, axis, low, high - 1, middle);
+            axes[middle] = (byte)axis;
+
+            // Recurse into the smaller half and loop on the larger, so the stack stays shallow
+            if(middle - low < high - middle - 1) {
+                split(indexes, points, axes, low, middle);
+                low = middle + 1;
+            } else {
+                split(indexes, points, axes, middle + 1, high);
+                high = middle;
+            }
+        }
+    }
+
+    // Quickselect, leaving the k-th smallest on an axis at position k with nothing larger before it and nothing smaller after it
+    private static void select(int[] indexes, double[] points, int axis, int left, int right, int k) {
+        while(right > left) {
+            double pivot = points[3 * ((left + right) >>> 1) + axis];
+            int i = left;
+            int j = right;
+            while(i <= j) {
+                while(points[3 * i + axis] < pivot) i++;
+                while(points[3 * j + axis] > pivot) j--;
+                if(i <= j) {
+                    swap(indexes, points, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j) right = j;
+            else if(k >= i) left = i;
+            else return;
+        }
+    }
+
+    private static void swap(int[] indexes, double[] points, int a, int b) {
+        int index = indexes[a];
+        indexes[a] = indexes[b];
+        indexes[b] = index;
+        for(int i = 0; i < 3; i++) {
+            double value = points[3 * a + i];
+            points[3 * a + i] = points[3 * b + i];
+            points[3 * b + i] = value;
+        }
+    }
+
+    private static void toPoint(double lat, double lng, double[] points, int offset) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lng);
+        double cosPhi = Math.cos(phi);
+        points[offset] = cosPhi * Math.cos(lambda);
+        points[offset + 1] = cosPhi * Math.sin(lambda);
+        points[offset + 2] = Math.sin(phi);
+    }
+
+    // The great circle distance between two coordinates
+    public static double distanceKm(double lat1, double lng1, double lat2, double lng2) {
+        double halfLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double halfLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double a = halfLat * halfLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * halfLng * halfLng;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // The number of locations in the tree
+    public int size() {
+        return count;
+    }
+
+    // Write the dense indexes of up to indexes.length locations within maxKm of a point, nearest first, returning how many were written
+    // Their distances in km are written to distancesKm too, unless it is null
+    // Pass infinity as maxKm for the nearest locations however far away they are
+    public int nearest(double lat, double lng, double maxKm, int[] indexes, double[] distancesKm) {
+        if(indexes.length == 0 || count == 0 || Double.isNaN(lat) || Double.isNaN(lng) || !(maxKm >= 0)) return 0;
+
+        Search search = new Search(indexes.length);
+        toPoint(lat, lng, search.query, 0);
+        // Compare squared chords rather than distances, no point is further than the diameter
+        double angle = Math.min(maxKm / EARTH_RADIUS_KM, Math.PI);
+        double chord = 2 * Math.sin(angle / 2);
+        search.limit = maxKm >= Math.PI * EARTH_RADIUS_KM ? Double.POSITIVE_INFINITY : chord * chord;
+        search(search, 0, count);
+
+        // Empty the heap from the furthest down, so the results come out nearest first
+        int found = search.size;
+        for(int i = found - 1; i >= 0; i--) {
+            double chordSquared = search.heapDistance[0];
+            indexes[i] = this.indexes[search.heapPosition[0]];
+            if(distancesKm != null) distancesKm[i] = 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(chordSquared) / 2));
+            search.pop();
+        }
+        return found;
+    }
+
+    // Visit a range of the tree, nearer half first, skipping the other half when it can't hold anything closer
+    private void search(Search search, int low, int high) {
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            double[] query = search.query;
+            double dx = points[3 * middle] - query[0];
+            double dy = points[3 * middle + 1] - query[1];
+            double dz = points[3 * middle + 2] - query[2];
+            search.offer(middle, dx * dx + dy * dy + dz * dz);
+
+            int axis = axes[middle];
+            double difference = query[axis] - points[3 * middle + axis];
+            int nearLow = difference < 0 ? low : middle + 1;
+            int nearHigh = difference < 0 ? middle : high;
+            int farLow = difference < 0 ? middle + 1 : low;
+            int farHigh = difference < 0 ? high : middle;
+
+            search(search, nearLow, nearHigh);
+            if(difference * difference > search.bound()) return;
+            low = farLow;
+            high = farHigh;
+        }
+    }
+
+    // The state of one query, a max-heap of the closest positions found so far by squared chord
+    private static class Search {
+        final double[] query = new double[3];
+        final int[] heapPosition;
+        final double[] heapDistance;
+        int size = 0;
+        double limit;
+
+        Search(int capacity) {
+            heapPosition = new int[capacity];
+            heapDistance = new double[capacity];
+        }
+
+        // The squared chord a point must be within to be kept
+        double bound() {
+            return size == heapPosition.length ? Math.min(limit, heapDistance[0]) : limit;
+        }
+
+        void offer(int position, double distance) {
+            if(distance > limit) return;
+            if(size < heapPosition.length) {
+                // Sift up
+                int i = size++;
+                while(i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if(heapDistance[parent] >= distance) break;
+                    heapPosition[i] = heapPosition[parent];
+                    heapDistance[i] = heapDistance[parent];
+                    i = parent;
+                }
+                heapPosition[i] = position;
+                heapDistance[i] = distance;
+            } else if(distance < heapDistance[0]) {
+                // Replace the furthest
+                siftDown(position, distance, size);
+            }
+        }
+
+        void pop() {
+            size--;
+            if(size > 0) siftDown(heapPosition[size], heapDistance[size], size);
+        }
+
+        private void siftDown(int position, double distance, int heapSize) {
+            int i = 0;
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= heapSize) break;
+                if(child + 1 < heapSize && heapDistance[child + 1] > heapDistance[child]) child++;
+                if(heapDistance[child] <= distance) break;
+                heapPosition[i] = heapPosition[child];
+                heapDistance[i] = heapDistance[child];
+                i = child;
+            }
+            heapPosition[i] = position;
+            heapDistance[i] = distance;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package com.katelynslater.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+// A streaming, pull-based JSON reader
+// Tokens are read one at a time from a fixed size buffer, so the document is never held in memory as a whole
+public class JsonReader {
+    // Exception used when the input is not valid JSON
+    public class MalformedJson extends IOException {
+        public MalformedJson(String message) {
+            super(message + " at character " + (consumed + pos));
+        }
+    }
+    // Exception used when the input is valid JSON, but a different kind of value was expected
+    public class UnexpectedValue extends IOException {
+        public UnexpectedValue(Token expected, Token found) {
+            super("Expected " + expected + " but found " + found + " at character " + (consumed + pos));
+        }
+    }
+
+    // The kinds of token that can be read
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    // What the reader is inside of, which decides what may come next
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader reader;
+
+    // The character buffer, and the number of characters consumed before it
+    private final char[] buffer = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private long consumed = 0;
+
+    // The stack of scopes
+    private int[] stack = new int[32];
+    private int depth = 1;
+
+    // The next token, once peeked
+    private Token peeked = null;
+    // The value of a peeked BOOLEAN
+    private boolean peekedBoolean;
+
+    // Reused storage for Strings and number text
+    private final StringBuilder text = new StringBuilder();
+    private char[] number = new char[32];
+    private int numberLength;
+
+    public JsonReader(Reader reader) {
+        this.reader = reader;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    // Return the kind of the next token without consuming it
+    public Token peek() throws IOException {
+        if(peeked == null) peeked = readToken();
+        return peeked;
+    }
+
+    // Whether the current object or array has more elements
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    // Consume the end of the document, failing if anything other than whitespace follows
+    public void endDocument() throws IOException {
+        expect(Token.END_DOCUMENT);
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    // Read a String, numbers are returned as their text
+    public String nextString() throws IOException {
+        Token token = peek();
+        if(token == Token.NUMBER) {
+            peeked = null;
+            readNumber();
+            return new String(number, 0, numberLength);
+        }
+        expect(Token.STRING);
+        return readString();
+    }
+
+    // Read a number, Strings holding a number are also accepted
+    public double nextDouble() throws IOException {
+        Token token = peek();
+        if(token == Token.STRING) {
+            peeked = null;
+            String value = readString();
+            try {
+                return Double.parseDouble(value);
+            } catch(NumberFormatException nferr) {
+                throw new UnexpectedValue(Token.NUMBER, Token.STRING);
+            }
+        }
+        expect(Token.NUMBER);
+        readNumber();
+        return parseNumber();
+    }
+
+    // Read a number as a fixed point integer with a number of decimal places, e.g. 1.5 with 3 decimals is 1500
+    // The decimal text is converted exactly rather than through a double, and any further digits are rounded half up
+    public long nextScaled(int decimals) throws IOException {
+        Token token = peek();
+        String value;
+        if(token == Token.STRING) {
+            peeked = null;
+            value = readString().trim();
+        } else {
+            expect(Token.NUMBER);
+            readNumber();
+            long scaled = parseScaled(decimals);
+            if(scaled != NOT_SIMPLE) return scaled;
+            value = new String(number, 0, numberLength);
+        }
+
+        // Anything else, such as exponents or more digits than a long holds, goes through BigDecimal
+        try {
+            return new BigDecimal(value).movePointRight(decimals).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        } catch(NumberFormatException nferr) {
+            if(token == Token.STRING) throw new UnexpectedValue(Token.NUMBER, Token.STRING);
+            throw new MalformedJson("Invalid number");
+        } catch(ArithmeticException aerr) {
+            throw new MalformedJson("The number " + value + " is too large");
+        }
+    }
+
+    // Read a number, truncating any fraction
+    public int nextInt() throws IOException {
+        return (int)nextDouble();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return peekedBoolean;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    // Skip the next value, including everything nested inside of it
+    public void skipValue() throws IOException {
+        int nested = 0;
+        do {
+            switch(peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    nested++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    nested++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    nested--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    nested--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case STRING:
+                    nextString();
+                    break;
+                case NUMBER:
+                    peeked = null;
+                    readNumber();
+                    break;
+                case BOOLEAN:
+                case NULL:
+                    peeked = null;
+                    break;
+                case END_DOCUMENT:
+                    throw new MalformedJson("Unexpected end of document");
+            }
+        } while(nested > 0);
+    }
+
+    // Consume the peeked token, checking that it is of the expected kind
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if(token != expected) {
+            // A structural token in the wrong place is malformed JSON, a different kind of value is not
+            if(token == Token.END_OBJECT || token == Token.END_ARRAY || token == Token.END_DOCUMENT || token == Token.NAME || expected == Token.END_DOCUMENT)
+                throw new MalformedJson("Expected " + expected + " but found " + token);
+            throw new UnexpectedValue(expected, token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if(depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = scope;
+    }
+
+    // Work out what the next token is, consuming any punctuation before it
+    private Token readToken() throws IOException {
+        int scope = stack[depth - 1];
+        int c;
+        switch(scope) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                if(nextNonWhitespace() == ']') return Token.END_ARRAY;
+                pos--;
+                return readValue();
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if(c == ']') return Token.END_ARRAY;
+                if(c != ',') throw new MalformedJson("Expected ',' or ']'");
+                return readValue();
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if(c == '}') return Token.END_OBJECT;
+                if(scope == NONEMPTY_OBJECT) {
+                    if(c != ',') throw new MalformedJson("Expected ',' or '}'");
+                    c = nextNonWhitespace();
+                }
+                if(c != '"') throw new MalformedJson("Expected a name");
+                stack[depth - 1] = DANGLING_NAME;
+                return Token.NAME;
+            case DANGLING_NAME:
+                if(nextNonWhitespace() != ':') throw new MalformedJson("Expected ':'");
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                return readValue();
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                return readValue();
+            default:
+                // Only whitespace may follow the top level value
+                c = nextChar();
+                while(c == ' ' || c == '\t' || c == '\n' || c == '\r') c = nextChar();
+                if(c != -1) throw new MalformedJson("Unexpected content after the end of the document");
+                return Token.END_DOCUMENT;
+        }
+    }
+
+    // Work out what kind of value comes next
+    private Token readValue() throws IOException {
+        int c = nextNonWhitespace();
+        switch(c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+                readLiteral("rue");
+                peekedBoolean = true;
+                return Token.BOOLEAN;
+            case 'f':
+                readLiteral("alse");
+                peekedBoolean = false;
+                return Token.BOOLEAN;
+            case 'n':
+                readLiteral("ull");
+                return Token.NULL;
+            default:
+                if(c == '-' || (c >= '0' && c <= '9')) {
+                    // Leave the first character for readNumber()
+                    pos--;
+                    return Token.NUMBER;
+                }
+                throw new MalformedJson("Expected a value");
+        }
+    }
+
+    private void readLiteral(String rest) throws IOException {
+        for(int i = 0; i < rest.length(); i++) {
+            if(nextChar() != rest.charAt(i)) throw new MalformedJson("Unknown literal");
+        }
+    }
+
+    // Read the rest of a String, the opening quote has already been consumed
+    private String readString() throws IOException {
+        text.setLength(0);
+        while(true) {
+            // Copy runs of plain characters straight from the buffer
+            int start = pos;
+            while(pos < limit) {
+                char c = buffer[pos];
+                if(c == '"' || c == '\\') break;
+                pos++;
+            }
+            text.append(buffer, start, pos - start);
+
+            int c = nextChar();
+            if(c == -1) throw new MalformedJson("Unterminated string");
+            if(c == '"') return text.toString();
+            if(c == '\\') text.append(readEscape());
+            // Otherwise the buffer ran out, loop to refill it
+            else pos--;
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = nextChar();
+        switch(c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char)c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for(int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if(digit < 0) throw new MalformedJson("Invalid unicode escape");
+                    value = (value << 4) | digit;
+                }
+                return (char)value;
+            default:
+                throw new MalformedJson("Invalid escape sequence");
+        }
+    }
+
+    // Read the text of a number into the reused number buffer
+    private void readNumber() throws IOException {
+        numberLength = 0;
+        while(true) {
+            int c = nextChar();
+            if((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                if(numberLength == number.length) number = Arrays.copyOf(number, numberLength * 2);
+                number[numberLength++] = (char)c;
+            } else {
+                if(c != -1) pos--;
+                return;
+            }
+        }
+    }
+
+    // Powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Parse the number buffer, avoiding a String for plain decimals
+    private double parseNumber() throws IOException {
+        int i = 0;
+        boolean negative = false;
+        if(i < numberLength && number[i] == '-') {
+            negative = true;
+            i++;
+        }
+
+        // Collect up to 15 significant digits, and the position of the decimal point
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean simple = i < numberLength;
+        for(; i < numberLength; i++) {
+            char c = number[i];
+            if(c >= '0' && c <= '9') {
+                if(digits == 15) {
+                    simple = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) digits++;
+                if(fraction) scale++;
+            } else if(c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                simple = false;
+                break;
+            }
+        }
+
+        // Dividing an exact mantissa by an exact power of ten is correctly rounded
+        if(simple && scale < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        // Anything else, such as exponents or long fractions, goes through the JDK
+        try {
+            return Double.parseDouble(new String(number, 0, numberLength));
+        } catch(NumberFormatException nferr) {
+            throw new MalformedJson("Invalid number");
+        }
+    }
+
+    // Returned by parseScaled() when the number needs the slow path
+    private static final long NOT_SIMPLE = Long.MIN_VALUE;
+
+    // Parse the number buffer as a fixed point integer, for plain decimals with no more fraction digits than decimals
+    private long parseScaled(int decimals) {
+        int i = 0;
+        boolean negative = false;
+        if(i < numberLength && number[i] == '-') {
+            negative = true;
+            i++;
+        }
+
+        // 17 digits and up to 18 decimals can't overflow
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        if(i == numberLength || decimals > 18) return NOT_SIMPLE;
+        for(; i < numberLength; i++) {
+            char c = number[i];
+            if(c >= '0' && c <= '9') {
+                if(digits == 17 || (fraction && scale == decimals)) return NOT_SIMPLE;
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) digits++;
+                if(fraction) scale++;
+            } else if(c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return NOT_SIMPLE;
+            }
+        }
+        for(; scale < decimals; scale++) {
+            if(mantissa > Long.MAX_VALUE / 10) return NOT_SIMPLE;
+            mantissa *= 10;
+        }
+        return negative ? -mantissa : mantissa;
+    }
+
+    // Return the next character that is not whitespace, failing at the end of input
+    private int nextNonWhitespace() throws IOException {
+        while(true) {
+            int c = nextChar();
+            if(c == -1) throw new MalformedJson("Unexpected end of document");
+            if(c != ' ' && c != '\t' && c != '\n' && c != '\r') return c;
+        }
+    }
+
+    // Return the next character, or -1 at the end of input
+    private int nextChar() throws IOException {
+        if(pos == limit) {
+            consumed += limit;
+            pos = 0;
+            limit = reader.read(buffer, 0, buffer.length);
+            if(limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+}
@@ -0,0 +1,29 @@
+package com.katelynslater.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free count of events, striped so threads counting at once don't contend
+public class Counter {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    public Counter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public void reset() {
+        count.reset();
+    }
+}
@@ -0,0 +1,99 @@
+package com.katelynslater.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free histogram of nanosecond durations
+// Values are counted in log-linear buckets, 16 to each power of two, so any value is within about 6% of its bucket's bounds
+// Recording is a few atomic adds into preallocated arrays, it never locks or allocates, so it's safe to leave on everywhere
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Record a duration in nanoseconds
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketFor(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current;
+        while(nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+    }
+
+    // Record the time since a System.nanoTime() reading
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The mean in nanoseconds, or 0 when nothing has been recorded
+    public long getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : sum.sum() / total;
+    }
+
+    // The value at a quantile from 0 to 1, as the upper bound of the bucket it falls in, or 0 when nothing has been recorded
+    // Readers see each bucket atomically, but not all of them at once, which only matters while values are being recorded
+    public long getQuantile(double quantile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += buckets.get(i);
+        if(total == 0) return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    // Forget everything recorded so far
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // Values below 16 get a bucket each, above that each power of two is split into 16
+    static int bucketFor(long value) {
+        if(value < SUB_BUCKETS) return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int)((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowerBound(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int block = bucket / SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (block - 1);
+    }
+
+    static long upperBound(int bucket) {
+        return bucket + 1 >= BUCKETS ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+}
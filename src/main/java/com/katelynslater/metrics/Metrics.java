@@ -0,0 +1,92 @@
+package com.katelynslater.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+// Latency histograms and counters for the whole process
+// Every metric is created up front, so recording is only ever a System.nanoTime() call and a few atomic adds
+// They are read through JMX once registerMBean() has run, or printed with printReport(), as --stats does on exit
+public final class Metrics {
+    // Loading the network, read is time spent waiting on the input and parse is the rest of reading it
+    public static final Histogram LOAD_READ = new Histogram("load.read");
+    public static final Histogram LOAD_PARSE = new Histogram("load.parse");
+    // Building the store, name index and graph, and cleaning the routes before that
+    public static final Histogram LOAD_BUILD = new Histogram("load.build");
+    public static final Histogram LOAD_CONNECT_ROUTES = new Histogram("load.connectRoutes");
+    // Turning a name or ID typed by a user into a location ID
+    public static final Histogram RESOLVE = new Histogram("resolve");
+    // Calculating the distance for one trip
+    public static final Histogram DISTANCE = new Histogram("distance");
+    // Pricing one trip
+    public static final Histogram PRICING = new Histogram("pricing");
+
+    // Names and IDs that matched no location
+    public static final Counter RESOLVE_MISSES = new Counter("resolve.misses");
+    // Trips between locations that no chain of routes connects
+    public static final Counter NO_PATH = new Counter("distance.noPath");
+    // Rows, reads and requests that were rejected as invalid
+    public static final Counter REJECTED = new Counter("input.rejected");
+
+    // Quotes answered from the quote cache, quotes that had to be worked out, and cached quotes dropped to make room
+    public static final Counter QUOTE_CACHE_HITS = new Counter("quoteCache.hits");
+    public static final Counter QUOTE_CACHE_MISSES = new Counter("quoteCache.misses");
+    public static final Counter QUOTE_CACHE_EVICTIONS = new Counter("quoteCache.evictions");
+    // Times a network's cached quotes were all dropped because its data or the tariff changed
+    public static final Counter QUOTE_CACHE_STALE = new Counter("quoteCache.stale");
+
+    static final Histogram[] HISTOGRAMS = {LOAD_READ, LOAD_PARSE, LOAD_BUILD, LOAD_CONNECT_ROUTES, RESOLVE, DISTANCE, PRICING};
+    static final Counter[] COUNTERS = {RESOLVE_MISSES, NO_PATH, REJECTED, QUOTE_CACHE_HITS, QUOTE_CACHE_MISSES, QUOTE_CACHE_EVICTIONS, QUOTE_CACHE_STALE};
+
+    public static final String OBJECT_NAME = "com.katelynslater:type=Metrics";
+
+    private static boolean registered = false;
+
+    private Metrics() {}
+
+    // Register the metrics with the platform MBean server, it's only done once however often this is called
+    // Starting JMX costs more than a single lookup takes, so only the long running modes call this
+    public static synchronized void registerMBean() {
+        if(registered) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch(JMException jmerr) {
+            // The metrics are still recorded, and can still be printed
+            System.err.println("The metrics could not be registered with JMX: " + jmerr.getMessage());
+        }
+    }
+
+    // Print every metric, with the latencies in microseconds
+    public static void printReport(PrintStream out) {
+        out.print(report());
+        out.flush();
+    }
+
+    // Every metric as a table, with the latencies in microseconds
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-20s %10s %12s %12s %12s %12s%n", "metric", "count", "mean us", "p50 us", "p99 us", "max us"));
+        for(Histogram histogram : HISTOGRAMS) {
+            report.append(String.format("%-20s %10d %12s %12s %12s %12s%n", histogram.getName(), histogram.getCount(),
+                    micros(histogram.getMean()), micros(histogram.getQuantile(0.5)), micros(histogram.getQuantile(0.99)), micros(histogram.getMax())));
+        }
+        for(Counter counter : COUNTERS) {
+            report.append(String.format("%-20s %10d%n", counter.getName(), counter.getCount()));
+        }
+        return report.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.3f", nanos / 1000.0);
+    }
+
+    // Forget everything recorded so far
+    public static void reset() {
+        for(Histogram histogram : HISTOGRAMS) histogram.reset();
+        for(Counter counter : COUNTERS) counter.reset();
+    }
+}
@@ -0,0 +1,86 @@
+package com.katelynslater.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Exposes every metric to JMX as read-only long attributes
+// Histograms appear as <name>.count, .meanNanos, .p50Nanos, .p99Nanos and .maxNanos, counters under their own name
+// The reset operation clears them all
+class MetricsMBean implements DynamicMBean {
+    private static final String[] STATISTICS = {"count", "meanNanos", "p50Nanos", "p99Nanos", "maxNanos"};
+
+    private final MBeanInfo info;
+
+    MetricsMBean() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for(Histogram histogram : Metrics.HISTOGRAMS) {
+            for(String statistic : STATISTICS) {
+                attributes.add(new MBeanAttributeInfo(histogram.getName() + "." + statistic, "long", "The " + statistic + " of " + histogram.getName(), true, false, false));
+            }
+        }
+        for(Counter counter : Metrics.COUNTERS) {
+            attributes.add(new MBeanAttributeInfo(counter.getName(), "long", "The number of " + counter.getName(), true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clear every metric", null, "void", MBeanOperationInfo.ACTION);
+        info = new MBeanInfo(Metrics.class.getName(), "Latency histograms and counters", attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {reset}, null);
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        for(Counter counter : Metrics.COUNTERS) {
+            if(counter.getName().equals(name)) return counter.getCount();
+        }
+        for(Histogram histogram : Metrics.HISTOGRAMS) {
+            if(!name.startsWith(histogram.getName() + ".")) continue;
+            switch(name.substring(histogram.getName().length() + 1)) {
+                case "count": return histogram.getCount();
+                case "meanNanos": return histogram.getMean();
+                case "p50Nanos": return histogram.getQuantile(0.5);
+                case "p99Nanos": return histogram.getQuantile(0.99);
+                case "maxNanos": return histogram.getMax();
+            }
+        }
+        throw new AttributeNotFoundException(name);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for(String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch(AttributeNotFoundException anferr) {}
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if(!actionName.equals("reset")) throw new ReflectionException(new NoSuchMethodException(actionName));
+        Metrics.reset();
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
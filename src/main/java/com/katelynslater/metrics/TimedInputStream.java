@@ -0,0 +1,49 @@
+package com.katelynslater.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Adds up the time spent waiting in read(), so reading a file can be told apart from parsing it
+public class TimedInputStream extends FilterInputStream {
+    private long readNanos = 0;
+
+    public TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    // The total time spent in read() so far
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.read();
+        } finally {
+            readNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.read(buffer, offset, length);
+        } finally {
+            readNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.skip(count);
+        } finally {
+            readNanos += System.nanoTime() - startTime;
+        }
+    }
+}
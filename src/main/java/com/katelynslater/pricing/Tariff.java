@@ -0,0 +1,652 @@
+package com.katelynslater.pricing;
+
+import com.katelynslater.data.FenwickTree;
+import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Itinerary;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkStore;
+import com.katelynslater.data.RoadGraph;
+import com.katelynslater.json.JsonReader;
+import com.katelynslater.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+// Toll tariff with vehicle classes, zone rates, time bands, per-trip charges and caps
+// Rates are compiled against each network into per-class cumulative cost arrays, so pricing a trip is a subtraction, like its distance
+// Patches in place only update the costs of the links they edit, and tariffs without zones are priced from the distance alone
+//
+// Tariff files are JSON, rates and charges are in cents:
+// {
+//   "defaultClass": "light",
+//   "classes": {"light": {"rate": 25}, "heavy": {"rate": 50, "tripCharge": 100, "cap": 10000}},
+//   "zones": [{"fromId": 1, "toId": 20, "rates": {"light": 30, "heavy": 60}}],
+//   "bands": [{"days": ["MONDAY", "FRIDAY"], "start": "06:00", "end": "10:00", "multiplier": 1.25}]
+// }
+// Zones set the rate for route segments starting at IDs from fromId to toId inclusive, later zones take priority
+// Bands multiply the distance charge for trips starting in them, days default to every day and end may wrap past midnight
+//
+// Prices are worked out in integers from the distance in metres, so they are exact and the same on every thread and in any order
+// Rates and multipliers are read to three decimal places, rates are held in thousandths of a cent per km and multipliers in
+// thousandths, so a distance charge is metres times rate in millionths of a cent, only rounded up to a cent once per trip
+public class Tariff {
+    // Exception used when a tariff file is not valid
+    public class InvalidTariff extends IOException {
+        public InvalidTariff(String message) {
+            super(message);
+        }
+    }
+
+    // Passed as the minute of the week when a trip has no time, no band applies
+    public static final int NO_TIME = -1;
+    // Returned by classIndex() for an unknown vehicle class
+    public static final int UNKNOWN_CLASS = -1;
+    // Used as a zone rate when the zone doesn't set one for a class
+    private static final long NO_RATE = -1;
+
+    // Rates and multipliers are held scaled up by this, as read with three decimal places
+    private static final int SCALE_DECIMALS = 3;
+    private static final long SCALE = 1000;
+    // A distance charge of metres times rate, in thousandths of a cent per km, is in millionths of a cent
+    private static final long CHARGE_PER_CENT = 1000000;
+
+    // Vehicle classes, indexed by class index
+    private final String[] classNames;
+    private final long[] baseRates;
+    private final long[] tripCharges;
+    private final long[] caps;
+    // Whether each class has a cap, kept apart so no value a tariff file holds can mean there is none
+    private final boolean[] capped;
+    private final int defaultClass;
+
+    // Zones, with a rate per class that is NO_RATE when the zone doesn't set one
+    private final int[] zoneFrom;
+    private final int[] zoneTo;
+    private final long[][] zoneRates;
+
+    // Time bands, as a bitmask of days (bit 0 for Monday) and minutes of the day
+    private final int[] bandDays;
+    private final int[] bandStart;
+    private final int[] bandEnd;
+    private final long[] bandMultipliers;
+
+    // The rates compiled for each network priced, held until the network is no longer used
+    // The registry and a reloading server price several networks at once, so each keeps its own rather than taking turns in one slot
+    private final Map<Interchanges, Compiled> compiledByNetwork = new WeakHashMap<Interchanges, Compiled>();
+    // The rates last priced from, checked before taking the map's lock
+    private volatile Compiled latest = null;
+
+    private Tariff(String[] classNames, long[] baseRates, long[] tripCharges, long[] caps, boolean[] capped, int defaultClass,
+                   int[] zoneFrom, int[] zoneTo, long[][] zoneRates,
+                   int[] bandDays, int[] bandStart, int[] bandEnd, long[] bandMultipliers) {
+        this.classNames = classNames;
+        this.baseRates = baseRates;
+        this.tripCharges = tripCharges;
+        this.caps = caps;
+        this.capped = capped;
+        this.defaultClass = defaultClass;
+        this.zoneFrom = zoneFrom;
+        this.zoneTo = zoneTo;
+        this.zoneRates = zoneRates;
+        this.bandDays = bandDays;
+        this.bandStart = bandStart;
+        this.bandEnd = bandEnd;
+        this.bandMultipliers = bandMultipliers;
+    }
+
+    // The standard tariff, $0.25/km for every trip rounded up to the next cent
+    public static Tariff standard() {
+        return new Tariff(new String[] {"light"}, new long[] {25 * SCALE}, new long[] {0}, new long[] {0}, new boolean[] {false}, 0,
+                new int[0], new int[0], new long[0][], new int[0], new int[0], new int[0], new long[0]);
+    }
+
+    // Read a tariff file
+    public static Tariff read(Reader reader) throws IOException {
+        // An instance is needed to create the inner exception
+        Tariff errors = standard();
+        JsonReader json = new JsonReader(reader);
+
+        List<String> classNames = new ArrayList<String>();
+        List<long[]> classValues = new ArrayList<long[]>();
+        List<Boolean> classCapped = new ArrayList<Boolean>();
+        String defaultClassName = null;
+        List<int[]> zoneRanges = new ArrayList<int[]>();
+        List<String[]> zoneRateClasses = new ArrayList<String[]>();
+        List<long[]> zoneRateValues = new ArrayList<long[]>();
+        List<int[]> bands = new ArrayList<int[]>();
+        List<Long> multipliers = new ArrayList<Long>();
+
+        json.beginObject();
+        while(json.hasNext()) {
+            switch(json.nextName()) {
+                case "defaultClass":
+                    defaultClassName = json.nextString();
+                    break;
+                case "classes":
+                    json.beginObject();
+                    while(json.hasNext()) {
+                        classNames.add(json.nextName());
+                        // rate, tripCharge, cap
+                        long[] values = {NO_RATE, 0, 0};
+                        boolean hasCap = false;
+                        json.beginObject();
+                        while(json.hasNext()) {
+                            switch(json.nextName()) {
+                                case "rate":
+                                    values[0] = json.nextScaled(SCALE_DECIMALS);
+                                    if(values[0] < 0) values[0] = NO_RATE;
+                                    break;
+                                case "tripCharge":
+                                    values[1] = json.nextScaled(0);
+                                    break;
+                                case "cap":
+                                    values[2] = json.nextScaled(0);
+                                    hasCap = true;
+                                    break;
+                                default:
+                                    json.skipValue();
+                            }
+                        }
+                        json.endObject();
+                        String className = classNames.get(classNames.size() - 1);
+                        if(values[0] == NO_RATE) throw errors.new InvalidTariff("Vehicle class \"" + className + "\" needs a rate of 0 or more");
+                        if(values[1] < 0) throw errors.new InvalidTariff("Vehicle class \"" + className + "\" has a negative trip charge");
+                        if(values[2] < 0) throw errors.new InvalidTariff("Vehicle class \"" + className + "\" has a negative cap");
+                        classValues.add(values);
+                        classCapped.add(hasCap);
+                    }
+                    json.endObject();
+                    break;
+                case "zones":
+                    json.beginArray();
+                    while(json.hasNext()) {
+                        int[] range = {Integer.MIN_VALUE, Integer.MAX_VALUE};
+                        List<String> rateClasses = new ArrayList<String>();
+                        List<Long> rateValues = new ArrayList<Long>();
+                        json.beginObject();
+                        while(json.hasNext()) {
+                            switch(json.nextName()) {
+                                case "fromId":
+                                    range[0] = json.nextInt();
+                                    break;
+                                case "toId":
+                                    range[1] = json.nextInt();
+                                    break;
+                                case "rates":
+                                    json.beginObject();
+                                    while(json.hasNext()) {
+                                        rateClasses.add(json.nextName());
+                                        rateValues.add(json.nextScaled(SCALE_DECIMALS));
+                                    }
+                                    json.endObject();
+                                    break;
+                                default:
+                                    json.skipValue();
+                            }
+                        }
+                        json.endObject();
+                        zoneRanges.add(range);
+                        zoneRateClasses.add(rateClasses.toArray(new String[0]));
+                        long[] values = new long[rateValues.size()];
+                        for(int i = 0; i < values.length; i++) values[i] = rateValues.get(i);
+                        zoneRateValues.add(values);
+                    }
+                    json.endArray();
+                    break;
+                case "bands":
+                    json.beginArray();
+                    while(json.hasNext()) {
+                        // days, start, end
+                        int[] band = {0x7F, 0, 24 * 60};
+                        long multiplier = SCALE;
+                        json.beginObject();
+                        while(json.hasNext()) {
+                            switch(json.nextName()) {
+                                case "days":
+                                    band[0] = 0;
+                                    json.beginArray();
+                                    while(json.hasNext()) {
+                                        String day = json.nextString();
+                                        try {
+                                            band[0] |= 1 << (DayOfWeek.valueOf(day.toUpperCase()).getValue() - 1);
+                                        } catch(IllegalArgumentException iaerr) {
+                                            throw errors.new InvalidTariff("Unknown day \"" + day + "\"");
+                                        }
+                                    }
+                                    json.endArray();
+                                    break;
+                                case "start":
+                                    band[1] = parseMinuteOfDay(errors, json.nextString());
+                                    break;
+                                case "end":
+                                    band[2] = parseMinuteOfDay(errors, json.nextString());
+                                    break;
+                                case "multiplier":
+                                    multiplier = json.nextScaled(SCALE_DECIMALS);
+                                    break;
+                                default:
+                                    json.skipValue();
+                            }
+                        }
+                        json.endObject();
+                        if(multiplier < 0) throw errors.new InvalidTariff("Time band multipliers must be 0 or more");
+                        bands.add(band);
+                        multipliers.add(multiplier);
+                    }
+                    json.endArray();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        json.endDocument();
+
+        if(classNames.isEmpty()) throw errors.new InvalidTariff("A tariff needs at least one vehicle class");
+
+        // Vehicle classes
+        int classCount = classNames.size();
+        String[] names = classNames.toArray(new String[0]);
+        long[] baseRates = new long[classCount];
+        long[] tripCharges = new long[classCount];
+        long[] caps = new long[classCount];
+        boolean[] capped = new boolean[classCount];
+        for(int c = 0; c < classCount; c++) {
+            long[] values = classValues.get(c);
+            baseRates[c] = values[0];
+            tripCharges[c] = values[1];
+            caps[c] = values[2];
+            capped[c] = classCapped.get(c);
+        }
+        int defaultClass = defaultClassName == null ? 0 : Arrays.asList(names).indexOf(defaultClassName);
+        if(defaultClass < 0) throw errors.new InvalidTariff("The default class \"" + defaultClassName + "\" is not defined");
+
+        // Zones
+        int zoneCount = zoneRanges.size();
+        int[] zoneFrom = new int[zoneCount];
+        int[] zoneTo = new int[zoneCount];
+        long[][] zoneRates = new long[zoneCount][classCount];
+        for(int z = 0; z < zoneCount; z++) {
+            zoneFrom[z] = zoneRanges.get(z)[0];
+            zoneTo[z] = zoneRanges.get(z)[1];
+            Arrays.fill(zoneRates[z], NO_RATE);
+            String[] rateClasses = zoneRateClasses.get(z);
+            for(int r = 0; r < rateClasses.length; r++) {
+                int c = Arrays.asList(names).indexOf(rateClasses[r]);
+                if(c < 0) throw errors.new InvalidTariff("Zone " + (z + 1) + " has a rate for the undefined class \"" + rateClasses[r] + "\"");
+                if(zoneRateValues.get(z)[r] < 0) throw errors.new InvalidTariff("Zone " + (z + 1) + " has a negative rate");
+                zoneRates[z][c] = zoneRateValues.get(z)[r];
+            }
+        }
+
+        // Time bands
+        int bandCount = bands.size();
+        int[] bandDays = new int[bandCount];
+        int[] bandStart = new int[bandCount];
+        int[] bandEnd = new int[bandCount];
+        long[] bandMultipliers = new long[bandCount];
+        for(int b = 0; b < bandCount; b++) {
+            bandDays[b] = bands.get(b)[0];
+            bandStart[b] = bands.get(b)[1];
+            bandEnd[b] = bands.get(b)[2];
+            bandMultipliers[b] = multipliers.get(b);
+        }
+
+        return new Tariff(names, baseRates, tripCharges, caps, capped, defaultClass, zoneFrom, zoneTo, zoneRates, bandDays, bandStart, bandEnd, bandMultipliers);
+    }
+
+    // Parse "HH:MM" into minutes of the day
+    private static int parseMinuteOfDay(Tariff errors, String time) throws InvalidTariff {
+        int colon = time.indexOf(':');
+        try {
+            int hours = Integer.parseInt(time.substring(0, colon));
+            int minutes = Integer.parseInt(time.substring(colon + 1));
+            if(hours < 0 || hours > 24 || minutes < 0 || minutes > 59 || hours * 60 + minutes > 24 * 60) throw new NumberFormatException();
+            return hours * 60 + minutes;
+        } catch(NumberFormatException | IndexOutOfBoundsException err) {
+            throw errors.new InvalidTariff("Times must be written as HH:MM, not \"" + time + "\"");
+        }
+    }
+
+    // The minute of the week for a local date and time, 0 is Monday at midnight
+    public static int minuteOfWeek(LocalDateTime time) {
+        return (time.getDayOfWeek().getValue() - 1) * 24 * 60 + time.getHour() * 60 + time.getMinute();
+    }
+
+    // The index of a vehicle class by name, ignoring case, or UNKNOWN_CLASS
+    public int classIndex(String name) {
+        for(int c = 0; c < classNames.length; c++) {
+            if(classNames[c].equalsIgnoreCase(name)) return c;
+        }
+        return UNKNOWN_CLASS;
+    }
+
+    public String className(int vehicleClass) {
+        return classNames[vehicleClass];
+    }
+
+    public int classCount() {
+        return classNames.length;
+    }
+
+    public int defaultClass() {
+        return defaultClass;
+    }
+
+    // The distance charge multiplier for a trip starting at a minute of the week
+    public double multiplierAt(int minuteOfWeek) {
+        return scaledMultiplierAt(minuteOfWeek) / (double)SCALE;
+    }
+
+    // The multiplier in thousandths, when bands overlap the first one listed applies
+    private long scaledMultiplierAt(int minuteOfWeek) {
+        if(minuteOfWeek == NO_TIME) return SCALE;
+        int day = minuteOfWeek / (24 * 60);
+        int minute = minuteOfWeek % (24 * 60);
+        int previousDay = (day + 6) % 7;
+        for(int b = 0; b < bandMultipliers.length; b++) {
+            int start = bandStart[b];
+            int end = bandEnd[b];
+            if(start <= end) {
+                if((bandDays[b] & (1 << day)) != 0 && minute >= start && minute < end) return bandMultipliers[b];
+            } else {
+                // Bands that wrap past midnight belong to the day they start on
+                if((bandDays[b] & (1 << day)) != 0 && minute >= start) return bandMultipliers[b];
+                if((bandDays[b] & (1 << previousDay)) != 0 && minute < end) return bandMultipliers[b];
+            }
+        }
+        return SCALE;
+    }
+
+    // Price a trip in cents, given the distance in km already calculated between the IDs
+    public long priceCents(Interchanges interchanges, int startId, int endId, double distance, int vehicleClass, int minuteOfWeek) {
+        return priceCentsForMetres(interchanges, startId, endId, Metres.fromKm(distance), vehicleClass, minuteOfWeek);
+    }
+
+    // Price a trip in cents, given the distance in metres already calculated between the IDs
+    public long priceCentsForMetres(Interchanges interchanges, int startId, int endId, long metres, int vehicleClass, int minuteOfWeek) {
+        long startTime = System.nanoTime();
+
+        // Without zones every class has one flat rate and there is nothing to compile, only classes with zone rates need the dense indexes
+        long cents;
+        if(zoneFrom.length == 0) {
+            cents = charge(metres * baseRates[vehicleClass], vehicleClass, minuteOfWeek);
+        } else {
+            Compiled compiled = compiledFor(interchanges);
+            if(compiled.rates[vehicleClass] == null) {
+                cents = price(interchanges, compiled, 0, 0, metres, vehicleClass, minuteOfWeek);
+            } else {
+                NetworkStore store = compiled.store;
+                cents = price(interchanges, compiled, store.indexOf(startId), store.indexOf(endId), metres, vehicleClass, minuteOfWeek);
+            }
+        }
+        Metrics.PRICING.recordSince(startTime);
+        return cents;
+    }
+
+    // Price a trip in cents between two dense indexes in the network's store, given the distance in metres already calculated between them
+    // This is the bulk path for whole matrices, so it isn't timed, a clock read per pair would cost as much as the pricing
+    public long priceCentsAt(Interchanges interchanges, int startIndex, int endIndex, long metres, int vehicleClass, int minuteOfWeek) {
+        if(zoneFrom.length == 0) return charge(metres * baseRates[vehicleClass], vehicleClass, minuteOfWeek);
+        return price(interchanges, compiledFor(interchanges), startIndex, endIndex, metres, vehicleClass, minuteOfWeek);
+    }
+
+    // The distance charge in cents for the current segment of an itinerary, at the rate of its lower ID and the trip's time band
+    // Trip charges and caps belong to the whole trip, so they are left out, and it is rounded to the nearest cent rather than up,
+    // so the segments of a trip may not add up to exactly its price
+    public long segmentCents(Interchanges interchanges, Itinerary itinerary, int vehicleClass, int minuteOfWeek) {
+        long rate;
+        if(zoneFrom.length == 0) {
+            rate = baseRates[vehicleClass];
+        } else {
+            Compiled compiled = compiledFor(interchanges);
+            long[] rates = compiled.rates[vehicleClass];
+            if(rates == null) rate = baseRates[vehicleClass];
+            else if(itinerary.getStore() == compiled.store) rate = rates[Math.min(itinerary.fromIndex(), itinerary.toIndex())];
+            // The itinerary is from another version of the network, so its indexes don't line up with the compiled rates
+            else rate = rateFor(Math.min(itinerary.fromId(), itinerary.toId()), vehicleClass);
+        }
+        long divisor = CHARGE_PER_CENT * SCALE;
+        return (itinerary.metres() * rate * scaledMultiplierAt(minuteOfWeek) + divisor / 2) / divisor;
+    }
+
+    private long price(Interchanges interchanges, Compiled compiled, int startIndex, int endIndex, long metres, int vehicleClass, int minuteOfWeek) {
+        // Flat rated classes price straight from the distance, the rest take the cost along the corridor in the direction of travel
+        // Trips that leave a linear corridor add up the cost of each route along their path instead
+        long distanceCharge;
+        long[] rates = compiled.rates[vehicleClass];
+        if(rates == null) {
+            distanceCharge = metres * baseRates[vehicleClass];
+        } else if(interchanges.isLinearTrip(compiled.store, startIndex, endIndex)) {
+            distanceCharge = compiled.linearCost(vehicleClass, startIndex, endIndex);
+        } else {
+            distanceCharge = pathCost(interchanges, compiled.store, startIndex, endIndex, rates);
+        }
+        return charge(distanceCharge, vehicleClass, minuteOfWeek);
+    }
+
+    // The price in cents of a distance charge, with the trip's time band, trip charge and cap
+    private long charge(long distanceCharge, int vehicleClass, int minuteOfWeek) {
+        // Round up to the next cent, only a trip costing millions of dollars could overflow
+        long divisor = CHARGE_PER_CENT * SCALE;
+        long cents = (distanceCharge * scaledMultiplierAt(minuteOfWeek) + divisor - 1) / divisor + tripCharges[vehicleClass];
+        return capped[vehicleClass] ? Math.min(cents, caps[vehicleClass]) : cents;
+    }
+
+    // Rates compiled against one network's store
+    // A store that has never been edited gets cumulative costs by dense index, so a linear trip costs a subtraction like its distance
+    // One that has been patched in place gets Fenwick trees of the cost of each chain link instead, laid out in chain order like
+    // FenwickNetworkStore, so later patches only update the links they touched. Updates take the write lock, and readers read
+    // optimistically the same way the store's do
+    private static class Compiled {
+        // Held weakly, so a network that is no longer used can be dropped along with its rates
+        final WeakReference<Interchanges> network;
+        final NetworkStore store;
+        // The store's version the costs are up to date with, read before them so an edit made meanwhile is caught up on next time
+        volatile long version;
+        // The rate for routes starting at each dense index for each class, or null when the class has one flat rate
+        final long[][] rates;
+        // The cumulative distance charge up and back down the chain by dense index for each class, or null when the costs are in trees
+        final long[][] cumulativeCost;
+        final long[][] cumulativeDownCost;
+        // The chain position of each index and the index its chain continues to, only kept along with the trees
+        final int[] position;
+        final int[] chainNext;
+        // Fenwick trees of the cost of the link from each position to the next, up and down, for each class
+        final long[][] costTree;
+        final long[][] downCostTree;
+        private final StampedLock lock = new StampedLock();
+
+        Compiled(Interchanges network, NetworkStore store, long version, long[][] rates) {
+            this.network = new WeakReference<Interchanges>(network);
+            this.store = store;
+            this.version = version;
+            this.rates = rates;
+            int size = store.size();
+
+            // Find the chain links the same way the distance index does, the first route to reach a location continues its chain
+            int[] chainNext = new int[size];
+            boolean[] reached = new boolean[size];
+            for(int i = 0; i < size; i++) {
+                chainNext[i] = NetworkStore.MISSING;
+                int to = store.nextAt(i);
+                if(to == NetworkStore.MISSING || to <= i || reached[to]) continue;
+                reached[to] = true;
+                chainNext[i] = to;
+            }
+
+            long[][] up = new long[rates.length][];
+            long[][] down = new long[rates.length][];
+            // A store that has been patched is likely to be patched again
+            if(version == 0) {
+                // Chains only run up the indexes, so each cost is set before the link on from it is reached
+                for(int c = 0; c < rates.length; c++) {
+                    if(rates[c] == null) continue;
+                    up[c] = new long[size];
+                    down[c] = new long[size];
+                    for(int i = 0; i < size; i++) {
+                        int to = chainNext[i];
+                        if(to == NetworkStore.MISSING) continue;
+                        up[c][to] = up[c][i] + store.nextMetresAt(i) * rates[c][i];
+                        down[c][to] = down[c][i] + NetworkStore.downMetres(store, i, to) * rates[c][i];
+                    }
+                }
+                cumulativeCost = up;
+                cumulativeDownCost = down;
+                position = null;
+                this.chainNext = null;
+                costTree = null;
+                downCostTree = null;
+                return;
+            }
+
+            // Lay the chains out one after another, starting each from the location no chain reached
+            position = new int[size];
+            int next = 0;
+            for(int i = 0; i < size; i++) {
+                if(reached[i]) continue;
+                for(int index = i; index != NetworkStore.MISSING; index = chainNext[index]) position[index] = next++;
+            }
+            for(int c = 0; c < rates.length; c++) {
+                if(rates[c] == null) continue;
+                up[c] = new long[size + 1];
+                down[c] = new long[size + 1];
+                for(int i = 0; i < size; i++) {
+                    int to = chainNext[i];
+                    if(to == NetworkStore.MISSING) continue;
+                    up[c][position[i] + 1] = store.nextMetresAt(i) * rates[c][i];
+                    down[c][position[i] + 1] = NetworkStore.downMetres(store, i, to) * rates[c][i];
+                }
+                FenwickTree.build(up[c]);
+                FenwickTree.build(down[c]);
+            }
+            cumulativeCost = null;
+            cumulativeDownCost = null;
+            this.chainNext = chainNext;
+            costTree = up;
+            downCostTree = down;
+        }
+
+        // The distance charge between two indexes of a linear corridor, in the direction of travel
+        long linearCost(int vehicleClass, int startIndex, int endIndex) {
+            if(cumulativeCost != null) {
+                if(startIndex <= endIndex) return cumulativeCost[vehicleClass][endIndex] - cumulativeCost[vehicleClass][startIndex];
+                return cumulativeDownCost[vehicleClass][startIndex] - cumulativeDownCost[vehicleClass][endIndex];
+            }
+            long stamp = lock.tryOptimisticRead();
+            long cost = treeCost(vehicleClass, startIndex, endIndex);
+            if(lock.validate(stamp)) return cost;
+            stamp = lock.readLock();
+            try {
+                return treeCost(vehicleClass, startIndex, endIndex);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        private long treeCost(int vehicleClass, int startIndex, int endIndex) {
+            if(startIndex <= endIndex) return FenwickTree.prefix(costTree[vehicleClass], position[endIndex]) - FenwickTree.prefix(costTree[vehicleClass], position[startIndex]);
+            return FenwickTree.prefix(downCostTree[vehicleClass], position[startIndex]) - FenwickTree.prefix(downCostTree[vehicleClass], position[endIndex]);
+        }
+
+        // Bring the costs up to date with the links edited in the store, returning false when they have to be compiled again instead
+        // Setting a cost is idempotent, so catching up on the same edits twice at once is harmless
+        boolean catchUp() {
+            if(costTree == null) return false;
+            long version = store.version();
+            int[] edited = store.editedSince(this.version);
+            if(edited == null) return false;
+
+            long stamp = lock.writeLock();
+            try {
+                for(int low : edited) {
+                    int high = chainNext[low];
+                    if(high == NetworkStore.MISSING) continue;
+                    long upMetres = store.nextMetresAt(low);
+                    long downMetres = NetworkStore.downMetres(store, low, high);
+                    for(int c = 0; c < rates.length; c++) {
+                        if(rates[c] == null) continue;
+                        FenwickTree.set(costTree[c], position[low], upMetres * rates[c][low]);
+                        FenwickTree.set(downCostTree[c], position[low], downMetres * rates[c][low]);
+                    }
+                }
+                if(version > this.version) this.version = version;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return true;
+        }
+    }
+
+    // The cost of the shortest path between two indexes, charging each route at the rate of its lower ID
+    private static long pathCost(Interchanges interchanges, NetworkStore store, int startIndex, int endIndex, long[] rates) {
+        RoadGraph graph = interchanges.getGraph();
+        int[] path = interchanges.calculatePath(store.idAt(startIndex), store.idAt(endIndex));
+        long cost = 0;
+        for(int i = 1; i < path.length; i++) {
+            int from = path[i - 1];
+            int to = path[i];
+            // The shortest route between the two, there may be more than one
+            long metres = Metres.UNREACHABLE;
+            for(int edge = graph.firstEdge(from); edge < graph.firstEdge(from + 1); edge++) {
+                if(graph.edgeTarget(edge) == to) metres = Math.min(metres, graph.edgeMetres(edge));
+            }
+            cost += metres * rates[Math.min(from, to)];
+        }
+        return cost;
+    }
+
+    // Return the rates compiled for a network, catching up on its patches or compiling them again if its store has changed
+    private Compiled compiledFor(Interchanges interchanges) {
+        NetworkStore store = interchanges.getStore();
+        Compiled compiled = latest;
+        if(compiled == null || compiled.network.get() != interchanges) {
+            synchronized(compiledByNetwork) {
+                compiled = compiledByNetwork.get(interchanges);
+            }
+        }
+        if(compiled == null || compiled.store != store || (compiled.version != store.version() && !compiled.catchUp())) {
+            // Compiling twice at once is harmless, both results are the same
+            compiled = compile(interchanges, store);
+            synchronized(compiledByNetwork) {
+                compiledByNetwork.put(interchanges, compiled);
+            }
+        }
+        // Only write when it changes, so threads pricing the same network don't keep dirtying the cache line
+        if(latest != compiled) latest = compiled;
+        return compiled;
+    }
+
+    private Compiled compile(Interchanges interchanges, NetworkStore store) {
+        long version = store.version();
+        int size = store.size();
+        long[][] classRates = new long[classNames.length][];
+        for(int c = 0; c < classNames.length; c++) {
+            // Work out each segment's rate, and whether any differ from the base rate
+            long[] rates = new long[size];
+            boolean flat = true;
+            for(int i = 0; i < size; i++) {
+                rates[i] = rateFor(store.idAt(i), c);
+                if(rates[i] != baseRates[c]) flat = false;
+            }
+            if(!flat) classRates[c] = rates;
+        }
+        return new Compiled(interchanges, store, version, classRates);
+    }
+
+    // The rate for a segment starting at an ID, from the last zone covering it, or the base rate
+    private long rateFor(int id, int vehicleClass) {
+        for(int z = zoneFrom.length - 1; z >= 0; z--) {
+            if(id >= zoneFrom[z] && id <= zoneTo[z] && zoneRates[z][vehicleClass] != NO_RATE) return zoneRates[z][vehicleClass];
+        }
+        return baseRates[vehicleClass];
+    }
+}
@@ -1,18 +1,68 @@
+import com.katelynslater.BatchPricer;
 import com.katelynslater.CLI;
+import com.katelynslater.LineServer;
+import com.katelynslater.MatrixExporter;
+import com.katelynslater.NetworkGenerator;
+import com.katelynslater.NetworkRegistry;
+import com.katelynslater.NetworkReloader;
+import com.katelynslater.PointSnapper;
+import com.katelynslater.QueryServer;
+import com.katelynslater.QuoteCache;
+import com.katelynslater.StatementAggregator;
+import com.katelynslater.TripSessionizer;
+import com.katelynslater.data.BundledNetwork;
+import com.katelynslater.data.DistanceMatrix;
 import com.katelynslater.data.Interchanges;
+import com.katelynslater.data.Itinerary;
 import com.katelynslater.data.Location;
+import com.katelynslater.data.Metres;
+import com.katelynslater.data.NetworkPatch;
+import com.katelynslater.data.NetworkSnapshot;
+import com.katelynslater.data.NetworkStore;
 import com.katelynslater.data.Route;
+import com.katelynslater.data.SpatialIndex;
+import com.katelynslater.metrics.Histogram;
+import com.katelynslater.metrics.Metrics;
+import com.katelynslater.pricing.Tariff;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 class Tests {
     CLI cli = new CLI();
-    Interchanges interchanges = cli.interchanges;
+    Interchanges interchanges;
     public Tests() {
         // For testing, always load from the resource file
         cli.loadFromResource();
+        interchanges = cli.interchanges;
     }
 
     @Test
@@ -25,7 +75,7 @@ class Tests {
         double calculated = interchanges.calculateDistance(1, route.toId);
 
         // Ensure everything is correct
-        Assertions.assertEquals(route.distance, calculated);
+        Assertions.assertEquals(Metres.toKm(route.metres), calculated);
     }
 
     @Test
@@ -43,7 +93,7 @@ class Tests {
         Route route2 = location2.nextRoute;
 
         destId = route2.toId;
-        distance = route.distance + route2.distance;
+        distance = Metres.toKm(route.metres + route2.metres);
 
         // Calculate
         double calculated = interchanges.calculateDistance(1, destId);
@@ -56,7 +106,8 @@ class Tests {
     void checkEntirety() {
         Location startLocation = null;
         Location lastLocation = null;
-        double totalDistance = 0;
+        // Distances are added up in whole metres, the same as the index does, so the total is exact
+        long totalMetres = 0;
 
         // Iterate through locations
         Iterator<Location> it = interchanges.locationIterator();
@@ -67,7 +118,7 @@ class Tests {
             // Increment the total distance for each route
             Route nextRoute = location.nextRoute;
             if(nextRoute != null) {
-                totalDistance += location.nextRoute.distance;
+                totalMetres += location.nextRoute.metres;
             }
 
             // Collect the Start and Last locations
@@ -79,7 +130,7 @@ class Tests {
         double calculated = interchanges.calculateDistance(startLocation.id, lastLocation.id);
 
         // Compare
-        Assertions.assertEquals(totalDistance, calculated);
+        Assertions.assertEquals(Metres.toKm(totalMetres), calculated);
     }
 
     @Test
@@ -93,4 +144,1432 @@ class Tests {
         Assertions.assertEquals(location.id, id);
     }
 
-}
\ No newline at end of file
+    @Test
+    void checkReversedDistance() {
+        // Find a route that lists a different distance back, such as the 0km placeholder back from Sideline 26 to York Durham Line
+        Location location = null;
+        Route back = null;
+        Iterator<Location> it = interchanges.locationIterator();
+        while(it.hasNext() && back == null) {
+            location = it.next();
+            if(location == null || location.nextRoute == null) continue;
+            Route prevRoute = interchanges.getLocationById(location.nextRoute.toId).prevRoute;
+            if(prevRoute != null && prevRoute.toId == location.id && prevRoute.metres != location.nextRoute.metres) back = prevRoute;
+        }
+        Assertions.assertNotNull(back);
+        Route up = location.nextRoute;
+
+        // Heading up the IDs drives the next route, and heading down drives the route listed back
+        Assertions.assertEquals(Metres.toKm(up.metres), interchanges.calculateDistance(location.id, up.toId));
+        Assertions.assertEquals(Metres.toKm(back.metres), interchanges.calculateDistance(up.toId, location.id));
+    }
+
+    @Test
+    void checkDisconnectedSegments() {
+        // Build a small network with a gap in the IDs and a route pointing into the gap
+        Interchanges gapped = new Interchanges();
+        Location a = new Location(1, "A");
+        Location b = new Location(2, "B");
+        Location c = new Location(5, "C");
+        Location d = new Location(6, "D");
+        a.nextRoute = new Route();
+        a.nextRoute.toId = 2;
+        a.nextRoute.metres = 1500;
+        b.nextRoute = new Route();
+        b.nextRoute.toId = 3;
+        b.nextRoute.metres = 2000;
+        c.nextRoute = new Route();
+        c.nextRoute.toId = 6;
+        c.nextRoute.metres = 4250;
+        try {
+            gapped.addLocation(a);
+            gapped.addLocation(b);
+            gapped.addLocation(c);
+            gapped.addLocation(d);
+        } catch(Interchanges.LocationAlreadyExists laerr) {
+            Assertions.fail(laerr);
+        }
+        gapped.connectRoutes();
+
+        // The route into the gap is dropped
+        Assertions.assertNull(b.nextRoute);
+
+        // Each segment is answered on its own, and nothing connects them
+        Assertions.assertEquals(1.5, gapped.calculateDistance(1, 2));
+        Assertions.assertEquals(4.25, gapped.calculateDistance(6, 5));
+        Assertions.assertEquals(0.0, gapped.calculateDistance(5, 5));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> gapped.calculateDistance(2, 5));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> gapped.calculateDistance(1, 3));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> gapped.calculateDistance(1, 100));
+
+        // A route into the gap listed before the real one gives it the corridor's place, so no graph is needed
+        Interchanges promoted = new Interchanges();
+        Location first = new Location(1, "A");
+        Route dangling = new Route();
+        dangling.toId = 9;
+        dangling.metres = 1000;
+        first.addRoute(dangling);
+        Route real = new Route();
+        real.toId = 2;
+        real.metres = 2000;
+        first.addRoute(real);
+        Assertions.assertTrue(promoted.tryAddLocation(first));
+        Assertions.assertTrue(promoted.tryAddLocation(new Location(2, "B")));
+        promoted.connectRoutes();
+        Assertions.assertSame(real, first.nextRoute);
+        Assertions.assertNull(first.branches);
+        Assertions.assertNull(promoted.getGraph());
+        Assertions.assertEquals(2.0, promoted.calculateDistance(1, 2));
+    }
+
+    @Test
+    void checkRoutesOffTheChain() {
+        // Two next routes lead into 3, so the chain from 1 leaves the route from 2 out, and the graph drives it instead
+        CLI mergeCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 3, \"distance\": 5}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 3, \"distance\": 2}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 4, \"distance\": 1}]}," +
+                "\"4\": {\"name\": \"D\", \"routes\": []}" +
+                "}}");
+        Interchanges merged = mergeCli.interchanges;
+        Assertions.assertNotNull(merged.getGraph());
+        Assertions.assertEquals(2.0, merged.calculateDistance(2, 3));
+        Assertions.assertEquals(2.0, merged.calculateDistance(3, 2));
+        Assertions.assertEquals(3.0, merged.calculateDistance(2, 4));
+        Assertions.assertEquals(6.0, merged.calculateDistance(1, 4));
+        Assertions.assertEquals(7.0, merged.calculateDistance(1, 2));
+        Assertions.assertArrayEquals(new int[] {1, 2, 3}, merged.calculatePath(2, 4));
+
+        // A next route heading down the IDs starts a chain of its own, and is driven over the graph too
+        Interchanges descending = new Interchanges();
+        Location a = new Location(1, "A");
+        Location b = new Location(2, "B");
+        Location c = new Location(3, "C");
+        Location d = new Location(4, "D");
+        a.nextRoute = new Route();
+        a.nextRoute.toId = 2;
+        a.nextRoute.metres = 1000;
+        b.nextRoute = new Route();
+        b.nextRoute.toId = 3;
+        b.nextRoute.metres = 1000;
+        d.nextRoute = new Route();
+        d.nextRoute.toId = 3;
+        d.nextRoute.metres = 3000;
+        Assertions.assertTrue(descending.tryAddLocation(a));
+        Assertions.assertTrue(descending.tryAddLocation(b));
+        Assertions.assertTrue(descending.tryAddLocation(c));
+        Assertions.assertTrue(descending.tryAddLocation(d));
+        descending.connectRoutes();
+        Assertions.assertNotNull(descending.getGraph());
+        Assertions.assertEquals(3.0, descending.calculateDistance(4, 3));
+        Assertions.assertEquals(5.0, descending.calculateDistance(4, 1));
+        Assertions.assertEquals(5.0, descending.calculateDistance(1, 4));
+        Assertions.assertEquals(2.0, descending.calculateDistance(1, 3));
+    }
+
+    @Test
+    void checkCompactedStorage() {
+        // Load a second copy and move it off-heap
+        CLI compactCli = new CLI();
+        compactCli.loadFromResource();
+        Interchanges compacted = compactCli.interchanges;
+        compacted.compact(true);
+
+        // Every location and distance must match the object graph
+        Iterator<Location> it = interchanges.locationIterator();
+        Location first = null;
+        while(it.hasNext()) {
+            Location location = it.next();
+            if(location == null) continue;
+            if(first == null) first = location;
+
+            Location view = compacted.getLocationById(location.id);
+            Assertions.assertEquals(location.name, view.name);
+            Assertions.assertEquals(interchanges.calculateDistance(first.id, location.id), compacted.calculateDistance(first.id, location.id));
+        }
+
+        // Missing IDs have no view
+        Assertions.assertNull(compacted.getLocationById(100000));
+    }
+
+    // Load JSON from a String into a new CLI
+    private CLI loadJson(String json) {
+        CLI jsonCli = new CLI();
+        jsonCli.loadFromInputStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        return jsonCli;
+    }
+
+    @Test
+    void checkStreamingLoader() {
+        // Fields and locations may come in any order, and unknown keys are skipped
+        CLI jsonCli = loadJson("{\"version\": [1, {\"a\": null}], \"locations\": {" +
+                "\"2\": {\"routes\": [{\"distance\": 1.25, \"toId\": 1}], \"name\": \"B \\u0042\", \"lat\": -43.5, \"lng\": 7e1}," +
+                "\"1\": {\"name\": \"A\", \"lat\": 43.336962, \"lng\": -79.830394, \"routes\": [{\"toId\": 2, \"distance\": 1.25}], \"extra\": true}" +
+                "}}");
+        Interchanges loaded = jsonCli.interchanges;
+
+        Location a = loaded.getLocationById(1);
+        Location b = loaded.getLocationById(2);
+        Assertions.assertEquals("B B", b.name);
+        Assertions.assertEquals(43.336962, a.lat);
+        Assertions.assertEquals(-79.830394, a.lng);
+        Assertions.assertEquals(-43.5, b.lat);
+        Assertions.assertEquals(70.0, b.lng);
+        Assertions.assertEquals(1.25, loaded.calculateDistance(1, 2));
+
+        // The bundled file carries coordinates for every location
+        Iterator<Location> it = interchanges.locationIterator();
+        while(it.hasNext()) {
+            Location location = it.next();
+            if(location == null) continue;
+            Assertions.assertFalse(Double.isNaN(location.lat));
+            Assertions.assertFalse(Double.isNaN(location.lng));
+        }
+    }
+
+    @Test
+    void checkStreamingLoaderValidation() {
+        // Malformed JSON, format issues and duplicates are all reported as CLI exceptions
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"locations\": {\"1\": {\"name\": \"A\", \"routes\": []}"));
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"other\": {}}"));
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"locations\": {\"one\": {\"name\": \"A\", \"routes\": []}}}"));
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"locations\": {\"1\": {\"name\": \"A\", \"routes\": []}, \"01\": {\"name\": \"B\", \"routes\": []}}}"));
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"locations\": {\"1\": {\"name\": \"A\", \"routes\": {}}}}"));
+    }
+
+    @Test
+    void checkSnapshot() throws IOException {
+        // Compile the bundled data into a snapshot
+        Path snapshot = Files.createTempFile("interchanges", ".snapshot");
+        try {
+            cli.compileSnapshot(snapshot.toString());
+
+            // Load it back through the same path as a data file
+            CLI snapshotCli = new CLI();
+            snapshotCli.loadFromFile(snapshot.toString());
+            Interchanges mapped = snapshotCli.interchanges;
+
+            // Every location, name lookup and distance must match
+            Iterator<Location> it = interchanges.locationIterator();
+            Location first = null;
+            while(it.hasNext()) {
+                Location location = it.next();
+                if(location == null) continue;
+                if(first == null) first = location;
+
+                Location view = mapped.getLocationById(location.id);
+                Assertions.assertEquals(location.name, view.name);
+                Assertions.assertEquals(location.lat, view.lat);
+                Assertions.assertEquals(location.id, mapped.lookupLocationIdForName(location.name.toUpperCase()));
+                Assertions.assertEquals(interchanges.calculateDistance(first.id, location.id), mapped.calculateDistance(first.id, location.id));
+            }
+
+            // Flip a byte in the payload, the checksum must catch it
+            byte[] bytes = Files.readAllBytes(snapshot);
+            bytes[bytes.length / 2] ^= 0x40;
+            Files.write(snapshot, bytes);
+            Assertions.assertThrows(CLI.CLIException.class, () -> new CLI().loadFromFile(snapshot.toString()));
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    void checkBatchPricing() throws Exception {
+        // Price a mix of good and bad rows on several threads, in small chunks so they are reordered
+        StringBuilder trips = new StringBuilder();
+        for(int i = 0; i < 100; i++) trips.append("t").append(i).append(",QEW,Highway 400\n");
+        trips.append("bad,Nowhere,QEW\n");
+        trips.append("short\tQEW\n");
+
+        BatchPricer pricer = new BatchPricer(cli);
+        pricer.threads = 4;
+        pricer.chunkSize = 7;
+        StringWriter results = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader(trips.toString())), results, rejects);
+
+        // Results must be in input order and match the single lookup
+        String[] lines = results.toString().split("\n");
+        Assertions.assertEquals(100, lines.length);
+        for(int i = 0; i < 100; i++) Assertions.assertEquals("t" + i + ",67.748,16.94", lines[i]);
+
+        // Bad rows are rejected with their line number and reason
+        String[] rejected = rejects.toString().split("\n");
+        Assertions.assertEquals(2, rejected.length);
+        Assertions.assertTrue(rejected[0].startsWith("101\t"));
+        Assertions.assertTrue(rejected[1].startsWith("102\t"));
+        Assertions.assertEquals(100, pricer.pricedCount);
+        Assertions.assertEquals(2, pricer.rejectedCount);
+    }
+
+    @Test
+    void checkQueryServer() throws Exception {
+        // Start a server on any free port
+        QueryServer server = new QueryServer(cli, "localhost", 0);
+        server.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.getPort();
+
+            // A single quote by name matches the CLI output
+            HttpResponse<String> single = client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Salem%20Road&end=QEW")).build(), HttpResponse.BodyHandlers.ofString());
+            Assertions.assertEquals(200, single.statusCode());
+            Assertions.assertEquals("107.964,27.00\n", single.body());
+
+            // Unknown locations are a 404
+            HttpResponse<String> missing = client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Nowhere&end=QEW")).build(), HttpResponse.BodyHandlers.ofString());
+            Assertions.assertEquals(404, missing.statusCode());
+
+            // Batched quotes are answered in order, with errors in place
+            HttpResponse<String> batch = client.send(HttpRequest.newBuilder(URI.create(base + "/quotes")).POST(HttpRequest.BodyPublishers.ofString("QEW,Highway 400\nNowhere,QEW\n")).build(), HttpResponse.BodyHandlers.ofString());
+            String[] lines = batch.body().split("\n");
+            Assertions.assertEquals("67.748,16.94", lines[0]);
+            Assertions.assertTrue(lines[1].startsWith("error,"));
+
+            // A malformed escape is a 400 rather than a dropped connection, it is written by hand as URI won't build it
+            for(String path : new String[] {"/quote?start=%zz&end=QEW", "/complete?prefix=Q%4", "/nearest?lat=%&lng=1"}) {
+                try(java.net.Socket socket = new java.net.Socket("localhost", server.getPort())) {
+                    socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    String statusLine = new BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+                    Assertions.assertEquals("HTTP/1.1 400 Bad Request", statusLine, path);
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void checkNetworkRegistry() throws Exception {
+        // Two corridors that share an interchange name, a file that isn't JSON and one that doesn't exist
+        Path directory = Files.createTempDirectory("networks");
+        try {
+            Path east = directory.resolve("east.json");
+            Path west = directory.resolve("west.json");
+            Path broken = directory.resolve("broken.json");
+            Files.write(east, ("{\"locations\": {\"1\": {\"name\": \"Junction\", \"routes\": [{\"toId\": 2, \"distance\": 2.5}]}, " +
+                    "\"2\": {\"name\": \"East End\", \"routes\": [{\"toId\": 1, \"distance\": 2.5}]}}}").getBytes(StandardCharsets.UTF_8));
+            Files.write(west, ("{\"locations\": {\"7\": {\"name\": \"West End\", \"routes\": [{\"toId\": 9, \"distance\": 4}]}, " +
+                    "\"9\": {\"name\": \"Junction\", \"routes\": [{\"toId\": 7, \"distance\": 4}]}}}").getBytes(StandardCharsets.UTF_8));
+            Files.write(broken, "{\"locations\": {\"1\": ]".getBytes(StandardCharsets.UTF_8));
+
+            CLI multiCli = new CLI();
+            multiCli.networks = new NetworkRegistry();
+            Assertions.assertTrue(multiCli.networks.add("east", east.toString()));
+            Assertions.assertTrue(multiCli.networks.add("west", west.toString()));
+            Assertions.assertTrue(multiCli.networks.add("broken", broken.toString()));
+            Assertions.assertTrue(multiCli.networks.add("missing", directory.resolve("missing.json").toString()));
+            Assertions.assertFalse(multiCli.networks.add("east", west.toString()));
+            multiCli.loadNetworks(null);
+
+            // The failures keep the exit status the CLI would have used, and the rest answer
+            Assertions.assertEquals(0, multiCli.networks.get("east").statusCode());
+            Assertions.assertEquals(0, multiCli.networks.get("west").statusCode());
+            Assertions.assertEquals(2, multiCli.networks.get("broken").statusCode());
+            Assertions.assertEquals(1, multiCli.networks.get("missing").statusCode());
+            Assertions.assertNull(multiCli.interchangesFor("broken"));
+            Assertions.assertSame(multiCli.interchanges, multiCli.interchangesFor(null));
+            Assertions.assertEquals(2.5, multiCli.interchangesFor("east").calculateDistance(1, 2));
+            Assertions.assertEquals(4.0, multiCli.interchangesFor("west").calculateDistance(7, 9));
+
+            // Both networks hold the one copy of the name they share
+            Assertions.assertSame(multiCli.interchangesFor("east").getLocationById(1).name, multiCli.interchangesFor("west").getLocationById(9).name);
+
+            // Server queries go to the network they name
+            QueryServer server = new QueryServer(multiCli, "localhost", 0);
+            server.start();
+            try {
+                HttpClient client = HttpClient.newHttpClient();
+                String base = "http://localhost:" + server.getPort();
+                Assertions.assertEquals("2.500,0.63\n", client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Junction&end=East%20End&network=east")).build(), HttpResponse.BodyHandlers.ofString()).body());
+                Assertions.assertEquals("4.000,1.00\n", client.send(HttpRequest.newBuilder(URI.create(base + "/quotes?network=west")).POST(HttpRequest.BodyPublishers.ofString("Junction,West End\n")).build(), HttpResponse.BodyHandlers.ofString()).body());
+                Assertions.assertEquals("107.964,27.00\n", client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Salem%20Road&end=QEW")).build(), HttpResponse.BodyHandlers.ofString()).body());
+                Assertions.assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Junction&end=West%20End&network=broken")).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+
+                // So do patches, and only a loaded network takes them
+                HttpRequest.BodyPublisher edit = HttpRequest.BodyPublishers.ofString("{\"edits\": [{\"op\": \"distance\", \"fromId\": 1, \"toId\": 2, \"distance\": 3}]}");
+                Assertions.assertEquals(200, client.send(HttpRequest.newBuilder(URI.create(base + "/patch?network=east")).POST(edit).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                Assertions.assertEquals("3.000,0.75\n", client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Junction&end=East%20End&network=east")).build(), HttpResponse.BodyHandlers.ofString()).body());
+                Assertions.assertEquals("107.964,27.00\n", client.send(HttpRequest.newBuilder(URI.create(base + "/quote?start=Salem%20Road&end=QEW")).build(), HttpResponse.BodyHandlers.ofString()).body());
+                Assertions.assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(base + "/patch?network=broken")).POST(edit).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                Assertions.assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(base + "/patch?network=north")).POST(edit).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            } finally {
+                server.stop();
+            }
+
+            // Registry networks load with the --patch file and reload through their own loader, and a --data failure is kept like theirs
+            Path patch = directory.resolve("east-patch.json");
+            Files.write(patch, "{\"edits\": [{\"op\": \"rename\", \"id\": 2, \"name\": \"Far East\"}]}".getBytes(StandardCharsets.UTF_8));
+            CLI patchedCli = new CLI();
+            patchedCli.patchFilePath = patch.toString();
+            patchedCli.networks = new NetworkRegistry();
+            patchedCli.networks.add("east", east.toString());
+            patchedCli.loadNetworks(directory.resolve("missing.json").toString());
+            Assertions.assertNotNull(patchedCli.dataFailure);
+            Assertions.assertNull(patchedCli.interchangesFor(null));
+            Assertions.assertEquals("Far East", patchedCli.interchangesFor("east").getLocationById(2).name);
+
+            Files.write(east, ("{\"locations\": {\"1\": {\"name\": \"Junction\", \"routes\": [{\"toId\": 2, \"distance\": 6}]}, " +
+                    "\"2\": {\"name\": \"East End\", \"routes\": [{\"toId\": 1, \"distance\": 6}]}}}").getBytes(StandardCharsets.UTF_8));
+            NetworkReloader reloader = patchedCli.networks.reloader(patchedCli.networks.get("east"), patchedCli);
+            try {
+                reloader.reloadAsync().get();
+            } finally {
+                reloader.stop();
+            }
+            Assertions.assertEquals(1, reloader.reloadCount.get());
+            Assertions.assertEquals(6.0, patchedCli.interchangesFor("east").calculateDistance(1, 2));
+            Assertions.assertEquals("Far East", patchedCli.interchangesFor("east").getLocationById(2).name);
+        } finally {
+            for(String name : new String[] {"east.json", "west.json", "broken.json", "east-patch.json"}) Files.deleteIfExists(directory.resolve(name));
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void checkQuoteCache() throws Exception {
+        CLI cachedCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 10}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 10}, {\"toId\": 3, \"distance\": 10}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 2, \"distance\": 10}]}" +
+                "}}");
+        cachedCli.quoteCache = new QuoteCache(2);
+        BatchPricer pricer = new BatchPricer(cachedCli);
+        String trips = "t1,A,C\nt2,A,C\nt3,a,3\nt4,A,Nowhere\n";
+
+        // Repeated trips are answered from the cache, and misses aren't cached
+        long hits = Metrics.QUOTE_CACHE_HITS.getCount();
+        StringWriter results = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader(trips)), results, new StringWriter());
+        Assertions.assertEquals("t1,20.000,5.00\nt2,20.000,5.00\nt3,20.000,5.00\n", results.toString());
+        Assertions.assertEquals(hits + 1, Metrics.QUOTE_CACHE_HITS.getCount());
+        Assertions.assertEquals(2, cachedCli.quoteCache.size());
+
+        // Patching distances in place drops the cached quotes, so the next batch sees the new distance
+        long stale = Metrics.QUOTE_CACHE_STALE.getCount();
+        cachedCli.applyPatch(new NetworkPatch().distance(2, 3, 30));
+        results = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader("t5,A,C\nt6,A,C\n")), results, new StringWriter());
+        Assertions.assertEquals("t5,40.000,10.00\nt6,40.000,10.00\n", results.toString());
+        Assertions.assertEquals(stale + 1, Metrics.QUOTE_CACHE_STALE.getCount());
+
+        // Tab separated rows are answered with tabs from the same quotes
+        results = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader("t7\tA\tC\n")), results, new StringWriter());
+        Assertions.assertEquals("t7\t40.000\t10.00\n", results.toString());
+
+        // The cache never holds more than its capacity, and CLOCK keeps the quote that keeps being hit
+        long evictions = Metrics.QUOTE_CACHE_EVICTIONS.getCount();
+        results = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader("t8,B,C\nt9,A,C\nt10,1,2\nt11,A,C\nt12,C,A\nt13,A,C\n")), results, new StringWriter());
+        Assertions.assertEquals(2, cachedCli.quoteCache.size());
+        Assertions.assertTrue(Metrics.QUOTE_CACHE_EVICTIONS.getCount() >= evictions + 2);
+        hits = Metrics.QUOTE_CACHE_HITS.getCount();
+        pricer.run(new BufferedReader(new StringReader("t14,A,C\n")), new StringWriter(), new StringWriter());
+        Assertions.assertEquals(hits + 1, Metrics.QUOTE_CACHE_HITS.getCount());
+
+        // Server quotes share the cache, and a reloaded network starts afresh
+        cachedCli.interchanges = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 1}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 1}]}" +
+                "}}").interchanges;
+        QueryServer server = new QueryServer(cachedCli, "localhost", 0);
+        server.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            URI quote = URI.create("http://localhost:" + server.getPort() + "/quote?start=A&end=B");
+            Assertions.assertEquals("1.000,0.25\n", client.send(HttpRequest.newBuilder(quote).build(), HttpResponse.BodyHandlers.ofString()).body());
+            hits = Metrics.QUOTE_CACHE_HITS.getCount();
+            Assertions.assertEquals("1.000,0.25\n", client.send(HttpRequest.newBuilder(quote).build(), HttpResponse.BodyHandlers.ofString()).body());
+            Assertions.assertEquals(hits + 1, Metrics.QUOTE_CACHE_HITS.getCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void checkHotReload() throws Exception {
+        CLI liveCli = new CLI();
+        liveCli.loadFromResource();
+        Interchanges original = liveCli.interchanges;
+        double expected = original.calculateDistance(1, original.lookupLocationIdForName("QEW"));
+
+        // Published networks can't be modified
+        Assertions.assertTrue(original.isFrozen());
+        Assertions.assertThrows(IllegalStateException.class, () -> original.addLocation(new Location(1000, "New")));
+
+        // Query continuously while reloading
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong failures = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while(running.get()) {
+                try {
+                    Interchanges current = liveCli.interchanges;
+                    int endId = liveCli.findLocationIdForString(current, "QEW");
+                    if(current.calculateDistance(1, endId) != expected) failures.incrementAndGet();
+                } catch(RuntimeException rerr) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+
+        NetworkReloader reloader = new NetworkReloader(liveCli, null);
+        for(int i = 0; i < 5; i++) reloader.reloadAsync().get();
+        running.set(false);
+        reader.join();
+        reloader.stop();
+
+        // Every reload published a new network, and no query saw a partial one
+        Assertions.assertEquals(5, reloader.reloadCount.get());
+        Assertions.assertFalse(original == liveCli.interchanges);
+        Assertions.assertEquals(0, failures.get());
+
+        // A patch applied while serving survives a reload racing with it, but a reload begun after it publishes the data as it is
+        int nextId = original.getLocationById(1).nextRoute.toId;
+        double listed = original.calculateDistance(1, nextId);
+        // The load is held open on a pipe, and the patch applied once it has started reading
+        byte[] json = CLI.class.getResourceAsStream("/com/katelynslater/interchanges.json").readAllBytes();
+        java.io.PipedOutputStream pipeOut = new java.io.PipedOutputStream();
+        java.io.PipedInputStream pipeIn = new java.io.PipedInputStream(pipeOut, json.length);
+        Thread racing = new Thread(() -> liveCli.loadFromInputStream(pipeIn));
+        racing.start();
+        pipeOut.write(json, 0, 16);
+        while(pipeIn.available() > 0) Thread.sleep(1);
+        liveCli.applyPatch(new NetworkPatch().distance(1, nextId, 1.5));
+        pipeOut.write(json, 16, json.length - 16);
+        pipeOut.close();
+        racing.join();
+        Assertions.assertEquals(1.5, liveCli.interchanges.calculateDistance(1, nextId));
+        NetworkReloader patchedReloader = new NetworkReloader(liveCli, null);
+        patchedReloader.reloadAsync().get();
+        patchedReloader.stop();
+        Assertions.assertEquals(1, patchedReloader.reloadCount.get());
+        Assertions.assertEquals(listed, liveCli.interchanges.calculateDistance(1, nextId));
+
+        // A reload that throws anything else is counted as a failure too, and the network stays in place
+        CLI failingCli = new CLI() {
+            @Override
+            public void loadData(String dataFilePath) {
+                throw new IllegalStateException("Replay failed");
+            }
+        };
+        failingCli.loadFromResource();
+        Interchanges kept = failingCli.interchanges;
+        NetworkReloader failingReloader = new NetworkReloader(failingCli, null);
+        failingReloader.reloadAsync().get();
+        failingReloader.stop();
+        Assertions.assertEquals(0, failingReloader.reloadCount.get());
+        Assertions.assertEquals(1, failingReloader.failureCount.get());
+        Assertions.assertSame(kept, failingCli.interchanges);
+
+        // A first load that fails partway publishes nothing, and a reload once the file is fixed loads it in full
+        Path data = Files.createTempFile("interchanges", ".json");
+        try {
+            Files.write(data, ("{\"locations\": {\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 3}]}, " +
+                    "\"1\": {\"name\": \"Again\", \"routes\": []}}}").getBytes(StandardCharsets.UTF_8));
+            CLI badCli = new CLI();
+            Interchanges empty = badCli.interchanges;
+            Assertions.assertThrows(CLI.CLIException.class, () -> badCli.loadData(data.toString()));
+            Assertions.assertSame(empty, badCli.interchanges);
+            Assertions.assertNull(badCli.interchanges.getLocationById(1));
+
+            Files.write(data, ("{\"locations\": {\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 3}]}, " +
+                    "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 3}]}}}").getBytes(StandardCharsets.UTF_8));
+            NetworkReloader fixedReloader = new NetworkReloader(badCli, data.toString());
+            fixedReloader.reloadAsync().get();
+            fixedReloader.stop();
+            Assertions.assertEquals(1, fixedReloader.reloadCount.get());
+            Assertions.assertEquals(3.0, badCli.interchanges.calculateDistance(1, 2));
+        } finally {
+            Files.deleteIfExists(data);
+        }
+    }
+
+    @Test
+    void checkNameIndex() {
+        // Lookups ignore case, and misses return the sentinel rather than throwing
+        Assertions.assertEquals(interchanges.lookupLocationIdForName("QEW"), interchanges.lookupLocationIdForName("qew"));
+        Assertions.assertEquals(Interchanges.UNKNOWN_ID, interchanges.lookupLocationIdForName("Nowhere Road"));
+        Assertions.assertEquals(Interchanges.UNKNOWN_ID, interchanges.lookupLocationIdForName("QE"));
+
+        // A name shared by several locations finds the lowest ID, whatever order the file lists them in
+        CLI shared = loadJson("{\"locations\": {" +
+                "\"2\": {\"name\": \"JUNCTION\", \"routes\": [{\"toId\": 1, \"distance\": 1}, {\"toId\": 3, \"distance\": 1}]}," +
+                "\"3\": {\"name\": \"Junction\", \"routes\": [{\"toId\": 2, \"distance\": 1}]}," +
+                "\"1\": {\"name\": \"Start\", \"routes\": [{\"toId\": 2, \"distance\": 1}]}" +
+                "}}");
+        Assertions.assertEquals(2, shared.interchanges.lookupLocationIdForName("junction"));
+
+        // Every location whose name starts with the prefix is completed, in alphabetical order
+        int[] ids = new int[100];
+        int count = interchanges.completeLocationName("hIGHWAY", ids);
+        int expected = 0;
+        Iterator<Location> it = interchanges.locationIterator();
+        while(it.hasNext()) {
+            Location location = it.next();
+            if(location != null && location.name.toLowerCase().startsWith("highway")) expected++;
+        }
+        Assertions.assertTrue(count > 0);
+        Assertions.assertEquals(expected, count);
+        for(int i = 1; i < count; i++) {
+            String previous = interchanges.getLocationById(ids[i - 1]).name.toLowerCase();
+            String current = interchanges.getLocationById(ids[i]).name.toLowerCase();
+            Assertions.assertTrue(previous.compareTo(current) <= 0);
+        }
+        Assertions.assertEquals(0, interchanges.completeLocationName("zzz", ids));
+
+        // Unknown names get suggestions
+        CLI.UnknownLocationException ulerr = Assertions.assertThrows(CLI.UnknownLocationException.class, () -> cli.findLocationIdForString("Highway 4xx"));
+        Assertions.assertTrue(ulerr.getMessage().contains("Did you mean"));
+    }
+
+    @Test
+    void checkTariff() throws Exception {
+        // The standard tariff matches the original $0.25/km
+        Assertions.assertEquals(2882, cli.tariff.priceCents(interchanges, 1, 2, 115.277, cli.vehicleClass, Tariff.NO_TIME));
+
+        // A straight line of 4 locations, 10km apart
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 10}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 10}, {\"toId\": 3, \"distance\": 10}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 2, \"distance\": 10}, {\"toId\": 4, \"distance\": 10}]}," +
+                "\"4\": {\"name\": \"D\", \"routes\": [{\"toId\": 3, \"distance\": 10}]}" +
+                "}}");
+        Interchanges loaded = jsonCli.interchanges;
+        Tariff tariff = Tariff.read(new StringReader("{\"defaultClass\": \"light\", \"classes\": {" +
+                "\"light\": {\"rate\": 25}, \"heavy\": {\"rate\": 50, \"tripCharge\": 100, \"cap\": 1000}}," +
+                "\"zones\": [{\"fromId\": 2, \"toId\": 2, \"rates\": {\"light\": 40}}]," +
+                "\"bands\": [{\"days\": [\"monday\"], \"start\": \"06:00\", \"end\": \"10:00\", \"multiplier\": 2}," +
+                "{\"days\": [\"FRIDAY\"], \"start\": \"22:00\", \"end\": \"02:00\", \"multiplier\": 0.5}]}"));
+        int light = tariff.classIndex("LIGHT");
+        int heavy = tariff.classIndex("heavy");
+        Assertions.assertEquals(light, tariff.defaultClass());
+        Assertions.assertEquals(Tariff.UNKNOWN_CLASS, tariff.classIndex("bus"));
+
+        // The zone rate only applies to the segment starting at ID 2, in either direction
+        Assertions.assertEquals(900, tariff.priceCents(loaded, 1, 4, loaded.calculateDistance(1, 4), light, Tariff.NO_TIME));
+        Assertions.assertEquals(900, tariff.priceCents(loaded, 4, 1, loaded.calculateDistance(4, 1), light, Tariff.NO_TIME));
+        Assertions.assertEquals(400, tariff.priceCents(loaded, 2, 3, loaded.calculateDistance(2, 3), light, Tariff.NO_TIME));
+
+        // Heavy vehicles pay a trip charge, up to their cap
+        Assertions.assertEquals(600, tariff.priceCents(loaded, 1, 2, 10, heavy, Tariff.NO_TIME));
+        Assertions.assertEquals(1000, tariff.priceCents(loaded, 1, 4, 30, heavy, Tariff.NO_TIME));
+
+        // Time bands multiply the distance charge, including bands that wrap past midnight
+        Assertions.assertEquals(500, tariff.priceCents(loaded, 1, 2, 10, light, jsonCli.parseTripTime("2026-10-19T08:00")));
+        Assertions.assertEquals(250, tariff.priceCents(loaded, 1, 2, 10, light, jsonCli.parseTripTime("2026-10-19T10:00")));
+        Assertions.assertEquals(125, tariff.priceCents(loaded, 1, 2, 10, light, jsonCli.parseTripTime("2026-10-17T01:00")));
+        Assertions.assertEquals(250, tariff.priceCents(loaded, 1, 2, 10, light, jsonCli.parseTripTime("2026-10-18T01:00")));
+
+        // Batch rows may give their own class and time
+        jsonCli.tariff = tariff;
+        jsonCli.vehicleClass = tariff.defaultClass();
+        StringWriter results = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        new BatchPricer(jsonCli).run(new BufferedReader(new StringReader("t1,A,D\nt2,A,B,heavy\nt3,A,B,,2026-10-19T08:00\nt4,A,B,bus\n")), results, rejects);
+        Assertions.assertEquals("t1,30.000,9.00\nt2,10.000,6.00\nt3,10.000,5.00\n", results.toString());
+        Assertions.assertTrue(rejects.toString().startsWith("4\t"));
+
+        // Invalid tariffs and trip details are reported
+        Assertions.assertThrows(Tariff.InvalidTariff.class, () -> Tariff.read(new StringReader("{\"classes\": {}}")));
+        Assertions.assertThrows(Tariff.InvalidTariff.class, () -> Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25}}, \"zones\": [{\"rates\": {\"bus\": 1}}]}")));
+        Assertions.assertThrows(Tariff.InvalidTariff.class, () -> Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25}}, \"bands\": [{\"start\": \"6am\"}]}")));
+        Assertions.assertThrows(Tariff.InvalidTariff.class, () -> Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25, \"tripCharge\": -100}}}")));
+        Assertions.assertThrows(Tariff.InvalidTariff.class, () -> Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25, \"cap\": -1}}}")));
+        // A cap of 0 is a cap, not the lack of one
+        Assertions.assertEquals(0, Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25, \"cap\": 0}}}")).priceCents(loaded, 1, 2, 10, 0, Tariff.NO_TIME));
+        Assertions.assertThrows(CLI.InvalidTripDetailsException.class, () -> jsonCli.findVehicleClass(tariff, "bus"));
+        Assertions.assertThrows(CLI.InvalidTripDetailsException.class, () -> jsonCli.parseTripTime("Monday"));
+
+        // Patches in place update the costs of the links they edit, and every patch after the first catches up on just those
+        for(int patch = 1; patch <= 3; patch++) {
+            jsonCli.applyPatch(new NetworkPatch().distance(2, 3, 10 + patch * 5).distance(3, 4, 10 - patch));
+            Assertions.assertSame(loaded, jsonCli.interchanges);
+            long expected = 250 + (10 + patch * 5) * 40 + (10 - patch) * 25;
+            Assertions.assertEquals(expected, tariff.priceCents(loaded, 1, 4, loaded.calculateDistance(1, 4), light, Tariff.NO_TIME));
+            Assertions.assertEquals(expected, tariff.priceCents(loaded, 4, 1, loaded.calculateDistance(4, 1), light, Tariff.NO_TIME));
+            Assertions.assertEquals((10 + patch * 5) * 40, tariff.priceCents(loaded, 3, 2, loaded.calculateDistance(3, 2), light, Tariff.NO_TIME));
+        }
+    }
+
+    @Test
+    void checkDistanceMatrix() throws Exception {
+        // Export the bundled network in many small blocks, so blocks are computed while others are written
+        MatrixExporter exporter = new MatrixExporter(cli);
+        exporter.threads = 4;
+        exporter.blockBytes = 1000;
+        Path path = Files.createTempFile("matrix", ".bin");
+        try {
+            try(FileChannel output = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                exporter.run(output);
+            }
+
+            // Every pair matches a direct calculation, and IDs with no location are unknown
+            DistanceMatrix matrix = new DistanceMatrix(path);
+            Assertions.assertEquals(interchanges.getStore().size(), matrix.size());
+            Assertions.assertEquals((long)matrix.size() * matrix.size(), exporter.pairCount);
+            for(int i = 0; i < matrix.size(); i++) {
+                for(int j = 0; j < matrix.size(); j++) {
+                    int start = matrix.idAt(i);
+                    int end = matrix.idAt(j);
+                    double distance = interchanges.calculateDistance(start, end);
+                    Assertions.assertEquals(Math.round(distance * 1000), (long)matrix.distanceMetres(start, end));
+                    Assertions.assertEquals(cli.tariff.priceCents(interchanges, start, end, distance, cli.vehicleClass, Tariff.NO_TIME), (long)matrix.costCents(start, end));
+                }
+            }
+            Assertions.assertEquals(67748, matrix.distanceMetres(interchanges.lookupLocationIdForName("QEW"), interchanges.lookupLocationIdForName("Highway 400")));
+            Assertions.assertEquals(DistanceMatrix.NO_PATH, matrix.costCents(-5, matrix.idAt(0)));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+
+        // Gaps in the IDs are skipped, and CSV only lists connected pairs
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 1.5}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 1.5}]}," +
+                "\"5\": {\"name\": \"C\", \"routes\": []}" +
+                "}}");
+        MatrixExporter csvExporter = new MatrixExporter(jsonCli);
+        csvExporter.csv = true;
+        java.io.ByteArrayOutputStream csv = new java.io.ByteArrayOutputStream();
+        csvExporter.run(Channels.newChannel(csv));
+        Assertions.assertEquals("start,end,distance,cost\n1,1,0.000,0.00\n1,2,1.500,0.38\n2,1,1.500,0.38\n2,2,0.000,0.00\n5,5,0.000,0.00\n", csv.toString("UTF-8"));
+        Assertions.assertEquals(9, csvExporter.pairCount);
+        Assertions.assertEquals(5, csvExporter.connectedCount);
+    }
+
+    @Test
+    void checkBranchedRouting() throws IOException {
+        // Highway A runs 1 to 4 with a shortcut from 1 to 4, highway B runs 10 to 12 and meets A at 2, and 20 is on its own
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A1\", \"routes\": [{\"toId\": 2, \"distance\": 10}, {\"toId\": 4, \"distance\": 15}]}," +
+                "\"2\": {\"name\": \"A2\", \"routes\": [{\"toId\": 3, \"distance\": 10}, {\"toId\": 1, \"distance\": 10}, {\"toId\": 11, \"distance\": 1}]}," +
+                "\"3\": {\"name\": \"A3\", \"routes\": [{\"toId\": 4, \"distance\": 10}, {\"toId\": 2, \"distance\": 10}]}," +
+                "\"4\": {\"name\": \"A4\", \"routes\": [{\"toId\": 3, \"distance\": 10}]}," +
+                "\"10\": {\"name\": \"B10\", \"routes\": [{\"toId\": 11, \"distance\": 5}]}," +
+                "\"11\": {\"name\": \"B11\", \"routes\": [{\"toId\": 12, \"distance\": 5}, {\"toId\": 10, \"distance\": 5}, {\"toId\": 99, \"distance\": 1}]}," +
+                "\"12\": {\"name\": \"B12\", \"routes\": [{\"toId\": 11, \"distance\": 5}]}," +
+                "\"20\": {\"name\": \"C20\", \"routes\": []}" +
+                "}}");
+        Interchanges loaded = jsonCli.interchanges;
+        Assertions.assertNotNull(loaded.getGraph());
+
+        // Shortest paths use the shortcut and cross between highways, in either direction and from cached sources
+        for(int repeat = 0; repeat < 3; repeat++) {
+            Assertions.assertEquals(15.0, loaded.calculateDistance(1, 4));
+            Assertions.assertEquals(15.0, loaded.calculateDistance(4, 1));
+            Assertions.assertEquals(16.0, loaded.calculateDistance(3, 12));
+            Assertions.assertEquals(16.0, loaded.calculateDistance(12, 3));
+            Assertions.assertEquals(10.0, loaded.calculateDistance(10, 12));
+            Assertions.assertEquals(0.0, loaded.calculateDistance(11, 11));
+        }
+        Assertions.assertArrayEquals(new int[] {2, 1, 5, 6}, loaded.calculatePath(3, 12));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> loaded.calculateDistance(1, 20));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> loaded.calculateDistance(1, 99));
+
+        // Zone rates are charged route by route along the path, at the rate of each route's lower ID
+        Tariff tariff = Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25}}, \"zones\": [{\"fromId\": 11, \"toId\": 11, \"rates\": {\"light\": 100}}]}"));
+        Assertions.assertEquals(775, tariff.priceCents(loaded, 3, 12, 16, 0, Tariff.NO_TIME));
+
+        // The graph survives a snapshot
+        Path snapshot = Files.createTempFile("branched", ".snapshot");
+        try {
+            jsonCli.compileSnapshot(snapshot.toString());
+            CLI snapshotCli = new CLI();
+            snapshotCli.loadFromFile(snapshot.toString());
+            Assertions.assertEquals(16.0, snapshotCli.interchanges.calculateDistance(12, 3));
+            Assertions.assertThrows(Interchanges.NoPathExists.class, () -> snapshotCli.interchanges.calculateDistance(20, 3));
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+
+        // Linear networks have no graph, and paths follow the corridor either way
+        Assertions.assertNull(interchanges.getGraph());
+        int[] forward = interchanges.calculatePath(1, 5);
+        int[] backward = interchanges.calculatePath(5, 1);
+        Assertions.assertEquals(forward.length, backward.length);
+        for(int i = 0; i < forward.length; i++) Assertions.assertEquals(forward[i], backward[backward.length - 1 - i]);
+        Assertions.assertEquals(interchanges.getStore().indexOf(1), forward[0]);
+        Assertions.assertEquals(interchanges.getStore().indexOf(5), forward[forward.length - 1]);
+    }
+
+    @Test
+    void checkDirectedRoutes() {
+        // The bundled network, which lists 0km placeholders back from Sideline 26 and Westney Road, plus one long branch from 1 to 3
+        Interchanges branched = new Interchanges();
+        Iterator<Location> it = interchanges.locationIterator();
+        while(it.hasNext()) {
+            Location location = it.next();
+            if(location == null) continue;
+            Location copy = new Location(location.id, location.name);
+            for(Route listed : new Route[] {location.nextRoute, location.prevRoute}) {
+                if(listed == null) continue;
+                Route route = new Route();
+                route.toId = listed.toId;
+                route.metres = listed.metres;
+                copy.addRoute(route);
+            }
+            if(copy.id == 1) {
+                Route branch = new Route();
+                branch.toId = 3;
+                branch.metres = 500000;
+                copy.addRoute(branch);
+            }
+            Assertions.assertTrue(branched.tryAddLocation(copy));
+        }
+        branched.connectRoutes();
+        Assertions.assertNotNull(branched.getGraph());
+
+        // The branch is never a shortcut, and nor are the placeholders driven the other way, so every trip up the IDs is unchanged
+        Assertions.assertEquals(7.854, branched.calculateDistance(41, 42));
+        Assertions.assertEquals(18.143, branched.calculateDistance(40, 45));
+        Assertions.assertEquals(454, cli.tariff.priceCents(branched, 40, 45, 18.143, cli.vehicleClass, Tariff.NO_TIME));
+        Assertions.assertEquals(interchanges.calculateDistance(1, 3), branched.calculateDistance(1, 3));
+
+        // Heading down the IDs bills the routes listed that way, and the price follows the segments driven
+        Assertions.assertEquals(10.83, interchanges.calculateDistance(45, 40));
+        Assertions.assertEquals(10.83, branched.calculateDistance(45, 40));
+        Itinerary itinerary = interchanges.itinerary(45, 40, new Itinerary());
+        Assertions.assertEquals(10.83, itinerary.getTotalDistance(), 1e-9);
+        Assertions.assertEquals(271, cli.tariff.priceCents(interchanges, 45, 40, 10.83, cli.vehicleClass, Tariff.NO_TIME));
+        Assertions.assertEquals(cli.tariff.priceCents(interchanges, 45, 40, 10.83, cli.vehicleClass, Tariff.NO_TIME),
+                cli.tariff.priceCents(branched, 45, 40, 10.83, cli.vehicleClass, Tariff.NO_TIME));
+
+        NetworkStore store = interchanges.getStore();
+        for(int start = 0; start < store.size(); start++) {
+            for(int end = 0; end < store.size(); end++) {
+                int startId = store.idAt(start);
+                int endId = store.idAt(end);
+                Assertions.assertEquals(interchanges.distanceMetres(startId, endId), branched.distanceMetres(startId, endId), startId + " to " + endId);
+            }
+        }
+    }
+
+    @Test
+    void checkTripSessionizer() throws IOException {
+        // Replay a file of reads with a 30 minute timeout and a 60 second reorder window
+        StringWriter trips = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        TripSessionizer sessionizer = new TripSessionizer(cli, trips, rejects, 30 * 60 * 1000, 60 * 1000);
+        sessionizer.zone = java.time.ZoneOffset.UTC;
+        String reads = "# vehicle, interchange, timestamp\n" +
+                "1,QEW,0\n" +
+                "2,Highway 400,30000\n" +
+                // Out of order, but within the window
+                "2,QEW,10000\n" +
+                "1,Highway 400,120000\n" +
+                "1,Salem Road,60000\n" +
+                // Vehicle 3 makes two trips, more than the timeout apart
+                "3,1,1970-01-01T00:05:00Z\n" +
+                "3,5,1970-01-01T00:06:00\n" +
+                "3,5,1970-01-01T03:00:00\n" +
+                "3,1,1970-01-01T03:10:00\n" +
+                // Too late, unknown, and a trip that goes nowhere
+                "4,QEW,0\n" +
+                "5,Nowhere,10800000\n" +
+                "6,QEW,10800000\n";
+        sessionizer.run(new BufferedReader(new StringReader(reads)));
+
+        // Trips close as the stream passes their timeout, the rest when it ends
+        String[] lines = trips.toString().split("\n");
+        Assertions.assertEquals(4, lines.length);
+        int qew = interchanges.lookupLocationIdForName("QEW");
+        int highway400 = interchanges.lookupLocationIdForName("Highway 400");
+        Assertions.assertEquals("2," + qew + "," + highway400 + ",10000,30000,2,67.748,16.94", lines[0]);
+        Assertions.assertEquals("1," + qew + "," + highway400 + ",0,120000,3,67.748,16.94", lines[1]);
+        Assertions.assertTrue(lines[2].startsWith("3,1,5,300000,360000,2,"));
+        Assertions.assertTrue(lines[3].startsWith("3,5,1,10800000,11400000,2,"));
+        Assertions.assertEquals(4, sessionizer.tripCount);
+        Assertions.assertEquals(1, sessionizer.lateCount);
+        Assertions.assertEquals(3, rejects.toString().split("\n").length);
+        Assertions.assertEquals(0, sessionizer.openTrips());
+
+        // A stream with far more vehicles than the cap never holds more than the cap open, and loses no trips
+        StringWriter capped = new StringWriter();
+        TripSessionizer bounded = new TripSessionizer(cli, capped, new StringWriter(), 1000, 100);
+        bounded.maxOpenTrips = 1000;
+        Random random = new Random(7);
+        int vehicles = 20000;
+        for(int i = 0; i < vehicles; i++) {
+            long time = i * 10L;
+            bounded.accept(i, 1, time + random.nextInt(50));
+            bounded.accept(i, 5, time + 60 + random.nextInt(50));
+            Assertions.assertTrue(bounded.openTrips() <= 1000);
+        }
+        bounded.finish();
+        Assertions.assertEquals(vehicles, bounded.tripCount);
+        Assertions.assertEquals(0, bounded.lateCount);
+        for(String line : capped.toString().split("\n")) Assertions.assertTrue(line.contains(",1,5,"));
+    }
+
+    @Test
+    void checkStatementAggregator() throws IOException {
+        // Two accounts over two months, with rows that can't be priced
+        StringWriter statements = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        StatementAggregator aggregator = new StatementAggregator(cli, statements, rejects);
+        String trips = "# account, start, end, time\n" +
+                "20,QEW,Highway 400,2026-10-01T08:00\n" +
+                "10,QEW,Highway 400,2026-10-02T08:00\n" +
+                "10,Highway 400,QEW,2026-10-30T17:00\n" +
+                "10,QEW,Highway 400,2026-11-01T08:00,light\n" +
+                "x,QEW,Highway 400,2026-10-01T08:00\n" +
+                "10,Nowhere,QEW,2026-10-01T08:00\n" +
+                "10,QEW,Highway 400,yesterday\n" +
+                "10,QEW,Highway 400,2026-10-01T08:00,bus\n";
+        aggregator.run(new BufferedReader(new StringReader(trips)));
+        Assertions.assertEquals("10,2026-10,light,2,135.496,33.88\n10,2026-11,light,1,67.748,16.94\n20,2026-10,light,1,67.748,16.94\n", statements.toString());
+        Assertions.assertEquals(4, aggregator.rejectedCount);
+        Assertions.assertEquals(0, aggregator.spilledRuns);
+
+        // A table far too small for the input spills many runs, and the merge gives the same statements as one big enough
+        Random random = new Random(11);
+        StringBuilder many = new StringBuilder();
+        for(int i = 0; i < 20000; i++) {
+            many.append(random.nextInt(3000)).append(random.nextBoolean() ? ",1,5," : ",QEW,Highway 400,").append("2026-").append(10 + random.nextInt(3)).append("-01T08:00\n");
+        }
+        StringWriter inMemory = new StringWriter();
+        new StatementAggregator(cli, inMemory, new StringWriter()).run(new BufferedReader(new StringReader(many.toString())));
+        StringWriter spilled = new StringWriter();
+        StatementAggregator small = new StatementAggregator(cli, spilled, new StringWriter());
+        small.memoryBytes = 1000 * 40;
+        small.run(new BufferedReader(new StringReader(many.toString())));
+        Assertions.assertTrue(small.spilledRuns > 5);
+        // Its budget only buffers a few runs at once, so they are merged over several passes
+        Assertions.assertTrue(small.mergePasses > 0);
+        Assertions.assertEquals(20000, small.tripCount);
+        Assertions.assertEquals(inMemory.toString(), spilled.toString());
+    }
+
+    @Test
+    void checkMetrics() {
+        // Quantiles come back as the upper bound of their bucket, which is within about 6% of the value
+        Histogram histogram = new Histogram("test");
+        Assertions.assertEquals(0, histogram.getQuantile(0.5));
+        for(long value = 1; value <= 1000; value++) histogram.record(value * 1000);
+        Assertions.assertEquals(1000, histogram.getCount());
+        Assertions.assertEquals(500500, histogram.getMean());
+        Assertions.assertEquals(1000000, histogram.getMax());
+        long median = histogram.getQuantile(0.5);
+        Assertions.assertTrue(median >= 500000 && median <= 500000 * 1.07);
+        long p99 = histogram.getQuantile(0.99);
+        Assertions.assertTrue(p99 >= 990000 && p99 <= 1000000);
+        histogram.record(-5);
+        Assertions.assertEquals(0, histogram.getQuantile(0.0001));
+        histogram.reset();
+        Assertions.assertEquals(0, histogram.getCount());
+
+        // Queries record their latency, and their misses are counted
+        // Other tests record too, so only the changes are checked
+        long distances = Metrics.DISTANCE.getCount();
+        long resolves = Metrics.RESOLVE.getCount();
+        long misses = Metrics.RESOLVE_MISSES.getCount();
+        long noPaths = Metrics.NO_PATH.getCount();
+        cli.findLocationIdForString("QEW");
+        interchanges.calculateDistance(1, 2);
+        Assertions.assertThrows(CLI.UnknownLocationException.class, () -> cli.findLocationIdForString("Nowhere"));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> interchanges.calculateDistance(1, 100000));
+        Assertions.assertTrue(Metrics.DISTANCE.getCount() >= distances + 1);
+        Assertions.assertTrue(Metrics.RESOLVE.getCount() >= resolves + 1);
+        Assertions.assertTrue(Metrics.RESOLVE_MISSES.getCount() >= misses + 1);
+        Assertions.assertTrue(Metrics.NO_PATH.getCount() >= noPaths + 1);
+        Assertions.assertTrue(Metrics.LOAD_PARSE.getCount() > 0);
+        Assertions.assertTrue(Metrics.report().contains("load.connectRoutes"));
+    }
+
+    @Test
+    void checkSpatialIndex() throws Exception {
+        // A point on an interchange snaps to it
+        Assertions.assertEquals(1, interchanges.findNearestLocationId(43.336962, -79.830394));
+
+        // Random points near the network match a linear scan, including the order and distances within a radius
+        Random random = new Random(15);
+        int[] ids = new int[5];
+        double[] distances = new double[5];
+        for(int trial = 0; trial < 500; trial++) {
+            double lat = 43 + random.nextDouble() * 1.2;
+            double lng = -80.2 + random.nextDouble() * 1.6;
+            double radius = random.nextDouble() * 20;
+
+            int bestId = Interchanges.UNKNOWN_ID;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            int withinCount = 0;
+            Iterator<Location> it = interchanges.locationIterator();
+            while(it.hasNext()) {
+                Location location = it.next();
+                if(location == null) continue;
+                double distance = SpatialIndex.distanceKm(lat, lng, location.lat, location.lng);
+                if(distance < bestDistance) {
+                    bestDistance = distance;
+                    bestId = location.id;
+                }
+                if(distance <= radius) withinCount++;
+            }
+            Assertions.assertEquals(bestId, interchanges.findNearestLocationId(lat, lng));
+
+            int count = interchanges.findNearestLocationIds(lat, lng, radius, ids, distances);
+            Assertions.assertEquals(Math.min(5, withinCount), count);
+            for(int i = 0; i < count; i++) {
+                Location location = interchanges.getLocationById(ids[i]);
+                Assertions.assertEquals(SpatialIndex.distanceKm(lat, lng, location.lat, location.lng), distances[i], 1e-6);
+                Assertions.assertTrue(distances[i] <= radius + 1e-6);
+                if(i > 0) Assertions.assertTrue(distances[i] >= distances[i - 1]);
+            }
+        }
+
+        // Locations without coordinates are never found, and the other side of the world still finds the nearest
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"lat\": 0, \"lng\": 179.9, \"routes\": [{\"toId\": 2, \"distance\": 1}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 1}]}," +
+                "\"3\": {\"name\": \"C\", \"lat\": 0, \"lng\": 170, \"routes\": []}" +
+                "}}");
+        Assertions.assertEquals(1, jsonCli.interchanges.findNearestLocationId(0, -179.9));
+        Assertions.assertEquals(2, jsonCli.interchanges.findNearestLocationIds(0, 0, Double.POSITIVE_INFINITY, ids, null));
+        Assertions.assertEquals(0, jsonCli.interchanges.findNearestLocationIds(0, 0, 100, ids, null));
+
+        // Snap a file of points, rejecting bad rows and points too far away
+        StringBuilder points = new StringBuilder();
+        for(int i = 0; i < 50; i++) points.append("p").append(i).append(",43.336962,-79.830394\n");
+        points.append("far,0,0\n");
+        points.append("bad,north,west\n");
+        PointSnapper snapper = new PointSnapper(cli);
+        snapper.threads = 4;
+        snapper.chunkSize = 7;
+        snapper.maxDistanceKm = 50;
+        StringWriter results = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        snapper.run(new BufferedReader(new StringReader(points.toString())), results, rejects);
+        String[] lines = results.toString().split("\n");
+        Assertions.assertEquals(50, lines.length);
+        for(int i = 0; i < 50; i++) Assertions.assertEquals("p" + i + ",1,0.000", lines[i]);
+        Assertions.assertEquals(2, snapper.rejectedCount);
+        Assertions.assertTrue(rejects.toString().startsWith("51\t"));
+    }
+
+    @Test
+    void checkNetworkPatch() throws Exception {
+        String network = "{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 10}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 1, \"distance\": 10}, {\"toId\": 3, \"distance\": 10}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 2, \"distance\": 10}, {\"toId\": 4, \"distance\": 10}]}," +
+                "\"4\": {\"name\": \"D\", \"routes\": [{\"toId\": 3, \"distance\": 10}]}" +
+                "}}";
+        CLI jsonCli = loadJson(network);
+        Interchanges loaded = jsonCli.interchanges;
+        Tariff tariff = Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25}}, \"zones\": [{\"fromId\": 2, \"toId\": 2, \"rates\": {\"light\": 40}}]}"));
+        int light = tariff.defaultClass();
+        Assertions.assertEquals(900, tariff.priceCents(loaded, 1, 4, 30, light, Tariff.NO_TIME));
+
+        // Distance edits on a linear network are made in place, and the tariff recompiles for them
+        jsonCli.applyPatch(NetworkPatch.read(new StringReader("{\"edits\": [{\"op\": \"distance\", \"fromId\": 3, \"toId\": 2, \"distance\": 20}]}")));
+        Assertions.assertSame(loaded, jsonCli.interchanges);
+        Assertions.assertEquals(40, loaded.calculateDistance(1, 4));
+        Assertions.assertEquals(20, loaded.calculateDistance(3, 2));
+        Assertions.assertEquals(20000, loaded.getLocationById(2).nextRoute.metres);
+        Assertions.assertEquals(20000, loaded.getLocationById(3).prevRoute.metres);
+        Assertions.assertEquals(1300, tariff.priceCents(loaded, 1, 4, 40, light, Tariff.NO_TIME));
+
+        // A patch with an edit that doesn't fit the network changes nothing, even its valid edits
+        Assertions.assertThrows(NetworkPatch.InvalidPatch.class, () -> jsonCli.applyPatch(new NetworkPatch().distance(1, 2, 5).distance(1, 3, 5)));
+        Assertions.assertThrows(NetworkPatch.InvalidPatch.class, () -> jsonCli.applyPatch(new NetworkPatch().rename(2, "E").remove(9)));
+        Assertions.assertThrows(NetworkPatch.InvalidPatch.class, () -> NetworkPatch.read(new StringReader("{\"edits\": [{\"op\": \"move\", \"id\": 1}]}")));
+        Assertions.assertSame(loaded, jsonCli.interchanges);
+        Assertions.assertEquals(40, loaded.calculateDistance(1, 4));
+        Assertions.assertEquals(2, loaded.lookupLocationIdForName("B"));
+
+        // Anything else builds and publishes a new network, leaving the old one as it was
+        jsonCli.applyPatch(NetworkPatch.read(new StringReader("{\"edits\": [" +
+                "{\"op\": \"rename\", \"id\": 4, \"name\": \"D2\"}," +
+                "{\"op\": \"add\", \"id\": 5, \"name\": \"E\", \"routes\": [{\"toId\": 4, \"distance\": 5}]}," +
+                "{\"op\": \"remove\", \"id\": 1}]}")));
+        Interchanges patched = jsonCli.interchanges;
+        Assertions.assertNotSame(loaded, patched);
+        Assertions.assertTrue(patched.isFrozen());
+        Assertions.assertEquals(35, patched.calculateDistance(2, 5));
+        Assertions.assertEquals(4, patched.lookupLocationIdForName("d2"));
+        Assertions.assertEquals(Interchanges.UNKNOWN_ID, patched.lookupLocationIdForName("D"));
+        Assertions.assertNull(patched.getLocationById(1));
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> patched.calculateDistance(1, 2));
+        Assertions.assertEquals(40, loaded.calculateDistance(1, 4));
+
+        // Random edits made in place on the bundled network match the same network rebuilt from scratch
+        Random random = new Random(17);
+        NetworkPatch edits = new NetworkPatch();
+        Iterator<Location> it = interchanges.locationIterator();
+        while(it.hasNext()) {
+            Location location = it.next();
+            if(location != null && location.nextRoute != null && random.nextInt(3) == 0) edits.distance(location.id, location.nextRoute.toId, random.nextDouble() * 10);
+        }
+        cli.applyPatch(edits);
+        Assertions.assertSame(interchanges, cli.interchanges);
+        Interchanges rebuilt = interchanges.applyPatch(new NetworkPatch().rename(1, interchanges.getLocationById(1).name));
+        Assertions.assertNotSame(interchanges, rebuilt);
+        int[] ids = new int[interchanges.getStore().size()];
+        for(int i = 0; i < ids.length; i++) ids[i] = interchanges.getStore().idAt(i);
+        for(int trial = 0; trial < 2000; trial++) {
+            int start = ids[random.nextInt(ids.length)];
+            int end = ids[random.nextInt(ids.length)];
+            Assertions.assertEquals(rebuilt.calculateDistance(start, end), interchanges.calculateDistance(start, end), 1e-9);
+        }
+
+        // Readers never see half a patch while edits are made from another thread
+        CLI editedCli = loadJson(network);
+        Interchanges edited = editedCli.interchanges;
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicLong torn = new AtomicLong();
+        Thread[] readers = new Thread[4];
+        for(int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while(!done.get()) {
+                    if(Math.abs(edited.calculateDistance(1, 4) - 30) > 1e-9) torn.incrementAndGet();
+                }
+            });
+            readers[r].start();
+        }
+        for(int i = 0; i < 20000; i++) {
+            double split = random.nextDouble() * 20;
+            editedCli.applyPatch(new NetworkPatch().distance(1, 2, split).distance(2, 3, 20 - split));
+        }
+        done.set(true);
+        for(Thread reader : readers) reader.join();
+        Assertions.assertEquals(0, torn.get());
+        Assertions.assertSame(edited, editedCli.interchanges);
+    }
+
+    @Test
+    void checkBundledNetwork() throws Exception {
+        // Without a data file, the network generated at build time is used
+        CLI bundledCli = new CLI();
+        bundledCli.loadData(null);
+        Interchanges bundled = bundledCli.interchanges;
+        Assertions.assertTrue(bundled.isFrozen());
+
+        // It matches the bundled JSON, as parsed at runtime, exactly
+        NetworkStore expected = interchanges.getStore();
+        NetworkStore store = bundled.getStore();
+        Assertions.assertEquals(expected.size(), store.size());
+        Assertions.assertEquals(BundledNetwork.SIZE, store.size());
+        for(int i = 0; i < store.size(); i++) {
+            Assertions.assertEquals(expected.idAt(i), store.idAt(i));
+            Assertions.assertEquals(expected.nameAt(i), store.nameAt(i));
+            Assertions.assertEquals(expected.nextAt(i), store.nextAt(i));
+            Assertions.assertEquals(expected.nextDistanceAt(i), store.nextDistanceAt(i));
+            Assertions.assertEquals(expected.prevAt(i), store.prevAt(i));
+            Assertions.assertEquals(expected.prevDistanceAt(i), store.prevDistanceAt(i));
+            Assertions.assertEquals(expected.segmentAt(i), store.segmentAt(i));
+            Assertions.assertEquals(expected.cumulativeAt(i), store.cumulativeAt(i));
+            Assertions.assertEquals(expected.latAt(i), store.latAt(i));
+            Assertions.assertEquals(expected.lngAt(i), store.lngAt(i));
+            Assertions.assertEquals(i, store.indexOf(expected.idAt(i)));
+            Assertions.assertEquals(expected.idAt(i), bundled.lookupLocationIdForName(expected.nameAt(i).toUpperCase()));
+        }
+        Assertions.assertEquals(interchanges.getGraph() == null, bundled.getGraph() == null);
+        int[] expectedIds = new int[10];
+        int[] ids = new int[10];
+        Assertions.assertEquals(interchanges.completeLocationName("hi", expectedIds), bundled.completeLocationName("hi", ids));
+        Assertions.assertArrayEquals(expectedIds, ids);
+        Assertions.assertEquals(interchanges.calculateDistance(1, 46), bundled.calculateDistance(1, 46));
+
+        // A patch to one load leaves the next untouched
+        double distance = bundled.calculateDistance(1, 2);
+        bundled.applyPatch(new NetworkPatch().distance(1, 2, distance + 1));
+        Assertions.assertEquals(distance + 1, bundled.calculateDistance(1, 2));
+        Assertions.assertEquals(distance, BundledNetwork.load().calculateDistance(1, 2));
+    }
+
+    @Test
+    void checkItinerary() throws Exception {
+        // A straight line listing a different distance each way between 2 and 3
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 10}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 3, \"distance\": 10}, {\"toId\": 1, \"distance\": 10}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 4, \"distance\": 10}, {\"toId\": 2, \"distance\": 12}]}," +
+                "\"4\": {\"name\": \"D\", \"routes\": [{\"toId\": 3, \"distance\": 10}]}" +
+                "}}");
+        Interchanges loaded = jsonCli.interchanges;
+
+        // Heading up the IDs, each segment is the next route and they add up to the distance
+        Itinerary itinerary = new Itinerary();
+        Assertions.assertSame(itinerary, loaded.itinerary(1, 4, itinerary));
+        Assertions.assertEquals(3, itinerary.segmentCount());
+        int[] fromIds = {1, 2, 3};
+        for(int i = 0; i < 3; i++) {
+            Assertions.assertTrue(itinerary.next());
+            Assertions.assertEquals(fromIds[i], itinerary.fromId());
+            Assertions.assertEquals(fromIds[i] + 1, itinerary.toId());
+            Assertions.assertEquals(10.0, itinerary.distance());
+        }
+        Assertions.assertFalse(itinerary.next());
+        Assertions.assertEquals(loaded.calculateDistance(1, 4), itinerary.getTotalDistance());
+
+        // Heading down them, the same instance follows the previous routes
+        Assertions.assertSame(itinerary, loaded.itinerary(4, 1, itinerary));
+        Assertions.assertTrue(itinerary.next());
+        Assertions.assertEquals("D", itinerary.fromName());
+        Assertions.assertEquals("C", itinerary.toName());
+        Assertions.assertTrue(itinerary.next());
+        Assertions.assertEquals(12.0, itinerary.distance());
+        // The segments add up to the distance billed, heading down the IDs as well as up
+        Assertions.assertEquals(32.0, itinerary.getTotalDistance());
+        Assertions.assertEquals(itinerary.getTotalDistance(), loaded.calculateDistance(4, 1));
+
+        // Rewinding walks it again, and a trip to the same place has no segments
+        itinerary.rewind();
+        int segments = 0;
+        while(itinerary.next()) segments++;
+        Assertions.assertEquals(3, segments);
+        Assertions.assertSame(itinerary, loaded.itinerary(2, 2, itinerary));
+        Assertions.assertEquals(0, itinerary.segmentCount());
+        Assertions.assertFalse(itinerary.next());
+
+        // Zone rates are charged segment by segment
+        Tariff tariff = Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 25}}, \"zones\": [{\"fromId\": 2, \"toId\": 2, \"rates\": {\"light\": 40}}]}"));
+        loaded.itinerary(1, 4, itinerary);
+        double cents = 0;
+        while(itinerary.next()) cents += tariff.segmentCents(loaded, itinerary, 0, Tariff.NO_TIME);
+        Assertions.assertEquals(900.0, cents, 1e-9);
+
+        // Long trips grow the buffers, and the segments follow the path on the bundled network
+        Assertions.assertSame(itinerary, interchanges.itinerary(1, 46, itinerary));
+        int[] path = interchanges.calculatePath(1, 46);
+        Assertions.assertEquals(path.length - 1, itinerary.segmentCount());
+        for(int i = 1; i < path.length; i++) {
+            Assertions.assertTrue(itinerary.next());
+            Assertions.assertEquals(path[i - 1], itinerary.fromIndex());
+            Assertions.assertEquals(path[i], itinerary.toIndex());
+        }
+        Assertions.assertEquals(interchanges.calculateDistance(1, 46), itinerary.getTotalDistance(), 1e-9);
+
+        // Branched networks follow the shortest path
+        CLI branchedCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A1\", \"routes\": [{\"toId\": 2, \"distance\": 10}, {\"toId\": 4, \"distance\": 15}]}," +
+                "\"2\": {\"name\": \"A2\", \"routes\": [{\"toId\": 3, \"distance\": 10}, {\"toId\": 1, \"distance\": 10}]}," +
+                "\"3\": {\"name\": \"A3\", \"routes\": [{\"toId\": 4, \"distance\": 10}, {\"toId\": 2, \"distance\": 10}]}," +
+                "\"4\": {\"name\": \"A4\", \"routes\": [{\"toId\": 3, \"distance\": 10}]}," +
+                "\"20\": {\"name\": \"C20\", \"routes\": []}" +
+                "}}");
+        Interchanges branched = branchedCli.interchanges;
+        Assertions.assertSame(itinerary, branched.itinerary(4, 1, itinerary));
+        Assertions.assertEquals(1, itinerary.segmentCount());
+        Assertions.assertEquals(15.0, itinerary.getTotalDistance());
+        Assertions.assertThrows(Interchanges.NoPathExists.class, () -> branched.itinerary(1, 20, new Itinerary()));
+
+        // Batches can list each trip's segments after it
+        jsonCli.tariff = tariff;
+        jsonCli.vehicleClass = tariff.defaultClass();
+        BatchPricer pricer = new BatchPricer(jsonCli);
+        pricer.itinerary = true;
+        StringWriter results = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader("t1,A,C\n")), results, new StringWriter());
+        String[] lines = results.toString().split("\n");
+        Assertions.assertEquals(3, lines.length);
+        Assertions.assertEquals("t1,20.000,6.50", lines[0]);
+        Assertions.assertTrue(lines[1].startsWith("t1,1,2,10.000,"));
+        Assertions.assertTrue(lines[2].startsWith("t1,2,3,10.000,"));
+    }
+
+    @Test
+    void checkGeneratedNetworks() throws Exception {
+        // The same settings always generate the same network
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.count = 3000;
+        generator.highways = 3;
+        generator.generate();
+        StringWriter first = new StringWriter();
+        generator.writeJson(first);
+        generator.generate();
+        StringWriter second = new StringWriter();
+        generator.writeJson(second);
+        Assertions.assertEquals(first.toString(), second.toString());
+
+        // Every query path matches the reference walk, on linear corridors, with dropped and dangling routes, and with branches
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        generator.danglingRate = 0;
+        generator.asymmetry = 0.3;
+        generator.generate();
+        CLI linearCli = new CLI();
+        Assertions.assertEquals(0, linearCli.verifyGenerated(generator, 500, out));
+        Assertions.assertNull(linearCli.interchanges.getGraph());
+
+        generator.seed = 1;
+        generator.dropRate = 0.05;
+        generator.danglingRate = 0.02;
+        generator.generate();
+        CLI danglingCli = new CLI();
+        Assertions.assertEquals(0, danglingCli.verifyGenerated(generator, 500, out));
+        // A dangling route listed before the corridor's own doesn't take its place, so the highways stay linear
+        Assertions.assertNull(danglingCli.interchanges.getGraph());
+
+        generator.seed = 2;
+        generator.interchangeRate = 0.02;
+        generator.generate();
+        CLI branchedCli = new CLI();
+        Assertions.assertEquals(0, branchedCli.verifyGenerated(generator, 500, out));
+        Assertions.assertNotNull(branchedCli.interchanges.getGraph());
+
+        // Generated trips can be priced, apart from the unknown names and trips between disconnected highways
+        StringWriter trips = new StringWriter();
+        generator.writeTrips(trips, 1000, 0.01, 3);
+        BatchPricer pricer = new BatchPricer(branchedCli);
+        StringWriter results = new StringWriter();
+        StringWriter rejects = new StringWriter();
+        pricer.run(new BufferedReader(new StringReader(trips.toString())), results, rejects);
+        Assertions.assertEquals(1000, pricer.pricedCount + pricer.rejectedCount);
+        Assertions.assertTrue(pricer.pricedCount > 500);
+        Assertions.assertTrue(rejects.toString().contains("Nowhere"));
+    }
+
+    @Test
+    void checkExceptionFreeQueries() {
+        // IDs and names resolve without throwing, misses give UNKNOWN_ID and a message saying why
+        int qew = cli.findLocationIdForString("QEW");
+        Assertions.assertEquals(1, cli.resolveLocationId(interchanges, "1"));
+        Assertions.assertEquals(1, cli.resolveLocationId(interchanges, "+1"));
+        Assertions.assertEquals(qew, cli.resolveLocationId(interchanges, "qew"));
+        for(String missing : new String[] {"999999", "-1", "99999999999", "", "-", "Nowhere"}) {
+            Assertions.assertEquals(Interchanges.UNKNOWN_ID, cli.resolveLocationId(interchanges, missing));
+            CLI.UnknownLocationException ulerr = Assertions.assertThrows(CLI.UnknownLocationException.class, () -> cli.findLocationIdForString(missing));
+            Assertions.assertEquals(ulerr.getMessage(), cli.unknownLocationMessage(interchanges, missing));
+        }
+        Assertions.assertTrue(cli.unknownLocationMessage(interchanges, "999999").contains("ID 999999"));
+        Assertions.assertTrue(cli.unknownLocationMessage(interchanges, "QEX").contains("Did you mean: QEW"));
+
+        // Distances are NaN when there are none, with the reason
+        Assertions.assertEquals(interchanges.calculateDistance(1, qew), interchanges.distanceOrNaN(1, qew));
+        Assertions.assertTrue(Double.isNaN(interchanges.distanceOrNaN(999999, 1)));
+        Assertions.assertEquals(Interchanges.UNKNOWN_START, interchanges.noDistanceReason(999999, 1));
+        Assertions.assertEquals(Interchanges.UNKNOWN_END, interchanges.noDistanceReason(1, 999999));
+
+        // Locations are added in bulk, out of order, skipping taken and negative IDs
+        Interchanges bulk = new Interchanges();
+        Location a = new Location(1, "A");
+        Location b = new Location(2, "B");
+        Location c = new Location(7, "C");
+        a.nextRoute = new Route();
+        a.nextRoute.toId = 2;
+        a.nextRoute.metres = 3000;
+        List<Location> rejected = new ArrayList<Location>();
+        Assertions.assertEquals(3, bulk.addLocations(Arrays.asList(c, a, b, new Location(2, "Taken"), new Location(-4, "Negative")), rejected));
+        Assertions.assertEquals(2, rejected.size());
+        Assertions.assertFalse(bulk.tryAddLocation(new Location(7, "Taken")));
+        Assertions.assertThrows(Interchanges.LocationAlreadyExists.class, () -> bulk.addLocation(new Location(1, "Taken")));
+        bulk.connectRoutes();
+        Assertions.assertEquals(3.0, bulk.distanceOrNaN(2, 1));
+        Assertions.assertTrue(Double.isNaN(bulk.distanceOrNaN(1, 7)));
+        Assertions.assertEquals(Interchanges.NO_PATH, bulk.noDistanceReason(1, 7));
+        Assertions.assertEquals("C", bulk.getLocationById(7).name);
+
+        // Unknown IDs have no Location, in the gaps, past the end or negative, and the same once compacted
+        for(int missing : new int[] {4, 8, 999999, -1}) Assertions.assertNull(bulk.getLocationById(missing));
+        bulk.compact(false);
+        Assertions.assertEquals("C", bulk.getLocationById(7).name);
+        for(int missing : new int[] {4, 8, 999999, -1}) Assertions.assertNull(bulk.getLocationById(missing));
+
+        // The loader reports negative IDs instead of misplacing them
+        Assertions.assertThrows(CLI.CLIException.class, () -> loadJson("{\"locations\": {\"-3\": {\"name\": \"A\", \"routes\": []}}}"));
+    }
+
+    // Send text over a channel and read until the expected number of lines have been answered
+    private String exchangeLines(SocketChannel channel, String text, int lines) throws IOException {
+        channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        StringBuilder answers = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int seen = 0;
+        while(seen < lines) {
+            buffer.clear();
+            if(channel.read(buffer) < 0) break;
+            String chunk = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+            for(int i = 0; i < chunk.length(); i++) if(chunk.charAt(i) == '\n') seen++;
+            answers.append(chunk);
+        }
+        return answers.toString();
+    }
+
+    @Test
+    void checkLineServer() throws Exception {
+        LineServer server = new LineServer(cli, "localhost", 0, 2);
+        server.start();
+        try(SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+            // IDs and names, answered in order, with errors in place
+            String answers = exchangeLines(channel, "1 2\nSalem Road\tQEW\n1 999\nNowhere,QEW\n 1,2 \r\nQEW 1\none\n", 7);
+            String[] lines = answers.split("\n");
+            Assertions.assertEquals(7, lines.length);
+            Assertions.assertEquals("6.062 1.52", lines[0]);
+            Assertions.assertEquals("107.964 27.00", lines[1]);
+            Assertions.assertTrue(lines[2].startsWith("error No location with ID 999"));
+            Assertions.assertTrue(lines[3].startsWith("error No location with name \"Nowhere\""));
+            Assertions.assertEquals("6.062 1.52", lines[4]);
+            Assertions.assertEquals("0.000 0.00", lines[5]);
+            Assertions.assertTrue(lines[6].startsWith("error"));
+
+            // A line split across writes is answered once it's complete
+            channel.write(ByteBuffer.wrap("Salem Ro".getBytes(StandardCharsets.UTF_8)));
+            Thread.sleep(50);
+            Assertions.assertEquals("107.964 27.00\n", exchangeLines(channel, "ad,QEW\n", 1));
+
+            // A deep pipeline gets every answer back
+            StringBuilder pipeline = new StringBuilder();
+            for(int i = 0; i < 5000; i++) pipeline.append("1 2\n");
+            String many = exchangeLines(channel, pipeline.toString(), 5000);
+            Assertions.assertEquals(5000 * "6.062 1.52\n".length(), many.length());
+        }
+
+        // Many connections at once, each answered on its own
+        SocketChannel[] channels = new SocketChannel[200];
+        try {
+            for(int i = 0; i < channels.length; i++) channels[i] = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+            for(SocketChannel channel : channels) Assertions.assertEquals("6.062 1.52\n", exchangeLines(channel, "2 1\n", 1));
+        } finally {
+            for(SocketChannel channel : channels) if(channel != null) channel.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void checkFixedPointDistances() throws Exception {
+        // Distances are read as whole metres, so they add up exactly where doubles would come to 0.30000000000000004
+        CLI jsonCli = loadJson("{\"locations\": {" +
+                "\"1\": {\"name\": \"A\", \"routes\": [{\"toId\": 2, \"distance\": 0.1}]}," +
+                "\"2\": {\"name\": \"B\", \"routes\": [{\"toId\": 3, \"distance\": \"0.2\"}, {\"toId\": 1, \"distance\": 0.1}]}," +
+                "\"3\": {\"name\": \"C\", \"routes\": [{\"toId\": 4, \"distance\": 0.7004}, {\"toId\": 2, \"distance\": 0.2}]}," +
+                "\"4\": {\"name\": \"D\", \"routes\": [{\"toId\": 3, \"distance\": 7.0e-1}]}" +
+                "}}");
+        Interchanges loaded = jsonCli.interchanges;
+        Assertions.assertEquals(300, loaded.calculateDistanceMetres(1, 3));
+        Assertions.assertEquals(0.3, loaded.calculateDistance(1, 3));
+        Assertions.assertEquals(1000, loaded.calculateDistanceMetres(4, 1));
+        Assertions.assertEquals(Metres.UNREACHABLE, loaded.distanceMetres(1, 99));
+
+        // Prices are integers too, 1km at 10 cents with a 1.1 multiplier is 11 cents, not the 12 that ceil(10 * 1.1) gives
+        Tariff tariff = Tariff.read(new StringReader("{\"classes\": {\"light\": {\"rate\": 10}}, \"bands\": [{\"multiplier\": 1.1}]}"));
+        Assertions.assertEquals(11, tariff.priceCentsForMetres(loaded, 1, 4, 1000, 0, 0));
+        Assertions.assertEquals(3, tariff.priceCentsForMetres(loaded, 1, 3, loaded.calculateDistanceMetres(1, 3), 0, Tariff.NO_TIME));
+
+        // Every store and thread gives the same answers to the metre: a branched network's rows computed in parallel,
+        // from the heap and from a snapshot, match the same rows computed one at a time
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.count = 400;
+        generator.highways = 3;
+        generator.interchangeRate = 0.05;
+        generator.generate();
+        StringWriter json = new StringWriter();
+        generator.writeJson(json);
+        CLI generatedCli = loadJson(json.toString());
+        Interchanges generated = generatedCli.interchanges;
+        Path snapshot = Files.createTempFile("fixed-point", ".snapshot");
+        try {
+            generatedCli.compileSnapshot(snapshot.toString());
+            Interchanges mapped = Interchanges.fromSnapshot(new NetworkSnapshot(snapshot));
+            int size = generated.getStore().size();
+            long[][] sequential = new long[size][size];
+            for(int i = 0; i < size; i++) generated.calculateMetresFrom(generated.getStore().idAt(i), sequential[i]);
+            long[][] parallel = new long[size][size];
+            IntStream.range(0, size).parallel().forEach(i -> mapped.calculateMetresFrom(mapped.getStore().idAt(i), parallel[i]));
+            for(int i = 0; i < size; i++) Assertions.assertArrayEquals(sequential[i], parallel[i]);
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+}